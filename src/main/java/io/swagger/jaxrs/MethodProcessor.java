@@ -121,12 +121,16 @@ public class MethodProcessor {
             operation.addResponse(String.valueOf(apiOperationAnnotation.code()), response);
         } else if (responseType == null) {
             // pick out response from method declaration
+            responseType = method.getGenericReturnType();
+            //handle asynchronous (CompletionStage) types
+            if (responseType instanceof ParameterizedType
+                    && java.util.concurrent.CompletionStage.class.isAssignableFrom((Class<?>)((ParameterizedType)responseType).getRawType())) {
+                responseType = ((ParameterizedType)responseType).getActualTypeArguments()[0];
+            }
             //handle Response types
-            if (method.getGenericReturnType() instanceof ParameterizedType 
-                    && org.thingsplode.synapse.core.Response.class.isAssignableFrom((Class<?>)((ParameterizedType)method.getGenericReturnType()).getRawType())) {
-                responseType = ((ParameterizedType)method.getGenericReturnType()).getActualTypeArguments()[0];
-            } else {
-                responseType = method.getGenericReturnType();
+            if (responseType instanceof ParameterizedType 
+                    && org.thingsplode.synapse.core.Response.class.isAssignableFrom((Class<?>)((ParameterizedType)responseType).getRawType())) {
+                responseType = ((ParameterizedType)responseType).getActualTypeArguments()[0];
             }
 
         }
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The socket transport and event loop topology used by the
+ * {@link org.thingsplode.synapse.endpoint.Endpoint} and the
+ * {@link org.thingsplode.synapse.proxy.EndpointProxy}.
+ * <br>
+ * The native epoll transport is used on Linux when it can be loaded (and is
+ * not disabled with {@link #preferNative(boolean)}), otherwise NIO. The
+ * channel class always follows the event loop group, so a group created here
+ * can be shared by any number of proxies (see
+ * {@link org.thingsplode.synapse.proxy.EndpointProxy#eventLoopGroup(EventLoopGroup)}).
+ * <br>
+ * With {@link #reusePort(boolean)} on epoll, the endpoint binds each address
+ * by several server sockets ({@link #acceptors(int)}), the kernel spreads the
+ * incoming connections among them, each accepting on its own thread.
+ *
+ * @author Csaba Tamas
+ */
+public class TransportOptions {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransportOptions.class);
+    public static final int DEFAULT_BACKLOG = 1024;
+    //the netty defaults
+    private static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    private boolean preferNative = true;
+    private int acceptors = 1;
+    private int workerThreads = 0;
+    private int backlog = DEFAULT_BACKLOG;
+    private boolean tcpNoDelay = true;
+    private boolean reusePort = false;
+    private int tcpFastOpen = 0;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private int writeBufferLowWaterMark = 0;
+    private int writeBufferHighWaterMark = 0;
+
+    /**
+     * @return true if the native epoll transport can be used on this system
+     */
+    public static boolean isNativeAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    public boolean isNative() {
+        return preferNative && isNativeAvailable();
+    }
+
+    /**
+     * Creates an event loop group of the selected transport.
+     *
+     * @param threads the number of event loops, 0 means twice the number of
+     * the cores
+     * @param name the prefix of the thread names
+     * @return
+     */
+    public EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+        if (isNative()) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        } else {
+            if (preferNative && logger.isDebugEnabled()) {
+                logger.debug("Native transport is not available, falling back to NIO: " + Epoll.unavailabilityCause());
+            }
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+    }
+
+    /**
+     * @return the group accepting the connections (one thread per acceptor)
+     */
+    public EventLoopGroup newBossGroup() {
+        return newEventLoopGroup(getAcceptors(), "synapse-boss");
+    }
+
+    /**
+     * @return the group serving the accepted (or client) connections
+     */
+    public EventLoopGroup newWorkerGroup() {
+        return newEventLoopGroup(workerThreads, "synapse-worker");
+    }
+
+    /**
+     * @param group
+     * @return the server channel type matching the event loop group
+     */
+    public static Class<? extends ServerSocketChannel> serverChannelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * @param group
+     * @return the client channel type matching the event loop group
+     */
+    public static Class<? extends SocketChannel> channelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Sets the channel type and the socket options of the server.
+     *
+     * @param b the bootstrap which groups are already set
+     */
+    public void configure(ServerBootstrap b) {
+        b.channel(serverChannelClass(b.group()));
+        b.option(ChannelOption.SO_BACKLOG, backlog);
+        if (receiveBufferSize > 0) {
+            //inherited by the accepted sockets, must be set before listening to be effective for the tcp window scale
+            b.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (b.group() instanceof EpollEventLoopGroup) {
+            if (isReusePort()) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            if (tcpFastOpen > 0) {
+                b.option(EpollChannelOption.TCP_FASTOPEN, tcpFastOpen);
+            }
+        }
+        b.childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (writeBufferHighWaterMark > 0) {
+            //each mark is validated against the current value of the other one, the order matters
+            if (writeBufferHighWaterMark >= DEFAULT_LOW_WATER_MARK) {
+                b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+                b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+            } else {
+                b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+                b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+            }
+        }
+    }
+
+    /**
+     * Sets the channel type and the socket options of a client.
+     *
+     * @param b the bootstrap which group is already set
+     */
+    public void configure(Bootstrap b) {
+        b.channel(channelClass(b.group()));
+        b.option(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            b.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            b.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * @param preferNative if false, NIO is used even if the native transport is
+     * available (default: true)
+     * @return
+     */
+    public TransportOptions preferNative(boolean preferNative) {
+        this.preferNative = preferNative;
+        return this;
+    }
+
+    /**
+     * @param acceptors the number of server sockets bound to each address when
+     * {@link #reusePort(boolean)} is enabled on the native transport, also the
+     * number of the boss threads (default: 1)
+     * @return
+     */
+    public TransportOptions acceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("At least one acceptor is needed.");
+        }
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    /**
+     * @param workerThreads the number of the event loops serving the
+     * connections, 0 means twice the number of the cores (default)
+     * @return
+     */
+    public TransportOptions workerThreads(int workerThreads) {
+        if (workerThreads < 0) {
+            throw new IllegalArgumentException("The number of worker threads cannot be negative.");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * @param backlog the length of the queue of the connections not yet
+     * accepted (default: {@link #DEFAULT_BACKLOG})
+     * @return
+     */
+    public TransportOptions backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay disables Nagle's algorithm (default: true)
+     * @return
+     */
+    public TransportOptions tcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @param reusePort SO_REUSEPORT, only supported by the native transport
+     * (default: false)
+     * @return
+     */
+    public TransportOptions reusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * @param pendingRequests the queue length of the TCP Fast Open requests, 0
+     * disables it; only supported by the native transport (default: 0)
+     * @return
+     */
+    public TransportOptions tcpFastOpen(int pendingRequests) {
+        this.tcpFastOpen = pendingRequests;
+        return this;
+    }
+
+    /**
+     * @param bytes SO_SNDBUF of the connections, 0 leaves the system default
+     * @return
+     */
+    public TransportOptions sendBufferSize(int bytes) {
+        this.sendBufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * @param bytes SO_RCVBUF of the connections, 0 leaves the system default
+     * @return
+     */
+    public TransportOptions receiveBufferSize(int bytes) {
+        this.receiveBufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * A connection is not writable while more than the high watermark bytes
+     * are waiting in its outbound buffer, until they drop below the low
+     * watermark; the endpoint suspends the reading of such connections (see
+     * {@link org.thingsplode.synapse.endpoint.handlers.BackpressureHandler}).
+     *
+     * @param low (default: 32 KiB)
+     * @param high (default: 64 KiB)
+     * @return
+     */
+    public TransportOptions writeBufferWaterMark(int low, int high) {
+        if (low < 0 || high < 1 || low > high) {
+            throw new IllegalArgumentException("The low watermark must be between 0 and the high watermark.");
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+        return this;
+    }
+
+    /**
+     * @return true if the addresses are bound by several server sockets
+     */
+    public boolean isReusePort() {
+        return reusePort && isNative();
+    }
+
+    /**
+     * @return the number of server sockets per address
+     */
+    public int getAcceptors() {
+        return isReusePort() ? acceptors : 1;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+}
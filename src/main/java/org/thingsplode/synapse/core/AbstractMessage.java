@@ -17,6 +17,8 @@ package org.thingsplode.synapse.core;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import io.netty.util.Recycler;
+import io.netty.util.ResourceLeak;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -78,6 +80,10 @@ public abstract class AbstractMessage<T> implements Serializable {
     public final static String PROP_CLIENT_ID = "Client-ID";
     @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.PROPERTY, property = "@body_type", visible = true)
     private T body;
+    //set for the envelopes taken from the pool (see Envelopes)
+    transient Recycler.Handle recyclerHandle = null;
+    transient ResourceLeak leak = null;
+    transient boolean inUse = false;
 
     public AbstractMessage() {
     }
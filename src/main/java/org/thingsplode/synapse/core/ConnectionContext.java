@@ -32,7 +32,7 @@ public class ConnectionContext {
     private final String remoteHost;
     private final int remotePort;
     private final ChannelHandlerContext ctx;
-    private long lastSeen;
+    private volatile long lastSeen;
     private String clientID;
     private boolean authorized;
     private final HashMap<String,String> properties = new HashMap<>();
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.core;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.Recycler;
+import io.netty.util.ResourceLeakDetector;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread local pools of the {@link Request} and {@link Response} envelopes
+ * (with their headers) created by the endpoint for each request, when the
+ * recycling is enabled. A pooled envelope must be released exactly once, when
+ * it is not used anymore (the endpoint releases the request when its response
+ * is forwarded and the response when it is encoded); afterwards it is reused
+ * for another request, so neither the envelope nor its header may be kept
+ * (eg. by an asynchronous service).
+ * <p>
+ * The envelopes which are never released are reported by a
+ * {@link ResourceLeakDetector} (see {@link ResourceLeakDetector#setLevel}),
+ * {@link #outstanding()} counts the ones not released yet.
+ *
+ * @author Csaba Tamas
+ */
+public final class Envelopes {
+
+    private static final ResourceLeakDetector<AbstractMessage> LEAK_DETECTOR = new ResourceLeakDetector<>(AbstractMessage.class);
+    private static final LongAdder OUTSTANDING = new LongAdder();
+
+    private static final Recycler<Request> REQUESTS = new Recycler<Request>() {
+        @Override
+        protected Request newObject(Recycler.Handle<Request> handle) {
+            Request request = new Request(new Request.RequestHeader(null, null, null));
+            request.recyclerHandle = handle;
+            return request;
+        }
+    };
+
+    private static final Recycler<Response> RESPONSES = new Recycler<Response>() {
+        @Override
+        protected Response newObject(Recycler.Handle<Response> handle) {
+            Response response = new Response(new Response.ResponseHeader(HttpResponseStatus.INTERNAL_SERVER_ERROR));
+            response.recyclerHandle = handle;
+            return response;
+        }
+    };
+
+    private Envelopes() {
+    }
+
+    /**
+     * @return a pooled request with an empty header (keep-alive)
+     */
+    public static Request<?> newRequest() {
+        return acquire(REQUESTS.get());
+    }
+
+    /**
+     * The pooled counterpart of
+     * {@code new Response(new Response.ResponseHeader(requestHeader, status), body)}.
+     *
+     * @param requestHeader the header of the answered request
+     * @param status
+     * @param body
+     * @return
+     */
+    public static Response<?> newResponse(Request.RequestHeader requestHeader, HttpResponseStatus status, Object body) {
+        Response response = acquire(RESPONSES.get());
+        Response.ResponseHeader header = response.getHeader();
+        header.setResponseCode(status);
+        header.setCorrelationId(requestHeader.getMsgId());
+        header.setKeepAlive(requestHeader.isKeepalive());
+        response.setBody(body);
+        return response;
+    }
+
+    /**
+     * Returns the envelope (and its header) to the pool; no-op for the
+     * envelopes which are not pooled.
+     *
+     * @param msg
+     * @return true if the envelope is pooled
+     * @throws IllegalStateException if the envelope is already released
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean release(AbstractMessage<?> msg) {
+        if (!untrack(msg)) {
+            return false;
+        }
+        msg.setBody(null);
+        msg.getHeader().recycle();
+        msg.recyclerHandle.recycle(msg);
+        return true;
+    }
+
+    /**
+     * Stops tracking the pooled envelope without recycling it: its header is
+     * handed over to a longer living message (eg. a file request) and it is
+     * garbage collected.
+     *
+     * @param msg
+     * @return true if the envelope is pooled
+     */
+    public static boolean detach(AbstractMessage<?> msg) {
+        return untrack(msg);
+    }
+
+    /**
+     * @return the number of the pooled envelopes in use
+     */
+    public static long outstanding() {
+        return OUTSTANDING.sum();
+    }
+
+    private static <T extends AbstractMessage<?>> T acquire(T msg) {
+        msg.inUse = true;
+        msg.leak = LEAK_DETECTOR.open(msg);
+        OUTSTANDING.increment();
+        return msg;
+    }
+
+    private static boolean untrack(AbstractMessage<?> msg) {
+        if (msg == null || msg.recyclerHandle == null) {
+            return false;
+        }
+        if (!msg.inUse) {
+            throw new IllegalStateException("The " + msg.getClass().getSimpleName() + " is already released.");
+        }
+        msg.inUse = false;
+        if (msg.leak != null) {
+            msg.leak.close();
+            msg.leak = null;
+        }
+        OUTSTANDING.decrement();
+        return true;
+    }
+}
@@ -18,6 +18,7 @@ package org.thingsplode.synapse.core;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Matcher;
@@ -139,6 +140,23 @@ public class MediaType {
         return b.toString();
     }
 
+    /**
+     * Shared by the compression of the responses, the static content and the
+     * proxied requests.
+     *
+     * @param contentType the value of a Content-Type header
+     * @return true for the textual content types worth compressing (false if
+     * null)
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String t = contentType.toLowerCase(Locale.US);
+        return t.startsWith("text/") || t.contains("javascript") || t.contains("json")
+                || t.contains("xml") || t.contains("svg") || t.contains("font/ttf") || t.contains("font/otf");
+    }
+
     /**
      *
      * @param that
@@ -15,12 +15,27 @@
  */
 package org.thingsplode.synapse.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.netty.handler.codec.http.HttpHeaders;
 import java.net.SocketAddress;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
 
 /**
+ * The properties of a message received over HTTP are backed by the headers of
+ * the HTTP message (no copy, case insensitive lookup); the properties added
+ * later are kept in a map, which is created on the first one. The headers are
+ * copied into the map only if the complete map is requested
+ * ({@link #getProperties()}). The property names are case insensitive, as the
+ * HTTP header names: an added property overrides the header of any case.
+ * <br>
+ * The map returned by {@link #getProperties()} is a plain (case sensitive)
+ * HashMap; from then on the lookups by name fall back to a case insensitive
+ * scan of it.
  *
  * @author Csaba Tamas
  */
@@ -29,7 +44,12 @@ public class MessageHeader {
     protected String msgId;
     private String protocolVersion;
     private SocketAddress remoteAddress;
-    private final HashMap<String, String> properties = new HashMap<>();
+    //the properties added to the message (null: none yet), they take precedence over the transport headers
+    //case insensitive TreeMap, or the HashMap handed out by getProperties()
+    private Map<String, String> properties = null;
+    //the headers of the received http message (null: none or already copied into the properties)
+    //not serialized: the field based serializers copy them into the properties first
+    private transient HttpHeaders transportHeaders = null;
 
     public MessageHeader() {
     }
@@ -63,20 +83,122 @@ public class MessageHeader {
     }
 
     public void addProperty(String key, String value) {
+        if (properties == null) {
+            properties = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        } else if (properties instanceof HashMap) {
+            properties.keySet().removeIf(k -> k.equalsIgnoreCase(key));
+        }
         properties.put(key, value);
     }
 
     public Optional<String> getProperty(String propertyKey) {
-        return Optional.ofNullable(properties.get(propertyKey));
+        String value = properties != null ? get(properties, propertyKey) : null;
+        if (value == null && transportHeaders != null) {
+            value = transportHeaders.get(propertyKey);
+        }
+        return Optional.ofNullable(value);
+    }
+
+    public void removeProperty(String propertyKey) {
+        if (transportHeaders != null && transportHeaders.contains(propertyKey)) {
+            materialize();
+        }
+        if (properties instanceof HashMap) {
+            properties.keySet().removeIf(k -> k.equalsIgnoreCase(propertyKey));
+        } else if (properties != null) {
+            properties.remove(propertyKey);
+        }
     }
 
+    private static String get(Map<String, String> map, String key) {
+        String value = map.get(key);
+        if (value == null && map instanceof HashMap) {
+            for (Map.Entry<String, String> e : map.entrySet()) {
+                if (e.getKey().equalsIgnoreCase(key)) {
+                    return e.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Visits the properties without copying the transport headers.
+     *
+     * @param consumer
+     */
+    public void forEachProperty(BiConsumer<String, String> consumer) {
+        if (transportHeaders != null) {
+            Iterator<Map.Entry<String, String>> it = transportHeaders.iteratorAsString();
+            while (it.hasNext()) {
+                Map.Entry<String, String> e = it.next();
+                //overridden by an added property (of any case)
+                if (properties == null || get(properties, e.getKey()) == null) {
+                    consumer.accept(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if (properties != null) {
+            properties.forEach(consumer);
+        }
+    }
+
+    /**
+     * @return all the properties, including the transport headers (which are
+     * copied into the map on the first call, one entry per name of any case)
+     */
     public HashMap<String, String> getProperties() {
-        return properties;
+        materialize();
+        if (!(properties instanceof HashMap)) {
+            properties = properties != null ? new HashMap<>(properties) : new HashMap<>();
+        }
+        return (HashMap<String, String>) properties;
     }
 
     public void addAllProperties(Iterable<Map.Entry<String, String>> iterable) {
         if (iterable != null) {
-            iterable.forEach((e) -> properties.put(e.getKey(), e.getValue()));
+            iterable.forEach((e) -> addProperty(e.getKey(), e.getValue()));
+        }
+    }
+
+    /**
+     * Backs the properties with the headers of the received HTTP message.
+     *
+     * @param headers
+     */
+    @JsonIgnore
+    public void setTransportHeaders(HttpHeaders headers) {
+        materialize();
+        this.transportHeaders = headers;
+    }
+
+    private void materialize() {
+        if (transportHeaders == null) {
+            return;
+        }
+        TreeMap<String, String> all = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        transportHeaders.forEach(e -> all.put(e.getKey(), e.getValue()));
+        if (properties != null) {
+            all.putAll(properties);
+        }
+        properties = all;
+        transportHeaders = null;
+    }
+
+    /**
+     * Clears the header for reuse (the property map is kept, unless it was
+     * handed out).
+     */
+    void recycle() {
+        msgId = null;
+        protocolVersion = null;
+        remoteAddress = null;
+        transportHeaders = null;
+        if (properties instanceof HashMap) {
+            //handed out, might still be referenced
+            properties = null;
+        } else if (properties != null) {
+            properties.clear();
         }
     }
 
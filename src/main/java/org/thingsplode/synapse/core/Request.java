@@ -16,6 +16,7 @@
 package org.thingsplode.synapse.core;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import java.io.Serializable;
@@ -91,9 +92,16 @@ public class Request<T extends Serializable> extends AbstractMessage<T> {
          * Request/Response message for message pipelining;
          */
         public static final String MSG_SEQ = "MSG_SEQ";
+        /**
+         * The HTTP/2 stream of the request (set by the http/2 codec at the
+         * Endpoint); the response must be written on the same stream.
+         */
+        public static final String STREAM_ID = "x-http2-stream-id";
         Uri uri;
         RequestMethod method;
         boolean keepalive = true;
+        //the route matched by the endpoint, kept while the uri and the method are not changed
+        private transient Object route;
 
         public RequestHeader(Uri uri, RequestMethod method) {
             this(null, uri, method);
@@ -112,10 +120,12 @@ public class Request<T extends Serializable> extends AbstractMessage<T> {
 
         public void setUri(Uri uri) {
             this.uri = uri;
+            this.route = null;
         }
 
         public void setMethod(RequestMethod method) {
             this.method = method;
+            this.route = null;
         }
 
         public RequestMethod getMethod() {
@@ -130,6 +140,35 @@ public class Request<T extends Serializable> extends AbstractMessage<T> {
             this.keepalive = keepalive;
         }
 
+        /**
+         * @return the route the endpoint matched the request to (opaque, not
+         * serialized) or null if the request is not matched yet
+         */
+        @JsonIgnore
+        public Object getRoute() {
+            return route;
+        }
+
+        /**
+         * The request is routed once: the route matched when the head of the
+         * request is received is reused by the later stages.
+         *
+         * @param route
+         */
+        @JsonIgnore
+        public void setRoute(Object route) {
+            this.route = route;
+        }
+
+        @Override
+        void recycle() {
+            super.recycle();
+            uri = null;
+            method = null;
+            keepalive = true;
+            route = null;
+        }
+
         @Override
         public String toString() {
             return "RequestHeader{" + super.toString() + ", uri=" + uri + ", method=" + method + '}';
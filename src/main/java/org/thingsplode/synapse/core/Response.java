@@ -126,6 +126,15 @@ public class Response<T> extends AbstractMessage<T> {
             this.keepAlive = keepAlive;
         }
 
+        @Override
+        void recycle() {
+            super.recycle();
+            responseCode = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+            correlationId = null;
+            contentType = null;
+            keepAlive = false;
+        }
+
         @Override
         public String toString() {
             return "ResponseHeader{" + super.toString() + "responseCode=" + responseCode + ", correlationId=" + correlationId + ", keepAlive=" + keepAlive + '}';
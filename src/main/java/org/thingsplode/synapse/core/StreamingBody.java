@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.core;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A response body which is not serialized at once, but written element by
+ * element as a json array: in http chunks or in a sequence of websocket
+ * frames, while the connection is writable. The elements are pulled (and the
+ * lazy sources, eg. a {@link Stream}, are evaluated) on the IO thread of the
+ * connection, so the source should not block for long.
+ * <br>
+ * Created by the endpoint for the services returning a {@link Stream}, an
+ * {@link Iterator} or (if the method is annotated with
+ * {@link org.thingsplode.synapse.core.annotations.StreamingResponse}) an
+ * {@link Iterable}; it can also be set as the body of a {@link Response}
+ * returned by a service.
+ *
+ * @author Csaba Tamas
+ */
+public final class StreamingBody implements Iterator<Object>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingBody.class);
+    private final Iterator<?> elements;
+    private final AutoCloseable resource;
+    private boolean closed = false;
+
+    private StreamingBody(Iterator<?> elements, AutoCloseable resource) {
+        this.elements = elements;
+        this.resource = resource;
+    }
+
+    /**
+     * @param stream closed when the body is written or the connection is
+     * lost
+     * @return
+     */
+    public static StreamingBody of(Stream<?> stream) {
+        return new StreamingBody(stream.iterator(), stream);
+    }
+
+    /**
+     * @param iterator closed when the body is written if it is
+     * {@link AutoCloseable} (eg. a database cursor)
+     * @return
+     */
+    public static StreamingBody of(Iterator<?> iterator) {
+        return new StreamingBody(iterator, iterator instanceof AutoCloseable ? (AutoCloseable) iterator : null);
+    }
+
+    public static StreamingBody of(Iterable<?> iterable) {
+        return new StreamingBody(iterable.iterator(), iterable instanceof AutoCloseable ? (AutoCloseable) iterable : null);
+    }
+
+    /**
+     * @param result a {@link Stream}, {@link Iterator} or {@link Iterable}
+     * @return
+     */
+    public static StreamingBody of(Object result) {
+        if (result instanceof StreamingBody) {
+            return (StreamingBody) result;
+        } else if (result instanceof Stream) {
+            return of((Stream<?>) result);
+        } else if (result instanceof Iterator) {
+            return of((Iterator<?>) result);
+        } else if (result instanceof Iterable) {
+            return of((Iterable<?>) result);
+        }
+        throw new IllegalArgumentException("Cannot stream an object of type: " + (result != null ? result.getClass().getName() : "null"));
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !closed && elements.hasNext();
+    }
+
+    @Override
+    public Object next() {
+        return elements.next();
+    }
+
+    /**
+     * Releases the source of the elements; can be called several times.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (Exception ex) {
+                logger.warn("Closing the source of the streamed response failed: " + ex.getMessage(), ex);
+            }
+        }
+    }
+}
@@ -16,53 +16,96 @@
 package org.thingsplode.synapse.core;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 import org.thingsplode.synapse.util.Util;
 
 /**
  * Processes URIs in the following way:
- * /context/service/method/{path_variable}?parameter=1&parameter=2
- * 
+ * /context/service/method/{path_variable}?parameter=1&amp;parameter=2
+ * <br>
+ * The query is parsed lazily, on the first access of a parameter: only the
+ * offsets of the parameters are recorded and indexed by name (case
+ * insensitive), the values are decoded when they are read. The index is built
+ * once into an immutable holder, so a Uri handed over to another thread can
+ * be read there; the list of the parameters is not synchronized.
+ *
  * @author Csaba Tamas
  */
 //todo: merge&cobine with the java.net.URI
+//the parameter list is still written for the peers reading it, but it is rebuilt from the query when read
+@JsonIgnoreProperties(value = {"queryParameters"}, allowGetters = true)
 public class Uri {
 
     private final String path;
     private String query;
+    //the decoded parameters, created on demand
     private List<Parameter<String>> queryParameters;
+    private transient Charset charset;
+    //null: not parsed yet; racy publication is safe (final fields), at worst it is built twice
+    private transient QueryIndex index;
+    private transient String parameterExpression;
 
     public String createParameterExpression() {
-        if (queryParameters == null || queryParameters.isEmpty()) {
-            return "";
-        }
-        String pex = "?";
-        boolean first = true;
-        for (Parameter p : queryParameters) {
-            pex = pex + (first ? p.getName() : "&" + p.getName());
-            first = false;
+        if (parameterExpression == null) {
+            QueryIndex idx = index();
+            if (idx.count == 0) {
+                parameterExpression = "";
+            } else {
+                StringBuilder pex = new StringBuilder(query.length() + 1).append('?');
+                for (int i = 0; i < idx.count; i++) {
+                    if (i > 0) {
+                        pex.append('&');
+                    }
+                    pex.append(idx.name(i));
+                }
+                parameterExpression = pex.toString();
+            }
         }
-        return pex;
+        return parameterExpression;
     }
 
     public String getQueryParamterValue(String parameterName) {
-        if (queryParameters == null || queryParameters.isEmpty()) {
-            return null;
-        }
-        Optional<Parameter<String>> o = queryParameters.stream().filter((p) -> p.getName().equalsIgnoreCase(parameterName)).findFirst();
-        return o.isPresent() ? o.get().getValue() : null;
+        QueryIndex idx = index();
+        int i = idx.indexOf(parameterName);
+        return i == -1 ? null : idx.value(i);
     }
 
-    @JsonCreator
-    private Uri(@JsonProperty("path") String path, @JsonProperty("query") String query, @JsonProperty("queryParameters") List<Parameter<String>> queryParameters) {
+    /**
+     * @param parameterName case insensitive
+     * @return true if the query contains the parameter
+     */
+    public boolean hasQueryParameter(String parameterName) {
+        return index().indexOf(parameterName) != -1;
+    }
+
+    /**
+     * @return the number of the different parameter names in the query (case
+     * insensitive)
+     */
+    @JsonIgnore
+    public int getDistinctQueryParameterCount() {
+        return index().distinctCount;
+    }
+
+    private Uri(String path, String query, Charset charset) {
         this.path = path;
         this.query = query;
-        this.queryParameters = queryParameters;
+        this.charset = charset;
+    }
+
+    @JsonCreator
+    private static Uri fromJson(@JsonProperty("path") String path, @JsonProperty("query") String query) {
+        return new Uri(path, query, StandardCharsets.UTF_8);
     }
 
     public Uri(String uri) throws UnsupportedEncodingException {
@@ -73,6 +116,11 @@ public class Uri {
         if (Util.isEmpty(uri)) {
             throw new IllegalArgumentException("The URI cannot be null.");
         }
+        try {
+            this.charset = Charset.forName(encoding);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException ex) {
+            throw new UnsupportedEncodingException(encoding);
+        }
         if (!uri.startsWith("/")) {
             uri = "/" + uri;
         }
@@ -83,18 +131,15 @@ public class Uri {
         } else {
             path = uri;
         }
-        if (!Util.isEmpty(query)) {
-            processQuery(encoding);
-        }
     }
 
-    private void processQuery(String encoding) throws UnsupportedEncodingException {
-        queryParameters = new ArrayList<>();
-        String[] pairs = query.split("&");
-        for (String pair : pairs) {
-            int idx = pair.indexOf("=");
-            queryParameters.add(new Parameter<>(URLDecoder.decode(pair.substring(0, idx), encoding), URLDecoder.decode(pair.substring(idx + 1), encoding)));
+    private QueryIndex index() {
+        QueryIndex idx = index;
+        if (idx == null) {
+            idx = new QueryIndex(query, charset != null ? charset : StandardCharsets.UTF_8);
+            index = idx;
         }
+        return idx;
     }
 
     public String getPath() {
@@ -105,13 +150,189 @@ public class Uri {
         return query;
     }
 
+    /**
+     * @return the decoded parameters in the order of the query (null if there
+     * is no query); the list is created on the first call, its changes are not
+     * reflected by the lookups by name
+     */
+    @JsonProperty("queryParameters")
     public List<Parameter<String>> getQueryParameters() {
+        if (queryParameters == null && !Util.isEmpty(query)) {
+            QueryIndex idx = index();
+            List<Parameter<String>> params = new ArrayList<>(idx.count);
+            for (int i = 0; i < idx.count; i++) {
+                params.add(new Parameter<>(idx.name(i), idx.value(i)));
+            }
+            queryParameters = params;
+        }
         return queryParameters;
     }
 
     @Override
     public String toString() {
-        return "Uri{" + "path=" + path + ", query=" + query + ", queryParameters=" + queryParameters + '}';
+        return "Uri{" + "path=" + path + ", query=" + query + '}';
     }
 
+    /**
+     * The offsets of the parameters in the query and the hash index of their
+     * names. The names and values are decoded on demand: the slots of the
+     * arrays are written at most once with equal strings, so concurrent
+     * readers can only decode the same one twice.
+     */
+    private static final class QueryIndex {
+
+        private final String query;
+        private final Charset charset;
+        //[name start, name end, value start, value end] of each parameter in the query
+        private final int[] bounds;
+        private final int count;
+        private final int distinctCount;
+        //open addressing, the position + 1 of the first parameter of each name (0: free slot)
+        private final int[] slots;
+        //the decoded names (the names without escapes are only decoded when requested) and values
+        private final String[] names;
+        private final String[] values;
+
+        QueryIndex(String query, Charset charset) {
+            this.query = query;
+            this.charset = charset;
+            int[] b = new int[Util.isEmpty(query) ? 0 : 16];
+            int n = 0;
+            int len = Util.isEmpty(query) ? -1 : query.length();
+            for (int start = 0; start <= len;) {
+                int end = query.indexOf('&', start);
+                if (end == -1) {
+                    end = len;
+                }
+                if (end > start) {
+                    int eq = query.indexOf('=', start);
+                    if (eq == -1 || eq > end) {
+                        eq = end;
+                    }
+                    if (4 * n + 4 > b.length) {
+                        int[] grown = new int[b.length * 2];
+                        System.arraycopy(b, 0, grown, 0, b.length);
+                        b = grown;
+                    }
+                    b[4 * n] = start;
+                    b[4 * n + 1] = eq;
+                    b[4 * n + 2] = Math.min(eq + 1, end);
+                    b[4 * n + 3] = end;
+                    n++;
+                }
+                start = end + 1;
+            }
+            this.bounds = b;
+            this.count = n;
+            this.names = new String[n];
+            this.values = new String[n];
+            int[] table = new int[Integer.highestOneBit(Math.max(n, 1)) << 2];
+            int mask = table.length - 1;
+            int distinct = 0;
+            for (int i = 0; i < n; i++) {
+                if (needsDecoding(b[4 * i], b[4 * i + 1])) {
+                    names[i] = decode(b[4 * i], b[4 * i + 1]);
+                }
+                int h = names[i] != null ? hash(names[i], 0, names[i].length()) : hash(query, b[4 * i], b[4 * i + 1]);
+                for (int slot = h & mask;; slot = (slot + 1) & mask) {
+                    if (table[slot] == 0) {
+                        table[slot] = i + 1;
+                        distinct++;
+                        break;
+                    } else if (sameName(table[slot] - 1, i)) {
+                        //the first one is looked up
+                        break;
+                    }
+                }
+            }
+            this.slots = table;
+            this.distinctCount = distinct;
+        }
+
+        int indexOf(String name) {
+            if (count == 0 || name == null) {
+                return -1;
+            }
+            int mask = slots.length - 1;
+            for (int slot = hash(name, 0, name.length()) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int i = slots[slot] - 1;
+                if (nameEquals(i, name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean nameEquals(int i, String name) {
+            if (names[i] != null) {
+                return names[i].equalsIgnoreCase(name);
+            }
+            int start = bounds[4 * i];
+            int length = bounds[4 * i + 1] - start;
+            return length == name.length() && query.regionMatches(true, start, name, 0, length);
+        }
+
+        private boolean sameName(int i, int j) {
+            if (names[j] != null) {
+                return nameEquals(i, names[j]);
+            } else if (names[i] != null) {
+                return names[i].length() == bounds[4 * j + 1] - bounds[4 * j] && query.regionMatches(true, bounds[4 * j], names[i], 0, names[i].length());
+            }
+            int length = bounds[4 * i + 1] - bounds[4 * i];
+            return length == bounds[4 * j + 1] - bounds[4 * j] && query.regionMatches(true, bounds[4 * i], query, bounds[4 * j], length);
+        }
+
+        //consistent with String.equalsIgnoreCase
+        private static int hash(String s, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private boolean needsDecoding(int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = query.charAt(i);
+                if (c == '%' || c == '+') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String decode(int from, int to) {
+            String raw = query.substring(from, to);
+            if (!needsDecoding(from, to)) {
+                return raw;
+            }
+            try {
+                return URLDecoder.decode(raw, charset.name());
+            } catch (UnsupportedEncodingException ex) {
+                //the charset is resolved already
+                throw new IllegalStateException(ex);
+            } catch (IllegalArgumentException ex) {
+                //malformed escape (eg. %zz): the raw form is kept, the lookups (routing) must not fail on it
+                return raw;
+            }
+        }
+
+        String name(int i) {
+            String name = names[i];
+            if (name == null) {
+                name = query.substring(bounds[4 * i], bounds[4 * i + 1]);
+                names[i] = name;
+            }
+            return name;
+        }
+
+        String value(int i) {
+            String value = values[i];
+            if (value == null) {
+                value = decode(bounds[4 * i + 2], bounds[4 * i + 3]);
+                values[i] = value;
+            }
+            return value;
+        }
+    }
 }
@@ -23,6 +23,12 @@ import java.lang.annotation.Target;
 
 /**
  * Is a marker annotation. In case it used, the payload of the PUT/POST method will be de-serialized and passed to the method parameter;
+ * <br>
+ * If the parameter is an {@link java.io.InputStream} or a
+ * {@link java.nio.channels.ReadableByteChannel}, the body is not buffered but
+ * streamed to the service while it is received (the service method must not
+ * run on the IO thread, so it is invoked on a worker thread even with the
+ * inline invocation strategy).
  * @author Csaba Tamas
  */
 @Target(ElementType.PARAMETER)
@@ -41,4 +47,18 @@ public @interface RequestBody {
      */
     boolean required() default true;
 
+    /**
+     * The maximum size of the body in bytes. Requests announcing a larger
+     * Content-Length are rejected with 413 (Request Entity Too Large) before
+     * the body is read; chunked bodies are cut when the limit is reached.
+     * <p>
+     * Default is {@code -1}: streamed bodies are not limited, decoded bodies
+     * are limited by the maximum content length of the endpoint. The limit of
+     * a decoded body cannot exceed the maximum content length of the endpoint
+     * (the service is rejected when it is registered).
+     *
+     * @return
+     */
+    long maxSize() default -1;
+
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.core.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method returning an {@link Iterable} (eg. a large list or a lazy
+ * collection) which result should be written element by element (see
+ * {@link org.thingsplode.synapse.core.StreamingBody}) instead of being
+ * serialized at once. The {@link java.util.stream.Stream} and
+ * {@link java.util.Iterator} results are always streamed.
+ *
+ * @author Csaba Tamas
+ */
+@Documented
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StreamingResponse {
+}
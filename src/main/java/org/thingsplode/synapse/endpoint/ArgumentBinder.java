@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Optional;
+import org.thingsplode.synapse.core.ParameterWrapper;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.exceptions.MissingParameterException;
+import org.thingsplode.synapse.endpoint.ValueConverters.ValueConverter;
+
+/**
+ * Binds one parameter of a service method from the request into the argument
+ * array of the invocation. The binders are compiled when the service is
+ * registered (the source of the value, the converter of the parameter type
+ * and the position within the argument array are decided once), so binding
+ * the arguments of a request does not need regular expressions nor
+ * intermediate collections.
+ *
+ * @author Csaba Tamas
+ */
+abstract class ArgumentBinder {
+
+    final MethodParam param;
+    final int index;
+
+    private ArgumentBinder(MethodParam param, int index) {
+        this.param = param;
+        this.index = index;
+    }
+
+    /**
+     * @param header the header of the request
+     * @param route the route matched by the request
+     * @param body the request body (might be null)
+     * @param args the argument array of the invocation
+     * @throws MissingParameterException if a required parameter is not
+     * available
+     */
+    abstract void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException;
+
+    static ArgumentBinder create(MethodParam param, int index) {
+        switch (param.source) {
+            case BODY:
+                return new BodyBinder(param, index);
+            case PARAMETER_WRAPPER:
+                return new ParameterWrapperBinder(param, index);
+            case QUERY_PARAM:
+                return new QueryParamBinder(param, index);
+            case HEADER_PARAM:
+                return new HeaderParamBinder(param, index);
+            case PATH_VARIABLE:
+                return new PathVariableBinder(param, index);
+            default:
+                throw new IllegalArgumentException("Unsupported parameter source: " + param.source);
+        }
+    }
+
+    /**
+     * Base class of the binders working with string values (query parameters,
+     * request properties and path variables).
+     */
+    private static abstract class StringValueBinder extends ArgumentBinder {
+
+        private final ValueConverter converter;
+        private final Object nullValue;
+
+        StringValueBinder(MethodParam param, int index) {
+            super(param, index);
+            Class<?> type = param.type != null ? param.type : String.class;
+            this.converter = ValueConverters.forType(type);
+            this.nullValue = param.defaultValue != null ? param.defaultValue : ValueConverters.nullValue(type);
+        }
+
+        void bindValue(String value, String location, Object[] args) throws MissingParameterException {
+            if (value != null && !value.isEmpty()) {
+                Object converted = converter.convert(value);
+                if (converted != null) {
+                    args[index] = converted;
+                    return;
+                }
+            }
+            if (param.required && param.defaultValue == null) {
+                throw new MissingParameterException(location, param.paramId);
+            }
+            args[index] = nullValue;
+        }
+    }
+
+    private static final class BodyBinder extends ArgumentBinder {
+
+        BodyBinder(MethodParam param, int index) {
+            super(param, index);
+        }
+
+        @Override
+        void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException {
+            if (body instanceof InputStream && param.type == ReadableByteChannel.class) {
+                args[index] = Channels.newChannel((InputStream) body);
+            } else if (body != null) {
+                args[index] = body;
+            } else if (param.defaultValue != null) {
+                args[index] = param.defaultValue;
+            } else if (param.required) {
+                throw new MissingParameterException(header.getUri().getPath(), param.paramId);
+            }
+        }
+    }
+
+    private static final class ParameterWrapperBinder extends ArgumentBinder {
+
+        ParameterWrapperBinder(MethodParam param, int index) {
+            super(param, index);
+        }
+
+        @Override
+        void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException {
+            if (!(body instanceof ParameterWrapper)) {
+                throw new MissingParameterException(header.getUri().getPath(), param.paramId);
+            }
+            Optional<ParameterWrapper.Parameter> pOpt = ((ParameterWrapper) body).getParameterByName(param.paramId);
+            if (pOpt.isPresent()) {
+                args[index] = pOpt.get().getValue();
+            }
+        }
+    }
+
+    private static final class QueryParamBinder extends StringValueBinder {
+
+        QueryParamBinder(MethodParam param, int index) {
+            super(param, index);
+        }
+
+        @Override
+        void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException {
+            bindValue(header.getUri().getQueryParamterValue(param.paramId), header.getUri().getQuery(), args);
+        }
+    }
+
+    private static final class HeaderParamBinder extends StringValueBinder {
+
+        HeaderParamBinder(MethodParam param, int index) {
+            super(param, index);
+        }
+
+        @Override
+        void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException {
+            bindValue(header.getProperty(param.paramId).orElse(null), "Header Value", args);
+        }
+    }
+
+    private static final class PathVariableBinder extends StringValueBinder {
+
+        PathVariableBinder(MethodParam param, int index) {
+            super(param, index);
+        }
+
+        @Override
+        void bind(Request.RequestHeader header, Router.Route route, Object body, Object[] args) throws MissingParameterException {
+            String path = header.getUri().getPath();
+            bindValue(route.pathVariable(path, index), path, args);
+        }
+    }
+}
@@ -20,22 +20,45 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.EpollServerDomainSocketChannel;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.unix.DomainSocketChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapterBuilder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -46,30 +69,51 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import javax.net.ssl.SSLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.Command;
 import org.thingsplode.synapse.core.CommandResult;
+import org.thingsplode.synapse.core.Envelopes;
+import org.thingsplode.synapse.core.PushNotification;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
 import org.thingsplode.synapse.core.ConnectionContext;
+import org.thingsplode.synapse.endpoint.handlers.BackpressureHandler;
+import org.thingsplode.synapse.endpoint.handlers.BackpressureMetrics;
+import org.thingsplode.synapse.endpoint.handlers.CompressionMetrics;
 import org.thingsplode.synapse.endpoint.handlers.FileRequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.Http2PrefaceDetector;
 import org.thingsplode.synapse.endpoint.handlers.HttpRequestIntrospector;
 import org.thingsplode.synapse.endpoint.handlers.HttpRequestHandler;
 import org.thingsplode.synapse.endpoint.handlers.HttpResponseHandler;
+import org.thingsplode.synapse.endpoint.handlers.IdleConnectionReaper;
 import org.thingsplode.synapse.endpoint.handlers.ResponseIntrospector;
+import org.thingsplode.synapse.endpoint.handlers.ResponseCompressor;
 import org.thingsplode.synapse.endpoint.handlers.RequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.RequestBodyDecoder;
+import org.thingsplode.synapse.endpoint.handlers.ResponseSequencer;
+import org.thingsplode.synapse.endpoint.handlers.SseBroker;
+import org.thingsplode.synapse.endpoint.handlers.SseSubscriptionHandler;
+import org.thingsplode.synapse.endpoint.handlers.StaticContentCache;
 import org.thingsplode.synapse.endpoint.swagger.EndpointApiGenerator;
 import org.thingsplode.synapse.DispatchedFuture;
 import org.thingsplode.synapse.MessageIdGeneratorStrategy;
 import org.thingsplode.synapse.MessageRegistry;
 import org.thingsplode.synapse.MsgIdRspCorrelator;
+import org.thingsplode.synapse.TransportOptions;
 import org.thingsplode.synapse.endpoint.handlers.CommandResultHandler;
 import static org.thingsplode.synapse.endpoint.handlers.RequestHandler.CONNECTION_CTX_ATTR;
 import org.thingsplode.synapse.util.NetworkUtil;
@@ -86,11 +130,32 @@ public class Endpoint {
     public static final String HTTP_ENCODER = "http_encoder";
     public static final String HTTP_DECODER = "http_decoder";
     public static final String HTTP_AGGREGATOR = "http_aggregator";
+    public static final String HTTP_BODY_DECODER = "http_body_decoder";
+    public static final String HTTP_CODEC = "http_codec";
+    public static final String HTTP_CHUNKED_WRITER = "http_chunked_writer";
+    public static final String HTTP_COMPRESSOR = "http_compressor";
+    public static final String HTTP_DECOMPRESSOR = "http_decompressor";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final String SSE_HANDLER = "sse_handler";
+    public static final String HTTP2_HANDLER = "http2_handler";
+    public static final String HTTP2_UPGRADE_HANDLER = "http2_upgrade_handler";
+    public static final String SSL_HANDLER = "ssl_handler";
+    public static final String PROTOCOL_NEGOTIATOR = "protocol_negotiator";
+    public static final int MAX_CONTENT_LENGTH = 1048576;
     public static final String HTTP_REQUEST_HANDLER = "http_request_handler";
     public static final String REQUEST_HANDLER = "request_handler";
     public static final String ALL_CHANNEL_GROUP_NAME = "all-open-channels";
     public static final String HTTP_FILE_HANDLER = "http_file_handler";
     public static final String RESPONSE_SEQUENCER = "response_sequencer";
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 16;
+    public static final String DEFAULT_SSE_PATH = "/events";
+    public static final String BACKPRESSURE_HANDLER = "backpressure_handler";
+    public static final int DEFAULT_MAX_PENDING_INVOCATIONS = 128;
+    public static final int DEFAULT_MAX_QUEUED_COMMANDS = 1024;
+    public static final String IDLE_HANDLER = "idle_handler";
+    public static final int DEFAULT_HTTP_IDLE_SECONDS = 120;
+    public static final int DEFAULT_WS_IDLE_SECONDS = 60;
     public static final String HTTP_RESPONSE_HANDLER = "http_response_handler";
     public static final String WS_RESPONSE_HANDLER = "ws_response_handler";
     public static final String WS_COMMAND_HANDLER = "WS_COMMAND_HANDLER";
@@ -114,12 +179,33 @@ public class Endpoint {
     private FileRequestHandler fileHandler = null;
     private EventExecutorGroup evtExecutorGroup = new DefaultEventExecutorGroup(10);
     private ServiceRegistry serviceRegistry = new ServiceRegistry();
+    private InvocationStrategy invocationStrategy = InvocationStrategy.inline();
+    //the services reading a streamed request body cannot be invoked inline
+    private final InvocationStrategy blockingStrategy = InvocationStrategy.threadPerRequest();
     private EndpointApiGenerator apiGenerator = null;
+    private boolean swaggerWarmUp = false;
     private boolean introspection = false;
-    private boolean pipelining = false;
+    private int maxPipelinedRequests = 0;
     private MsgIdRspCorrelator messageStore = null;
     private MessageIdGeneratorStrategy msgIdGeneratorStrategy = null;
     private boolean bidirectionalCommsEnabled = false;
+    private SslContextBuilder sslContextBuilder = null;
+    private TransportOptions transportOptions = new TransportOptions();
+    private SseBroker sseBroker = null;
+    private String ssePath = DEFAULT_SSE_PATH;
+    private int sseReplaySize = SseBroker.DEFAULT_REPLAY_SIZE;
+    private int maxPendingInvocations = DEFAULT_MAX_PENDING_INVOCATIONS;
+    private BackpressureHandler.UnwritablePolicy unwritablePolicy = BackpressureHandler.UnwritablePolicy.QUEUE;
+    private int maxQueuedCommands = DEFAULT_MAX_QUEUED_COMMANDS;
+    private final BackpressureMetrics backpressureMetrics = new BackpressureMetrics();
+    private final Map<Transport, IdleConnectionReaper.Limits> idleLimits = defaultIdleLimits();
+    private IdleConnectionReaper idleReaper = null;
+    private boolean recycleEnvelopes = false;
+    private long staticCacheBudget = StaticContentCache.DEFAULT_BUDGET_BYTES;
+    private int staticCacheMaxEntrySize = StaticContentCache.DEFAULT_MAX_ENTRY_BYTES;
+    private int compressionThreshold = -1;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private final CompressionMetrics compressionMetrics = new CompressionMetrics();
     //private final LinkedBlockingQueue<DispatchedFuture<Command, CommandResult>> dispatchQueue = new LinkedBlockingQueue<>(20);//todo: will 20 be enough
 
     private Endpoint() {
@@ -159,34 +245,48 @@ public class Endpoint {
                     this.msgIdGeneratorStrategy = () -> UUID.randomUUID().toString();
                 }
             }
-            if (transportTypes.contains(Transport.HTTP) || ws) {
-                this.bootstrap.
-                        channel(NioServerSocketChannel.class)
-                        .childOption(ChannelOption.SO_KEEPALIVE, true)
+            boolean http2 = transportTypes.contains(Transport.HTTP2);
+            boolean sse = transportTypes.contains(Transport.SSE);
+            if (sse && sseBroker == null) {
+                sseBroker = new SseBroker(sseReplaySize);
+            }
+            if (idleReaper == null) {
+                idleReaper = new IdleConnectionReaper(idleLimits);
+            }
+            if (fileHandler != null) {
+                fileHandler.getStaticContentCache().resize(staticCacheBudget, staticCacheMaxEntrySize);
+                //stopped by a previous stop()
+                fileHandler.watchWebroot();
+            }
+            if (apiGenerator != null && swaggerWarmUp) {
+                apiGenerator.warmUp();
+            }
+            if (transportTypes.contains(Transport.HTTP) || ws || http2 || sse) {
+                SslContext sslContext = sslContextBuilder != null ? buildSslContext(http2) : null;
+                transportOptions.configure(this.bootstrap);
+                this.bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true)
                         .childHandler(new ChannelInitializer<SocketChannel>() {
                             @Override
                             protected void initChannel(SocketChannel ch) throws Exception {
                                 ChannelPipeline p = ch.pipeline();
-                                p.addLast(HTTP_ENCODER, new HttpResponseEncoder());
-                                p.addLast(HTTP_DECODER, new HttpRequestDecoder());
-                                p.addLast(HTTP_AGGREGATOR, new HttpObjectAggregator(1048576));
-                                if (introspection) {
-                                    p.addLast(RESPONSE_INTROSPECTOR, new ResponseIntrospector());
-                                    p.addLast(HTTP_REQUEST_INTROSPECTOR, new HttpRequestIntrospector());
-                                }
-                                p.addLast(HTTP_REQUEST_HANDLER, new HttpRequestHandler(endpointId, pipelining));
-                                //p.addLast(evtExecutorGroup, HTTP_REQUEST_HANDLER, new HttpRequestHandler(endpointId, pipelining, websocketSupport));
-                                p.addLast(REQUEST_HANDLER, new RequestHandler(serviceRegistry, channelRegistry));
-                                if (fileHandler != null) {
-                                    p.addLast(evtExecutorGroup, HTTP_FILE_HANDLER, fileHandler);
+                                if (sslContext != null) {
+                                    p.addLast(SSL_HANDLER, sslContext.newHandler(ch.alloc()));
                                 }
-                                //todo: add pipelining
-//                                if (pipelining) {
-//                                    p.addLast(RESPONSE_SEQUENCER, new ResponseSequencer());
-//                                }
-                                p.addLast(HTTP_RESPONSE_HANDLER, new HttpResponseHandler());
-                                if (bidirectionalCommsEnabled) {
-                                    p.addLast(CMD_RESULT_HANDLER, new CommandResultHandler(messageStore));
+                                if (http2 && sslContext != null) {
+                                    p.addLast(PROTOCOL_NEGOTIATOR, new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                                        @Override
+                                        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+                                            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                                initHttp2Pipeline(ctx.pipeline());
+                                            } else {
+                                                initHttp1Pipeline(ctx.pipeline(), false);
+                                            }
+                                        }
+                                    });
+                                } else if (http2) {
+                                    p.addLast(PROTOCOL_NEGOTIATOR, new Http2PrefaceDetector(Endpoint.this::initHttp2Pipeline, pipeline -> initHttp1Pipeline(pipeline, true)));
+                                } else {
+                                    initHttp1Pipeline(p, false);
                                 }
                             }
                         });
@@ -198,7 +298,7 @@ public class Endpoint {
                     }
                 });
             }
-            this.bootstrap.handler(new LoggingHandler(logLevel)).option(ChannelOption.SO_BACKLOG, 3);
+            this.bootstrap.handler(new LoggingHandler(logLevel));
         } catch (Exception ex) {
             this.logger.error(Endpoint.class.getSimpleName() + " interrupted due to: " + ex.getMessage(), ex);
         } finally {
@@ -213,16 +313,143 @@ public class Endpoint {
         return this;
     }
 
+    /**
+     * HTTP/1.x connection, optionally accepting the upgrade to h2c.
+     */
+    private void initHttp1Pipeline(ChannelPipeline p, boolean h2cUpgrade) {
+        if (h2cUpgrade) {
+            HttpServerCodec codec = new HttpServerCodec();
+            p.addLast(HTTP_CODEC, codec);
+            p.addLast(HTTP2_UPGRADE_HANDLER, new HttpServerUpgradeHandler(codec, protocol -> {
+                return AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol) ? new H2cUpgradeCodec(newHttp2Handler()) : null;
+            }, MAX_CONTENT_LENGTH));
+        } else {
+            p.addLast(HTTP_ENCODER, new HttpResponseEncoder());
+            p.addLast(HTTP_DECODER, new HttpRequestDecoder());
+        }
+        if (compressionThreshold >= 0) {
+            p.addLast(HTTP_COMPRESSOR, new ResponseCompressor(compressionThreshold, compressionLevel, compressionMetrics));
+        }
+        //the body limits apply to the decompressed request bodies
+        p.addLast(HTTP_DECOMPRESSOR, new HttpContentDecompressor());
+        //switched to the limits of the websocket or h2c after an upgrade
+        p.addLast(IDLE_HANDLER, idleReaper.newHandler(Transport.HTTP));
+        //streams the bodies of the streaming services, enforces the body limits of the services
+        p.addLast(HTTP_BODY_DECODER, new RequestBodyDecoder(serviceRegistry));
+        p.addLast(HTTP_AGGREGATOR, new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        //streamed response bodies (and the files over TLS / h2c) are written in chunks while the channel is writable
+        p.addLast(HTTP_CHUNKED_WRITER, new ChunkedWriteHandler());
+        ResponseSequencer sequencer = maxPipelinedRequests > 0 ? new ResponseSequencer(maxPipelinedRequests) : null;
+        if (sseBroker != null) {
+            p.addLast(SSE_HANDLER, new SseSubscriptionHandler(sseBroker, ssePath, sequencer));
+        }
+        initSynapsePipeline(p, sequencer);
+    }
+
+    /**
+     * HTTP/2 connection: each stream is converted to a full http request and
+     * the responses are written back on the stream of the request, so the
+     * streams are processed by the same handlers as the HTTP/1.x requests.
+     */
+    private void initHttp2Pipeline(ChannelPipeline p) {
+        p.addLast(HTTP2_HANDLER, newHttp2Handler());
+        p.addLast(IDLE_HANDLER, idleReaper.newHandler(Transport.HTTP2));
+        //the decompressed request is split into a head and its contents: aggregated again
+        p.addLast(HTTP_DECOMPRESSOR, new HttpContentDecompressor());
+        p.addLast(HTTP_AGGREGATOR, new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        p.addLast(HTTP_CHUNKED_WRITER, new ChunkedWriteHandler());
+        if (sseBroker != null) {
+            //the subscriptions are rejected: only served over HTTP/1.1
+            p.addLast(SSE_HANDLER, new SseSubscriptionHandler(sseBroker, ssePath));
+        }
+        //no sequencing: the streams are multiplexed
+        initSynapsePipeline(p, null);
+    }
+
+    private HttpToHttp2ConnectionHandler newHttp2Handler() {
+        Http2Connection connection = new DefaultHttp2Connection(true);
+        return new HttpToHttp2ConnectionHandlerBuilder()
+                .connection(connection)
+                .frameListener(new InboundHttp2ToHttpAdapterBuilder(connection)
+                        .maxContentLength(MAX_CONTENT_LENGTH)
+                        .propagateSettings(false)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Netty 4.1.0.CR4 applies the settings of the upgrade request before the
+     * connection handler is added to the pipeline, when its flow controller
+     * has no context yet (NPE for a client sending an initial window size).
+     */
+    private static class H2cUpgradeCodec extends Http2ServerUpgradeCodec {
+
+        private final Http2ConnectionHandler connectionHandler;
+
+        H2cUpgradeCodec(Http2ConnectionHandler connectionHandler) {
+            super(HTTP2_HANDLER, connectionHandler);
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public boolean prepareUpgradeResponse(ChannelHandlerContext ctx, FullHttpRequest upgradeRequest, HttpHeaders upgradeHeaders) {
+            try {
+                //replaced by the context of the connection handler, once it is added
+                connectionHandler.encoder().flowController().channelHandlerContext(ctx);
+            } catch (Http2Exception ex) {
+                return false;
+            }
+            return super.prepareUpgradeResponse(ctx, upgradeRequest, upgradeHeaders);
+        }
+    }
+
+    private void initSynapsePipeline(ChannelPipeline p, ResponseSequencer sequencer) {
+        p.addLast(BACKPRESSURE_HANDLER, new BackpressureHandler(maxPendingInvocations, unwritablePolicy, maxQueuedCommands, backpressureMetrics));
+        if (introspection) {
+            p.addLast(RESPONSE_INTROSPECTOR, new ResponseIntrospector());
+            p.addLast(HTTP_REQUEST_INTROSPECTOR, new HttpRequestIntrospector());
+        }
+        p.addLast(HTTP_REQUEST_HANDLER, new HttpRequestHandler(endpointId, sequencer, recycleEnvelopes));
+        p.addLast(REQUEST_HANDLER, new RequestHandler(serviceRegistry, channelRegistry, invocationStrategy, blockingStrategy));
+        if (sequencer != null) {
+            p.addLast(RESPONSE_SEQUENCER, sequencer);
+        }
+        if (fileHandler != null) {
+            p.addLast(evtExecutorGroup, HTTP_FILE_HANDLER, fileHandler);
+        }
+        p.addLast(HTTP_RESPONSE_HANDLER, new HttpResponseHandler());
+        if (bidirectionalCommsEnabled) {
+            p.addLast(CMD_RESULT_HANDLER, new CommandResultHandler(messageStore));
+        }
+    }
+
+    private SslContext buildSslContext(boolean http2) throws SSLException {
+        if (http2) {
+            //h2 is negotiated with ALPN, falling back to http/1.1
+            sslContextBuilder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2,
+                            ApplicationProtocolNames.HTTP_1_1));
+        }
+        return sslContextBuilder.build();
+    }
+
     /**
      *
      * @throws InterruptedException
      */
     private void startInternal() throws InterruptedException {
         for (SocketAddress addr : connections.getSocketAddresses()) {
-            ChannelFuture channelFuture = bootstrap.bind(addr).sync();
-            Channel channel = channelFuture.await().channel();
-            channelRegistry.add(channel);
-            //channelFuture.channel().closeFuture().sync();
+            //with SO_REUSEPORT the same address is bound by each acceptor
+            for (int i = 0; i < transportOptions.getAcceptors(); i++) {
+                ChannelFuture channelFuture = bootstrap.bind(addr).sync();
+                Channel channel = channelFuture.await().channel();
+                channelRegistry.add(channel);
+                //channelFuture.channel().closeFuture().sync();
+            }
         }
         lifecycle = ComponentLifecycle.INITIALIZED;
         logger.info("Endpoint [" + endpointId + "] started.");
@@ -236,6 +463,22 @@ public class Endpoint {
         logger.debug("Stopping endpoint [" + endpointId + "].");
         lifecycle = ComponentLifecycle.UNITIALIZED;
         channelRegistry.close().awaitUninterruptibly();
+        if (sseBroker != null) {
+            sseBroker.clear();
+        }
+        if (idleReaper != null) {
+            idleReaper.stop();
+            idleReaper = null;
+        }
+        if (fileHandler != null) {
+            //the off-heap content is reloaded on demand
+            fileHandler.getStaticContentCache().clear();
+            //releases the watcher thread and its watch service, restarted by start()
+            fileHandler.getStaticContentCache().stopWatching();
+        }
+        if (apiGenerator != null) {
+            apiGenerator.invalidate();
+        }
         if (masterGroup != null) {
             logger.debug("Closing down Master Group event-loop gracefully...");
             masterGroup.shutdownGracefully(1, TERMINATION_TIMEOUT, TimeUnit.SECONDS);
@@ -244,14 +487,16 @@ public class Endpoint {
             logger.debug("Closing down Worker Group event-loop gracefully...");
             workerGroup.shutdownGracefully(5, TERMINATION_TIMEOUT, TimeUnit.SECONDS);
         }
+        invocationStrategy.shutdown();
+        blockingStrategy.shutdown();
         logger.info("Endpoint [" + endpointId + "] stopped.");
         lifecycle = ComponentLifecycle.UNITIALIZED;
     }
 
     private void initGroups() throws InterruptedException {
         if (masterGroup == null && workerGroup == null) {
-            masterGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
+            masterGroup = transportOptions.newBossGroup();
+            workerGroup = transportOptions.newWorkerGroup();
             return;
         }
 
@@ -267,13 +512,13 @@ public class Endpoint {
 
         if (masterGroup.isShutdown()) {
             logger.debug("Creating new Master Event Loop Group.");
-            masterGroup = new NioEventLoopGroup();
+            masterGroup = transportOptions.newBossGroup();
         } else {
             logger.debug("Master Event Loop Group will not be reinitialized because it is not yet shut down.");
         }
         if (workerGroup.isShutdown()) {
             logger.debug("Creating new Worker Event Loop Group.");
-            workerGroup = new NioEventLoopGroup();
+            workerGroup = transportOptions.newWorkerGroup();
         } else {
             logger.debug("Worker Event Loop Group will not be reinitialized because it is not yet shut down.");
         }
@@ -283,7 +528,32 @@ public class Endpoint {
         //        if (lifecycle == Lifecycle.UNITIALIZED){
         //            throw new IllegalStateException();
         //        }
-        serviceRegistry.register(path, serviceInstance);
+        //a new pool for the service if one was unpublished under the same root context
+        invocationStrategy.reinstate(serviceRegistry.register(path, serviceInstance));
+        if (apiGenerator != null) {
+            apiGenerator.invalidate();
+        }
+        return this;
+    }
+
+    /**
+     * Removes the service(s) published under the path (root context). It can
+     * be called while the endpoint is running; the requests which are already
+     * routed to the service are completed.
+     *
+     * @param path the root context of the service (eg. /test/{user}/messages)
+     * @return
+     */
+    public Endpoint unpublish(String path) {
+        if (!serviceRegistry.unregister(path)) {
+            logger.warn("No service is published under the path: " + path);
+            return this;
+        }
+        //eg. the dedicated pool of the bulkhead
+        invocationStrategy.retire(ServiceRegistry.toRootContext(path));
+        if (apiGenerator != null) {
+            apiGenerator.invalidate();
+        }
         return this;
     }
 
@@ -304,10 +574,25 @@ public class Endpoint {
          * Default
          */
         HTTP,
+        /**
+         * HTTP/2 with stream multiplexing: h2c (with prior knowledge or
+         * upgrade from HTTP/1.1) on cleartext connections and h2 negotiated
+         * with ALPN if TLS is enabled. HTTP/1.x clients are served on the same
+         * port.
+         */
+        HTTP2,
         /**
          *
          */
         WEBSOCKET,
+        /**
+         * Server-Sent Events: the HTTP clients subscribe to the
+         * {@link PushNotification} topics with a
+         * GET request on the events path (see
+         * {@link #serverSentEvents(java.lang.String, int)}) and receive the
+         * broadcasted notifications on the kept-open response.
+         */
+        SSE,
         /**
          *
          */
@@ -318,10 +603,31 @@ public class Endpoint {
         DOMAIN_SOCKET;
     }
 
+    /**
+     * Sends the command to all the websocket clients. A
+     * {@link PushNotification} is also sent to the Server-Sent Events
+     * subscribers of its topic (no {@link DispatchedFuture} is returned for
+     * them: they cannot answer).
+     *
+     * @param command
+     * @param timeToLive
+     * @return the dispatches of the websocket clients
+     */
     public List<DispatchedFuture> broadcast(Command command, long timeToLive) {
         ArrayList<DispatchedFuture> dispatches = new ArrayList<>();
+        if (command instanceof PushNotification && sseBroker != null) {
+            try {
+                sseBroker.publish((PushNotification) command);
+            } catch (SerializationException ex) {
+                logger.error("The notification cannot be sent to the Server-Sent Events subscribers: " + ex.getMessage(), ex);
+            }
+        }
+        if (!bidirectionalCommsEnabled) {
+            return dispatches;
+        }
         this.channelRegistry.stream().forEach((Channel ch) -> {
-            if (ch != null) {
+            //only the upgraded connections can receive commands
+            if (ch != null && ch.pipeline().get(WS_RESPONSE_HANDLER) != null) {
                 ConnectionContext connCtx = ch.attr(CONNECTION_CTX_ATTR).get();
                 if (connCtx != null) {
                     dispatches.add(dispatchCommand(connCtx, command, timeToLive));
@@ -353,8 +659,28 @@ public class Endpoint {
             dispatcherFuture.completeExceptionally(new IllegalStateException("The endpoing is not initialized."));
             return dispatcherFuture;
         } else {
+            Channel channel = connection.getCtx().channel();
             messageStore.beforeDispatch(dispatcherFuture);
-            ChannelFuture cf = connection.getCtx().channel().writeAndFlush(command);
+            ChannelPromise cf = channel.newPromise();
+            BackpressureHandler backpressure = (BackpressureHandler) channel.pipeline().get(BACKPRESSURE_HANDLER);
+            BackpressureHandler.Outcome outcome;
+            if (backpressure != null) {
+                //written, queued or discarded, depending on the writability of the channel
+                outcome = backpressure.offer(command, cf);
+            } else {
+                channel.writeAndFlush(command, cf);
+                outcome = BackpressureHandler.Outcome.WRITTEN;
+            }
+            if (outcome == BackpressureHandler.Outcome.REJECTED || outcome == BackpressureHandler.Outcome.DROPPED) {
+                messageStore.responseReceived(command.getHeader().getMsgId());
+                if (outcome == BackpressureHandler.Outcome.REJECTED) {
+                    dispatcherFuture.completeExceptionally(new RejectedExecutionException("The connection is not writable (the client does not read fast enough)."));
+                } else {
+                    //there is nothing to wait for
+                    dispatcherFuture.complete(null);
+                }
+                return dispatcherFuture;
+            }
             cf.addListener((ChannelFutureListener) (ChannelFuture future) -> {
                 if (!future.isSuccess()) {
                     //the message could not be sent
@@ -404,15 +730,169 @@ public class Endpoint {
         }
     }
 
+    /**
+     * Serves the connections over TLS. If the {@link Transport#HTTP2} is
+     * enabled, h2 is offered with ALPN (which requires OpenSSL or an ALPN
+     * capable JDK).
+     *
+     * @param sslContextBuilder a server side builder with the key material
+     * (eg. {@link SslContextBuilder#forServer(java.io.File, java.io.File)})
+     * @return
+     */
+    public Endpoint enableTls(SslContextBuilder sslContextBuilder) {
+        this.sslContextBuilder = sslContextBuilder;
+        return this;
+    }
+
+    /**
+     * Configures the {@link Transport#SSE} transport.
+     *
+     * @param path the path of the subscriptions (default:
+     * {@link #DEFAULT_SSE_PATH})
+     * @param replayBufferSize the number of the last events kept for the
+     * clients reconnecting with a Last-Event-ID and the slow subscribers
+     * (default: {@link SseBroker#DEFAULT_REPLAY_SIZE})
+     * @return
+     */
+    public Endpoint serverSentEvents(String path, int replayBufferSize) {
+        if (Util.isEmpty(path) || !path.startsWith("/")) {
+            throw new IllegalArgumentException("The path of the events must start with /.");
+        }
+        if (replayBufferSize < 1) {
+            throw new IllegalArgumentException("The replay buffer must hold at least one event.");
+        }
+        this.ssePath = path;
+        this.sseReplaySize = replayBufferSize;
+        return this;
+    }
+
     public Endpoint enableIntrospection() {
         this.introspection = true;
         return this;
     }
 
+    /**
+     * The {@link Request} and {@link Response} envelopes of the HTTP requests
+     * are taken from thread local pools and recycled when the response is
+     * written (see {@link Envelopes}), instead of allocating them for each
+     * request. The services must not keep a reference to the request header
+     * (or an {@link org.thingsplode.synapse.core.Event} /
+     * {@link Request} parameter) after they return, respectively after the
+     * stage they returned is completed.
+     *
+     * @return
+     */
+    public Endpoint recycleEnvelopes() {
+        this.recycleEnvelopes = true;
+        this.serviceRegistry.setRecycleEnvelopes(true);
+        return this;
+    }
+
+    /**
+     * Enables HTTP/1.1 pipelining with {@link #DEFAULT_MAX_PIPELINED_REQUESTS}
+     * requests processed at the same time on one connection.
+     *
+     * @return
+     */
     public Endpoint enablePipelining() {
-        this.pipelining = true;
-        throw new UnsupportedOperationException("Not implemented yet");
-        //return this;
+        return enablePipelining(DEFAULT_MAX_PIPELINED_REQUESTS);
+    }
+
+    /**
+     * Enables HTTP/1.1 pipelining: the requests sent by the client without
+     * waiting for the previous responses are dispatched right away (and
+     * processed concurrently by the async services or a non-inline
+     * {@link InvocationStrategy}), while the responses are written in the order
+     * of the requests. When the given number of requests are waiting for their
+     * response, the reading of the connection is suspended.
+     *
+     * @param maxInFlightRequests the maximum number of requests processed at
+     * the same time on one connection
+     * @return
+     */
+    public Endpoint enablePipelining(int maxInFlightRequests) {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("At least one request must be allowed in flight.");
+        }
+        this.maxPipelinedRequests = maxInFlightRequests;
+        return this;
+    }
+
+    /**
+     * Configures how the slow clients are throttled. The reading of a
+     * connection is always suspended while its outbound buffer is above the
+     * high watermark (see
+     * {@link TransportOptions#writeBufferWaterMark(int, int)}).
+     *
+     * @param maxPendingInvocations the reading of a connection is suspended
+     * while this many of its requests are being invoked, 0 means unlimited
+     * (default: {@link #DEFAULT_MAX_PENDING_INVOCATIONS})
+     * @param policy what happens with the commands dispatched to a connection
+     * which is not writable (default: queued)
+     * @param maxQueuedCommands the maximum number of the queued commands per
+     * connection (default: {@link #DEFAULT_MAX_QUEUED_COMMANDS})
+     * @return
+     */
+    public Endpoint backpressure(int maxPendingInvocations, BackpressureHandler.UnwritablePolicy policy, int maxQueuedCommands) {
+        if (maxPendingInvocations < 0 || maxQueuedCommands < 0) {
+            throw new IllegalArgumentException("The limits cannot be negative.");
+        }
+        this.maxPendingInvocations = maxPendingInvocations;
+        this.unwritablePolicy = policy;
+        this.maxQueuedCommands = maxQueuedCommands;
+        return this;
+    }
+
+    /**
+     * @return the counters of the throttled connections and of the commands
+     * dispatched to the connections which were not writable
+     */
+    public BackpressureMetrics getBackpressureMetrics() {
+        return backpressureMetrics;
+    }
+
+    /**
+     * Sets when the connections of a transport are considered idle; the idle
+     * connections are closed, except the websocket clients, which are pinged
+     * first and closed only if nothing is received from them until the limit
+     * expires again. A limit must be longer than the slowest service, if the
+     * requests are answered on the same connection. The Server-Sent Events
+     * subscribers are never reaped.
+     * <p>
+     * Defaults: all-idle {@link #DEFAULT_HTTP_IDLE_SECONDS} for
+     * {@link Transport#HTTP} and {@link Transport#HTTP2}, reader-idle
+     * {@link #DEFAULT_WS_IDLE_SECONDS} for {@link Transport#WEBSOCKET}.
+     *
+     * @param transport {@link Transport#HTTP}, {@link Transport#HTTP2} or
+     * {@link Transport#WEBSOCKET}
+     * @param readerIdle nothing was received for this long (0: no limit)
+     * @param writerIdle nothing was sent for this long (0: no limit)
+     * @param allIdle nothing was received or sent for this long (0: no limit)
+     * @param unit
+     * @return
+     */
+    public Endpoint idleTimeouts(Transport transport, long readerIdle, long writerIdle, long allIdle, TimeUnit unit) {
+        if (transport != Transport.HTTP && transport != Transport.HTTP2 && transport != Transport.WEBSOCKET) {
+            throw new IllegalArgumentException("The idle connections of the " + transport + " transport are not reaped.");
+        }
+        idleLimits.put(transport, new IdleConnectionReaper.Limits(readerIdle, writerIdle, allIdle, unit));
+        return this;
+    }
+
+    private static Map<Transport, IdleConnectionReaper.Limits> defaultIdleLimits() {
+        Map<Transport, IdleConnectionReaper.Limits> limits = new EnumMap<>(Transport.class);
+        limits.put(Transport.HTTP, new IdleConnectionReaper.Limits(0, 0, DEFAULT_HTTP_IDLE_SECONDS, TimeUnit.SECONDS));
+        limits.put(Transport.HTTP2, new IdleConnectionReaper.Limits(0, 0, DEFAULT_HTTP_IDLE_SECONDS, TimeUnit.SECONDS));
+        limits.put(Transport.WEBSOCKET, new IdleConnectionReaper.Limits(DEFAULT_WS_IDLE_SECONDS, 0, 0, TimeUnit.SECONDS));
+        return limits;
+    }
+
+    /**
+     * @return the counters of the idle connections reaped (null while the
+     * endpoint is not started)
+     */
+    public IdleConnectionReaper getIdleConnectionReaper() {
+        return idleReaper;
     }
 
     public Endpoint setMessageResgistry(MessageRegistry msgRegistry) {
@@ -456,6 +936,20 @@ public class Endpoint {
         return this;
     }
 
+    /**
+     * The class path is scanned for the swagger spec on a background thread
+     * when the endpoint is started, instead of on the first request of the
+     * spec (see {@link #enableSwagger(java.lang.String, java.lang.String)}).
+     * The services should be published before the endpoint is started: a
+     * service published later triggers a new scan on the next request.
+     *
+     * @return
+     */
+    public Endpoint warmUpSwagger() {
+        this.swaggerWarmUp = true;
+        return this;
+    }
+
     public Endpoint enableFileHandler(String webroot) throws FileNotFoundException {
         if (fileHandler == null) {
             fileHandler = new FileRequestHandler(webroot);
@@ -465,6 +959,97 @@ public class Endpoint {
         return this;
     }
 
+    /**
+     * Sizes the in-memory cache of the static content served by the file
+     * handler (the swagger ui and the files of the web root, see
+     * {@link StaticContentCache}).
+     *
+     * @param budgetBytes the maximum number of cached bytes, the least
+     * recently used files are evicted above it (default:
+     * {@link StaticContentCache#DEFAULT_BUDGET_BYTES})
+     * @param maxEntryBytes the larger files are served from the disk (default:
+     * {@link StaticContentCache#DEFAULT_MAX_ENTRY_BYTES})
+     * @return
+     */
+    public Endpoint staticContentCache(long budgetBytes, int maxEntryBytes) {
+        if (budgetBytes < 0 || maxEntryBytes < 0) {
+            throw new IllegalArgumentException("The size limits cannot be negative.");
+        }
+        this.staticCacheBudget = budgetBytes;
+        this.staticCacheMaxEntrySize = maxEntryBytes;
+        return this;
+    }
+
+    /**
+     * Compresses the responses of the services with
+     * {@link #DEFAULT_COMPRESSION_LEVEL} if they are larger than
+     * {@link #DEFAULT_COMPRESSION_THRESHOLD} bytes. See
+     * {@link #compression(int, int)}.
+     *
+     * @return
+     */
+    public Endpoint enableCompression() {
+        return compression(DEFAULT_COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Compresses (gzip or deflate, as accepted by the client) the textual
+     * responses of the services over HTTP/1.x (see {@link ResponseCompressor}).
+     * The compressed request bodies are always accepted (decompressed before
+     * the body limits are applied).
+     *
+     * @param thresholdBytes the smaller bodies are sent uncompressed
+     * @param level the compression level, 1 (fastest) - 9 (best)
+     * @return
+     */
+    public Endpoint compression(int thresholdBytes, int level) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("The threshold cannot be negative.");
+        }
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("The compression level must be between 1 and 9.");
+        }
+        this.compressionThreshold = thresholdBytes;
+        this.compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * @return the number of the compressed responses, the compression ratio and
+     * the time spent compressing
+     */
+    public CompressionMetrics getCompressionMetrics() {
+        return compressionMetrics;
+    }
+
+    /**
+     * Decides on which thread the service methods are invoked (by default on
+     * the IO thread of the connection). See {@link InvocationStrategy}.
+     *
+     * @param invocationStrategy
+     * @return
+     */
+    public Endpoint invocationStrategy(InvocationStrategy invocationStrategy) {
+        this.invocationStrategy = invocationStrategy;
+        return this;
+    }
+
+    public InvocationStrategy getInvocationStrategy() {
+        return invocationStrategy;
+    }
+
+    /**
+     * The socket transport (native epoll or NIO), the number of the event
+     * loops and the socket options. Must be set before starting the endpoint.
+     *
+     * @param transportOptions
+     * @return
+     */
+    public Endpoint transportOptions(TransportOptions transportOptions) {
+        this.transportOptions = transportOptions;
+        return this;
+    }
+
     public Endpoint logLevel(LogLevel logLevel) {
         this.logLevel = logLevel;
         return this;
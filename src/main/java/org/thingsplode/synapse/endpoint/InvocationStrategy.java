@@ -0,0 +1,372 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides on which thread the service methods are invoked. By default
+ * ({@link #inline()}) the service is called on the IO thread (event loop) of
+ * the connection, which is the fastest option for short, non-blocking service
+ * methods, but a slow service method stalls all the other connections served
+ * by the same event loop. The other strategies are handing over the invocation
+ * to worker threads:
+ * <ul>
+ * <li>{@link #boundedPool(int, int)}: one shared pool with a bounded queue;
+ * <li>{@link #bulkhead(int, int)}: a dedicated pool per service (root
+ * context), so a slow service cannot starve the others;
+ * <li>{@link #threadPerRequest()}: a new thread for each request (virtual
+ * threads when the runtime supports them);
+ * </ul>
+ * When the queue of a pool is full, the request is rejected with 503 (Service
+ * Unavailable).
+ *
+ * @author Csaba Tamas
+ */
+public abstract class InvocationStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(InvocationStrategy.class);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    private InvocationStrategy() {
+    }
+
+    public static InvocationStrategy inline() {
+        return new Inline();
+    }
+
+    /**
+     * @param threads the number of worker threads
+     * @param queueCapacity the maximum number of requests waiting for a free
+     * worker thread
+     * @return a strategy executing all service methods on one shared pool
+     */
+    public static InvocationStrategy boundedPool(int threads, int queueCapacity) {
+        return new BoundedPool(threads, queueCapacity);
+    }
+
+    /**
+     * @param threadsPerService the number of worker threads of each service
+     * @param queueCapacityPerService the maximum number of requests waiting for
+     * a free worker thread of the service
+     * @return a strategy executing the methods of each service on the service's
+     * own pool
+     */
+    public static InvocationStrategy bulkhead(int threadsPerService, int queueCapacityPerService) {
+        return new Bulkhead(threadsPerService, queueCapacityPerService);
+    }
+
+    /**
+     * @return a strategy executing each request on a new virtual thread if
+     * the runtime supports them (Java 21+), otherwise on an unbounded, caching
+     * thread pool
+     */
+    public static InvocationStrategy threadPerRequest() {
+        return new ThreadPerRequest();
+    }
+
+    /**
+     * @return true if the service method is called on the IO thread
+     */
+    public boolean isInline() {
+        return false;
+    }
+
+    /**
+     * @return true if the strategy needs the root context of the addressed
+     * service for selecting the executor
+     */
+    public boolean isServiceAware() {
+        return false;
+    }
+
+    /**
+     * @param rootContext the root context of the addressed service (only
+     * resolved for {@link #isServiceAware()} strategies, otherwise null)
+     * @param task the invocation
+     * @throws RejectedExecutionException if the request cannot be accepted
+     * (eg. the queue is full)
+     */
+    public void execute(String rootContext, Runnable task) {
+        inFlight.incrementAndGet();
+        try {
+            executeInternal(rootContext, () -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    abstract void executeInternal(String rootContext, Runnable task);
+
+    /**
+     * @return the number of requests accepted but not yet completed (queued
+     * and running)
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests rejected since the start
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a worker thread (summed for
+     * all pools)
+     */
+    public int getQueueDepth() {
+        return getQueueDepths().values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * @return the number of requests waiting for a worker thread by pool name
+     * (the root context of the service in case of the bulkhead)
+     */
+    public Map<String, Integer> getQueueDepths() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Stops the worker threads (the already accepted requests are completed).
+     */
+    public void shutdown() {
+    }
+
+    /**
+     * Releases the resources dedicated to an unpublished service (the already
+     * accepted requests are completed). The requests routed to the service
+     * before it was unpublished, but executed after, are invoked on the calling
+     * thread, so they are answered with the routing error (404).
+     *
+     * @param rootContext the root context of the service
+     */
+    public void retire(String rootContext) {
+    }
+
+    /**
+     * Dedicates resources again to a retired root context (a service is
+     * published under it again).
+     *
+     * @param rootContext the root context of the service
+     */
+    public void reinstate(String rootContext) {
+    }
+
+    private static ThreadPoolExecutor newPool(String name, int threads, int queueCapacity) {
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), new DefaultThreadFactory(name, true));
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
+    }
+
+    private static final class Inline extends InvocationStrategy {
+
+        @Override
+        public boolean isInline() {
+            return true;
+        }
+
+        @Override
+        void executeInternal(String rootContext, Runnable task) {
+            task.run();
+        }
+    }
+
+    private static final class BoundedPool extends InvocationStrategy {
+
+        private final int threads;
+        private final int queueCapacity;
+        private volatile ThreadPoolExecutor pool;
+
+        BoundedPool(int threads, int queueCapacity) {
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+        }
+
+        @Override
+        void executeInternal(String rootContext, Runnable task) {
+            ThreadPoolExecutor p = pool;
+            if (p == null || p.isShutdown()) {
+                synchronized (this) {
+                    //the endpoint might be restarted after stop
+                    if (pool == null || pool.isShutdown()) {
+                        pool = newPool("synapse-invoker", threads, queueCapacity);
+                    }
+                    p = pool;
+                }
+            }
+            p.execute(task);
+        }
+
+        @Override
+        public Map<String, Integer> getQueueDepths() {
+            ThreadPoolExecutor p = pool;
+            return Collections.singletonMap("synapse-invoker", p != null ? p.getQueue().size() : 0);
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static final class Bulkhead extends InvocationStrategy {
+
+        private final int threadsPerService;
+        private final int queueCapacityPerService;
+        private final ConcurrentHashMap<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+        //the unpublished root contexts, which are not given a new pool (guarded by this)
+        private final Set<String> retired = new HashSet<>();
+
+        Bulkhead(int threadsPerService, int queueCapacityPerService) {
+            this.threadsPerService = threadsPerService;
+            this.queueCapacityPerService = queueCapacityPerService;
+        }
+
+        @Override
+        public boolean isServiceAware() {
+            return true;
+        }
+
+        @Override
+        void executeInternal(String rootContext, Runnable task) {
+            if (rootContext == null) {
+                //not routable request (it will be answered with 404), there's no pool to protect
+                task.run();
+                return;
+            }
+            ThreadPoolExecutor pool = pools.get(rootContext);
+            if (pool == null) {
+                synchronized (this) {
+                    pool = retired.contains(rootContext) ? null : pools.computeIfAbsent(rootContext, rc -> newPool("synapse-invoker" + rc.replace('/', '-'), threadsPerService, queueCapacityPerService));
+                }
+                if (pool == null) {
+                    //routed before the service was unpublished, the routing answers it with 404
+                    task.run();
+                    return;
+                }
+            }
+            try {
+                pool.execute(task);
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    if (!pool.isShutdown() || !retired.contains(rootContext)) {
+                        throw ex;
+                    }
+                }
+                //the pool was retired meanwhile (not full)
+                task.run();
+            }
+        }
+
+        @Override
+        public Map<String, Integer> getQueueDepths() {
+            Map<String, Integer> depths = new HashMap<>();
+            pools.forEach((rc, pool) -> depths.put(rc, pool.getQueue().size()));
+            return depths;
+        }
+
+        @Override
+        public void retire(String rootContext) {
+            ThreadPoolExecutor pool;
+            synchronized (this) {
+                retired.add(rootContext);
+                pool = pools.remove(rootContext);
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        @Override
+        public synchronized void reinstate(String rootContext) {
+            retired.remove(rootContext);
+        }
+
+        @Override
+        public void shutdown() {
+            pools.values().forEach(ThreadPoolExecutor::shutdown);
+            pools.clear();
+        }
+    }
+
+    private static final class ThreadPerRequest extends InvocationStrategy {
+
+        private volatile ExecutorService executor;
+
+        @Override
+        void executeInternal(String rootContext, Runnable task) {
+            ExecutorService e = executor;
+            if (e == null || e.isShutdown()) {
+                synchronized (this) {
+                    if (executor == null || executor.isShutdown()) {
+                        executor = newExecutor();
+                    }
+                    e = executor;
+                }
+            }
+            e.execute(task);
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        private static ExecutorService newExecutor() {
+            try {
+                //the project is compiled for Java 8, so the virtual thread executor is looked up on the runtime
+                ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.debug("Using virtual threads for the service invocations.");
+                return virtual;
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.debug("Virtual threads are not supported by the runtime, falling back to a caching thread pool.");
+                return Executors.newCachedThreadPool(new DefaultThreadFactory("synapse-invoker", true));
+            }
+        }
+    }
+}
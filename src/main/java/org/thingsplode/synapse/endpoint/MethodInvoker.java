@@ -0,0 +1,419 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls a service method on the service instance. The invokers are compiled
+ * once, when the service is registered. The methods having up to
+ * {@link #MAX_LAMBDA_ARITY} parameters are called through a per-arity
+ * functional interface (eg. {@link Call2}) spun by the
+ * {@link LambdaMetafactory} over the direct, unbound method handle, which
+ * takes the service instance as its first argument, with no argument array
+ * spreading. The invokers of the same arity share their call site, which
+ * becomes megamorphic once several services are registered, so the service
+ * method itself is not inlined (neither would it be with a class per method:
+ * the invokers are called from the one call site of the service registry).
+ * The other methods are called through a {@link MethodHandle} which is bound
+ * to the service instance and spread to the arity of the method. In both
+ * cases the access is checked once and the exceptions of the service are not
+ * wrapped. The core reflection
+ * ({@link Method#invoke(java.lang.Object, java.lang.Object...)}) is kept as a
+ * fall-back for the methods which cannot be unreflected. The services having
+ * a {@link RouteTable} generated at compile time are called through the
+ * generated, typed invokers (no reflection at all).
+ *
+ * @author Csaba Tamas
+ */
+abstract class MethodInvoker {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodInvoker.class);
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+    /**
+     * the methods having more parameters are called through a spread method
+     * handle
+     */
+    static final int MAX_LAMBDA_ARITY = 3;
+    private static final Class<?>[] CALL_TYPES = {Call0.class, Call1.class, Call2.class, Call3.class};
+    private static final Class<?>[] VOID_CALL_TYPES = {VoidCall0.class, VoidCall1.class, VoidCall2.class, VoidCall3.class};
+    /**
+     * the invoked method (null in case of the generated invokers)
+     */
+    final Method method;
+
+    private MethodInvoker(Method method) {
+        this.method = method;
+    }
+
+    /**
+     * @param args the arguments of the service method
+     * @return the return value of the service method (null in case of void
+     * methods)
+     * @throws Throwable anything thrown by the service method itself (not
+     * wrapped into an {@link InvocationTargetException})
+     */
+    abstract Object invoke(Object[] args) throws Throwable;
+
+    static MethodInvoker create(Object serviceInstance, Method method) {
+        try {
+            if (isLambdaCompatible(method)) {
+                return createLambda(serviceInstance, method);
+            }
+            return new MethodHandleInvoker(serviceInstance, method);
+        } catch (LambdaConversionException | IllegalAccessException | RuntimeException ex) {
+            logger.debug("Falling back to reflective invocation of [" + method.getDeclaringClass().getSimpleName() + "." + method.getName() + "] due to: " + ex.getMessage());
+            return new ReflectiveInvoker(serviceInstance, method);
+        }
+    }
+
+    /**
+     * The spun class is defined next to this class: it can only call the
+     * methods which are public and visible from the class loader of the
+     * endpoint.
+     */
+    private static boolean isLambdaCompatible(Method method) {
+        if (method.getParameterCount() > MAX_LAMBDA_ARITY || Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers())) {
+            return false;
+        }
+        if (!isAccessible(method.getDeclaringClass()) || !isAccessible(method.getReturnType())) {
+            return false;
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (!isAccessible(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAccessible(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive()) {
+            return true;
+        }
+        for (Class<?> c = type; c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        try {
+            return Class.forName(type.getName(), false, MethodInvoker.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    private static MethodInvoker createLambda(Object serviceInstance, Method method) throws IllegalAccessException, LambdaConversionException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle = lookup.unreflect(method);
+        boolean isVoid = method.getReturnType() == void.class;
+        //the primitives are (un)boxed by the spun class
+        MethodType instantiatedType = handle.type().wrap();
+        if (isVoid) {
+            instantiatedType = instantiatedType.changeReturnType(void.class);
+        }
+        Class<?> callType = isVoid ? VOID_CALL_TYPES[method.getParameterCount()] : CALL_TYPES[method.getParameterCount()];
+        MethodType samType = MethodType.genericMethodType(method.getParameterCount() + 1);
+        if (isVoid) {
+            samType = samType.changeReturnType(void.class);
+        }
+        CallSite site = LambdaMetafactory.metafactory(lookup, "call", MethodType.methodType(callType), samType, handle, instantiatedType);
+        Object call;
+        try {
+            call = site.getTarget().invoke();
+        } catch (Throwable th) {
+            throw new IllegalStateException(th.getMessage(), th);
+        }
+        switch (method.getParameterCount()) {
+            case 0:
+                return isVoid ? new VoidCall0Invoker(serviceInstance, method, (VoidCall0) call) : new Call0Invoker(serviceInstance, method, (Call0) call);
+            case 1:
+                return isVoid ? new VoidCall1Invoker(serviceInstance, method, (VoidCall1) call) : new Call1Invoker(serviceInstance, method, (Call1) call);
+            case 2:
+                return isVoid ? new VoidCall2Invoker(serviceInstance, method, (VoidCall2) call) : new Call2Invoker(serviceInstance, method, (Call2) call);
+            default:
+                return isVoid ? new VoidCall3Invoker(serviceInstance, method, (VoidCall3) call) : new Call3Invoker(serviceInstance, method, (Call3) call);
+        }
+    }
+
+    static MethodInvoker createReflective(Object serviceInstance, Method method) {
+        return new ReflectiveInvoker(serviceInstance, method);
+    }
+
+    static MethodInvoker create(Object serviceInstance, RouteTable.ServiceInvoker invoker) {
+        return new GeneratedInvoker(serviceInstance, invoker);
+    }
+
+    //the functional interfaces implemented by the LambdaMetafactory, taking the service instance as first argument
+    @FunctionalInterface
+    interface Call0 {
+
+        Object call(Object instance) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface Call1 {
+
+        Object call(Object instance, Object a0) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface Call2 {
+
+        Object call(Object instance, Object a0, Object a1) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface Call3 {
+
+        Object call(Object instance, Object a0, Object a1, Object a2) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface VoidCall0 {
+
+        void call(Object instance) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface VoidCall1 {
+
+        void call(Object instance, Object a0) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface VoidCall2 {
+
+        void call(Object instance, Object a0, Object a1) throws Throwable;
+    }
+
+    @FunctionalInterface
+    interface VoidCall3 {
+
+        void call(Object instance, Object a0, Object a1, Object a2) throws Throwable;
+    }
+
+    static final class Call0Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final Call0 call;
+
+        Call0Invoker(Object serviceInstance, Method method, Call0 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return call.call(serviceInstance);
+        }
+    }
+
+    static final class Call1Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final Call1 call;
+
+        Call1Invoker(Object serviceInstance, Method method, Call1 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return call.call(serviceInstance, args[0]);
+        }
+    }
+
+    static final class Call2Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final Call2 call;
+
+        Call2Invoker(Object serviceInstance, Method method, Call2 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return call.call(serviceInstance, args[0], args[1]);
+        }
+    }
+
+    static final class Call3Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final Call3 call;
+
+        Call3Invoker(Object serviceInstance, Method method, Call3 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return call.call(serviceInstance, args[0], args[1], args[2]);
+        }
+    }
+
+    static final class VoidCall0Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final VoidCall0 call;
+
+        VoidCall0Invoker(Object serviceInstance, Method method, VoidCall0 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            call.call(serviceInstance);
+            return null;
+        }
+    }
+
+    static final class VoidCall1Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final VoidCall1 call;
+
+        VoidCall1Invoker(Object serviceInstance, Method method, VoidCall1 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            call.call(serviceInstance, args[0]);
+            return null;
+        }
+    }
+
+    static final class VoidCall2Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final VoidCall2 call;
+
+        VoidCall2Invoker(Object serviceInstance, Method method, VoidCall2 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            call.call(serviceInstance, args[0], args[1]);
+            return null;
+        }
+    }
+
+    static final class VoidCall3Invoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final VoidCall3 call;
+
+        VoidCall3Invoker(Object serviceInstance, Method method, VoidCall3 call) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+            this.call = call;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            call.call(serviceInstance, args[0], args[1], args[2]);
+            return null;
+        }
+    }
+
+    static final class MethodHandleInvoker extends MethodInvoker {
+
+        private final MethodHandle handle;
+
+        MethodHandleInvoker(Object serviceInstance, Method method) throws IllegalAccessException {
+            super(method);
+            if (!method.isAccessible()) {
+                //eg. public methods on non-public classes
+                method.setAccessible(true);
+            }
+            this.handle = MethodHandles.lookup().unreflect(method)
+                    .bindTo(serviceInstance)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(INVOKER_TYPE);
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return handle.invokeExact(args);
+        }
+    }
+
+    static final class ReflectiveInvoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+
+        ReflectiveInvoker(Object serviceInstance, Method method) {
+            super(method);
+            this.serviceInstance = serviceInstance;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            try {
+                return method.invoke(serviceInstance, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause() != null ? ex.getCause() : ex;
+            }
+        }
+    }
+
+    static final class GeneratedInvoker extends MethodInvoker {
+
+        private final Object serviceInstance;
+        private final RouteTable.ServiceInvoker invoker;
+
+        GeneratedInvoker(Object serviceInstance, RouteTable.ServiceInvoker invoker) {
+            super(null);
+            this.serviceInstance = serviceInstance;
+            this.invoker = invoker;
+        }
+
+        @Override
+        Object invoke(Object[] args) throws Throwable {
+            return invoker.invoke(serviceInstance, args);
+        }
+    }
+}
@@ -15,8 +15,8 @@
  */
 package org.thingsplode.synapse.endpoint;
 
-import java.lang.reflect.Parameter;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  *
@@ -29,18 +29,40 @@ class MethodParam<T> {
      * the unique id of the parameter (usually the value of the HeaderParam/PathVariable/RequestParam annotation
      */
     String paramId;
-    Parameter parameter;
+    /**
+     * the declared type of the method parameter
+     */
+    Class<?> type;
+    /**
+     * the type to which the request body is unmarshalled (the type argument
+     * in case of Request&lt;Address&gt; parameters, otherwise the parameter
+     * type)
+     */
+    Class<?> bodyType;
     Object defaultValue;
     Class defaultValueClass;
-    Pattern pathVariableMatcher;
-    boolean pathVariableOnRootContext = true;
     boolean required = true;
+    /**
+     * the maximum size of the request body in bytes (-1: not limited by the
+     * parameter)
+     */
+    long maxSize = -1;
 
-    public MethodParam(Parameter param, ParameterSource source, String paramId) {
+    public MethodParam(Class<?> type, ParameterSource source, String paramId) {
+        this.type = type;
+        this.bodyType = type;
         this.source = source;
         this.paramId = paramId;
     }
 
+    /**
+     * @return true if the request body is streamed to the parameter instead of
+     * being decoded
+     */
+    boolean isStreamedBody() {
+        return source == ParameterSource.BODY && (type == InputStream.class || type == ReadableByteChannel.class);
+    }
+
     enum ParameterSource {
         PATH_VARIABLE,
         HEADER_PARAM,
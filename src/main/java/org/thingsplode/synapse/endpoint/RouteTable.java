@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.util.Util;
+
+/**
+ * The routes of a {@link org.thingsplode.synapse.core.annotations.Service}
+ * class, generated at compile time by the {@link RouteTableProcessor} into the
+ * package of the service (named as the service class with the
+ * {@value #CLASS_NAME_SUFFIX} suffix). When the table is available, the
+ * {@link ServiceRegistry} registers the service from it, without scanning the
+ * methods and annotations of the service class, and the methods are called
+ * through the generated, typed invokers. Services without a generated table
+ * are registered by reflection.
+ *
+ * @author Csaba Tamas
+ */
+public abstract class RouteTable {
+
+    public static final String CLASS_NAME_SUFFIX = "_SynapseRoutes";
+    private static final Logger logger = LoggerFactory.getLogger(RouteTable.class);
+    private final List<MethodDefinition> methods = new ArrayList<>();
+
+    protected RouteTable() {
+    }
+
+    /**
+     * Calls a service method with the bound arguments.
+     */
+    @FunctionalInterface
+    public interface ServiceInvoker {
+
+        /**
+         * @param service the service instance
+         * @param args the arguments of the service method
+         * @return the return value of the service method (null in case of
+         * void methods)
+         * @throws Throwable anything thrown by the service method
+         */
+        Object invoke(Object service, Object[] args) throws Throwable;
+    }
+
+    /**
+     * @param name the java name of the service method
+     * @param invoker the invoker of the method
+     * @return the definition of the method, to be completed with the paths
+     * and the parameters
+     */
+    protected final MethodDefinition method(String name, ServiceInvoker invoker) {
+        MethodDefinition md = new MethodDefinition(name, invoker);
+        methods.add(md);
+        return md;
+    }
+
+    List<MethodDefinition> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    /**
+     * @param serviceClass the class of the service instance
+     * @return the generated route table of the service class or null if there
+     * is none
+     */
+    static RouteTable load(Class<?> serviceClass) {
+        ClassLoader cl = serviceClass.getClassLoader();
+        try {
+            Class<?> tableClass = Class.forName(serviceClass.getName() + CLASS_NAME_SUFFIX, true, cl != null ? cl : RouteTable.class.getClassLoader());
+            return (RouteTable) tableClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError ex) {
+            logger.warn("The generated route table of [" + serviceClass.getName() + "] cannot be loaded, falling back to reflection due to: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * One service method with its paths and parameters (in the order of the
+     * method arguments).
+     */
+    public static final class MethodDefinition {
+
+        final String name;
+        final ServiceInvoker invoker;
+        final List<String> paths = new ArrayList<>();
+        final List<RequestMethod> requestMethods = new ArrayList<>();
+        final List<MethodParam> parameters = new ArrayList<>();
+        boolean streamingResponse = false;
+
+        private MethodDefinition(String name, ServiceInvoker invoker) {
+            this.name = name;
+            this.invoker = invoker;
+        }
+
+        public MethodDefinition paths(String... paths) {
+            this.paths.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        public MethodDefinition requestMethods(RequestMethod... requestMethods) {
+            this.requestMethods.addAll(Arrays.asList(requestMethods));
+            return this;
+        }
+
+        /**
+         * The method is annotated with
+         * {@link org.thingsplode.synapse.core.annotations.StreamingResponse}.
+         *
+         * @return
+         */
+        public MethodDefinition streamingResponse() {
+            this.streamingResponse = true;
+            return this;
+        }
+
+        public MethodDefinition queryParam(Class<?> type, String name, boolean required, String defaultValue) {
+            MethodParam mp = param(type, MethodParam.ParameterSource.QUERY_PARAM, name, required);
+            if (!Util.isEmpty(defaultValue)) {
+                mp.defaultValue = ValueConverters.convert(type, defaultValue);
+                mp.defaultValueClass = type;
+            }
+            return this;
+        }
+
+        public MethodDefinition pathVariable(Class<?> type, String name) {
+            param(type, MethodParam.ParameterSource.PATH_VARIABLE, name, true);
+            return this;
+        }
+
+        public MethodDefinition requestProperty(Class<?> type, String name, boolean required) {
+            param(type, MethodParam.ParameterSource.HEADER_PARAM, name, required);
+            return this;
+        }
+
+        /**
+         * @param type the type of the parameter
+         * @param bodyType the type to which the request body is unmarshalled
+         * (eg. Address in case of a Request&lt;Address&gt; parameter)
+         * @param name the name of the parameter
+         * @param required
+         * @return
+         */
+        public MethodDefinition body(Class<?> type, Class<?> bodyType, String name, boolean required) {
+            return body(type, bodyType, name, required, -1);
+        }
+
+        /**
+         * @param type the type of the parameter
+         * @param bodyType the type to which the request body is unmarshalled
+         * @param name the name of the parameter
+         * @param required
+         * @param maxSize the maximum size of the body in bytes (-1: no limit
+         * set by the parameter)
+         * @return
+         */
+        public MethodDefinition body(Class<?> type, Class<?> bodyType, String name, boolean required, long maxSize) {
+            MethodParam mp = param(type, MethodParam.ParameterSource.BODY, name, required);
+            mp.bodyType = bodyType;
+            mp.maxSize = maxSize;
+            return this;
+        }
+
+        private MethodParam param(Class<?> type, MethodParam.ParameterSource source, String name, boolean required) {
+            MethodParam mp = new MethodParam(type, source, name);
+            mp.required = required;
+            parameters.add(mp);
+            return mp;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.annotations.PathVariable;
+import org.thingsplode.synapse.core.annotations.RequestBody;
+import org.thingsplode.synapse.core.annotations.RequestMapping;
+import org.thingsplode.synapse.core.annotations.RequestParam;
+import org.thingsplode.synapse.core.annotations.RequestProperty;
+import org.thingsplode.synapse.core.annotations.Service;
+import org.thingsplode.synapse.core.annotations.StreamingResponse;
+
+/**
+ * Generates the {@link RouteTable} of the {@link Service} classes at compile
+ * time. The processor is registered in META-INF/services, so it runs
+ * automatically when a project depending on synapse is compiled. It applies
+ * the same rules as the reflective registration in the {@link ServiceRegistry}
+ * (which methods are published, under which paths and from where the
+ * arguments are bound).
+ * <br>
+ * No table is generated for (the registry falls back to reflection):
+ * <ul>
+ * <li>abstract and private classes;
+ * <li>classes with parameters which are not annotated and are not messages:
+ * these are bound as query parameters by their java name, which is only known
+ * at runtime if the code is compiled with -parameters;
+ * </ul>
+ *
+ * @author Csaba Tamas
+ */
+@SupportedAnnotationTypes("org.thingsplode.synapse.core.annotations.Service")
+public class RouteTableProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement service : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(Service.class))) {
+            if (service.getKind() != ElementKind.CLASS || !isAccessible(service)) {
+                note(service, "abstract, private or not a class");
+                continue;
+            }
+            try {
+                List<String> definitions = new ArrayList<>();
+                for (ExecutableElement m : publishedMethods(service)) {
+                    String definition = methodDefinition(service, m);
+                    if (definition == null) {
+                        note(service, "the parameters of the method [" + m.getSimpleName() + "] are not annotated");
+                        definitions = null;
+                        break;
+                    }
+                    definitions.add(definition);
+                }
+                if (definitions != null) {
+                    write(service, definitions);
+                }
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate the route table: " + ex.getMessage(), service);
+            }
+        }
+        return false;
+    }
+
+    private void note(TypeElement service, String reason) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No route table is generated for [" + service.getQualifiedName() + "] (it is registered by reflection): " + reason + ".");
+    }
+
+    private boolean isAccessible(TypeElement service) {
+        if (service.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        for (Element e = service; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The equivalent of the method filter of the reflective registration
+     * (public methods having a request mapping, a message parameter or
+     * returning a message).
+     */
+    private List<ExecutableElement> publishedMethods(TypeElement service) {
+        return ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(service)).stream()
+                .filter(m -> m.getModifiers().contains(Modifier.PUBLIC))
+                .filter(m -> m.getAnnotation(RequestMapping.class) != null
+                        || m.getParameters().stream().anyMatch(p -> isAssignable(p.asType(), AbstractMessage.class))
+                        || isAssignable(m.getReturnType(), AbstractMessage.class)
+                        || returnsMessageStage(m))
+                .collect(Collectors.toList());
+    }
+
+    private boolean returnsMessageStage(ExecutableElement m) {
+        if (!isAssignable(m.getReturnType(), CompletionStage.class)) {
+            return false;
+        }
+        List<? extends TypeMirror> typeArgs = ((DeclaredType) m.getReturnType()).getTypeArguments();
+        return !typeArgs.isEmpty() && isAssignable(typeArgs.get(0), AbstractMessage.class);
+    }
+
+    private boolean isAssignable(TypeMirror type, Class<?> to) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeElement toElement = processingEnv.getElementUtils().getTypeElement(to.getCanonicalName());
+        return processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type), processingEnv.getTypeUtils().erasure(toElement.asType()));
+    }
+
+    /**
+     * @return the source of the method definition or null if a parameter
+     * cannot be bound at compile time
+     */
+    private String methodDefinition(TypeElement service, ExecutableElement m) {
+        StringBuilder args = new StringBuilder();
+        StringBuilder params = new StringBuilder();
+        List<? extends VariableElement> parameters = m.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableElement p = parameters.get(i);
+            TypeMirror type = p.asType();
+            String typeLiteral = classLiteral(type);
+            args.append(i > 0 ? ", " : "").append("(").append(castType(type)).append(") a[").append(i).append("]");
+            RequestParam rp = p.getAnnotation(RequestParam.class);
+            RequestBody rb = p.getAnnotation(RequestBody.class);
+            PathVariable pv = p.getAnnotation(PathVariable.class);
+            RequestProperty rpr = p.getAnnotation(RequestProperty.class);
+            if (rp != null) {
+                params.append("\n                .queryParam(").append(typeLiteral).append(", ").append(literal(rp.value())).append(", ").append(rp.required()).append(", ").append(literal(rp.defaultValue())).append(")");
+            } else if (rb != null) {
+                params.append("\n                .body(").append(typeLiteral).append(", ").append(bodyTypeLiteral(type)).append(", ").append(literal(p.getSimpleName().toString())).append(", ").append(rb.required()).append(", ").append(rb.maxSize()).append("L)");
+            } else if (pv != null) {
+                params.append("\n                .pathVariable(").append(typeLiteral).append(", ").append(literal(pv.value())).append(")");
+            } else if (rpr != null) {
+                params.append("\n                .requestProperty(").append(typeLiteral).append(", ").append(literal(rpr.value())).append(", ").append(rpr.required()).append(")");
+            } else if (isAssignable(type, AbstractMessage.class)) {
+                params.append("\n                .body(").append(typeLiteral).append(", ").append(bodyTypeLiteral(type)).append(", ").append(literal(p.getSimpleName().toString())).append(", true)");
+            } else {
+                return null;
+            }
+        }
+
+        String target = m.getModifiers().contains(Modifier.STATIC)
+                ? processingEnv.getTypeUtils().erasure(service.asType()).toString()
+                : "((" + processingEnv.getTypeUtils().erasure(service.asType()) + ") s)";
+        String call = target + "." + m.getSimpleName() + "(" + args + ")";
+        StringBuilder sb = new StringBuilder("        method(").append(literal(m.getSimpleName().toString())).append(", (s, a) -> ");
+        if (m.getReturnType().getKind() == TypeKind.VOID) {
+            sb.append("{\n            ").append(call).append(";\n            return null;\n        })");
+        } else {
+            sb.append(call).append(")");
+        }
+
+        RequestMapping rm = m.getAnnotation(RequestMapping.class);
+        List<String> paths = new ArrayList<>();
+        if (rm != null) {
+            for (String path : rm.value()) {
+                paths.add(literal(path));
+            }
+            if (rm.method().length > 0) {
+                List<String> rms = new ArrayList<>();
+                for (RequestMethod r : rm.method()) {
+                    rms.add(RequestMethod.class.getCanonicalName() + "." + r.name());
+                }
+                sb.append("\n                .requestMethods(").append(String.join(", ", rms)).append(")");
+            }
+        } else {
+            paths.add(literal(m.getSimpleName().toString()));
+        }
+        sb.append("\n                .paths(").append(String.join(", ", paths)).append(")");
+        if (m.getAnnotation(StreamingResponse.class) != null) {
+            sb.append("\n                .streamingResponse()");
+        }
+        return sb.append(params).append(";").toString();
+    }
+
+    private String castType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return (type.getKind().isPrimitive() ? type.toString() : processingEnv.getTypeUtils().erasure(type).toString()) + ".class";
+    }
+
+    /**
+     * Mirrors the runtime decision: the type argument of the Request
+     * parameters (eg. Request&lt;Address&gt;), otherwise the parameter type.
+     */
+    private String bodyTypeLiteral(TypeMirror type) {
+        if (isAssignable(type, Request.class)) {
+            List<? extends TypeMirror> typeArgs = ((DeclaredType) type).getTypeArguments();
+            if (!typeArgs.isEmpty() && typeArgs.get(0).getKind() == TypeKind.DECLARED) {
+                return classLiteral(typeArgs.get(0));
+            }
+        }
+        return classLiteral(type);
+    }
+
+    private static String literal(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    private void write(TypeElement service, List<String> definitions) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(service);
+        String binaryName = processingEnv.getElementUtils().getBinaryName(service).toString();
+        String simpleName = (pkg.isUnnamed() ? binaryName : binaryName.substring(pkg.getQualifiedName().length() + 1)) + RouteTable.CLASS_NAME_SUFFIX;
+        String qualifiedName = pkg.isUnnamed() ? simpleName : pkg.getQualifiedName() + "." + simpleName;
+        try (Writer w = processingEnv.getFiler().createSourceFile(qualifiedName, service).openWriter()) {
+            if (!pkg.isUnnamed()) {
+                w.write("package " + pkg.getQualifiedName() + ";\n\n");
+            }
+            w.write("/**\n * The route table of {@link " + service.getQualifiedName() + "}, generated by the "
+                    + RouteTableProcessor.class.getSimpleName() + ".\n */\n");
+            w.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+            w.write("public final class " + simpleName + " extends " + RouteTable.class.getCanonicalName() + " {\n\n");
+            w.write("    public " + simpleName + "() {\n");
+            for (String definition : definitions) {
+                w.write(definition);
+                w.write("\n");
+            }
+            w.write("    }\n}\n");
+        }
+    }
+}
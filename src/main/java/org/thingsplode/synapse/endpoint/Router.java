@@ -0,0 +1,402 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Uri;
+import org.thingsplode.synapse.core.annotations.PathVariable;
+import org.thingsplode.synapse.endpoint.ServiceRegistry.MethodContext;
+
+/**
+ * The compiled routing table of the {@link ServiceRegistry}. Paths are split
+ * into segments and stored in a two level segment trie:
+ * <ul>
+ * <li>the root context trie (eg. /test/{user}/messages) is matched case
+ * insensitive;
+ * <li>each root context owns a method trie (eg. switches/{deviceId}), matched
+ * case sensitive;
+ * </ul>
+ * Static segments are looked up in a small open addressed table, while
+ * {pathVariable} segments are stored on a dedicated variable node, so a lookup
+ * costs O(path segments) and it is done without regular expressions and
+ * without allocating memory. Static segments are always preferred over path
+ * variables and deeper root contexts are preferred over shallower ones.<br>
+ * The terminal nodes of the method trie are holding the {@link Route}s, which
+ * are further discriminated by the {@link RequestMethod} and by the query
+ * parameter names of the request.<br>
+ * The router is not thread safe for modifications: it is built once and
+ * published as part of an immutable routing snapshot, afterwards it is only
+ * read.
+ *
+ * @author Csaba Tamas
+ */
+class Router {
+
+    private final Node root = new Node("", true);
+
+    /**
+     * Registers a method context under the root context and method path.
+     *
+     * @param rootCtx eg. /test/{user}/messages
+     * @param methodPath eg. switches/{deviceId}
+     * @param mc the method context to be returned for the matching requests
+     */
+    void add(String rootCtx, String methodPath, MethodContext mc) {
+        List<String> rootSegments = split(rootCtx);
+        List<String> methodSegments = split(methodPath);
+        Route route = new Route(mc, rootSegments, methodSegments);
+        Node node = root;
+        for (String segment : rootSegments) {
+            node = node.addChild(segment, true);
+        }
+        if (node.methods == null) {
+            node.methods = new Node("", false);
+        }
+        node = node.methods;
+        boolean variable = false;
+        for (String segment : methodSegments) {
+            variable |= isVariable(segment);
+            node = node.addChild(segment, false);
+        }
+        node.variablePath = variable;
+        node.addRoute(route);
+    }
+
+    /**
+     * @param uri the request uri
+     * @param method the request method
+     * @return the {@link MethodContext} of the matching route or null if none
+     * found
+     */
+    MethodContext route(Uri uri, RequestMethod method) {
+        Route r = match(uri, method);
+        return r != null ? r.mc : null;
+    }
+
+    /**
+     * @param uri the request uri
+     * @param method the request method
+     * @return the matching {@link Route} (which is also able to locate the
+     * path variables in the path) or null if none found
+     */
+    Route match(Uri uri, RequestMethod method) {
+        String path = uri.getPath();
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        //once the path is matched, the request method and query parameters are deciding (no fall back to other paths)
+        Node terminal = matchRootContext(root, path, 1);
+        return terminal != null ? terminal.select(uri, method) : null;
+    }
+
+    private Node matchRootContext(Node node, String path, int from) {
+        int to = segmentEnd(path, from);
+        if (to > from) {
+            Node terminal = null;
+            Node child = node.child(path, from, to);
+            if (child != null) {
+                terminal = matchRootContext(child, path, to + 1);
+            }
+            if (terminal == null && node.variable != null) {
+                terminal = matchRootContext(node.variable, path, to + 1);
+            }
+            if (terminal != null) {
+                return terminal;
+            }
+        }
+        if (node.methods == null || from >= path.length()) {
+            //an empty method identifier is never routed
+            return null;
+        }
+        Node terminal = matchMethod(node.methods, path, from, false);
+        //lenient matching: the routes with path variables are accepted on the tail of the method identifier as well
+        //(eg. getById/1122321 is routed to {deviceId}) to keep compatibility with the former regular expression based routing
+        for (int i = path.indexOf('/', from); i != -1 && terminal == null; i = path.indexOf('/', i + 1)) {
+            terminal = matchMethod(node.methods, path, i + 1, true);
+        }
+        return terminal;
+    }
+
+    private Node matchMethod(Node node, String path, int from, boolean variableOnly) {
+        if (from > path.length()) {
+            return node.routes.length > 0 && (!variableOnly || node.variablePath) ? node : null;
+        }
+        int to = segmentEnd(path, from);
+        if (to == from) {
+            return null;
+        }
+        Node terminal = null;
+        Node child = node.child(path, from, to);
+        if (child != null) {
+            terminal = matchMethod(child, path, to + 1, variableOnly);
+        }
+        if (terminal == null && node.variable != null) {
+            terminal = matchMethod(node.variable, path, to + 1, variableOnly);
+        }
+        return terminal;
+    }
+
+    private static int segmentEnd(String path, int from) {
+        if (from >= path.length()) {
+            return from;
+        }
+        int to = path.indexOf('/', from);
+        return to == -1 ? path.length() : to;
+    }
+
+    private static List<String> split(String path) {
+        List<String> segments = new ArrayList<>();
+        if (path != null) {
+            for (String s : path.split("/")) {
+                if (!s.isEmpty()) {
+                    segments.add(s);
+                }
+            }
+        }
+        return segments;
+    }
+
+    static boolean isVariable(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static int hash(String s, int from, int to, boolean ignoreCase) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            h = 31 * h + (ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node {
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private static final Route[] NO_ROUTES = new Route[0];
+        final String segment;
+        final boolean ignoreCase;
+        /**
+         * Open addressed (linear probing) table of the static children
+         */
+        Node[] children = NO_CHILDREN;
+        int childCount = 0;
+        /**
+         * The child standing for a path variable segment (eg. {deviceId})
+         */
+        Node variable;
+        /**
+         * The method trie (only on the nodes of the root context trie)
+         */
+        Node methods;
+        /**
+         * The routes terminating on this node (only on the nodes of the method
+         * trie)
+         */
+        Route[] routes = NO_ROUTES;
+        /**
+         * True if the path leading to this node contains a path variable
+         */
+        boolean variablePath = false;
+
+        Node(String segment, boolean ignoreCase) {
+            this.segment = segment;
+            this.ignoreCase = ignoreCase;
+        }
+
+        Node child(String path, int from, int to) {
+            if (childCount == 0) {
+                return null;
+            }
+            int mask = children.length - 1;
+            int length = to - from;
+            for (int i = hash(path, from, to, ignoreCase) & mask;; i = (i + 1) & mask) {
+                Node c = children[i];
+                if (c == null) {
+                    return null;
+                } else if (c.segment.length() == length && c.segment.regionMatches(ignoreCase, 0, path, from, length)) {
+                    return c;
+                }
+            }
+        }
+
+        Node addChild(String segment, boolean ignoreCase) {
+            if (isVariable(segment)) {
+                if (variable == null) {
+                    variable = new Node(segment, ignoreCase);
+                }
+                return variable;
+            }
+            Node c = child(segment, 0, segment.length());
+            if (c == null) {
+                c = new Node(segment, ignoreCase);
+                if ((childCount + 1) * 2 > children.length) {
+                    Node[] old = children;
+                    children = new Node[Math.max(4, old.length * 2)];
+                    for (Node o : old) {
+                        if (o != null) {
+                            put(o);
+                        }
+                    }
+                }
+                put(c);
+                childCount++;
+            }
+            return c;
+        }
+
+        private void put(Node c) {
+            int mask = children.length - 1;
+            int i = hash(c.segment, 0, c.segment.length(), ignoreCase) & mask;
+            while (children[i] != null) {
+                i = (i + 1) & mask;
+            }
+            children[i] = c;
+        }
+
+        void addRoute(Route route) {
+            for (int i = 0; i < routes.length; i++) {
+                if (routes[i].sameAs(route)) {
+                    routes[i] = route;
+                    return;
+                }
+            }
+            Route[] extended = Arrays.copyOf(routes, routes.length + 1);
+            extended[routes.length] = route;
+            //the more query parameters are declared, the more specific the route is
+            Arrays.sort(extended, (x, y) -> y.queryParams.length - x.queryParams.length);
+            routes = extended;
+        }
+
+        Route select(Uri uri, RequestMethod method) {
+            for (Route r : routes) {
+                if (r.accepts(method) && r.matchesQuery(uri)) {
+                    return r;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A routable method context together with its precompiled query parameter
+     * expression and the segment positions of its path variables.
+     */
+    static final class Route {
+
+        private static final int NO_SEGMENT = Integer.MAX_VALUE;
+        final MethodContext mc;
+        final String[] queryParams;
+        final boolean[] required;
+        /**
+         * The segment position of the path variable for each method parameter
+         * (indexed by the parameter index): positive values are counted from
+         * the beginning of the path (root context variables), negative values
+         * from the end of the path (method path variables).
+         */
+        final int[] pathVariableSegments;
+
+        Route(MethodContext mc, List<String> rootSegments, List<String> methodSegments) {
+            this.mc = mc;
+            List<MethodParam> qps = new ArrayList<>();
+            mc.parameters.stream().filter(p -> p.source == MethodParam.ParameterSource.QUERY_PARAM).forEach(qps::add);
+            this.queryParams = new String[qps.size()];
+            this.required = new boolean[qps.size()];
+            for (int i = 0; i < qps.size(); i++) {
+                this.queryParams[i] = qps.get(i).paramId;
+                this.required[i] = qps.get(i).required;
+            }
+            this.pathVariableSegments = new int[mc.parameters.size()];
+            for (int i = 0; i < mc.parameters.size(); i++) {
+                MethodParam p = mc.parameters.get(i);
+                pathVariableSegments[i] = NO_SEGMENT;
+                if (p.source != MethodParam.ParameterSource.PATH_VARIABLE) {
+                    continue;
+                }
+                String variable = "{" + p.paramId + "}";
+                int idx = rootSegments.indexOf(variable);
+                if (idx != -1) {
+                    pathVariableSegments[i] = idx;
+                } else if ((idx = methodSegments.indexOf(variable)) != -1) {
+                    //the method path is always matched on the tail of the request path
+                    pathVariableSegments[i] = idx - methodSegments.size();
+                } else {
+                    throw new IllegalArgumentException("The parameter " + p.paramId + " on method " + mc.methodName + " on class " + mc.serviceInstance.getClass().getSimpleName() + " has the " + PathVariable.class.getSimpleName() + ", but no path variable defined in the root context.");
+                }
+            }
+        }
+
+        /**
+         * @param path the path of the request matched by this route
+         * @param paramIndex the index of the method parameter
+         * @return the value of the path variable bound to the method parameter
+         * or null if the parameter is not a path variable
+         */
+        String pathVariable(String path, int paramIndex) {
+            int segment = pathVariableSegments[paramIndex];
+            if (segment == NO_SEGMENT) {
+                return null;
+            } else if (segment >= 0) {
+                int start = 1;
+                for (int i = 0; i < segment; i++) {
+                    start = path.indexOf('/', start) + 1;
+                    if (start == 0) {
+                        return null;
+                    }
+                }
+                int end = path.indexOf('/', start);
+                return path.substring(start, end == -1 ? path.length() : end);
+            } else {
+                int end = path.length();
+                for (int i = -1; i > segment; i--) {
+                    end = path.lastIndexOf('/', end - 1);
+                    if (end <= 0) {
+                        return null;
+                    }
+                }
+                return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+            }
+        }
+
+        boolean accepts(RequestMethod method) {
+            return mc.requestMethods.isEmpty() || mc.requestMethods.contains(method);
+        }
+
+        /**
+         * @return true if all the query parameters of the request are declared
+         * by the route and all the required parameters of the route are
+         * present in the request;
+         */
+        boolean matchesQuery(Uri uri) {
+            //looked up in the index of the uri: the query parameters are not decoded
+            int present = 0;
+            for (int i = 0; i < queryParams.length; i++) {
+                if (uri.hasQueryParameter(queryParams[i])) {
+                    present++;
+                } else if (required[i]) {
+                    return false;
+                }
+            }
+            return present == uri.getDistinctQueryParameterCount();
+        }
+
+        boolean sameAs(Route other) {
+            return Arrays.equals(queryParams, other.queryParams) && mc.requestMethods.equals(other.mc.requestMethods);
+        }
+    }
+}
@@ -15,31 +15,31 @@
  */
 package org.thingsplode.synapse.endpoint;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.ByteArrayInputStream;
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.SynapseEndpointServiceMarker;
@@ -49,18 +49,22 @@ import org.thingsplode.synapse.core.annotations.RequestBody;
 import org.thingsplode.synapse.core.annotations.RequestMapping;
 import org.thingsplode.synapse.core.annotations.RequestParam;
 import org.thingsplode.synapse.core.annotations.Service;
+import org.thingsplode.synapse.core.annotations.StreamingResponse;
 import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.Envelopes;
 import org.thingsplode.synapse.core.Event;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.ParameterWrapper;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.RequestMethod;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
 import org.thingsplode.synapse.core.exceptions.ExecutionException;
 import org.thingsplode.synapse.core.exceptions.MethodNotFoundException;
 import org.thingsplode.synapse.core.exceptions.MissingParameterException;
 import org.thingsplode.synapse.core.exceptions.SerializationException;
 import org.thingsplode.synapse.serializers.SerializationService;
+import org.thingsplode.synapse.serializers.SynapseSerializer;
 import org.thingsplode.synapse.util.Reflector;
 import org.thingsplode.synapse.util.Util;
 import org.thingsplode.synapse.core.annotations.RequestProperty;
@@ -75,26 +79,30 @@ import org.thingsplode.synapse.core.annotations.RequestProperty;
 public class ServiceRegistry {
 
     private Routes routes;
-    private Pattern urlParamPattern = Pattern.compile("\\{(.*?)\\}", Pattern.CASE_INSENSITIVE);
     private SerializationService serializationService = SerializationService.getInstance();
     private static final Logger logger = LoggerFactory.getLogger(ServiceRegistry.class);
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final ArgumentBinder[] NO_BINDERS = new ArgumentBinder[0];
+    private boolean recycleEnvelopes = false;
 
     public ServiceRegistry() {
         routes = new Routes();
     }
 
     public Set<String> getRouteExpressions() {
+        Set<String> rootCtxes = routes.snapshot.rootCtxes;
         if (logger.isTraceEnabled()) {
-            logger.trace(descriptor(routes.rootCtxes.keySet(), "Route Expressions"));
+            logger.trace(descriptor(rootCtxes, "Route Expressions"));
         }
-        return routes.rootCtxes.keySet();
+        return rootCtxes;
     }
 
     public Set<String> getAllSupportedPaths() {
+        Set<String> paths = routes.snapshot.paths;
         if (logger.isTraceEnabled()) {
-            logger.trace(descriptor(routes.paths, "Supported Paths"));
+            logger.trace(descriptor(paths, "Supported Paths"));
         }
-        return routes.paths;
+        return paths;
     }
 
     /**
@@ -120,7 +128,8 @@ public class ServiceRegistry {
      * {@link RequestMethod}.
      *
      * @param header
-     * @param unmarshalledReqBody the
+     * @param unmarshalledReqBody the serialized request body: a String or a
+     * {@link ByteBuf} holding the UTF-8 encoded content
      * @return an {@link Optional<Method>} filled with the method if one was
      * found. Otherwise the mcOpt.isPresent() is false;
      * @throws org.thingsplode.synapse.core.exceptions.ExecutionException
@@ -128,15 +137,44 @@ public class ServiceRegistry {
      * @throws org.thingsplode.synapse.core.exceptions.SerializationException
      */
     public Response invokeWithParsable(Request.RequestHeader header, Object unmarshalledReqBody) throws ExecutionException, MissingParameterException, SerializationException {
+        return await(header, invokeWithParsableAsync(header, unmarshalledReqBody));
+    }
+
+    /**
+     * The non-blocking variant of the {@link #invokeWithParsable(org.thingsplode.synapse.core.Request.RequestHeader, java.lang.Object)
+     * }: if the service method returns a {@link CompletionStage}, the returned
+     * stage is completed when the service completes its own stage.
+     *
+     * @param header
+     * @param unmarshalledReqBody
+     * @return the stage of the response; completed exceptionally with
+     * {@link ExecutionException} if the service fails asynchronously
+     * @throws ExecutionException
+     * @throws MissingParameterException
+     * @throws SerializationException
+     */
+    public CompletionStage<Response> invokeWithParsableAsync(Request.RequestHeader header, Object unmarshalledReqBody) throws ExecutionException, MissingParameterException, SerializationException {
 
-        Optional<MethodContext> mcOpt = getMethodContext(header);
-        if (!mcOpt.isPresent()) {
-            return new Response(new Response.ResponseHeader(header, HttpResponseStatus.NOT_FOUND, new MediaType("text/plain; charset=UTF-8")));
+        Router.Route route = match(header);
+        if (route == null) {
+            return CompletableFuture.completedFuture(newResponse(header, HttpResponseStatus.NOT_FOUND, MediaType.TEXT_PLAIN, null));
+        }
+        MethodContext mc = route.mc;
+        if (mc.bodySpec.maxSize >= 0 && unmarshalledReqBody instanceof ByteBuf && ((ByteBuf) unmarshalledReqBody).readableBytes() > mc.bodySpec.maxSize) {
+            //eg. http/2 streams, which are received completely
+            return CompletableFuture.completedFuture(newResponse(header, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, MediaType.TEXT_PLAIN, null));
         }
 
         Object requestBodyObject = null;
-        if ((unmarshalledReqBody instanceof String) && !Util.isEmpty((String) unmarshalledReqBody)) {
-            Optional<MethodParam> mpo = mcOpt.get().getMethodParamForRequestBody();
+        ByteBuf streamedContent = null;
+        if (mc.bodySpec.streamed && unmarshalledReqBody instanceof ByteBuf) {
+            //the streaming service reads the already received content in place, which is kept until the invocation completes
+            streamedContent = ((ByteBuf) unmarshalledReqBody).duplicate().retain();
+            requestBodyObject = new ByteBufInputStream(streamedContent);
+        } else if (mc.bodySpec.streamed) {
+            requestBodyObject = new ByteArrayInputStream(toBytes(unmarshalledReqBody));
+        } else if (((unmarshalledReqBody instanceof String) && !Util.isEmpty((String) unmarshalledReqBody)) || ((unmarshalledReqBody instanceof ByteBuf) && ((ByteBuf) unmarshalledReqBody).isReadable())) {
+            Optional<MethodParam> mpo = mc.getMethodParamForRequestBody();
             if (mpo.isPresent()) {
                 MethodParam mp = mpo.get();
                 Class clazz = null;
@@ -155,26 +193,20 @@ public class ServiceRegistry {
 
                 if (failed) {
                     //if endpoint marker is used, we expect a parameter wrapper
-                    clazz = mp.parameter.getType();
+                    clazz = mp.bodyType;
                     if (mp.source == MethodParam.ParameterSource.PARAMETER_WRAPPER) {
                         clazz = ParameterWrapper.class;
-                    } else if (mcOpt.get().serviceInstance instanceof AbstractEventSink) {
-                        clazz = ((AbstractEventSink) mcOpt.get().serviceInstance).getClazz();
-                    } else if (Request.class.isAssignableFrom(clazz)) {
-                        //if the parameter is a Request object (eg. Request<Tuple<Integer, Integer>> req), we need to construct it
-                        if (mp.parameter.getParameterizedType() instanceof ParameterizedType) {
-                            Type t = (((ParameterizedType) mp.parameter.getParameterizedType()).getActualTypeArguments()[0]);
-                            if (t instanceof ParameterizedType) {
-                                //the parameter is something like: Request<Tuple<Integer, Integer>> req
-                                clazz = (Class<?>) ((ParameterizedType) t).getRawType();
-                            } else if (t instanceof Class) {
-                                //the parameter is something like: Request<Address> req
-                                clazz = (Class<?>) t;
-                            }
-                        }
+                    } else if (mc.serviceInstance instanceof AbstractEventSink) {
+                        clazz = ((AbstractEventSink) mc.serviceInstance).getClazz();
                     }
                 }
-                requestBodyObject = serializationService.getPreferredSerializer(null).unMarshall(clazz != null ? clazz : Object.class, (String) unmarshalledReqBody);
+                SynapseSerializer<String> serializer = serializationService.getPreferredSerializer(null);
+                if (unmarshalledReqBody instanceof ByteBuf) {
+                    //decoded straight from the (aggregated) http content
+                    requestBodyObject = serializer.unMarshall(clazz != null ? clazz : Object.class, (ByteBuf) unmarshalledReqBody);
+                } else {
+                    requestBodyObject = serializer.unMarshall(clazz != null ? clazz : Object.class, (String) unmarshalledReqBody);
+                }
 
                 if (Event.class.isAssignableFrom(clazz)) {
                     requestBodyObject = new Event(header, (Serializable) requestBodyObject);
@@ -184,14 +216,65 @@ public class ServiceRegistry {
                 }
             }
         }
-        return invoke(header, mcOpt.get(), requestBodyObject);
+        if (streamedContent == null) {
+            return invoke(header, route, requestBodyObject);
+        }
+        ByteBuf content = streamedContent;
+        CompletionStage<Response> stage;
+        try {
+            stage = invoke(header, route, requestBodyObject);
+        } catch (MissingParameterException | ExecutionException | RuntimeException ex) {
+            content.release();
+            throw ex;
+        }
+        //an asynchronous service might still read it
+        return stage.whenComplete((r, th) -> content.release());
+    }
+
+    private static byte[] toBytes(Object unmarshalledReqBody) {
+        if (unmarshalledReqBody instanceof String) {
+            return ((String) unmarshalledReqBody).getBytes(StandardCharsets.UTF_8);
+        }
+        return new byte[0];
     }
 
     public Response invokeWithObject(Request.RequestHeader header, Object requestBody) throws MethodNotFoundException, ExecutionException, MissingParameterException, SerializationException {
-        return invoke(header, getMethodContextOrThrowException(header), requestBody);
+        return await(header, invokeWithObjectAsync(header, requestBody));
+    }
+
+    /**
+     * The non-blocking variant of the {@link #invokeWithObject(org.thingsplode.synapse.core.Request.RequestHeader, java.lang.Object)
+     * }.
+     *
+     * @param header
+     * @param requestBody
+     * @return the stage of the response; completed exceptionally with
+     * {@link ExecutionException} if the service fails asynchronously
+     * @throws MethodNotFoundException
+     * @throws ExecutionException
+     * @throws MissingParameterException
+     */
+    public CompletionStage<Response> invokeWithObjectAsync(Request.RequestHeader header, Object requestBody) throws MethodNotFoundException, ExecutionException, MissingParameterException {
+        return invoke(header, getRouteOrThrowException(header), requestBody);
     }
 
-    Response invoke(Request.RequestHeader header, MethodContext mc, Object requestBody) throws MissingParameterException, ExecutionException {
+    /**
+     * Waits for the asynchronous services (the stage of the synchronous ones is
+     * already completed).
+     */
+    private Response await(Request.RequestHeader header, CompletionStage<Response> stage) throws ExecutionException {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof ExecutionException) {
+                throw (ExecutionException) ex.getCause();
+            }
+            throw new ExecutionException(header, ex);
+        }
+    }
+
+    CompletionStage<Response> invoke(Request.RequestHeader header, Router.Route route, Object requestBody) throws MissingParameterException, ExecutionException {
+        MethodContext mc = route.mc;
         try {
 
             ///***** Worakround *************
@@ -204,88 +287,145 @@ public class ServiceRegistry {
             }
             ///****** End of Workaround *****
             
-            Object result = mc.method.invoke(mc.serviceInstance, mc.extractInvocationArguments(header, requestBody));
-            if (result == null && !(mc.serviceInstance instanceof AbstractEventSink)) {
-                return new Response(new Response.ResponseHeader(header, HttpResponseStatus.OK));
-            } else if (result == null && mc.serviceInstance instanceof AbstractEventSink) {
-                return new Response(new Response.ResponseHeader(header, HttpResponseStatus.ACCEPTED));
-            } else if (result instanceof Response) {
-                ((Response) result).getHeader().setCorrelationId(header.getMsgId());
-                return (Response) result;
-            } else if (result instanceof Serializable) {
-                return new Response(new Response.ResponseHeader(header, HttpResponseStatus.OK), (Serializable) result);
-            } else {
-                throw new ExecutionException("The servive method return type is not serializable.");
+            Object result = mc.invoker.invoke(mc.bindArguments(header, route, requestBody));
+            if (result instanceof CompletionStage) {
+                //asynchronous service: the response is created when the service completes (no thread is waiting for it)
+                CompletableFuture<Response> response = new CompletableFuture<>();
+                ((CompletionStage<?>) result).whenComplete((r, th) -> {
+                    if (th != null) {
+                        Throwable cause = th instanceof CompletionException && th.getCause() != null ? th.getCause() : th;
+                        response.completeExceptionally(cause instanceof ExecutionException ? cause : new ExecutionException(header, cause instanceof Exception ? (Exception) cause : new Exception(cause)));
+                    } else {
+                        try {
+                            response.complete(toResponse(header, mc, r));
+                        } catch (ExecutionException ex) {
+                            response.completeExceptionally(ex);
+                        }
+                    }
+                });
+                return response;
             }
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
+            return CompletableFuture.completedFuture(toResponse(header, mc, result));
+        } catch (MissingParameterException | ExecutionException ex) {
+            throw ex;
+        } catch (Exception ex) {
             throw new ExecutionException(header, ex);
+        } catch (Error err) {
+            throw err;
+        } catch (Throwable th) {
+            throw new ExecutionException(header, new Exception(th));
         }
     }
 
-    private MethodContext getMethodContextOrThrowException(Request.RequestHeader header) throws MethodNotFoundException {
-        Optional<MethodContext> mcOpt = getMethodContext(header);
-        if (!mcOpt.isPresent()) {
-            throw new MethodNotFoundException(header);
+    private Response toResponse(Request.RequestHeader header, MethodContext mc, Object result) throws ExecutionException {
+        if (result == null && !(mc.serviceInstance instanceof AbstractEventSink)) {
+            return newResponse(header, HttpResponseStatus.OK, null, null);
+        } else if (result == null && mc.serviceInstance instanceof AbstractEventSink) {
+            return newResponse(header, HttpResponseStatus.ACCEPTED, null, null);
+        } else if (result instanceof Response) {
+            ((Response) result).getHeader().setCorrelationId(header.getMsgId());
+            return (Response) result;
+        } else if (result instanceof Stream || result instanceof Iterator || (result instanceof Iterable && mc.streamingResponse)) {
+            //written element by element by the response handlers
+            return newResponse(header, HttpResponseStatus.OK, null, StreamingBody.of(result));
+        } else if (result instanceof Serializable) {
+            return newResponse(header, HttpResponseStatus.OK, null, result);
+        } else {
+            throw new ExecutionException("The servive method return type is not serializable.");
         }
-        return mcOpt.get();
     }
 
-    Optional<MethodContext> getMethodContext(Request.RequestHeader header) {
-        String methodIdentifierPattern = null;
-        String pattern = null;
-        for (Pattern p : routes.patterns) {
-            Matcher m = p.matcher(header.getUri().getPath());
-            if (m.find()) {
-                methodIdentifierPattern = header.getUri().getPath().substring(m.end());
-                if (methodIdentifierPattern.startsWith("/")) {
-                    methodIdentifierPattern = methodIdentifierPattern.substring(1);
-                }
-                pattern = p.pattern();
-                break;
-            }
+    private Response newResponse(Request.RequestHeader header, HttpResponseStatus status, MediaType contentType, Object body) {
+        Response response;
+        if (recycleEnvelopes) {
+            response = Envelopes.newResponse(header, status, body);
+        } else {
+            response = new Response(new Response.ResponseHeader(header, status), body);
         }
-        if (Util.isEmpty(methodIdentifierPattern)) {
-            if (logger.isDebugEnabled()) {
-                logger.warn("Returning empty Optional<MethodContext> for header: " + header);
-            }
-            return Optional.empty();
+        if (contentType != null) {
+            response.getHeader().setContentType(contentType);
         }
+        return response;
+    }
 
-        methodIdentifierPattern = methodIdentifierPattern + header.getUri().createParameterExpression();
+    /**
+     * The responses created for the results of the services are taken from
+     * the pool of the {@link Envelopes} (released by the response handlers).
+     *
+     * @param recycleEnvelopes
+     */
+    void setRecycleEnvelopes(boolean recycleEnvelopes) {
+        this.recycleEnvelopes = recycleEnvelopes;
+    }
 
-        SortedMap<String, MethodContext> methods = routes.rootCtxes.get(pattern);
-        MethodContext mc = methods.get(methodIdentifierPattern);
-        if (mc == null) {
-            final String variableMethodIdentifier = methodIdentifierPattern;
-            Optional<String> variableMethodKey = methods.keySet().stream().filter(k -> {
-                if (urlParamPattern.matcher(k).find()) {
-                    final String keyMatcher = k.replaceAll("\\{.*\\}", "[^/]+");
-                    if (Pattern.compile(keyMatcher).matcher(variableMethodIdentifier).find()) {
-                        return true;
-                    }
-                }
-                return false;
-            }).findFirst();
-            if (variableMethodKey.isPresent()) {
-                mc = methods.get(variableMethodKey.get());
-            }
+    private Router.Route getRouteOrThrowException(Request.RequestHeader header) throws MethodNotFoundException {
+        Router.Route route = match(header);
+        if (route == null) {
+            throw new MethodNotFoundException(header);
         }
-        if (mc == null || (!mc.requestMethods.isEmpty() && !mc.requestMethods.contains(header.getMethod()))) {
-            if (logger.isDebugEnabled()) {
-                logger.warn("Returning empty Optional<MethodContext> (because method context or request methods are not available) for header: " + header);
-                logger.trace("Method Context (mc): " + (mc == null ? "null" : mc.rootCtx));
-                logger.trace("Method identifier pattern: " + methodIdentifierPattern);
-                logger.trace("Pattern: " + pattern);
-                logger.trace(descriptor(methods.keySet(), "methods"));
+        return route;
+    }
 
-                if (mc != null) {
-                    logger.trace(descriptor(mc.requestMethods, "Request Methods on the Method Context"));
-                }
-            }
-            return Optional.empty();
-        }
+    Optional<MethodContext> getMethodContext(Request.RequestHeader header) {
+        return Optional.ofNullable(route(header));
+    }
+
+    /**
+     * Looked up when the head of an http request is received, before the body
+     * is read.
+     *
+     * @param uri
+     * @param method
+     * @return how the body of the request is consumed by the matching method or
+     * null if the request is not routable
+     */
+    public BodySpec getBodySpec(Uri uri, RequestMethod method) {
+        return match(uri, method).getBodySpec();
+    }
+
+    /**
+     * Matches a request when its head is received; the match is handed on to
+     * the header of the request (see
+     * {@link Request.RequestHeader#setRoute(java.lang.Object)}), so the
+     * request is not routed again while the routing table is not changed.
+     *
+     * @param uri
+     * @param method
+     * @return the match (of a not routable request as well)
+     */
+    public RouteMatch match(Uri uri, RequestMethod method) {
+        Snapshot s = routes.snapshot;
+        return new RouteMatch(s, s.router.match(uri, method));
+    }
+
+    /**
+     * @param header the header of the request
+     * @return the root context of the service which is going to serve the
+     * request or null if the request is not routable
+     */
+    public String resolveRootContext(Request.RequestHeader header) {
+        Router.Route route = match(header);
+        return route != null ? route.mc.rootCtx : null;
+    }
+
+    MethodContext route(Request.RequestHeader header) {
+        Router.Route route = match(header);
+        return route != null ? route.mc : null;
+    }
 
-        return Optional.of(mc);
+    private Router.Route match(Request.RequestHeader header) {
+        Snapshot s = routes.snapshot;
+        Object matched = header.getRoute();
+        if (matched instanceof RouteMatch && ((RouteMatch) matched).snapshot == s) {
+            return ((RouteMatch) matched).route;
+        }
+        Uri uri = header.getUri();
+        Router.Route route = uri != null ? s.router.match(uri, header.getMethod()) : null;
+        header.setRoute(new RouteMatch(s, route));
+        if (route == null && logger.isDebugEnabled()) {
+            logger.warn("Returning empty Optional<MethodContext> for header: " + header);
+        }
+        return route;
     }
 
     private String descriptor(Collection<?> keys, String title) {
@@ -295,7 +435,13 @@ public class ServiceRegistry {
         return sbm.toString();
     }
 
-    public void register(String path, Object serviceInstance) {
+    /**
+     * @param path the root context of the service or null (the path of the
+     * {@link Service} annotation or derived from the class name)
+     * @param serviceInstance
+     * @return the root context the service is registered under
+     */
+    public String register(String path, Object serviceInstance) {
         //todo: make validation to expose Request Mapping or Path Varibale types where conversion from String to method parameter type is possible
         Class<?> srvClass = serviceInstance.getClass();
         String rootContext;
@@ -316,42 +462,93 @@ public class ServiceRegistry {
                     .collect(Collectors.toList()));
         } else {
             //Annotated with @Service
-            rootContext = Util.isEmpty(path) ? srvClass.getAnnotation(Service.class).value() : path;
+            rootContext = normalizeRootContext(Util.isEmpty(path) ? srvClass.getAnnotation(Service.class).value() : path);
+            RouteTable table = RouteTable.load(srvClass);
+            if (table != null) {
+                logger.debug("Registering [" + srvClass.getName() + "] at: " + rootContext + " from the generated route table");
+                populateMethods(rootContext, serviceInstance, table);
+                return rootContext;
+            }
             methods.addAll(Arrays.asList(srvClass.getMethods()).stream()
                     .filter(m -> {
-                        return m.isAnnotationPresent(RequestMapping.class) || containsMessageClass(m.getParameterTypes()) || AbstractMessage.class.isAssignableFrom(m.getReturnType());
+                        return m.isAnnotationPresent(RequestMapping.class) || containsMessageClass(m.getParameterTypes()) || AbstractMessage.class.isAssignableFrom(m.getReturnType()) || returnsMessageStage(m);
                     })
                     .collect(Collectors.toList()));
         }
 
+        rootContext = normalizeRootContext(rootContext);
+        logger.debug("Registering [" + serviceInstance.getClass().getName() + "] at: " + rootContext);
+        populateMethods(rootContext, serviceInstance, methods);
+        return rootContext;
+    }
+
+    /**
+     * Removes all the methods of the service(s) registered under the root
+     * context. The requests already routed to the service are completed.
+     *
+     * @param path the root context of the service (eg. /test/{user}/messages)
+     * @return true if a service was registered under the root context
+     */
+    public boolean unregister(String path) {
+        if (Util.isEmpty(path)) {
+            return false;
+        }
+        String rootContext = toRootContext(path);
+        boolean removed = routes.removeAll(rootContext);
+        logger.debug((removed ? "Unregistered the services at: " : "No service is registered at: ") + rootContext);
+        return removed;
+    }
+
+    /**
+     * @param path the path a service is published under
+     * @return the root context of the service (the key of its invocation pool)
+     */
+    static String toRootContext(String path) {
+        return normalizeRootContext(path.startsWith("/") ? path : "/" + path);
+    }
+
+    private static String normalizeRootContext(String rootContext) {
         if (rootContext.endsWith("/")) {
             rootContext = rootContext.substring(0, rootContext.length() - 1);
         }
         if (Util.isEmpty(rootContext)) {
             rootContext = "/";
         }
-        logger.debug("Registering [" + serviceInstance.getClass().getName() + "] at: " + rootContext);
-        populateMethods(rootContext, serviceInstance, methods);
+        return rootContext;
     }
 
     private void populateMethods(String rootCtx, Object serviceInstance, Set<Method> methods) {
-
+        List<Mapping> mappings = new ArrayList<>();
         methods.stream().forEach((m) -> {
             MethodContext mc;
             mc = new MethodContext(rootCtx, serviceInstance, m);
             mc.parameters.addAll(processParameters(serviceInstance, m));
+            mc.streamingResponse = m.isAnnotationPresent(StreamingResponse.class);
 
             if (m.isAnnotationPresent(RequestMapping.class)) {
                 RequestMapping rm = m.getAnnotation(RequestMapping.class);
                 Arrays.asList(rm.value()).forEach(ru -> {
                     mc.requestMethods.addAll(Arrays.asList(rm.method()));
-                    routes.put(rootCtx, ru, mc);
+                    mappings.add(new Mapping(rootCtx, ru, mc));
 
                 });
             } else {
-                routes.put(rootCtx, m.getName(), mc);
+                mappings.add(new Mapping(rootCtx, m.getName(), mc));
             }
         });
+        routes.putAll(mappings);
+    }
+
+    private void populateMethods(String rootCtx, Object serviceInstance, RouteTable table) {
+        List<Mapping> mappings = new ArrayList<>();
+        table.getMethods().forEach(md -> {
+            MethodContext mc = new MethodContext(rootCtx, serviceInstance, md.name, MethodInvoker.create(serviceInstance, md.invoker));
+            mc.parameters.addAll(md.parameters);
+            mc.requestMethods.addAll(md.requestMethods);
+            mc.streamingResponse = md.streamingResponse;
+            md.paths.forEach(p -> mappings.add(new Mapping(rootCtx, p, mc)));
+        });
+        routes.putAll(mappings);
     }
 
     private List<MethodParam> processParameters(Object serviceInstance, Method m) {
@@ -362,65 +559,90 @@ public class ServiceRegistry {
                 MethodParam<?> mp;
                 if (serviceInstance.getClass().isAnnotationPresent(Service.class)) {
                     if (p.isAnnotationPresent(RequestParam.class)) {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.QUERY_PARAM, p.getAnnotation(RequestParam.class).value());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.QUERY_PARAM, p.getAnnotation(RequestParam.class).value());
                         required = p.getAnnotation(RequestParam.class).required();
                         if (!Util.isEmpty(p.getAnnotation(RequestParam.class).defaultValue())) {
                             Class valueClass = p.getType();
-                            mp.defaultValue = generateValueFromString(valueClass, p.getAnnotation(RequestParam.class).defaultValue());
+                            mp.defaultValue = ValueConverters.convert(valueClass, p.getAnnotation(RequestParam.class).defaultValue());
                             mp.defaultValueClass = valueClass;
                         }
                     } else if (p.isAnnotationPresent(RequestBody.class)) {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.BODY, p.getName());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.BODY, p.getName());
                         required = p.getAnnotation(RequestBody.class).required();
+                        mp.maxSize = p.getAnnotation(RequestBody.class).maxSize();
                     } else if (p.isAnnotationPresent(PathVariable.class)) {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.PATH_VARIABLE, p.getAnnotation(PathVariable.class).value());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.PATH_VARIABLE, p.getAnnotation(PathVariable.class).value());
                     } else if (p.isAnnotationPresent(RequestProperty.class)) {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.HEADER_PARAM, p.getAnnotation(RequestProperty.class).value());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.HEADER_PARAM, p.getAnnotation(RequestProperty.class).value());
                         required = p.getAnnotation(RequestProperty.class).required();
                     } else if (AbstractMessage.class.isAssignableFrom(p.getType())) {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.BODY, p.getName());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.BODY, p.getName());
                     } else {
-                        mp = new MethodParam(p, MethodParam.ParameterSource.QUERY_PARAM, p.getName());
+                        mp = new MethodParam(p.getType(), MethodParam.ParameterSource.QUERY_PARAM, p.getName());
                     }
                 } else if (p.isAnnotationPresent(RequestBody.class)) {
-                    mp = new MethodParam(p, MethodParam.ParameterSource.BODY, p.getName());
+                    mp = new MethodParam(p.getType(), MethodParam.ParameterSource.BODY, p.getName());
                     required = p.getAnnotation(RequestBody.class).required();
+                    mp.maxSize = p.getAnnotation(RequestBody.class).maxSize();
                 } else {
-                    mp = new MethodParam<>(p, MethodParam.ParameterSource.PARAMETER_WRAPPER, p.getName());
+                    mp = new MethodParam<>(p.getType(), MethodParam.ParameterSource.PARAMETER_WRAPPER, p.getName());
                 }
                 mp.required = required;
-                mp.parameter = p;
+                if (mp.source == MethodParam.ParameterSource.BODY) {
+                    mp.bodyType = requestBodyType(p);
+                }
                 mps.add(mp);
             });
         }
         return mps;
     }
 
-    private boolean containsMessageClass(Class<?>[] array) {
-        Optional<Class<?>> result = Arrays.asList(array).stream().filter(c -> AbstractMessage.class.isAssignableFrom(c)).findFirst();
-        return result.isPresent();
+    /**
+     * @return the type to which the request body is unmarshalled: the type
+     * argument if the parameter is a Request object (eg. Address in case of
+     * Request&lt;Address&gt; or Tuple in case of Request&lt;Tuple&lt;Integer,
+     * Integer&gt;&gt;), otherwise the type of the parameter
+     */
+    private static Class<?> requestBodyType(Parameter p) {
+        if (Request.class.isAssignableFrom(p.getType()) && p.getParameterizedType() instanceof ParameterizedType) {
+            Type t = ((ParameterizedType) p.getParameterizedType()).getActualTypeArguments()[0];
+            if (t instanceof ParameterizedType) {
+                return (Class<?>) ((ParameterizedType) t).getRawType();
+            } else if (t instanceof Class) {
+                return (Class<?>) t;
+            }
+        }
+        return p.getType();
     }
 
-    private Object generateValueFromString(Class type, String sValue) {
-        if (sValue == null || Util.isEmpty(sValue)) {
-            return null;
-        }
-        //todo: find and test other primitives and base types
-        if (Integer.class.isAssignableFrom(type) || int.class.isAssignableFrom(type)) {
-            return Integer.parseInt(sValue);
-        } else if (Long.class.isAssignableFrom(type) || long.class.isAssignableFrom(type)) {
-            return Long.parseLong(sValue);
-        } else if (String.class.isAssignableFrom(type)) {
-            return sValue;
+    /**
+     * @return true for the asynchronous methods completing with a message (eg.
+     * CompletableFuture&lt;Response&lt;Device&gt;&gt;)
+     */
+    private boolean returnsMessageStage(Method m) {
+        if (!CompletionStage.class.isAssignableFrom(m.getReturnType()) || !(m.getGenericReturnType() instanceof ParameterizedType)) {
+            return false;
         }
-        return null;
+        Type t = ((ParameterizedType) m.getGenericReturnType()).getActualTypeArguments()[0];
+        Type raw = t instanceof ParameterizedType ? ((ParameterizedType) t).getRawType() : t;
+        return raw instanceof Class && AbstractMessage.class.isAssignableFrom((Class<?>) raw);
+    }
+
+    private boolean containsMessageClass(Class<?>[] array) {
+        Optional<Class<?>> result = Arrays.asList(array).stream().filter(c -> AbstractMessage.class.isAssignableFrom(c)).findFirst();
+        return result.isPresent();
     }
 
     class MethodContext {
 
         String rootCtx;
         Method method;
+        String methodName;
         Object serviceInstance;
+        MethodInvoker invoker;
+        ArgumentBinder[] binders = NO_BINDERS;
+        BodySpec bodySpec = BodySpec.DEFAULT;
+        boolean streamingResponse = false;
         List<RequestMethod> requestMethods = new ArrayList<>();
         List<MethodParam> parameters = new ArrayList<>();
 
@@ -431,64 +653,30 @@ public class ServiceRegistry {
             return parameters.stream().filter(p -> (p.source == MethodParam.ParameterSource.BODY || p.source == MethodParam.ParameterSource.PARAMETER_WRAPPER)).findAny();
         }
 
-        private Object[] extractInvocationArguments(Request.RequestHeader header, Object messageBody) throws MissingParameterException {
-            final List<Object> methodParams = new ArrayList<>();
+        Object[] bindArguments(Request.RequestHeader header, Router.Route route, Object messageBody) throws MissingParameterException {
+            if (binders.length == 0) {
+                return NO_ARGUMENTS;
+            }
+            Object[] args = new Object[binders.length];
+            for (ArgumentBinder binder : binders) {
+                binder.bind(header, route, messageBody, args);
+            }
+            return args;
+        }
 
-            for (MethodParam p : parameters) {
-                switch (p.source) {
-                    case BODY: {
-                        if (messageBody != null) {
-                            methodParams.add(messageBody);
-                        } else if (p.defaultValue != null) {
-                            methodParams.add(p.defaultValue);
-                        } else if (!p.required) {
-                            methodParams.add(null);
-                        } else {
-                            throw new MissingParameterException(header.getUri().getPath(), p.paramId);
-                        }
-                        break;
-                    }
-                    case PARAMETER_WRAPPER: {
-                        if (messageBody == null || !(messageBody instanceof ParameterWrapper)) {
-                            throw new MissingParameterException(header.getUri().getPath(), p.paramId);
-                        }
-                        Optional<org.thingsplode.synapse.core.ParameterWrapper.Parameter> pOpt = ((ParameterWrapper) messageBody).getParameterByName(p.paramId);
-                        if (pOpt.isPresent()) {
-                            methodParams.add(pOpt.get().getValue());
-                        }
-                        break;
-                    }
-                    case QUERY_PARAM: {
-                        Object value = generateValueFromString(p.parameter.getType(), header.getUri().getQueryParamterValue(p.paramId));
-                        if (value == null && p.required) {
-                            throw new MissingParameterException(header.getUri().getQuery(), p.paramId);
-                        }
-                        methodParams.add(value);
-                        break;
-                    }
-                    case HEADER_PARAM: {
-                        Optional<String> headerValueOpt = header.getProperty(p.paramId);
-                        if (!headerValueOpt.isPresent() && p.required) {
-                            throw new MissingParameterException("Header Value", p.paramId);
-                        } else {
-                            methodParams.add(headerValueOpt.get());
-                        }
-                        break;
-                    }
-                    case PATH_VARIABLE: {
-                        Matcher m = p.pathVariableMatcher.matcher(header.getUri().getPath());
-                        if (m.find()) {
-                            methodParams.add(generateValueFromString(p.parameter.getType(), m.group()));
-                        } else if (!p.required) {
-                            methodParams.add(null);
-                        } else {
-                            throw new MissingParameterException(header.getUri().getPath(), p.paramId);
-                        }
-                        break;
-                    }
-                }
+        void compileBinders() {
+            ArgumentBinder[] compiled = new ArgumentBinder[parameters.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = ArgumentBinder.create(parameters.get(i), i);
+            }
+            binders = compiled;
+            Optional<MethodParam> body = parameters.stream().filter(p -> p.source == MethodParam.ParameterSource.BODY).findFirst();
+            bodySpec = body.isPresent() ? new BodySpec(body.get().isStreamedBody(), body.get().maxSize) : BodySpec.DEFAULT;
+            if (!bodySpec.streamed && bodySpec.maxSize > Endpoint.MAX_CONTENT_LENGTH) {
+                //the decoded bodies are aggregated, which is limited by the endpoint
+                throw new IllegalArgumentException("The maximum body size (" + bodySpec.maxSize + " bytes) of [" + methodName + "] at " + rootCtx
+                        + " exceeds the maximum content length of the endpoint (" + Endpoint.MAX_CONTENT_LENGTH + " bytes); only the streamed bodies (InputStream, ReadableByteChannel) can be larger.");
             }
-            return methodParams.toArray();
         }
 
         String createParameterExpression() {
@@ -498,7 +686,7 @@ public class ServiceRegistry {
             String exp = "";
             boolean first = true;
             for (MethodParam p : parameters) {
-                boolean skip = p.parameter.isAnnotationPresent(PathVariable.class) || p.source == MethodParam.ParameterSource.BODY || p.source == MethodParam.ParameterSource.PARAMETER_WRAPPER || p.source == MethodParam.ParameterSource.HEADER_PARAM;
+                boolean skip = p.source == MethodParam.ParameterSource.PATH_VARIABLE || p.source == MethodParam.ParameterSource.BODY || p.source == MethodParam.ParameterSource.PARAMETER_WRAPPER || p.source == MethodParam.ParameterSource.HEADER_PARAM;
                 if (!skip) {
                     String pid = p.required ? p.paramId : "[" + p.paramId + "]";
                     exp = exp + (first ? "?" + pid : "&" + pid);
@@ -508,36 +696,20 @@ public class ServiceRegistry {
             return exp;
         }
 
-        private void preparePathVariableMatching(String methodName) {
-            this.parameters.forEach(p -> {
-                //check for path variables on the root context or on the request map
-                if (p.source == MethodParam.ParameterSource.PATH_VARIABLE) {
-                    String pathVariableName = p.parameter.getAnnotation(PathVariable.class).value();
-                    Pattern regexP = Pattern.compile("\\{" + pathVariableName + "\\}");
-                    if (regexP.matcher(rootCtx).find()) {
-                        String pattern = "(?!\\" + rootCtx.substring(0, rootCtx.indexOf("{")) + ")" + "([A-Za-z0-9._@]+)(?=" + rootCtx.substring(rootCtx.indexOf("}") + 1, rootCtx.length()) + ")";
-                        p.pathVariableMatcher = Pattern.compile(pattern);
-                        //(?!/test/)([A-Za-z0-9._@]+)(?=/messages/sum)
-                        p.pathVariableOnRootContext = true;
-                    } else if (regexP.matcher(methodName).find()) {
-                        //String pattern = (methodName.indexOf("{") == 0 ? "^" : "(?!" + methodName.substring(0, methodName.indexOf("{")) + ")") + "([A-Za-z0-9._@]+)" + (methodName.indexOf("}") == methodName.length()-1 ? "$" : "(?=" + methodName.substring(methodName.indexOf("}") + 1, methodName.length()) + ")");
-                        String pattern = (methodName.indexOf("{") == 0 ? "" : "(?!" + methodName.substring(0, methodName.indexOf("{")) + ")") + "([A-Za-z0-9._@]+)" + (methodName.indexOf("}") == methodName.length() - 1 ? "$" : "(?=" + methodName.substring(methodName.indexOf("}") + 1, methodName.length()) + ")");
-                        //(?!switches/)([A-Za-z0-9._@]+)$
-                        //^(?!switches/)([A-Za-z0-9._@]+)$
-                        p.pathVariableMatcher = Pattern.compile(pattern);
-                        p.pathVariableOnRootContext = false;
-                    } else {
-                        throw new IllegalArgumentException("The parameter " + p.parameter.getName() + " on method " + this.method.getName() + " on class " + this.method.getDeclaringClass().getSimpleName() + " has the " + PathVariable.class.getSimpleName() + ", but no path variable defined in the root context.");
-                    }
-                }
-            });
-        }
-
         public MethodContext(String rootCtx, Object service, Method method) {
             this.rootCtx = rootCtx;
             this.serviceInstance = service;
             this.method = method;
+            this.methodName = method.getName();
             this.requestMethods = new ArrayList<>();
+            this.invoker = MethodInvoker.create(service, method);
+        }
+
+        MethodContext(String rootCtx, Object service, String methodName, MethodInvoker invoker) {
+            this.rootCtx = rootCtx;
+            this.serviceInstance = service;
+            this.methodName = methodName;
+            this.invoker = invoker;
         }
 
         public MethodContext(String rootCtx, Object service, Method method, List<RequestMethod> requestMethods) {
@@ -550,6 +722,8 @@ public class ServiceRegistry {
                 this.rootCtx = rootCtx;
                 this.method = method;
             }
+            this.methodName = method.getName();
+            this.invoker = MethodInvoker.create(service, method);
         }
 
         void addRequestMethod(RequestMethod rm) {
@@ -565,44 +739,127 @@ public class ServiceRegistry {
         }
     }
 
-    class Routes {
+    /**
+     * How the request body of a service method is consumed.
+     */
+    public static final class BodySpec {
 
-        Map<String, SortedMap<String, MethodContext>> rootCtxes = new HashMap<>();
-        SortedSet<Pattern> patterns = new TreeSet<>(new PatternComparator());
-        Set<String> paths = new HashSet<>();
+        static final BodySpec DEFAULT = new BodySpec(false, -1);
+        final boolean streamed;
+        final long maxSize;
 
-        synchronized void put(String rootCtx, String methodName, MethodContext mc) {
+        BodySpec(boolean streamed, long maxSize) {
+            this.streamed = streamed;
+            this.maxSize = maxSize;
+        }
 
-            String rootRegexp = rootCtx.replaceAll("/\\{.*\\}/", "/[^/]+/");
-            methodName = methodName.startsWith("/") ? methodName.substring(1) : methodName;
-            methodName = methodName + mc.createParameterExpression();
-            mc.preparePathVariableMatching(methodName);
+        /**
+         * @return true if the body is streamed to the service while it is
+         * received
+         */
+        public boolean isStreamed() {
+            return streamed;
+        }
 
-            SortedMap<String, MethodContext> rootCtxMethods = rootCtxes.get(rootRegexp);
-            if (rootCtxMethods != null) {
-                rootCtxMethods.put(methodName, mc);
-            } else {
-                patterns.add(Pattern.compile(rootRegexp, Pattern.CASE_INSENSITIVE));
-                SortedMap<String, MethodContext> map = new TreeMap<>();
-                map.put(methodName, mc);
-                rootCtxes.put(rootRegexp, map);
-            }
-            paths.add(rootCtx + "/" + methodName);
+        /**
+         * @return the maximum size of the body in bytes or -1 if the method
+         * does not limit it
+         */
+        public long getMaxSize() {
+            return maxSize;
         }
     }
 
-    private class PatternComparator implements Comparator<Pattern> {
+    /**
+     * A method context published under a root context and method path.
+     */
+    private static class Mapping {
+
+        final String rootCtx;
+        final String methodName;
+        final MethodContext mc;
 
-        @Override
-        public int compare(Pattern x, Pattern y) {
-            if (x == null || y == null) {
-                throw new NullPointerException("None of the compared values is accepted to be null.");
-            }
-            if (x.equals(y)) {
-                return 0;
-            } else {
-                return y.pattern().length() - x.pattern().length();
+        Mapping(String rootCtx, String methodName, MethodContext mc) {
+            this.rootCtx = rootCtx;
+            this.methodName = methodName.startsWith("/") ? methodName.substring(1) : methodName;
+            this.mc = mc;
+        }
+    }
+
+    /**
+     * The routing table is copy-on-write: each change builds a new, immutable
+     * {@link Snapshot} which is swapped in atomically, so the requests are
+     * routed without locking and never see a half built table. Services can
+     * be registered and unregistered while the endpoint is running.
+     */
+    class Routes {
+
+        //guarded by this
+        private final List<Mapping> mappings = new ArrayList<>();
+        volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+        synchronized void putAll(List<Mapping> added) {
+            added.forEach(m -> m.mc.compileBinders());
+            List<Mapping> next = new ArrayList<>(mappings);
+            next.addAll(added);
+            //building before modifying anything: an invalid service is not published at all
+            Snapshot s = new Snapshot(next);
+            mappings.addAll(added);
+            snapshot = s;
+        }
+
+        synchronized boolean removeAll(String rootCtx) {
+            List<Mapping> next = new ArrayList<>(mappings);
+            if (!next.removeIf(m -> m.rootCtx.equalsIgnoreCase(rootCtx))) {
+                return false;
             }
+            Snapshot s = new Snapshot(next);
+            mappings.clear();
+            mappings.addAll(next);
+            snapshot = s;
+            return true;
+        }
+    }
+
+    /**
+     * A route matched in a version of the routing table (a request matched
+     * before a service is published or unpublished is routed again).
+     */
+    public static final class RouteMatch {
+
+        private final Snapshot snapshot;
+        private final Router.Route route;
+
+        RouteMatch(Snapshot snapshot, Router.Route route) {
+            this.snapshot = snapshot;
+            this.route = route;
+        }
+
+        /**
+         * @return how the body of the request is consumed by the matching
+         * method or null if the request is not routable
+         */
+        public BodySpec getBodySpec() {
+            return route != null ? route.mc.bodySpec : null;
+        }
+    }
+
+    static class Snapshot {
+
+        final Router router = new Router();
+        final Set<String> rootCtxes;
+        final Set<String> paths;
+
+        Snapshot(List<Mapping> mappings) {
+            Set<String> rcs = new HashSet<>();
+            Set<String> ps = new HashSet<>();
+            mappings.forEach(m -> {
+                router.add(m.rootCtx, m.methodName, m.mc);
+                rcs.add(m.rootCtx);
+                ps.add(m.rootCtx + "/" + m.methodName + m.mc.createParameterExpression());
+            });
+            this.rootCtxes = Collections.unmodifiableSet(rcs);
+            this.paths = Collections.unmodifiableSet(ps);
         }
     }
 
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.MonthDay;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.Period;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.thingsplode.synapse.util.Util;
+
+/**
+ * The cache of the converters used for creating the method parameters from
+ * the string values of the path variables, query parameters and request
+ * properties. Supports the primitives, their wrappers, {@link String},
+ * {@link BigDecimal}, {@link BigInteger}, {@link UUID}, enums and the
+ * java.time types (ISO-8601 format).
+ *
+ * @author Csaba Tamas
+ */
+final class ValueConverters {
+
+    @FunctionalInterface
+    interface ValueConverter {
+
+        Object convert(String value);
+    }
+
+    /**
+     * Used for the types which cannot be created from a string.
+     */
+    static final ValueConverter UNSUPPORTED = v -> null;
+    private static final Map<Class<?>, ValueConverter> converters = new HashMap<>();
+    private static final Map<Class<?>, Object> primitiveDefaults = new HashMap<>();
+    private static final Map<Class<?>, ValueConverter> enumConverters = new ConcurrentHashMap<>();
+
+    static {
+        converters.put(String.class, v -> v);
+        converters.put(CharSequence.class, v -> v);
+        register(Boolean.class, boolean.class, Boolean::valueOf, Boolean.FALSE);
+        register(Byte.class, byte.class, Byte::valueOf, (byte) 0);
+        register(Short.class, short.class, Short::valueOf, (short) 0);
+        register(Integer.class, int.class, Integer::valueOf, 0);
+        register(Long.class, long.class, Long::valueOf, 0L);
+        register(Float.class, float.class, Float::valueOf, 0f);
+        register(Double.class, double.class, Double::valueOf, 0d);
+        register(Character.class, char.class, ValueConverters::toCharacter, '\u0000');
+        converters.put(BigDecimal.class, BigDecimal::new);
+        converters.put(BigInteger.class, BigInteger::new);
+        converters.put(UUID.class, UUID::fromString);
+        converters.put(Instant.class, Instant::parse);
+        converters.put(LocalDate.class, LocalDate::parse);
+        converters.put(LocalTime.class, LocalTime::parse);
+        converters.put(LocalDateTime.class, LocalDateTime::parse);
+        converters.put(OffsetTime.class, OffsetTime::parse);
+        converters.put(OffsetDateTime.class, OffsetDateTime::parse);
+        converters.put(ZonedDateTime.class, ZonedDateTime::parse);
+        converters.put(Duration.class, Duration::parse);
+        converters.put(Period.class, Period::parse);
+        converters.put(Year.class, Year::parse);
+        converters.put(YearMonth.class, YearMonth::parse);
+        converters.put(MonthDay.class, MonthDay::parse);
+        converters.put(ZoneId.class, ZoneId::of);
+        converters.put(ZoneOffset.class, ZoneOffset::of);
+    }
+
+    private ValueConverters() {
+    }
+
+    private static void register(Class<?> wrapper, Class<?> primitive, ValueConverter converter, Object defaultValue) {
+        converters.put(wrapper, converter);
+        converters.put(primitive, converter);
+        primitiveDefaults.put(primitive, defaultValue);
+    }
+
+    private static Character toCharacter(String value) {
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("The value [" + value + "] cannot be converted to a single character.");
+        }
+        return value.charAt(0);
+    }
+
+    /**
+     * @param type the type of the method parameter
+     * @return the cached converter of the type or {@link #UNSUPPORTED} if the
+     * type cannot be converted from a string
+     */
+    @SuppressWarnings("unchecked")
+    static ValueConverter forType(Class<?> type) {
+        ValueConverter c = converters.get(type);
+        if (c != null) {
+            return c;
+        } else if (type.isEnum()) {
+            return enumConverters.computeIfAbsent(type, t -> enumConverter((Class<? extends Enum>) t));
+        } else if (type.isAssignableFrom(String.class)) {
+            //eg. Object or Serializable
+            return converters.get(String.class);
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * The value used when no value is available for a primitive method
+     * parameter (null is not assignable to primitives).
+     *
+     * @param type the type of the method parameter
+     * @return the default value of the primitive types or null for all the
+     * other types
+     */
+    static Object nullValue(Class<?> type) {
+        return type.isPrimitive() ? primitiveDefaults.get(type) : null;
+    }
+
+    /**
+     * @param type the type of the method parameter
+     * @param value the string value
+     * @return the converted value or null if the value is empty or the type is
+     * not supported
+     */
+    static Object convert(Class<?> type, String value) {
+        if (Util.isEmpty(value)) {
+            return null;
+        }
+        return forType(type).convert(value);
+    }
+
+    private static ValueConverter enumConverter(Class<? extends Enum> type) {
+        Enum[] constants = type.getEnumConstants();
+        return v -> {
+            for (Enum e : constants) {
+                if (e.name().equals(v)) {
+                    return e;
+                }
+            }
+            for (Enum e : constants) {
+                if (e.name().equalsIgnoreCase(v)) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException("No enum constant " + type.getSimpleName() + "." + v);
+        };
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a slow client from growing the buffers of the endpoint without limit:
+ * <ul>
+ * <li> the reading of the connection is suspended while its outbound buffer
+ * is above the high watermark (see
+ * {@link org.thingsplode.synapse.TransportOptions#writeBufferWaterMark(int, int)}),
+ * so no new responses are produced for it
+ * <li> the reading is also suspended while too many of its requests are being
+ * invoked (reported by the {@link RequestHandler})
+ * <li> the commands dispatched by the endpoint while the connection is not
+ * writable are failed, queued (up to a limit) or dropped, as configured by
+ * the {@link UnwritablePolicy}
+ * </ul>
+ * One instance per connection.
+ *
+ * @author Csaba Tamas
+ */
+public class BackpressureHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    /**
+     * What happens with a command dispatched to a connection which is not
+     * writable.
+     */
+    public enum UnwritablePolicy {
+        /**
+         * The dispatch fails immediately.
+         */
+        FAIL,
+        /**
+         * The command is written when the connection became writable again;
+         * the dispatch fails if too many commands are waiting already.
+         */
+        QUEUE,
+        /**
+         * The command is silently discarded (eg. periodic notifications, which
+         * are superseded by the next one anyway).
+         */
+        DROP
+    }
+
+    /**
+     * The result of {@link #offer(java.lang.Object, io.netty.channel.ChannelPromise)}.
+     */
+    public enum Outcome {
+        WRITTEN, QUEUED, REJECTED, DROPPED
+    }
+
+    private final int maxPendingInvocations;
+    private final UnwritablePolicy policy;
+    private final int maxQueuedWrites;
+    private final BackpressureMetrics metrics;
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    //confined to the event loop
+    private int pendingInvocations = 0;
+
+    /**
+     * @param maxPendingInvocations the reading is suspended when this many
+     * requests of the connection are being invoked (0: unlimited)
+     * @param policy
+     * @param maxQueuedWrites the maximum number of the commands waiting for
+     * the connection with the {@link UnwritablePolicy#QUEUE} policy
+     * @param metrics shared by the connections of the endpoint
+     */
+    public BackpressureHandler(int maxPendingInvocations, UnwritablePolicy policy, int maxQueuedWrites, BackpressureMetrics metrics) {
+        this.maxPendingInvocations = maxPendingInvocations;
+        this.policy = policy;
+        this.maxQueuedWrites = maxQueuedWrites;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes the message if the connection is writable, otherwise applies the
+     * {@link UnwritablePolicy}. Thread safe.
+     *
+     * @param msg
+     * @param promise completed when the message is written; not completed if
+     * the message is rejected or dropped
+     * @return
+     */
+    public Outcome offer(Object msg, ChannelPromise promise) {
+        Channel channel = promise.channel();
+        //the queued messages are written first; a closed channel fails the promise
+        if (!channel.isActive() || (channel.isWritable() && queued.get() == 0)) {
+            channel.writeAndFlush(msg, promise);
+            return Outcome.WRITTEN;
+        }
+        switch (policy) {
+            case QUEUE:
+                if (queued.incrementAndGet() <= maxQueuedWrites) {
+                    pendingWrites.add(new PendingWrite(msg, promise));
+                    metrics.commandQueued();
+                    //the connection might have become writable meanwhile
+                    channel.eventLoop().execute(() -> drain(channel));
+                    return Outcome.QUEUED;
+                }
+                queued.decrementAndGet();
+                metrics.commandRejected();
+                return Outcome.REJECTED;
+            case DROP:
+                metrics.commandDropped();
+                return Outcome.DROPPED;
+            default:
+                metrics.commandRejected();
+                return Outcome.REJECTED;
+        }
+    }
+
+    /**
+     * Called on the event loop when the invocation of a request started.
+     *
+     * @param channel
+     */
+    void invocationStarted(Channel channel) {
+        if (maxPendingInvocations > 0 && ++pendingInvocations >= maxPendingInvocations && ReadThrottle.of(channel).suspend(ReadThrottle.PENDING_INVOCATIONS)) {
+            metrics.invocationsSuspended();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Suspending the reading of " + channel.remoteAddress() + ": " + pendingInvocations + " requests are being invoked.");
+            }
+        }
+    }
+
+    /**
+     * Called on the event loop when the response of a request is forwarded.
+     *
+     * @param channel
+     */
+    void invocationCompleted(Channel channel) {
+        if (maxPendingInvocations > 0 && --pendingInvocations < maxPendingInvocations) {
+            ReadThrottle.of(channel).resume(ReadThrottle.PENDING_INVOCATIONS);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        if (channel.isWritable()) {
+            ReadThrottle.of(channel).resume(ReadThrottle.OUTBOUND_BUFFER);
+            drain(channel);
+        } else if (ReadThrottle.of(channel).suspend(ReadThrottle.OUTBOUND_BUFFER)) {
+            metrics.outboundSuspended();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Suspending the reading of " + channel.remoteAddress() + ": the outbound buffer is above the high watermark.");
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failPendingWrites();
+        ctx.fireChannelInactive();
+    }
+
+    private void failPendingWrites() {
+        PendingWrite pw;
+        while ((pw = pendingWrites.poll()) != null) {
+            queued.decrementAndGet();
+            ReferenceCountUtil.release(pw.msg);
+            pw.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    private void drain(Channel channel) {
+        if (!channel.isActive()) {
+            //queued after the connection was closed
+            failPendingWrites();
+            return;
+        }
+        PendingWrite pw;
+        while (channel.isWritable() && (pw = pendingWrites.poll()) != null) {
+            queued.decrementAndGet();
+            channel.writeAndFlush(pw.msg, pw.promise);
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
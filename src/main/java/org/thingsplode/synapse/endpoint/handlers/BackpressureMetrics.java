@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often the connections of an endpoint were throttled and what
+ * happened with the commands dispatched to connections which were not
+ * writable (see {@link BackpressureHandler}).
+ *
+ * @author Csaba Tamas
+ */
+public class BackpressureMetrics {
+
+    private final LongAdder outboundSuspensions = new LongAdder();
+    private final LongAdder invocationSuspensions = new LongAdder();
+    private final LongAdder queuedCommands = new LongAdder();
+    private final LongAdder rejectedCommands = new LongAdder();
+    private final LongAdder droppedCommands = new LongAdder();
+
+    /**
+     * @return how many times the reading of a connection was suspended
+     * because its outbound buffer was above the high watermark
+     */
+    public long getOutboundSuspensions() {
+        return outboundSuspensions.sum();
+    }
+
+    /**
+     * @return how many times the reading of a connection was suspended
+     * because too many of its requests were being invoked
+     */
+    public long getInvocationSuspensions() {
+        return invocationSuspensions.sum();
+    }
+
+    /**
+     * @return the number of the commands queued until their connection became
+     * writable again
+     */
+    public long getQueuedCommands() {
+        return queuedCommands.sum();
+    }
+
+    /**
+     * @return the number of the commands failed because their connection was
+     * not writable (and the queue was full, if queuing)
+     */
+    public long getRejectedCommands() {
+        return rejectedCommands.sum();
+    }
+
+    /**
+     * @return the number of the commands discarded because their connection
+     * was not writable
+     */
+    public long getDroppedCommands() {
+        return droppedCommands.sum();
+    }
+
+    void outboundSuspended() {
+        outboundSuspensions.increment();
+    }
+
+    void invocationsSuspended() {
+        invocationSuspensions.increment();
+    }
+
+    void commandQueued() {
+        queuedCommands.increment();
+    }
+
+    void commandRejected() {
+        rejectedCommands.increment();
+    }
+
+    void commandDropped() {
+        droppedCommands.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "BackpressureMetrics{" + "outboundSuspensions=" + outboundSuspensions + ", invocationSuspensions=" + invocationSuspensions + ", queuedCommands=" + queuedCommands + ", rejectedCommands=" + rejectedCommands + ", droppedCommands=" + droppedCommands + '}';
+    }
+}
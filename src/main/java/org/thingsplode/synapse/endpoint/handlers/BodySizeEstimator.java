@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import java.util.concurrent.ConcurrentHashMap;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.SynapseSerializer;
+
+/**
+ * Serializes the outgoing messages straight into buffers of the channel's
+ * allocator (pooled, direct buffers by default). The initial capacity of the
+ * buffer is the moving average of the serialized size of the previous
+ * messages with the same type, so most of the messages are written without
+ * growing (copying) the buffer. The averages are shared by the connections of
+ * all endpoints, a new connection starts with what the others learned.
+ *
+ * @author Csaba Tamas
+ */
+class BodySizeEstimator {
+
+    private static final int DEFAULT_SIZE = 256;
+    private static final int MAX_INITIAL_SIZE = 64 * 1024;
+    //the serialized bodies of the http responses
+    static final BodySizeEstimator BODIES = new BodySizeEstimator();
+    //the serialized envelopes of the websocket messages (the header included)
+    static final BodySizeEstimator ENVELOPES = new BodySizeEstimator();
+    private final ConcurrentHashMap<Class<?>, Integer> sizes = new ConcurrentHashMap<>();
+
+    private BodySizeEstimator() {
+    }
+
+    /**
+     * @param ctx
+     * @param serializer
+     * @param object the object to be serialized (not null)
+     * @return the buffer holding the serialized object (owned by the caller)
+     * @throws SerializationException
+     */
+    ByteBuf marshall(ChannelHandlerContext ctx, SynapseSerializer<?> serializer, Object object) throws SerializationException {
+        return marshall(ctx, serializer, object, object.getClass());
+    }
+
+    /**
+     * @param ctx
+     * @param serializer
+     * @param object the object to be serialized (not null)
+     * @param type the type the size is estimated by (eg. the class of the
+     * body of a serialized envelope)
+     * @return the buffer holding the serialized object (owned by the caller)
+     * @throws SerializationException
+     */
+    ByteBuf marshall(ChannelHandlerContext ctx, SynapseSerializer<?> serializer, Object object, Class<?> type) throws SerializationException {
+        ByteBuf buffer = ctx.alloc().buffer(estimate(type));
+        try {
+            serializer.marshall(object, buffer);
+        } catch (SerializationException | RuntimeException ex) {
+            buffer.release();
+            throw ex;
+        }
+        record(type, buffer.readableBytes());
+        return buffer;
+    }
+
+    int estimate(Class<?> type) {
+        Integer size = sizes.get(type);
+        //a quarter of headroom above the average
+        return size != null ? Math.min(MAX_INITIAL_SIZE, size + (size >> 2)) : DEFAULT_SIZE;
+    }
+
+    void record(Class<?> type, int size) {
+        sizes.merge(type, size, (average, current) -> (average * 7 + current) >> 3);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The byte ranges requested by a Range header (RFC 7233) and the
+ * multipart/byteranges framing of the responses with more than one range.
+ *
+ * @author Csaba Tamas
+ */
+final class ByteRanges {
+
+    //more ranges are not worth the framing (and are a way to amplify the load)
+    static final int MAX_RANGES = 16;
+    private static final String BYTES_UNIT = "bytes=";
+    private final List<long[]> ranges;
+    private final long length;
+    private String boundary = null;
+
+    private ByteRanges(List<long[]> ranges, long length) {
+        this.ranges = ranges;
+        this.length = length;
+    }
+
+    /**
+     * @param range the value of the Range header
+     * @param length the length of the representation
+     * @return the requested ranges (empty if none of them is satisfiable) or
+     * null if the header is invalid (the whole representation is sent)
+     */
+    static ByteRanges parse(String range, long length) {
+        if (range == null || !range.startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        String[] specs = range.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    //suffix: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return new ByteRanges(ranges, length);
+    }
+
+    boolean isSatisfiable() {
+        return !ranges.isEmpty();
+    }
+
+    boolean isMultipart() {
+        return ranges.size() > 1;
+    }
+
+    /**
+     * @return the first and the last byte positions of each range
+     */
+    List<long[]> getRanges() {
+        return Collections.unmodifiableList(ranges);
+    }
+
+    static long length(long[] range) {
+        return range[1] - range[0] + 1;
+    }
+
+    /**
+     * @param range
+     * @return the value of the Content-Range header
+     */
+    String contentRange(long[] range) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * @param length
+     * @return the Content-Range of a 416 response
+     */
+    static String unsatisfiedRange(long length) {
+        return "bytes */" + length;
+    }
+
+    String boundary() {
+        if (boundary == null) {
+            boundary = UUID.randomUUID().toString().replace("-", "");
+        }
+        return boundary;
+    }
+
+    /**
+     * @return the Content-Type of a multipart response
+     */
+    String multipartContentType() {
+        return "multipart/byteranges; boundary=" + boundary();
+    }
+
+    /**
+     * @param range
+     * @param contentType
+     * @return the delimiter and the headers preceding the range in a multipart
+     * response
+     */
+    ByteBuf partHeader(long[] range, String contentType) {
+        String header = "\r\n--" + boundary() + "\r\n"
+                + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                + "Content-Range: " + contentRange(range) + "\r\n\r\n";
+        return Unpooled.copiedBuffer(header, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the closing delimiter of a multipart response
+     */
+    ByteBuf closingDelimiter() {
+        return Unpooled.copiedBuffer("\r\n--" + boundary() + "--\r\n", StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param contentType
+     * @return the Content-Length of the multipart response
+     */
+    long multipartLength(String contentType) {
+        long total = 0;
+        for (long[] range : ranges) {
+            ByteBuf header = partHeader(range, contentType);
+            total += header.readableBytes() + length(range);
+            header.release();
+        }
+        ByteBuf closing = closingDelimiter();
+        total += closing.readableBytes();
+        closing.release();
+        return total;
+    }
+
+    /**
+     * The parts of a multipart response (the delimiters and the ranges of the
+     * file) read one after the other, when the file cannot be sent zero-copy.
+     */
+    static final class Sequence implements ChunkedInput<ByteBuf> {
+
+        //ByteBuf or ChunkedInput<ByteBuf>
+        private final List<Object> parts;
+        private int current = 0;
+        private long progress = 0;
+        private final long length;
+
+        Sequence(List<Object> parts) {
+            this.parts = parts;
+            this.length = parts.stream().mapToLong(p -> p instanceof ByteBuf ? ((ByteBuf) p).readableBytes() : ((ChunkedInput<?>) p).length()).sum();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean isEndOfInput() throws Exception {
+            while (current < parts.size()) {
+                Object part = parts.get(current);
+                if (part instanceof ByteBuf || !((ChunkedInput<ByteBuf>) part).isEndOfInput()) {
+                    return false;
+                }
+                current++;
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void close() throws Exception {
+            for (int i = 0; i < parts.size(); i++) {
+                Object part = parts.get(i);
+                if (part instanceof ByteBuf) {
+                    if (i >= current) {
+                        //not written
+                        ((ByteBuf) part).release();
+                    }
+                } else {
+                    ((ChunkedInput<ByteBuf>) part).close();
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+            if (isEndOfInput()) {
+                return null;
+            }
+            Object part = parts.get(current);
+            ByteBuf chunk;
+            if (part instanceof ByteBuf) {
+                chunk = (ByteBuf) part;
+                current++;
+            } else {
+                chunk = ((ChunkedInput<ByteBuf>) part).readChunk(allocator);
+            }
+            if (chunk != null) {
+                progress += chunk.readableBytes();
+            }
+            return chunk;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return progress;
+        }
+    }
+}
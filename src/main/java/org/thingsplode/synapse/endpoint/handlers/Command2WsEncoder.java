@@ -15,7 +15,6 @@
  */
 package org.thingsplode.synapse.endpoint.handlers;
 
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
@@ -35,14 +34,14 @@ public class Command2WsEncoder extends MessageToMessageEncoder<Command> {
 
     private static final Logger logger = LoggerFactory.getLogger(Command2WsEncoder.class);
     private final SerializationService serializationService = SerializationService.getInstance();
+    private final BodySizeEstimator bodySizeEstimator = BodySizeEstimator.ENVELOPES;
 
     @Override
     protected void encode(ChannelHandlerContext ctx, Command command, List<Object> out) throws Exception {
         if (command instanceof PushNotification){
             ((PushNotification)command).setDefaultTopicIfNone();
         }
-        byte[] content = serializationService.getSerializer(MediaType.APPLICATION_JSON).marshall(command);
-        TextWebSocketFrame wsFrame = new TextWebSocketFrame(Unpooled.wrappedBuffer(content));
+        TextWebSocketFrame wsFrame = new TextWebSocketFrame(bodySizeEstimator.marshall(ctx, serializationService.getSerializer(MediaType.APPLICATION_JSON), command));
         out.add(wsFrame);
     }
 
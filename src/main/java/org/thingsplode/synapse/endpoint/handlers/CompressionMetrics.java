@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the responses compressed by the endpoint (see
+ * {@link ResponseCompressor}), the bytes before and after the compression and
+ * the time the IO threads spent compressing.
+ *
+ * @author Csaba Tamas
+ */
+public class CompressionMetrics {
+
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder skippedResponses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /**
+     * @return the number of the compressed responses
+     */
+    public long getCompressedResponses() {
+        return compressedResponses.sum();
+    }
+
+    /**
+     * @return the number of the responses sent uncompressed to a client
+     * accepting a compressed one, because they were below the threshold or
+     * their content is not compressible
+     */
+    public long getSkippedResponses() {
+        return skippedResponses.sum();
+    }
+
+    /**
+     * @return the number of the bytes compressed
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return the number of the compressed bytes written
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return the compressed size divided by the original size of the
+     * compressed responses (1 if nothing was compressed yet)
+     */
+    public double getCompressionRatio() {
+        long in = bytesIn.sum();
+        return in > 0 ? (double) bytesOut.sum() / in : 1d;
+    }
+
+    /**
+     * @return the nanoseconds spent compressing (on the IO threads, so
+     * practically the CPU time of the compression)
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    void compressed() {
+        compressedResponses.increment();
+    }
+
+    void skipped() {
+        skippedResponses.increment();
+    }
+
+    void consumed(long bytes, long nanos) {
+        bytesIn.add(bytes);
+        compressionNanos.add(nanos);
+    }
+
+    void produced(long bytes) {
+        bytesOut.add(bytes);
+    }
+}
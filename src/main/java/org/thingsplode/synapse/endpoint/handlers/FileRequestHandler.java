@@ -15,14 +15,17 @@
  */
 package org.thingsplode.synapse.endpoint.handlers;
 
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -32,29 +35,26 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.activation.MimetypesFileTypeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.thingsplode.synapse.endpoint.swagger.Loader;
 import org.thingsplode.synapse.core.FileRequest;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.Request.RequestHeader;
@@ -70,14 +70,13 @@ import org.thingsplode.synapse.util.Util;
 public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRequest> {
     private static final Logger logger = LoggerFactory.getLogger(FileRequestHandler.class);
     private final Pattern urlParamPattern = Pattern.compile("\\{(.*?)\\}", Pattern.CASE_INSENSITIVE);
-    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
-    private static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
     private static final int HTTP_CACHE_SECONDS = 60;
     private static final Pattern INSECURE_URI_PATTERN = Pattern.compile(".*[<>&\"].*");
     private static final String MIME_TYPES_FILE = "/META-INF/server.mime.types";
     private static MimetypesFileTypeMap MIME_TYPES_MAP;
     private File webroot = null;
     private final HashMap<Pattern,String> redirects = new HashMap<>();
+    private final StaticContentCache cache;
 
     public FileRequestHandler(String webroot) throws FileNotFoundException {
         this();
@@ -88,6 +87,10 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
         File f = new File(webroot);
         if (f.exists() && f.isDirectory() && f.canRead()) {
             this.webroot = f;
+            cache.clear();
+            //a previous web root is not watched anymore
+            cache.stopWatching();
+            watchWebroot();
             logger.info("Web root initialized at ["+f.getAbsolutePath()+"]");
         } else {
             throw new FileNotFoundException("The folder " + webroot + " cannot be found, not a directory or cannot be read;");
@@ -107,6 +110,29 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
                 }
             }
         }
+        cache = new StaticContentCache(MIME_TYPES_MAP::getContentType, StaticContentCache.DEFAULT_BUDGET_BYTES, StaticContentCache.DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    /**
+     * Starts the invalidation of the cached files of the web root, unless it
+     * is already watched (eg. called again when the endpoint is restarted).
+     */
+    public void watchWebroot() {
+        if (webroot == null || cache.isWatching()) {
+            return;
+        }
+        try {
+            cache.watch(webroot);
+        } catch (IOException ex) {
+            throw new IllegalStateException("The web root " + webroot + " cannot be watched: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return the cache of the served files
+     */
+    public StaticContentCache getStaticContentCache() {
+        return cache;
     }
     
     public void addRedirect(Pattern p, String url){
@@ -118,7 +144,7 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
         
         Optional<String> uri = getSanitizedPath(req.getHeader().getUri().getPath());
         if (!uri.isPresent()) {
-            HttpResponseHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN, "Path is not available.");
+            HttpResponseHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN, "Path is not available.", req.getHeader());
             return;
         }
         
@@ -126,7 +152,7 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
             for (Entry<Pattern,String> e : this.redirects.entrySet()){
                 if (e.getKey().matcher(uri.get()).matches()){
                     HttpResponseHandler.sendRedirect(ctx, createRedirectUrl(req.getHeader(), e.getValue()), req.getHeader());
-                    break;
+                    return;
                 }
             }   
         }
@@ -136,93 +162,347 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
             return;
         }
 
-        File file =  null;
-        if (webroot != null){
-            file = new File(webroot, uri.get());
+        StaticContentCache.Entry entry = cache.get(uri.get());
+        if (entry == null) {
+            File file = null;
+            if (webroot != null) {
+                file = new File(webroot, uri.get());
+            }
+            if (file != null && file.exists() && !file.isHidden() && !file.isDirectory()) {
+                if (!file.isFile()) {
+                    HttpResponseHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN, "Is not a file.", req.getHeader());
+                    return;
+                }
+                entry = cache.load(uri.get(), file);
+                if (entry == null) {
+                    //too large to be cached
+                    String contentType = MIME_TYPES_MAP.getContentType(file.getPath());
+                    File precompressed = new File(file.getPath() + StaticContentCache.GZIP_SUFFIX);
+                    if (!precompressed.isFile()) {
+                        sendFile(ctx, req, file, contentType, false, false);
+                    } else if (acceptsGzip(req.getHeader())) {
+                        sendFile(ctx, req, precompressed, contentType, true, true);
+                    } else {
+                        sendFile(ctx, req, file, contentType, false, true);
+                    }
+                    return;
+                }
+            } else {
+                try {
+                    entry = cache.loadResource(uri.get());
+                } catch (IOException ex) {
+                    //answered on the stream of the request, not by the exception handler
+                    HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, ex.getMessage(), req.getHeader());
+                    return;
+                }
+                if (entry == null) {
+                    HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, "File not found.", req.getHeader());
+                    return;
+                }
+            }
         }
-        //if ((!file.exists()) && "/index.html".equals(msg.getHeader().getUri().getPath())) {
-        //    file = new File(sanitizeUri("/index.html"));
-        //}
+        sendCached(ctx, req, uri.get(), entry);
+    }
 
-        
-        RandomAccessFile raf = null;
-        if (file == null || !file.exists() || file.isHidden() || file.isDirectory()) {
-            raf = Loader.extractResource(uri.get());
-            if (raf == null){
-                HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, "File not found.");
+    private void sendCached(ChannelHandlerContext ctx, FileRequest req, String path, StaticContentCache.Entry entry) throws IOException {
+        RequestHeader header = req.getHeader();
+        boolean negotiated = entry.isCompressible();
+        if (negotiated && acceptsGzip(header)) {
+            if (entry.getPrecompressed() != null) {
+                entry.content().release();
+                sendFile(ctx, req, entry.getPrecompressed(), entry.getContentType(), true, true);
+                return;
+            }
+            ByteBuf gzipped;
+            try {
+                gzipped = cache.gzipped(path, entry);
+            } catch (IOException | RuntimeException ex) {
+                entry.content().release();
+                throw ex;
+            }
+            if (gzipped != null) {
+                entry.content().release();
+                sendContent(ctx, header, gzipped, entry.getContentType(), entry.getGzipEtag(), entry.getLastModified(), entry.getLastModifiedHeader(), true, true);
                 return;
             }
+            //turned out to be incompressible: sent as it is
         }
+        sendContent(ctx, header, entry.content(), entry.getContentType(), entry.getEtag(), entry.getLastModified(), entry.getLastModifiedHeader(), false, negotiated);
+    }
 
-        if (file == null && raf == null){
-            HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, "File not found.");
+    /**
+     * Sends the (whole or the requested ranges of the) content held in
+     * memory.
+     *
+     * @param content released when written
+     */
+    private void sendContent(ChannelHandlerContext ctx, RequestHeader header, ByteBuf content, String contentType, String etag, long lastModified, String lastModifiedHeader, boolean gzipped, boolean vary) {
+        if (isNotModified(header, etag, lastModified)) {
+            content.release();
+            sendNotModified(ctx, header, etag, vary);
             return;
         }
-        
-        if (raf == null && !file.isFile()) {
-            HttpResponseHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN, "Is not a file.");
+        ByteRanges ranges = requestedRanges(header, etag, lastModified, content.readableBytes());
+        if (ranges != null && !ranges.isSatisfiable()) {
+            sendRangeNotSatisfiable(ctx, header, content.readableBytes());
+            content.release();
             return;
         }
-        
-        String contentType = MIME_TYPES_MAP.getContentType(file.getPath());
-        try {
-            if (raf == null){
-                raf = new RandomAccessFile(file, "r");
+        FullHttpResponse response;
+        if (ranges == null) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        } else if (!ranges.isMultipart()) {
+            long[] range = ranges.getRanges().get(0);
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, content.slice((int) range[0], (int) ByteRanges.length(range)));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.contentRange(range));
+        } else {
+            //each slice holds a reference of the content
+            List<ByteBuf> parts = new ArrayList<>(ranges.getRanges().size() * 2 + 1);
+            for (long[] range : ranges.getRanges()) {
+                parts.add(ranges.partHeader(range, contentType));
+                parts.add(content.slice((int) range[0], (int) ByteRanges.length(range)).retain());
+            }
+            parts.add(ranges.closingDelimiter());
+            content.release();
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, Unpooled.wrappedBuffer(parts.toArray(new ByteBuf[parts.size()])));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, ranges.multipartContentType());
+        }
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        setRepresentationHeaders(response, etag, gzipped, vary);
+        setDateAndCacheHeaders(response, lastModifiedHeader);
+        HttpResponseHandler.setStreamId(response, header);
+        if (isKeepAlive(header)) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static void setRepresentationHeaders(HttpResponse response, String etag, boolean gzipped, boolean vary) {
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        if (gzipped) {
+            response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        }
+        if (vary) {
+            //the shared caches must not serve the gzipped variant to the clients not accepting it
+            response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * @return true if the client accepts the gzip content coding
+     */
+    static boolean acceptsGzip(RequestHeader header) {
+        return acceptsGzip(header.getProperty(HttpHeaderNames.ACCEPT_ENCODING.toString()).orElse(null));
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header of the request or null
+     * @return true if the client accepts the gzip content coding
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean any = false;
+        for (String coding : acceptEncoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            boolean accepted = semicolon < 0 || qualityOf(coding.substring(semicolon + 1)) > 0;
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                return accepted;
+            } else if (name.equals("*")) {
+                any = accepted;
+            }
+        }
+        return any;
+    }
+
+    private static float qualityOf(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
             }
+        }
+        return 1;
+    }
+
+    /**
+     * Sends the (whole or the requested ranges of the) file from the disk.
+     *
+     * @param file the file or its precompressed sibling
+     * @param contentType the content type of the (uncompressed) file
+     * @param gzipped the file is the precompressed sibling
+     * @param vary a precompressed variant exists
+     */
+    private void sendFile(ChannelHandlerContext ctx, FileRequest req, File file, String contentType, boolean gzipped, boolean vary) throws IOException {
+        RequestHeader header = req.getHeader();
+        long lastModified = file.lastModified();
+        long fileLength = file.length();
+        //strong as long as the file is not changed twice within a millisecond without changing its length
+        String etag = "\"" + Long.toHexString(fileLength) + "-" + Long.toHexString(lastModified) + (gzipped ? "-gz\"" : "\"");
+        if (isNotModified(header, etag, lastModified)) {
+            sendNotModified(ctx, header, etag, vary);
+            return;
+        }
+        ByteRanges ranges = requestedRanges(header, etag, lastModified, fileLength);
+        if (ranges != null && !ranges.isSatisfiable()) {
+            sendRangeNotSatisfiable(ctx, header, fileLength);
+            return;
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
         } catch (FileNotFoundException ex) {
-          HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, ex.getMessage());
-           return;
+            HttpResponseHandler.sendError(ctx, HttpResponseStatus.NOT_FOUND, ex.getMessage(), header);
+            return;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+        if (ranges == null) {
+            HttpUtil.setContentLength(response, fileLength);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        } else if (!ranges.isMultipart()) {
+            long[] range = ranges.getRanges().get(0);
+            HttpUtil.setContentLength(response, ByteRanges.length(range));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.contentRange(range));
+        } else {
+            HttpUtil.setContentLength(response, ranges.multipartLength(contentType));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, ranges.multipartContentType());
+        }
+        setRepresentationHeaders(response, etag, gzipped, vary);
+        setDateAndCacheHeaders(response, HttpDates.format(lastModified));
+        HttpResponseHandler.setStreamId(response, header);
+        if (isKeepAlive(header)) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         }
-        //don't send apps
-        //if ("application/octet-stream".equals(contentType)) {
-        //    file = new File(sanitizeUri("/index.html"));
-        //}
+        // Write the initial line and the header.
+        ctx.write(response);
+        // Write the content.
+        //zero-copy only if the bytes are going straight to the socket
+        boolean zeroCopy = ctx.pipeline().get(SslHandler.class) == null && ctx.pipeline().get(Http2ConnectionHandler.class) == null;
+        if (ranges == null || !ranges.isMultipart()) {
+            long offset = ranges == null ? 0 : ranges.getRanges().get(0)[0];
+            long length = ranges == null ? fileLength : ByteRanges.length(ranges.getRanges().get(0));
+            if (zeroCopy) {
+                ctx.write(new DefaultFileRegion(raf.getChannel(), offset, length), ctx.newProgressivePromise());
+                // Write the end marker.
+                ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            } else {
+                // HttpChunkedInput will write the end marker (LastHttpContent) for us.
+                ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, offset, length, 8192)), ctx.newProgressivePromise());
+            }
+        } else if (zeroCopy) {
+            //each region opens (and closes) the file on its own
+            raf.close();
+            for (long[] range : ranges.getRanges()) {
+                ctx.write(new DefaultHttpContent(ranges.partHeader(range, contentType)));
+                ctx.write(new DefaultFileRegion(file, range[0], ByteRanges.length(range)));
+            }
+            ctx.writeAndFlush(new DefaultLastHttpContent(ranges.closingDelimiter()));
+        } else {
+            raf.close();
+            List<Object> parts = new ArrayList<>(ranges.getRanges().size() * 2 + 1);
+            for (long[] range : ranges.getRanges()) {
+                parts.add(ranges.partHeader(range, contentType));
+                //a chunked file seeks only once: one file per range
+                parts.add(new ChunkedFile(new RandomAccessFile(file, "r"), range[0], ByteRanges.length(range), 8192));
+            }
+            parts.add(ranges.closingDelimiter());
+            ctx.writeAndFlush(new HttpChunkedInput(new ByteRanges.Sequence(parts)), ctx.newProgressivePromise());
+        }
+    }
 
-      // Cache Validation
-      if (file.exists()){
-        Optional<String> ifModifiedSinceOpt = req.getHeader().getProperty(HttpHeaderNames.IF_MODIFIED_SINCE.toString());
+    /**
+     * Cache validation (RFC 7232): the If-None-Match header is preferred over
+     * the If-Modified-Since.
+     */
+    private boolean isNotModified(RequestHeader header, String etag, long lastModified) {
+        Optional<String> ifNoneMatchOpt = header.getProperty(HttpHeaderNames.IF_NONE_MATCH.toString());
+        if (ifNoneMatchOpt.isPresent() && !Util.isEmpty(ifNoneMatchOpt.get())) {
+            return matchesIfNoneMatch(ifNoneMatchOpt.get(), etag);
+        }
+        Optional<String> ifModifiedSinceOpt = header.getProperty(HttpHeaderNames.IF_MODIFIED_SINCE.toString());
         if (ifModifiedSinceOpt.isPresent() && !Util.isEmpty(ifModifiedSinceOpt.get())) {
-           SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-           Date ifModifiedSinceDate = dateFormatter.parse(ifModifiedSinceOpt.get());
-
-           // Only compare up to the second because the datetime format we send to the client
-           // does not have milliseconds
-           long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-           long fileLastModifiedSeconds = file.lastModified() / 1000;
-           if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-              sendNotModified(ctx);
-              return;
-           }
-        }
-      }
-      
-      long fileLength = raf.length();
-
-      HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-      HttpUtil.setContentLength(response, fileLength);
-      setContentTypeHeader(response, file);
-      setDateAndCacheHeaders(response, file);
-      if (isKeepAlive(req.getHeader())) {
-         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderNames.CONNECTION);
-      }
-      // Write the initial line and the header.
-      ctx.write(response);
-      // Write the content.
-      ChannelFuture sendFileFuture;
-      ChannelFuture lastContentFuture;
-      if (ctx.pipeline().get(SslHandler.class) == null) {
-         sendFileFuture = ctx.write(new DefaultFileRegion(raf.getChannel(), 0, fileLength), ctx.newProgressivePromise());
-         // Write the end marker.
-         lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
-      } else {
-         sendFileFuture = ctx.write(new HttpChunkedInput(new ChunkedFile(raf, 0, fileLength, 8192)),
-                         ctx.newProgressivePromise());
-         // HttpChunkedInput will write the end marker (LastHttpContent) for us.
-         lastContentFuture = sendFileFuture;
-     }
-      
+            long ifModifiedSince = HttpDates.parse(ifModifiedSinceOpt.get());
+            // Only compare up to the second because the datetime format we send to the client
+            // does not have milliseconds
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        return false;
     }
-    
+
+    /**
+     * Also used by the other handlers answering conditional requests with an
+     * ETag.
+     *
+     * @param ifNoneMatch the value of the If-None-Match header
+     * @param etag the current entity tag
+     * @return true if the header lists the etag (weak comparison) or *
+     */
+    public static boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+        if (Util.isEmpty(ifNoneMatch)) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            //weak comparison
+            if ("*".equals(tag) || etag.equals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the ranges of the Range header or null if the whole file is sent
+     * (no or invalid Range, or an If-Range not matching the current version)
+     */
+    private ByteRanges requestedRanges(RequestHeader header, String etag, long lastModified, long length) {
+        Optional<String> rangeOpt = header.getProperty(HttpHeaderNames.RANGE.toString());
+        if (!rangeOpt.isPresent() || Util.isEmpty(rangeOpt.get())) {
+            return null;
+        }
+        Optional<String> ifRangeOpt = header.getProperty(HttpHeaderNames.IF_RANGE.toString());
+        if (ifRangeOpt.isPresent() && !Util.isEmpty(ifRangeOpt.get())) {
+            String ifRange = ifRangeOpt.get().trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                //strong comparison: a weak tag never matches
+                if (!ifRange.equals(etag)) {
+                    return null;
+                }
+            } else {
+                long date = HttpDates.parse(ifRange);
+                if (date < 0 || date / 1000 != lastModified / 1000) {
+                    return null;
+                }
+            }
+        }
+        return ByteRanges.parse(rangeOpt.get().trim(), length);
+    }
+
+    private void sendRangeNotSatisfiable(ChannelHandlerContext ctx, RequestHeader header, long length) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.headers().set(HttpHeaderNames.CONTENT_RANGE, ByteRanges.unsatisfiedRange(length));
+        HttpUtil.setContentLength(response, 0);
+        setDateHeader(response);
+        HttpResponseHandler.setStreamId(response, header);
+        if (isKeepAlive(header)) {
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         
@@ -260,17 +540,29 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
     }
     
     /**
-     * When file timestamp is the same as what the browser is sending up, send a
-     * "304 Not Modified"
+     * When the cached version of the browser is the current one, send a "304
+     * Not Modified"
      *
      * @param ctx Context
+     * @param header the header of the request
+     * @param etag the current version
+     * @param vary the representation was negotiated by the Accept-Encoding
      */
-    private void sendNotModified(ChannelHandlerContext ctx) {
+    private void sendNotModified(ChannelHandlerContext ctx, RequestHeader header, String etag, boolean vary) {
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
         setDateHeader(response);
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        if (vary) {
+            response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        HttpResponseHandler.setStreamId(response, header);
 
-        // Close the connection as soon as the error message is sent.
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        if (isKeepAlive(header)) {
+            ctx.writeAndFlush(response);
+        } else {
+            // Close the connection as soon as the message is sent.
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
     }
 
     /**
@@ -279,11 +571,7 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
      * @param response HTTP response
      */
     public void setDateHeader(FullHttpResponse response) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-        Calendar time = new GregorianCalendar();
-        response.headers().set(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
+        response.headers().set(HttpHeaderNames.DATE, HttpDates.format(System.currentTimeMillis()));
     }
 
     /**
@@ -303,19 +591,24 @@ public final class FileRequestHandler extends SimpleChannelInboundHandler<FileRe
      * @param fileToCache file to extract content type
      */
     public void setDateAndCacheHeaders(HttpResponse response, File fileToCache) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+        setDateAndCacheHeaders(response, HttpDates.format(fileToCache.lastModified()));
+    }
 
+    /**
+     * Sets the Date and Cache headers for the HTTP Response
+     *
+     * @param response HTTP response
+     * @param lastModified the formatted Last-Modified header
+     */
+    public void setDateAndCacheHeaders(HttpResponse response, String lastModified) {
         // Date header
-        Calendar time = new GregorianCalendar();
-        response.headers().set(HttpHeaderNames.DATE, dateFormatter.format(time.getTime()));
+        long now = System.currentTimeMillis();
+        response.headers().set(HttpHeaderNames.DATE, HttpDates.format(now));
 
         // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        response.headers().set(HttpHeaderNames.EXPIRES, dateFormatter.format(time.getTime()));
+        response.headers().set(HttpHeaderNames.EXPIRES, HttpDates.format(now + HTTP_CACHE_SECONDS * 1000L));
         response.headers().set(HttpHeaderNames.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-        response.headers().set(
-                HttpHeaderNames.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, lastModified);
     }
 
     private Optional<String> getSanitizedPath(String uri) {
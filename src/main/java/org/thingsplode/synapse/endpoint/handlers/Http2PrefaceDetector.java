@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Decides on a cleartext connection whether the client speaks HTTP/2 with
+ * prior knowledge (the connection starts with the HTTP/2 connection preface)
+ * or HTTP/1.x (which can still be upgraded to h2c). The pipeline is configured
+ * accordingly by the Endpoint, then the detector removes itself and passes the
+ * bytes read so far to the new handlers.
+ *
+ * @author Csaba Tamas
+ */
+public class Http2PrefaceDetector extends ByteToMessageDecoder {
+
+    private static final ByteBuf PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+    private final Consumer<ChannelPipeline> http2Configurator;
+    private final Consumer<ChannelPipeline> http1Configurator;
+
+    /**
+     * @param http2Configurator adds the handlers of an HTTP/2 connection
+     * @param http1Configurator adds the handlers of an HTTP/1.x connection
+     */
+    public Http2PrefaceDetector(Consumer<ChannelPipeline> http2Configurator, Consumer<ChannelPipeline> http1Configurator) {
+        this.http2Configurator = http2Configurator;
+        this.http1Configurator = http1Configurator;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int length = Math.min(in.readableBytes(), PREFACE.readableBytes());
+        if (!ByteBufUtil.equals(PREFACE, PREFACE.readerIndex(), in, in.readerIndex(), length)) {
+            http1Configurator.accept(ctx.pipeline());
+        } else if (length == PREFACE.readableBytes()) {
+            http2Configurator.accept(ctx.pipeline());
+        } else {
+            //wait for the rest of the preface
+            return;
+        }
+        ctx.pipeline().remove(this);
+    }
+}
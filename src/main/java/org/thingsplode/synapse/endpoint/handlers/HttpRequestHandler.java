@@ -21,20 +21,24 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.util.AsciiString;
 import java.io.UnsupportedEncodingException;
-import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.Envelopes;
+import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Response;
 import org.thingsplode.synapse.core.Uri;
 import org.thingsplode.synapse.endpoint.Endpoint;
 import org.thingsplode.synapse.util.Util;
@@ -53,14 +57,32 @@ import static org.thingsplode.synapse.endpoint.handlers.HttpResponseHandler.send
 public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(HttpRequestHandler.class);
+    private static final AsciiString MESSAGE_ID = AsciiString.of(AbstractMessage.PROP_MESSAGE_ID);
     public static final String UPGRADE_TO_WEBSOCKET = "websocket";
     private final String endpointId;
-    private boolean pipelining = false;
-    private final AtomicLong sequence = new AtomicLong(0);
+    private ResponseSequencer sequencer;
+    private final boolean recycleEnvelopes;
 
-    public HttpRequestHandler(String endpointId, boolean pipelining) {
+    /**
+     * @param endpointId
+     * @param sequencer the sequencer of the connection if pipelining is
+     * enabled, otherwise null
+     */
+    public HttpRequestHandler(String endpointId, ResponseSequencer sequencer) {
+        this(endpointId, sequencer, false);
+    }
+
+    /**
+     * @param endpointId
+     * @param sequencer the sequencer of the connection if pipelining is
+     * enabled, otherwise null
+     * @param recycleEnvelopes the requests are taken from the pool of the
+     * {@link Envelopes}
+     */
+    public HttpRequestHandler(String endpointId, ResponseSequencer sequencer, boolean recycleEnvelopes) {
         this.endpointId = endpointId;
-        this.pipelining = pipelining;
+        this.sequencer = sequencer;
+        this.recycleEnvelopes = recycleEnvelopes;
     }
 
     @Override
@@ -70,7 +92,10 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         try {
             // Handle a bad request.
             if (!httpRequest.decoderResult().isSuccess()) {
-                HttpResponseHandler.sendError(ctx, HttpResponseStatus.BAD_REQUEST, "Could not decode request.", httpRequest);
+                Request.RequestHeader header = new Request.RequestHeader(null, null, null);
+                header.setKeepalive(HttpUtil.isKeepAlive(httpRequest));
+                sequence(ctx, header);
+                sendSequencedError(ctx, httpRequest, header, HttpResponseStatus.BAD_REQUEST, "Could not decode request.");
                 return;
             }
 
@@ -79,7 +104,12 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                     || httpRequest.method().equals(HttpMethod.TRACE)
                     || httpRequest.method().equals(HttpMethod.CONNECT)
                     || httpRequest.method().equals(HttpMethod.OPTIONS)) {
-                HttpResponseHandler.sendError(ctx, HttpResponseStatus.FORBIDDEN, "Method forbidden (The following are not supported: HEAD, PATCH, TRACE, CONNECT, OPTIONS).", httpRequest);
+                String errorMsg = "Method forbidden (The following are not supported: HEAD, PATCH, TRACE, CONNECT, OPTIONS).";
+                Request.RequestHeader header = new Request.RequestHeader(null, null, null);
+                if (!prepareHeader(ctx, httpRequest, header)) {
+                    return;
+                }
+                sendSequencedError(ctx, httpRequest, header, HttpResponseStatus.FORBIDDEN, errorMsg);
                 return;
             }
 
@@ -91,11 +121,20 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 return;
             } else {
                 //case simple http request
-                Request request = new Request(prepareHeader(ctx, httpRequest));
+                Request request = recycleEnvelopes ? Envelopes.newRequest() : new Request(new Request.RequestHeader(null, null, null));
+                if (!prepareHeader(ctx, httpRequest, request.getHeader())) {
+                    Envelopes.release(request);
+                    return;
+                }
 
-                //no information about the object type / it will be processed in a later stage
-                //todo: with requestbodytype header value early deserialization would be possible, however not beneficial in routing cases
-                request.setBody(httpRequest.content());
+                if (httpRequest instanceof RequestBodyDecoder.StreamedRequest) {
+                    //the body is still being received, the service reads it from the stream
+                    request.setBody(((RequestBodyDecoder.StreamedRequest) httpRequest).getBody());
+                } else {
+                    //no information about the object type / it will be processed in a later stage
+                    //todo: with requestbodytype header value early deserialization would be possible, however not beneficial in routing cases
+                    request.setBody(httpRequest.content());
+                }
                 ctx.fireChannelRead(request);
             }
         } catch (Exception ex) {
@@ -104,6 +143,27 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            //h2c upgrade: the streams are multiplexed by http/2, the responses must not wait for each other
+            if (ctx.pipeline().get(Endpoint.RESPONSE_SEQUENCER) != null) {
+                ctx.pipeline().remove(Endpoint.RESPONSE_SEQUENCER);
+            }
+            //the compressor pairs the responses with the requests in their order
+            if (ctx.pipeline().get(Endpoint.HTTP_COMPRESSOR) != null) {
+                ctx.pipeline().remove(Endpoint.HTTP_COMPRESSOR);
+            }
+            sequencer = null;
+            FullHttpRequest upgradeRequest = ((HttpServerUpgradeHandler.UpgradeEvent) evt).upgradeRequest();
+            //the upgrade request is answered on the first stream; releasing the request releases the event too
+            upgradeRequest.headers().setInt(Request.RequestHeader.STREAM_ID, Http2CodecUtil.HTTP_UPGRADE_STREAM_ID);
+            channelRead(ctx, upgradeRequest);
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
     private void upgradeToWebsocket(ChannelHandlerContext ctx, FullHttpRequest httpRequest) {
 
         String wsUrl = "ws://" + httpRequest.headers().get(HttpHeaderNames.HOST) + "/" + endpointId;
@@ -121,9 +181,20 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                         ctx.pipeline().replace(Endpoint.HTTP_REQUEST_HANDLER, Endpoint.WS_REQUEST_HANDLER, new WebsocketRequestHandler(handshaker));
                         ctx.pipeline().replace(Endpoint.HTTP_RESPONSE_HANDLER, Endpoint.WS_RESPONSE_HANDLER, new WebsocketResponseHandler());
                         ctx.pipeline().addAfter(Endpoint.WS_RESPONSE_HANDLER, Endpoint.WS_COMMAND_HANDLER, new Command2WsEncoder());
+                        if (ctx.pipeline().get(Endpoint.RESPONSE_SEQUENCER) != null) {
+                            ctx.pipeline().remove(Endpoint.RESPONSE_SEQUENCER);
+                        }
+                        if (ctx.pipeline().get(Endpoint.HTTP_COMPRESSOR) != null) {
+                            ctx.pipeline().remove(Endpoint.HTTP_COMPRESSOR);
+                        }
                         if (ctx.pipeline().get(Endpoint.RESPONSE_INTROSPECTOR) != null) {
                             ctx.pipeline().addAfter(Endpoint.RESPONSE_INTROSPECTOR, Endpoint.WS_REQUEST_INTROSPECTOR, new WebsocketIntrospector());
                         }
+                        IdleConnectionHandler idleHandler = ctx.pipeline().get(IdleConnectionHandler.class);
+                        if (idleHandler != null) {
+                            //the idle clients are pinged from now on
+                            idleHandler.transportChanged(Endpoint.Transport.WEBSOCKET);
+                        }
                     } else {
                         String msg = "Dispatching upgrade acknowledgement was not successfull due to ";
                         if (future.cause() != null) {
@@ -137,33 +208,65 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
 
-    private Request.RequestHeader prepareHeader(ChannelHandlerContext ctx, FullHttpRequest httpRequest) {
-        Request.RequestHeader header = null;
-        Optional<Entry<String, String>> msgIdOpt = httpRequest.headers().entries().stream().filter(e -> e.getKey().equalsIgnoreCase(AbstractMessage.PROP_MESSAGE_ID)).findFirst();
-        String msgId = msgIdOpt.isPresent() ? msgIdOpt.get().getValue() : null;
+    /**
+     * @return false if the request cannot be decoded (the error is sent)
+     */
+    private boolean prepareHeader(ChannelHandlerContext ctx, FullHttpRequest httpRequest, Request.RequestHeader header) {
+        header.setMsgId(httpRequest.headers().get(MESSAGE_ID));
+        if (HttpUtil.isKeepAlive(httpRequest)) {
+            header.setKeepalive(true);
+        } else {
+            header.setKeepalive(false);
+        }
+        //before the uri is decoded: a malformed request keeps its place in the order of the responses too
+        sequence(ctx, header);
+        RequestBodyDecoder.Routed routed = RequestBodyDecoder.routed(ctx.channel(), httpRequest);
         try {
-            header = new Request.RequestHeader(msgId, new Uri(httpRequest.uri()), RequestMethod.fromHttpMethod(httpRequest.method()));
-            header.addAllProperties(httpRequest.headers());
-            if (HttpHeaders.isKeepAlive(httpRequest)) {
-                header.setKeepalive(true);
-            } else {
-                header.setKeepalive(false);
-            }
-            if (pipelining) {
-                header.addProperty(Request.RequestHeader.MSG_SEQ, String.valueOf(sequence.getAndIncrement()));
-            }
-            header.addProperty(AbstractMessage.PROP_RCV_TRANSPORT, AbstractMessage.PROP_HTTP_TRANSPORT);
+            header.setUri(routed != null ? routed.uri : new Uri(httpRequest.uri()));
         } catch (UnsupportedEncodingException ex) {
             logger.error(ex.getMessage(), ex);
-            HttpResponseHandler.sendError(ctx, HttpResponseStatus.BAD_REQUEST, ex.getClass().getSimpleName() + ": " + ex.getMessage(), httpRequest);
+            sendSequencedError(ctx, httpRequest, header, HttpResponseStatus.BAD_REQUEST, ex.getClass().getSimpleName() + ": " + ex.getMessage());
+            return false;
+        }
+        header.setMethod(RequestMethod.fromHttpMethod(httpRequest.method()));
+        if (routed != null) {
+            //not routed again by the request handler
+            header.setRoute(routed.match);
+        }
+        //no copy: the properties are looked up in the http headers
+        header.setTransportHeaders(httpRequest.headers());
+        header.addProperty(AbstractMessage.PROP_RCV_TRANSPORT, AbstractMessage.PROP_HTTP_TRANSPORT);
+        return true;
+    }
+
+    private void sequence(ChannelHandlerContext ctx, Request.RequestHeader header) {
+        if (sequencer != null) {
+            header.addProperty(Request.RequestHeader.MSG_SEQ, String.valueOf(sequencer.nextSequence(ctx)));
+        }
+    }
+
+    /**
+     * Sends an error in the name of the request. When pipelining, the error
+     * is sequenced as a {@link Response} so that it waits for the responses of
+     * the previous requests.
+     */
+    private void sendSequencedError(ChannelHandlerContext ctx, FullHttpRequest httpRequest, Request.RequestHeader header, HttpResponseStatus status, String errorMsg) {
+        Optional<String> sequence = header.getProperty(Request.RequestHeader.MSG_SEQ);
+        if (sequence.isPresent()) {
+            Response rsp = new Response(new Response.ResponseHeader(header, status, MediaType.TEXT_PLAIN), errorMsg);
+            rsp.getHeader().addProperty(Request.RequestHeader.MSG_SEQ, sequence.get());
+            ctx.fireChannelRead(rsp);
+        } else {
+            HttpResponseHandler.sendError(ctx, status, errorMsg, httpRequest);
         }
-        return header;
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         logger.error("Error while processing HTTP request: " + cause.getMessage(), cause);
-        sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+        if (ctx.channel().isActive()) {
+            sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+        }
     }
 
 }
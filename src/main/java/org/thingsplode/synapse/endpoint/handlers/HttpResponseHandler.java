@@ -23,22 +23,29 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.util.CharsetUtil;
+import java.util.ArrayList;
 import java.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.Envelopes;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Response;
 import org.thingsplode.synapse.core.EmptyBody;
 import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.StreamingBody;
 import org.thingsplode.synapse.serializers.SerializationService;
 import org.thingsplode.synapse.serializers.SynapseSerializer;
 
@@ -49,7 +56,11 @@ import org.thingsplode.synapse.serializers.SynapseSerializer;
  * This handler:
  * <ul>
  * <li> will convert the message body object into a serialized message format
- * (eg. Json);
+ * (eg. Json), written straight into a pooled buffer of the channel;
+ * <li> send a {@link ByteBuf} body as it is (already rendered by the service,
+ * eg. a cached document);
+ * <li> write a {@link StreamingBody} with chunked transfer encoding, batch by
+ * batch while the channel is writable;
  * <li> handle keepalive status
  * <li> convert Response Message Properties to HTTP headers
  * <li> prepare additional HTTP specific header values
@@ -63,27 +74,91 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<Response> {
     private static final Logger logger = LoggerFactory.getLogger(HttpResponseHandler.class);
     public static String SEC_WEBSOCKET_KEY_SALT = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
     private final SerializationService serializationService = SerializationService.getInstance();
+    private final BodySizeEstimator bodySizeEstimator = BodySizeEstimator.BODIES;
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Response rsp) throws Exception {
+        try {
+            writeResponse(ctx, rsp);
+        } finally {
+            //everything is copied into the http response (a streaming body is owned by the chunked input)
+            Envelopes.release(rsp);
+        }
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, Response rsp) throws Exception {
         MediaType mt = rsp.getHeader().getContentType();
         SynapseSerializer<String> serializer = serializationService.getSerializer(mt);
+        if (rsp.getBody() instanceof StreamingBody) {
+            writeStreamingResponse(ctx, rsp, mt, serializer);
+            return;
+        }
 
-        if (rsp.getBody() != null) {
-            rsp.getHeader().addProperty(AbstractMessage.PROP_BODY_TYPE, rsp.getBody().getClass().getCanonicalName());
+        ByteBuf payload;
+        if (isBodiless(rsp.getHeader().getResponseCode())) {
+            if (rsp.getBody() instanceof ByteBuf) {
+                ((ByteBuf) rsp.getBody()).release();
+            }
+            payload = Unpooled.EMPTY_BUFFER;
+        } else if (rsp.getBody() instanceof ByteBuf) {
+            //already rendered by the service (eg. the swagger spec): owned by the http response from now on
+            payload = (ByteBuf) rsp.getBody();
+        } else {
+            if (rsp.getBody() != null) {
+                rsp.getHeader().addProperty(AbstractMessage.PROP_BODY_TYPE, rsp.getBody().getClass().getCanonicalName());
+            }
+            payload = bodySizeEstimator.marshall(ctx, serializer, rsp.getBody() != null ? rsp.getBody() : new EmptyBody());
         }
-        byte[] payload = serializer.marshall(rsp.getBody() != null ? rsp.getBody() : new EmptyBody());
         FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, rsp.getHeader().getResponseCode(), Unpooled.wrappedBuffer(payload));
+                HttpVersion.HTTP_1_1, rsp.getHeader().getResponseCode(), payload);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, mt != null ? mt.getName() : "application/json; charset=UTF-8");
         decorate(rsp, response);
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        if (!isBodiless(response.status())) {
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        }
 
         writeResponseWithKeepaliveHandling(ctx, response, rsp.getHeader().isKeepAlive());
     }
 
+    /**
+     * @param status
+     * @return true if the response must not have a body
+     */
+    private static boolean isBodiless(HttpResponseStatus status) {
+        return status.code() == HttpResponseStatus.NOT_MODIFIED.code() || status.code() == HttpResponseStatus.NO_CONTENT.code();
+    }
+
+    private void writeStreamingResponse(ChannelHandlerContext ctx, Response rsp, MediaType mt, SynapseSerializer<String> serializer) {
+        StreamingBody body = (StreamingBody) rsp.getBody();
+        //deserialized by the clients as a list
+        rsp.getHeader().addProperty(AbstractMessage.PROP_BODY_TYPE, ArrayList.class.getCanonicalName());
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, rsp.getHeader().getResponseCode());
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, mt != null ? mt.getName() : "application/json; charset=UTF-8");
+        decorate(rsp, response);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        boolean close = !rsp.getHeader().isKeepAlive() && !response.headers().contains(Request.RequestHeader.STREAM_ID);
+        if (!close && !response.headers().contains(HttpHeaderNames.CONNECTION)) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        //the chunks are pulled by the chunked write handler (the last chunk is written by the HttpChunkedInput)
+        ChannelFuture future = ctx.writeAndFlush(new HttpChunkedInput(new StreamingBodyInput(serializer, body)));
+        future.addListener((ChannelFutureListener) (ChannelFuture f) -> {
+            if (!f.isSuccess()) {
+                //the status line is already sent, the client can only learn about the failure from the aborted response
+                logger.error("Streaming the response body failed, closing the connection: " + (f.cause() != null ? f.cause().getMessage() : "unknown reason."), f.cause());
+                body.close();
+                ctx.channel().close();
+            } else if (close) {
+                logger.trace("Closing the Connection@Endpoint due to keep-alive: false.");
+                ctx.channel().close();
+            }
+        });
+    }
+
     private static ChannelFuture writeResponseWithKeepaliveHandling(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepalive) {
-        if (!keepalive) {
+        //an http/2 connection is shared by the streams, it is never closed for one response
+        if (!keepalive && !response.headers().contains(Request.RequestHeader.STREAM_ID)) {
             // If keep-alive is off, close the connection once the content is fully written.
             logger.trace("Closing the Connection@Endpoint due to keep-alive: false.");
             return ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
@@ -96,10 +171,9 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<Response> {
     }
 
     private void decorate(Response rsp, HttpResponse httpResponse) {
-        rsp.getHeader().getProperties().keySet().stream().forEach(k -> {
-            Optional<String> headerValueOpt = rsp.getHeader().getProperty(k);
-            if (headerValueOpt.isPresent()) {
-                httpResponse.headers().set(k, headerValueOpt.get());
+        rsp.getHeader().forEachProperty((k, v) -> {
+            if (v != null) {
+                httpResponse.headers().set(k, v);
             }
         });
         if (rsp.getHeader().getMsgId() != null) {
@@ -117,7 +191,7 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<Response> {
     }
 
     public static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String errorMsg) {
-        sendError(ctx, status, errorMsg, null);
+        sendError(ctx, status, errorMsg, (HttpRequest) null);
     }
 
     public static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String errorMsg, HttpRequest request) {
@@ -128,7 +202,35 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<Response> {
         if (request != null && request.headers().contains(AbstractMessage.PROP_MESSAGE_ID)) {
             response.headers().set(AbstractMessage.PROP_CORRELATION_ID, request.headers().get(AbstractMessage.PROP_MESSAGE_ID));
         }
-        writeResponseWithKeepaliveHandling(ctx, response, request != null ? HttpHeaders.isKeepAlive(request) : false).addListener((ChannelFutureListener) (ChannelFuture future) -> {
+        if (request != null && request.headers().contains(Request.RequestHeader.STREAM_ID)) {
+            response.headers().set(Request.RequestHeader.STREAM_ID, request.headers().get(Request.RequestHeader.STREAM_ID));
+        }
+        writeError(ctx, response, request != null ? HttpHeaders.isKeepAlive(request) : false);
+    }
+
+    /**
+     * Sends an error in the name of an already decoded request (eg. file
+     * request).
+     *
+     * @param ctx
+     * @param status
+     * @param errorMsg
+     * @param header the header of the request
+     */
+    public static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String errorMsg, Request.RequestHeader header) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + errorMsg + "\r\n", CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        if (header.getMsgId() != null) {
+            response.headers().set(AbstractMessage.PROP_CORRELATION_ID, header.getMsgId());
+        }
+        setStreamId(response, header);
+        writeError(ctx, response, header.isKeepalive());
+    }
+
+    private static void writeError(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepalive) {
+        writeResponseWithKeepaliveHandling(ctx, response, keepalive).addListener((ChannelFutureListener) (ChannelFuture future) -> {
             Throwable th = future.cause();
             if (th != null) {
                 logger.error("Sending response from Endpoint was not successful: " + th.getMessage(), th);
@@ -149,7 +251,21 @@ public class HttpResponseHandler extends SimpleChannelInboundHandler<Response> {
             response.headers().set(AbstractMessage.PROP_CORRELATION_ID, header.getMsgId());
         }
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        setStreamId(response, header);
         writeResponseWithKeepaliveHandling(ctx, response, header != null ? header.isKeepalive() : false);
     }
 
+    /**
+     * Over http/2 the response must carry the stream of the request.
+     *
+     * @param response
+     * @param header the header of the request
+     */
+    static void setStreamId(HttpResponse response, Request.RequestHeader header) {
+        Optional<String> streamId = header != null ? header.getProperty(Request.RequestHeader.STREAM_ID) : Optional.empty();
+        if (streamId.isPresent()) {
+            response.headers().set(Request.RequestHeader.STREAM_ID, streamId.get());
+        }
+    }
+
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.timeout.IdleState;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.ConnectionContext;
+import org.thingsplode.synapse.endpoint.Endpoint.Transport;
+import static org.thingsplode.synapse.endpoint.handlers.RequestHandler.CONNECTION_CTX_ATTR;
+
+/**
+ * Keeps the {@link ConnectionContext#getLastSeen()} of the connection up to
+ * date and reaps the connection when it was idle for longer than the limits of
+ * its transport (see {@link IdleConnectionReaper}). The idle states are only
+ * checked when the earliest limit may expire (like the
+ * {@link io.netty.handler.timeout.IdleStateHandler}), so reading and writing
+ * only records a timestamp.
+ * <p>
+ * An idle websocket client is pinged; if nothing is received until the next
+ * check, the connection is closed.
+ *
+ * @author Csaba Tamas
+ */
+public class IdleConnectionHandler extends ChannelDuplexHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdleConnectionHandler.class);
+    private final IdleConnectionReaper reaper;
+    //confined to the event loop
+    private ChannelHandlerContext ctx;
+    private Transport transport;
+    private IdleConnectionReaper.Limits limits;
+    private ConnectionContext connection = null;
+    private long lastRead;
+    private long lastWrite;
+    private boolean pingSent = false;
+    private Timeout expiry = null;
+
+    IdleConnectionHandler(IdleConnectionReaper reaper, Transport transport) {
+        this.reaper = reaper;
+        this.transport = transport;
+        this.limits = reaper.limitsOf(transport);
+    }
+
+    /**
+     * Applies the limits of the new transport (eg. the connection is upgraded
+     * to websocket or subscribed to Server-Sent Events). Called on the event
+     * loop.
+     *
+     * @param transport
+     */
+    public void transportChanged(Transport transport) {
+        this.transport = transport;
+        this.limits = reaper.limitsOf(transport);
+        this.pingSent = false;
+        cancelExpiry();
+        scheduleExpiry(limits != null ? limits.shortest() : Long.MAX_VALUE);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        lastRead = lastWrite = System.currentTimeMillis();
+        if (ctx.channel().isActive()) {
+            //added by the protocol negotiation after the connection became active
+            scheduleExpiry(limits != null ? limits.shortest() : Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        cancelExpiry();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (expiry == null) {
+            scheduleExpiry(limits != null ? limits.shortest() : Long.MAX_VALUE);
+        }
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancelExpiry();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (connection == null) {
+            //set by the request handler when the connection becomes active
+            connection = ctx.channel().attr(CONNECTION_CTX_ATTR).get();
+        }
+        if (connection != null) {
+            connection.updateLastSeen();
+            lastRead = connection.getLastSeen();
+        } else {
+            lastRead = System.currentTimeMillis();
+        }
+        pingSent = false;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWrite = System.currentTimeMillis();
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            //h2c upgrade
+            transportChanged(Transport.HTTP2);
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * Checks the idle states of the connection and schedules the next check.
+     *
+     * @param now
+     */
+    void check(long now) {
+        expiry = null;
+        if (limits == null || limits.isDisabled() || !ctx.channel().isActive()) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        IdleState idleState = null;
+        if (limits.getReaderIdle() > 0) {
+            long left = limits.getReaderIdle() - (now - lastRead);
+            if (left <= 0) {
+                idleState = IdleState.READER_IDLE;
+                left = limits.getReaderIdle();
+            }
+            next = Math.min(next, left);
+        }
+        if (limits.getWriterIdle() > 0) {
+            long left = limits.getWriterIdle() - (now - lastWrite);
+            if (left <= 0) {
+                idleState = idleState == null ? IdleState.WRITER_IDLE : idleState;
+                left = limits.getWriterIdle();
+            }
+            next = Math.min(next, left);
+        }
+        if (limits.getAllIdle() > 0) {
+            long left = limits.getAllIdle() - (now - Math.max(lastRead, lastWrite));
+            if (left <= 0) {
+                idleState = idleState == null ? IdleState.ALL_IDLE : idleState;
+                left = limits.getAllIdle();
+            }
+            next = Math.min(next, left);
+        }
+        if (idleState == null || idle(idleState, now)) {
+            scheduleExpiry(next);
+        }
+    }
+
+    /**
+     * @param idleState
+     * @param now
+     * @return false if the connection is closed
+     */
+    private boolean idle(IdleState idleState, long now) {
+        if (transport == Transport.WEBSOCKET && !pingSent) {
+            //the client must answer with a pong (or anything else) until the next check
+            pingSent = true;
+            lastWrite = now;
+            reaper.pingSent();
+            ctx.writeAndFlush(new PingWebSocketFrame());
+            return true;
+        }
+        reaper.connectionReaped();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Closing the " + (pingSent ? "unresponsive " : "idle (" + idleState + ") ") + transport + " connection of " + ctx.channel().remoteAddress() + ".");
+        }
+        ctx.close();
+        return false;
+    }
+
+    private void scheduleExpiry(long delayMillis) {
+        if (delayMillis == Long.MAX_VALUE) {
+            return;
+        }
+        expiry = reaper.schedule(timeout -> {
+            //the idle states are checked and changed on the event loop only
+            ctx.executor().execute(() -> {
+                if (expiry == timeout) {
+                    check(System.currentTimeMillis());
+                }
+            });
+        }, delayMillis);
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.thingsplode.synapse.endpoint.Endpoint.Transport;
+
+/**
+ * Closes the connections which were idle for longer than the limits of their
+ * transport; the websocket clients are pinged first and only closed if they
+ * do not answer (dead peers). The expiry of the connections is scheduled on
+ * one hashed timing wheel (instead of a scheduled task on the event loop per
+ * connection, or scanning the connections), so the idle connections cost a
+ * bucket entry and the active ones nothing but a timestamp update.
+ * <p>
+ * The Server-Sent Events subscribers are never reaped: they do not send
+ * anything after the subscription.
+ *
+ * @author Csaba Tamas
+ */
+public class IdleConnectionReaper {
+
+    private static final long TICK_MILLIS = 500;
+    private static final int TICKS_PER_WHEEL = 512;
+    private final Map<Transport, Limits> limits;
+    private final HashedWheelTimer timer;
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder reapedConnections = new LongAdder();
+
+    /**
+     * @param limits the idle limits per transport; the connections of the
+     * missing transports are never reaped
+     */
+    public IdleConnectionReaper(Map<Transport, Limits> limits) {
+        this.limits = limits.isEmpty() ? new EnumMap<>(Transport.class) : new EnumMap<>(limits);
+        this.limits.remove(Transport.SSE);
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("idle-connection-reaper", true), TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param transport the transport the connection starts with
+     * @return a new handler for one connection
+     */
+    public IdleConnectionHandler newHandler(Transport transport) {
+        return new IdleConnectionHandler(this, transport);
+    }
+
+    Limits limitsOf(Transport transport) {
+        return limits.get(transport);
+    }
+
+    Timeout schedule(TimerTask task, long delayMillis) {
+        return timer.newTimeout(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void pingSent() {
+        pingsSent.increment();
+    }
+
+    void connectionReaped() {
+        reapedConnections.increment();
+    }
+
+    /**
+     * @return the number of the pings sent to the idle websocket clients
+     */
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    /**
+     * @return the number of the connections closed because they were idle
+     */
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    /**
+     * Cancels the expiry of all the connections.
+     */
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * The idle limits of a transport in milliseconds (0: no limit), with the
+     * same meaning as the ones of the
+     * {@link io.netty.handler.timeout.IdleStateHandler}.
+     */
+    public static final class Limits {
+
+        private final long readerIdle;
+        private final long writerIdle;
+        private final long allIdle;
+
+        /**
+         * @param readerIdle nothing was received for this long
+         * @param writerIdle nothing was sent for this long
+         * @param allIdle nothing was received or sent for this long
+         * @param unit
+         */
+        public Limits(long readerIdle, long writerIdle, long allIdle, TimeUnit unit) {
+            if (readerIdle < 0 || writerIdle < 0 || allIdle < 0) {
+                throw new IllegalArgumentException("The idle limits cannot be negative.");
+            }
+            this.readerIdle = unit.toMillis(readerIdle);
+            this.writerIdle = unit.toMillis(writerIdle);
+            this.allIdle = unit.toMillis(allIdle);
+        }
+
+        long getReaderIdle() {
+            return readerIdle;
+        }
+
+        long getWriterIdle() {
+            return writerIdle;
+        }
+
+        long getAllIdle() {
+            return allIdle;
+        }
+
+        boolean isDisabled() {
+            return readerIdle == 0 && writerIdle == 0 && allIdle == 0;
+        }
+
+        /**
+         * @return the shortest limit set, {@link Long#MAX_VALUE} if none
+         */
+        long shortest() {
+            long shortest = Long.MAX_VALUE;
+            if (readerIdle > 0) {
+                shortest = readerIdle;
+            }
+            if (writerIdle > 0) {
+                shortest = Math.min(shortest, writerIdle);
+            }
+            if (allIdle > 0) {
+                shortest = Math.min(shortest, allIdle);
+            }
+            return shortest;
+        }
+
+        @Override
+        public String toString() {
+            return "Limits{" + "readerIdle=" + readerIdle + ", writerIdle=" + writerIdle + ", allIdle=" + allIdle + '}';
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * The reading of a connection is suspended for several independent reasons
+ * (a streamed request body not consumed yet, too many pipelined requests, a
+ * full outbound buffer, etc.). Auto read is only switched back on when none
+ * of them holds anymore, so one handler cannot resume the reading suspended
+ * by another.
+ *
+ * @author Csaba Tamas
+ */
+final class ReadThrottle {
+
+    static final int BODY_STREAM = 1;
+    static final int PIPELINE = 1 << 1;
+    static final int OUTBOUND_BUFFER = 1 << 2;
+    static final int PENDING_INVOCATIONS = 1 << 3;
+    private static final AttributeKey<ReadThrottle> THROTTLE_ATTR = AttributeKey.valueOf("read_throttle");
+    private final Channel channel;
+    //guarded by this
+    private int reasons = 0;
+
+    private ReadThrottle(Channel channel) {
+        this.channel = channel;
+    }
+
+    static ReadThrottle of(Channel channel) {
+        Attribute<ReadThrottle> attr = channel.attr(THROTTLE_ATTR);
+        ReadThrottle throttle = attr.get();
+        if (throttle == null) {
+            ReadThrottle created = new ReadThrottle(channel);
+            throttle = attr.setIfAbsent(created);
+            if (throttle == null) {
+                throttle = created;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Thread safe.
+     *
+     * @param reason
+     * @return true if the reading was not suspended for this reason yet
+     */
+    synchronized boolean suspend(int reason) {
+        if ((reasons & reason) != 0) {
+            return false;
+        }
+        reasons |= reason;
+        channel.config().setAutoRead(false);
+        return true;
+    }
+
+    /**
+     * Thread safe.
+     *
+     * @param reason
+     * @return true if the reading was suspended for this reason
+     */
+    synchronized boolean resume(int reason) {
+        if ((reasons & reason) == 0) {
+            return false;
+        }
+        reasons &= ~reason;
+        if (reasons == 0) {
+            //the next read is scheduled on the event loop
+            channel.config().setAutoRead(true);
+        }
+        return true;
+    }
+
+    synchronized boolean isSuspended(int reason) {
+        return (reasons & reason) != 0;
+    }
+}
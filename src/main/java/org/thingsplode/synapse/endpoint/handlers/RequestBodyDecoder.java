@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Uri;
+import org.thingsplode.synapse.endpoint.ServiceRegistry;
+
+/**
+ * Decides on the head of each http request how its body is consumed, before
+ * the body is read:
+ * <ul>
+ * <li>requests addressing a streaming service method (see
+ * {@link org.thingsplode.synapse.core.annotations.RequestBody}) are
+ * dispatched right away with a {@link RequestBodyStream} as body, the chunks
+ * are fed to the stream as they arrive;
+ * <li>requests announcing a body larger than the limit of the method are
+ * answered with 413 (Request Entity Too Large) and the connection is closed;
+ * <li>all the other requests are aggregated by the next handler.
+ * </ul>
+ * One instance per connection, placed in front of the http aggregator.
+ *
+ * @author Csaba Tamas
+ */
+public class RequestBodyDecoder extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestBodyDecoder.class);
+    private static final AttributeKey<Routed> ROUTED = AttributeKey.valueOf("routed_request");
+    private final ServiceRegistry registry;
+    private RequestBodyStream stream = null;
+    private long maxSize = -1;
+    private long received = 0;
+    private boolean discarding = false;
+
+    public RequestBodyDecoder(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest && !(msg instanceof FullHttpMessage)) {
+            readHead(ctx, (HttpRequest) msg);
+        } else if (msg instanceof HttpContent && !(msg instanceof FullHttpMessage)) {
+            readContent(ctx, (HttpContent) msg);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private void readHead(ChannelHandlerContext ctx, HttpRequest head) {
+        received = 0;
+        maxSize = -1;
+        ServiceRegistry.BodySpec spec = hasBody(head) ? lookup(ctx, head) : null;
+        if (spec == null) {
+            ctx.fireChannelRead(head);
+            return;
+        }
+        maxSize = spec.getMaxSize();
+        if (maxSize >= 0 && HttpUtil.getContentLength(head, -1L) > maxSize) {
+            //rejected before a single byte of the body is read
+            reject(ctx, head.uri());
+            return;
+        }
+        if (!spec.isStreamed()) {
+            ctx.fireChannelRead(head);
+            return;
+        }
+        if (HttpUtil.is100ContinueExpected(head)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
+            head.headers().remove(HttpHeaderNames.EXPECT);
+        }
+        stream = new RequestBodyStream(ctx.channel());
+        ctx.fireChannelRead(new StreamedRequest(head, stream));
+    }
+
+    private void readContent(ChannelHandlerContext ctx, HttpContent content) {
+        boolean last = content instanceof LastHttpContent;
+        if (discarding) {
+            content.release();
+            discarding = !last;
+            return;
+        }
+        received += content.content().readableBytes();
+        if (maxSize >= 0 && received > maxSize) {
+            //chunked body without announced length
+            content.release();
+            if (stream != null) {
+                stream.fail(new IOException("The request body exceeds the limit of " + maxSize + " bytes."));
+                stream = null;
+            }
+            reject(ctx, null);
+            return;
+        }
+        if (stream == null) {
+            ctx.fireChannelRead(content);
+            return;
+        }
+        stream.offer(content.content().retain());
+        content.release();
+        if (last) {
+            stream.complete();
+            stream = null;
+        }
+    }
+
+    private void reject(ChannelHandlerContext ctx, String uri) {
+        logger.warn("Request body exceeds the limit of " + maxSize + " bytes" + (uri != null ? " on: " + uri : "") + ", closing the connection.");
+        discarding = true;
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+                Unpooled.copiedBuffer("Failure: The request body exceeds the limit of " + maxSize + " bytes.\r\n", CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        //the rest of the body is not read: the connection cannot be reused
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private static boolean hasBody(HttpRequest head) {
+        return HttpUtil.isTransferEncodingChunked(head) || HttpUtil.getContentLength(head, 0L) > 0;
+    }
+
+    private ServiceRegistry.BodySpec lookup(ChannelHandlerContext ctx, HttpRequest head) {
+        try {
+            Uri uri = new Uri(head.uri());
+            ServiceRegistry.RouteMatch match = registry.match(uri, RequestMethod.fromHttpMethod(head.method()));
+            //parsed and routed once: handed on to the http request handler
+            ctx.channel().attr(ROUTED).set(new Routed(head, uri, match));
+            return match.getBodySpec();
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            //reported by the http request handler
+            return null;
+        }
+    }
+
+    /**
+     * @param channel
+     * @param request the (aggregated or streamed) request
+     * @return the uri and the route of the request if its head was already
+     * matched by the decoder, otherwise null
+     */
+    static Routed routed(Channel channel, HttpRequest request) {
+        Routed routed = channel.hasAttr(ROUTED) ? channel.attr(ROUTED).getAndSet(null) : null;
+        //not the one left by an other request (eg. rejected by the aggregator)
+        return routed != null && routed.method.equals(request.method()) && routed.rawUri.equals(request.uri()) ? routed : null;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (stream != null) {
+            stream.fail(new IOException("The connection is closed before the request body is received."));
+            stream = null;
+        }
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * The parsed uri and the route of the last request head with a body.
+     */
+    static final class Routed {
+
+        private final HttpMethod method;
+        private final String rawUri;
+        final Uri uri;
+        final ServiceRegistry.RouteMatch match;
+
+        Routed(HttpRequest head, Uri uri, ServiceRegistry.RouteMatch match) {
+            this.method = head.method();
+            this.rawUri = head.uri();
+            this.uri = uri;
+            this.match = match;
+        }
+    }
+
+    /**
+     * The head of a streamed request: passed through the aggregator as a
+     * complete request with empty content, the body is read from the stream.
+     */
+    static final class StreamedRequest extends DefaultFullHttpRequest {
+
+        private final RequestBodyStream body;
+
+        StreamedRequest(HttpRequest head, RequestBodyStream body) {
+            super(head.protocolVersion(), head.method(), head.uri(), Unpooled.EMPTY_BUFFER, head.headers(), new DefaultHttpHeaders(false));
+            setDecoderResult(head.decoderResult());
+            this.body = body;
+        }
+
+        RequestBodyStream getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * The body of a streamed http request, handed over to the service while the
+ * chunks are still arriving. The chunks are queued by the
+ * {@link RequestBodyDecoder} on the event loop and read by the service on a
+ * worker thread.
+ * <br>
+ * When more than the high watermark is queued, the reading of the connection
+ * is suspended (autoread is switched off) until the service consumes the
+ * queue below the low watermark, so a slow service holds at most about the
+ * high watermark in memory, regardless of the size of the body.
+ * <br>
+ * Closing the stream (eg. the service completed without reading the whole
+ * body) releases the queued chunks; the rest of the body is discarded as it
+ * arrives.
+ *
+ * @author Csaba Tamas
+ */
+class RequestBodyStream extends InputStream {
+
+    static final int HIGH_WATERMARK = 64 * 1024;
+    static final int LOW_WATERMARK = 16 * 1024;
+    private final Channel channel;
+    //guarded by this
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>();
+    private long queued = 0;
+    private boolean complete = false;
+    private boolean closed = false;
+    private boolean suspended = false;
+    private IOException failure = null;
+
+    RequestBodyStream(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Called on the event loop.
+     *
+     * @param chunk the next part of the body, owned by the stream from now on
+     */
+    synchronized void offer(ByteBuf chunk) {
+        if (closed || failure != null || !chunk.isReadable()) {
+            chunk.release();
+            return;
+        }
+        chunks.add(chunk);
+        queued += chunk.readableBytes();
+        if (!suspended && queued >= HIGH_WATERMARK) {
+            suspended = true;
+            ReadThrottle.of(channel).suspend(ReadThrottle.BODY_STREAM);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The last chunk is received. Called on the event loop.
+     */
+    synchronized void complete() {
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * The body cannot be received completely (eg. the connection is closed or
+     * the body is too large).
+     *
+     * @param cause thrown to the reader of the stream
+     */
+    synchronized void fail(IOException cause) {
+        if (!complete) {
+            failure = cause;
+        }
+        releaseChunks();
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (chunks.isEmpty() && !complete && !closed && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the request body.", ex);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("The request body stream is closed.");
+        }
+        if (chunks.isEmpty()) {
+            return -1;
+        }
+        ByteBuf head = chunks.peek();
+        int n = Math.min(len, head.readableBytes());
+        head.readBytes(b, off, n);
+        if (!head.isReadable()) {
+            chunks.poll().release();
+        }
+        queued -= n;
+        resumeIfDrained();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, queued);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseChunks();
+        notifyAll();
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(ByteBuf::release);
+        chunks.clear();
+        queued = 0;
+        resumeIfDrained();
+    }
+
+    private void resumeIfDrained() {
+        if (suspended && queued <= LOW_WATERMARK) {
+            suspended = false;
+            //thread safe, the next read is scheduled on the event loop
+            ReadThrottle.of(channel).resume(ReadThrottle.BODY_STREAM);
+        }
+    }
+}
@@ -20,20 +20,26 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.AttributeKey;
-import java.nio.charset.Charset;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.AbstractMessage;
 import org.thingsplode.synapse.core.ConnectionContext;
+import org.thingsplode.synapse.core.Envelopes;
 import org.thingsplode.synapse.core.FileRequest;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
 import org.thingsplode.synapse.core.exceptions.MethodNotFoundException;
 import org.thingsplode.synapse.core.exceptions.SynapseException;
+import org.thingsplode.synapse.endpoint.InvocationStrategy;
 import org.thingsplode.synapse.endpoint.ServiceRegistry;
 
 /**
@@ -46,55 +52,205 @@ public class RequestHandler extends SimpleChannelInboundHandler<Request> {
     public static final AttributeKey<ConnectionContext> CONNECTION_CTX_ATTR = AttributeKey.valueOf("connection");
     private final ServiceRegistry registry;
     private final ChannelGroup channelRegistry;
+    private final InvocationStrategy invocationStrategy;
+    private final InvocationStrategy blockingStrategy;
     private final Pattern filePattern = Pattern.compile("\\/(.*)(.\\/)(.*)\\.[a-z]{3}");
+    private BackpressureHandler backpressure = null;
 
     public RequestHandler(ServiceRegistry registry, ChannelGroup channelRegistry) {
+        this(registry, channelRegistry, InvocationStrategy.inline());
+    }
+
+    public RequestHandler(ServiceRegistry registry, ChannelGroup channelRegistry, InvocationStrategy invocationStrategy) {
+        this(registry, channelRegistry, invocationStrategy, null);
+    }
+
+    /**
+     * @param registry
+     * @param channelRegistry
+     * @param invocationStrategy
+     * @param blockingStrategy invokes the services reading a streamed request
+     * body if the invocation strategy is inline (the body is received by the
+     * IO thread, which therefore cannot wait for it); null: the streamed
+     * requests of an inline invocation strategy are rejected
+     */
+    public RequestHandler(ServiceRegistry registry, ChannelGroup channelRegistry, InvocationStrategy invocationStrategy, InvocationStrategy blockingStrategy) {
         this.registry = registry;
         this.channelRegistry = channelRegistry;
+        this.invocationStrategy = invocationStrategy;
+        this.blockingStrategy = blockingStrategy;
         //ctx.channel().attr(ServerRouterHandler.CONNECTION_CTX_ATTR).get();
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Request request) throws Exception {
-        Response response = null;
         boolean fileDownload = filePattern.matcher(request.getHeader().getUri().getPath()).find();
-        if (!fileDownload) {
+        boolean streamed = request.getBody() instanceof RequestBodyStream;
+        if (fileDownload) {
+            if (streamed) {
+                ((RequestBodyStream) request.getBody()).close();
+            }
+            //the header is owned by the file request from now on
+            Envelopes.detach(request);
+            ctx.fireChannelRead(new FileRequest(request.getHeader()));
+        } else if (invocationStrategy.isInline() && !streamed) {
+            invocationStarted(ctx);
+            invoke(ctx, request);
+        } else if (invocationStrategy.isInline() && blockingStrategy == null) {
+            //the stream is closed (the body discarded) when the error is forwarded
+            logger.error("No blocking strategy is configured for the streamed request body on path: " + request.getHeader().getUri().getPath());
+            invocationStarted(ctx);
+            forward(ctx, request, new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.INTERNAL_SERVER_ERROR, MediaType.TEXT_PLAIN), "Streamed request bodies are not supported by the endpoint."));
+        } else {
+            InvocationStrategy strategy = invocationStrategy.isInline() ? blockingStrategy : invocationStrategy;
+            String rootCtx = null;
+            if (strategy.isServiceAware()) {
+                try {
+                    rootCtx = registry.resolveRootContext(request.getHeader());
+                } catch (RuntimeException ex) {
+                    //the default pool invokes it, the routing error is answered by the invocation
+                    logger.debug("Couldn't resolve the root context of path: " + request.getHeader().getUri().getPath(), ex);
+                }
+            }
+            //the http body is owned by the aggregated http request, which is released as soon as this method returns
+            Object body = request.getBody();
+            if (body instanceof ByteBuf) {
+                ((ByteBuf) body).retain();
+            }
+            invocationStarted(ctx);
             try {
-                if (request.getBody() != null && (request.getBody() instanceof ByteBuf)) {
-                    //the body is in unmarshalled
-                    //eg. http case
-                    ByteBuf content = (ByteBuf) request.getBody();
-                    byte[] dst = new byte[content.capacity()];
-                    content.getBytes(0, dst);
-                    String jsonBody = new String(dst, Charset.forName("UTF-8"));
-                    response = registry.invokeWithParsable(request.getHeader(), jsonBody);
-                } else {
-                    //the complete body is unmarshalled already for an object
-                    //eg. websocket case
-                    response = registry.invokeWithObject(request.getHeader(), request.getBody());
+                strategy.execute(rootCtx, () -> {
+                    try {
+                        invoke(ctx, request);
+                    } finally {
+                        if (body instanceof ByteBuf) {
+                            ((ByteBuf) body).release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rex) {
+                if (body instanceof ByteBuf) {
+                    ((ByteBuf) body).release();
                 }
-                //else {
-                //    response = new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.valueOf(HttpStatus.BAD_REQUEST.value()), new MediaType("text/plain; charset=UTF-8")), RequestHandler.class.getSimpleName() + ": Body type not supported.");
-                //}
-            } catch (MethodNotFoundException mex) {
-                //simple listing, no stack trace (normal issue)
-                logger.warn("Couldn't process request due to " + mex.getClass().getSimpleName() + " with message: " + mex.getMessage());
-                response = new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.valueOf(mex.getResponseStatus().value()), MediaType.TEXT_PLAIN), mex.getClass().getSimpleName() + ": " + mex.getMessage());
-            } catch (SynapseException ex) {
-                //it could be an internal issue
-                logger.error("Error processing REST request: " + ex.getMessage(), ex);
-                response = new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.valueOf(ex.getResponseStatus().value()), MediaType.TEXT_PLAIN), ex.getClass().getSimpleName() + ": " + ex.getMessage());
+                logger.warn("Request rejected by the invocation strategy (queue depth: " + strategy.getQueueDepth() + ") on path: " + request.getHeader().getUri().getPath());
+                forward(ctx, request, new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.SERVICE_UNAVAILABLE, MediaType.TEXT_PLAIN), "The service is overloaded, please try again later."));
             }
         }
+    }
+
+    /**
+     * Invokes the service and forwards the {@link Response} (or a
+     * {@link FileRequest} if the request should be retried as a file
+     * download) when it is ready. The asynchronous services are completing on
+     * their own threads, so the response is always forwarded on the event
+     * loop.
+     *
+     * @param ctx
+     * @param request
+     */
+    private void invoke(ChannelHandlerContext ctx, Request request) {
+        CompletionStage<Response> responseStage;
+        try {
+            if (request.getBody() != null && (request.getBody() instanceof ByteBuf)) {
+                //the body is in unmarshalled
+                //eg. http case: deserialized straight from the readable bytes of the content (no copy)
+                responseStage = registry.invokeWithParsableAsync(request.getHeader(), request.getBody());
+            } else {
+                //the complete body is unmarshalled already for an object
+                //eg. websocket case
+                responseStage = registry.invokeWithObjectAsync(request.getHeader(), request.getBody());
+            }
+            //else {
+            //    response = new Response(new Response.ResponseHeader(request.getHeader(), HttpResponseStatus.valueOf(HttpStatus.BAD_REQUEST.value()), new MediaType("text/plain; charset=UTF-8")), RequestHandler.class.getSimpleName() + ": Body type not supported.");
+            //}
+        } catch (SynapseException | RuntimeException ex) {
+            //eg. a routing failure: the response must be forwarded anyway, the pipelined responses are waiting for it
+            forward(ctx, request, errorResponse(request, ex));
+            return;
+        }
+        responseStage.whenComplete((response, th) -> {
+            forward(ctx, request, th != null ? errorResponse(request, th) : response);
+        });
+    }
 
-        if (fileDownload || response == null || isFileDownloadRetriable(response)) {
-            FileRequest fr = new FileRequest(request.getHeader());
-            ctx.fireChannelRead(fr);
+    private void invocationStarted(ChannelHandlerContext ctx) {
+        if (backpressure != null) {
+            backpressure.invocationStarted(ctx.channel());
+        }
+    }
+
+    private void forward(ChannelHandlerContext ctx, Request request, Response response) {
+        if (ctx.executor().inEventLoop()) {
+            forwardOnEventLoop(ctx, request, response);
         } else {
-            ctx.fireChannelRead(response);
+            ctx.executor().execute(() -> forwardOnEventLoop(ctx, request, response));
         }
     }
 
+    private void forwardOnEventLoop(ChannelHandlerContext ctx, Request request, Response response) {
+        if (backpressure != null) {
+            backpressure.invocationCompleted(ctx.channel());
+        }
+        if (request.getBody() instanceof RequestBodyStream) {
+            //the part of the body not read by the service is discarded
+            ((RequestBodyStream) request.getBody()).close();
+        }
+        if (!ctx.channel().isActive()) {
+            //eg. the connection is closed due to a rejected request body
+            logger.debug("The connection is closed, dropping the response of: " + request.getHeader().getUri().getPath());
+            if (response != null && response.getBody() instanceof StreamingBody) {
+                ((StreamingBody) response.getBody()).close();
+            }
+            if (response != null) {
+                //eg. a rendered (ByteBuf) body
+                ReferenceCountUtil.release(response.getBody());
+            }
+            Envelopes.release(request);
+            Envelopes.release(response);
+            return;
+        }
+        Object msg;
+        if (response == null || isFileDownloadRetriable(response)) {
+            Envelopes.release(response);
+            Envelopes.detach(request);
+            msg = new FileRequest(request.getHeader());
+        } else {
+            Optional<String> sequence = request.getHeader().getProperty(Request.RequestHeader.MSG_SEQ);
+            if (sequence.isPresent()) {
+                //pipelining: the response is released by the sequencer in the order of the requests
+                response.getHeader().addProperty(Request.RequestHeader.MSG_SEQ, sequence.get());
+            }
+            Optional<String> streamId = request.getHeader().getProperty(Request.RequestHeader.STREAM_ID);
+            if (streamId.isPresent()) {
+                //http/2: the response is written on the stream of the request
+                response.getHeader().addProperty(Request.RequestHeader.STREAM_ID, streamId.get());
+            }
+            msg = response;
+            //the response is released by the response handlers
+            Envelopes.release(request);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private Response errorResponse(Request request, Throwable th) {
+        Throwable cause = th instanceof CompletionException && th.getCause() != null ? th.getCause() : th;
+        if (cause instanceof MethodNotFoundException) {
+            //simple listing, no stack trace (normal issue)
+            logger.warn("Couldn't process request due to " + cause.getClass().getSimpleName() + " with message: " + cause.getMessage());
+        } else {
+            //it could be an internal issue
+            logger.error("Error processing REST request: " + cause.getMessage(), cause);
+        }
+        HttpResponseStatus status = cause instanceof SynapseException ? HttpResponseStatus.valueOf(((SynapseException) cause).getResponseStatus().value()) : HttpResponseStatus.INTERNAL_SERVER_ERROR;
+        return new Response(new Response.ResponseHeader(request.getHeader(), status, MediaType.TEXT_PLAIN), cause.getClass().getSimpleName() + ": " + cause.getMessage());
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        //null if the endpoint does not throttle the connections
+        backpressure = ctx.pipeline().get(BackpressureHandler.class);
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         //a client is connected
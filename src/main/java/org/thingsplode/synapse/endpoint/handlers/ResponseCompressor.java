@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.Locale;
+import org.thingsplode.synapse.core.MediaType;
+
+/**
+ * Compresses (gzip or deflate, as negotiated by the Accept-Encoding of the
+ * request) the responses of the services above a size threshold. Left
+ * uncompressed:
+ * <ul>
+ * <li>the bodies smaller than the threshold (not worth the CPU time and the
+ * framing);</li>
+ * <li>the content types which are not textual (see
+ * {@link MediaType#isCompressible(java.lang.String)}) and the
+ * Server-Sent Events (the events must not wait in the compressor);</li>
+ * <li>the responses of the {@link FileRequestHandler}: these are already
+ * negotiated (Content-Encoding), their ETag and ranges refer to the identity
+ * representation or their body is written zero-copy with a known
+ * length.</li>
+ * </ul>
+ * The streamed (chunked) service responses are compressed chunk by chunk.
+ * Only used on HTTP/1.x connections: the compressor pairs the responses with
+ * the requests in their order, which does not hold for the multiplexed
+ * streams. It is removed from the pipeline by the h2c and websocket upgrades.
+ *
+ * @author Csaba Tamas
+ */
+public class ResponseCompressor extends HttpContentCompressor {
+
+    private static final String EVENT_STREAM = "text/event-stream";
+    private final int threshold;
+    private final CompressionMetrics metrics;
+
+    /**
+     * @param threshold the smallest body compressed, in bytes
+     * @param level the compression level (1: fastest - 9: best)
+     * @param metrics
+     */
+    public ResponseCompressor(int threshold, int level, CompressionMetrics metrics) {
+        super(level);
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        if (determineWrapper(acceptEncoding) == null) {
+            //the client does not accept a compressed response
+            return null;
+        }
+        if (!isWorthCompressing(response)) {
+            metrics.skipped();
+            return null;
+        }
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (result != null) {
+            //the content is compressed synchronously while written to the encoder channel
+            result.contentEncoder().pipeline().addLast(new Meter(true));
+            result.contentEncoder().pipeline().addFirst(new Meter(false));
+            metrics.compressed();
+        }
+        return result;
+    }
+
+    private boolean isWorthCompressing(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        String encoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+        if (encoding != null && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(encoding)) {
+            return false;
+        }
+        if (headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.CONTENT_RANGE)) {
+            return false;
+        }
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        if (!MediaType.isCompressible(contentType) || contentType.toLowerCase(Locale.US).startsWith(EVENT_STREAM)) {
+            return false;
+        }
+        if (response instanceof FullHttpResponse) {
+            return ((FullHttpResponse) response).content().readableBytes() >= threshold;
+        }
+        //a body with a known length may be a file region, which cannot pass through the compressor
+        return !headers.contains(HttpHeaderNames.CONTENT_LENGTH);
+    }
+
+    /**
+     * Counts the bytes written into the encoder channel (and the time spent
+     * compressing them) or the compressed bytes written out of it.
+     */
+    private final class Meter extends ChannelOutboundHandlerAdapter {
+
+        private final boolean input;
+
+        Meter(boolean input) {
+            this.input = input;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (!(msg instanceof ByteBuf)) {
+                ctx.write(msg, promise);
+            } else if (input) {
+                int bytes = ((ByteBuf) msg).readableBytes();
+                long start = System.nanoTime();
+                ctx.write(msg, promise);
+                metrics.consumed(bytes, System.nanoTime() - start);
+            } else {
+                metrics.produced(((ByteBuf) msg).readableBytes());
+                ctx.write(msg, promise);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Csaba Tamas.
+ * Copyright 2016 tamas.csaba@gmail.com.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,51 +15,167 @@
  */
 package org.thingsplode.synapse.endpoint.handlers;
 
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageEncoder;
-import java.util.Comparator;
-import java.util.List;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
 import java.util.Optional;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.Envelopes;
+import org.thingsplode.synapse.core.FileRequest;
+import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
 
 /**
- * It will order into a FIFO order the responses for message pipelining (see HTTP pipelining).
- * In case Response B (response for Request B) is available earlier than Response A, it will be stored in a waiting queue, until Response A
- * is not dispatched.
+ * It will order into a FIFO order the responses for message pipelining (see
+ * HTTP pipelining). In case Response B (response for Request B) is available
+ * earlier than Response A, it will be stored in a waiting queue, until Response
+ * A is not dispatched.
+ * <br>
+ * The requests are numbered by the {@link HttpRequestHandler} (the
+ * {@link Request.RequestHeader#MSG_SEQ} property), the {@link RequestHandler}
+ * copies the number to the response. The sequencer is placed in front of the
+ * handlers writing the http responses ({@link FileRequestHandler} and
+ * {@link HttpResponseHandler}): it releases the next response (or file
+ * request) only when the previous one is completely written, which is
+ * recognized on the outbound side by the last http content passing through.
+ * <br>
+ * When the number of requests dispatched but not yet answered reaches the
+ * maximum, the reading of the connection is suspended until a response is
+ * released. The requests already decoded from the last read are still
+ * dispatched, so the reorder buffer can exceed the maximum by the number of
+ * requests arriving in one read.
+ * <br>
+ * Each connection has its own sequencer; all the methods are called on the
+ * event loop of the connection.
  *
- * *Work In Progress*
  * @author Csaba Tamas
- * 
- * Todo: (once it is ready is should support sequencing / client and state sharing among node must be assured as well.)
  */
-public class ResponseSequencer extends MessageToMessageEncoder<Response> {
+public class ResponseSequencer extends ChannelDuplexHandler {
 
-    private final AtomicLong deliveredSequence = new AtomicLong(0);
-    private final SortedSet<Response> responses = new TreeSet<>(new ResponseComparator());
+    private static final Logger logger = LoggerFactory.getLogger(ResponseSequencer.class);
+    private final int maxInFlight;
+    private final TreeMap<Long, AbstractMessage> waiting = new TreeMap<>();
+    private long dispatchedSequence = 0;
+    private long deliveredSequence = 0;
+    private boolean inProgress = false;
+    private boolean draining = false;
+    private boolean suspended = false;
 
-    @Override
-    protected void encode(ChannelHandlerContext ctx, Response msg, List<Object> out) throws Exception {
-        Optional<String> sequence = msg.getHeaderProperty(Request.RequestHeader.MSG_SEQ);
-        if (sequence.isPresent()) {
-            long currentValue = Long.parseLong(sequence.get());
-            if (currentValue == deliveredSequence.get()) {
-                out.add(msg);
-                return;
-            } else {
-                
+    /**
+     * @param maxInFlight the maximum number of requests processed at the same
+     * time on the connection
+     */
+    public ResponseSequencer(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one request must be allowed in flight.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Called by the {@link HttpRequestHandler} for each request.
+     *
+     * @param ctx the context of the caller handler
+     * @return the sequence number of the request
+     */
+    long nextSequence(ChannelHandlerContext ctx) {
+        long sequence = dispatchedSequence++;
+        if (!suspended && dispatchedSequence - deliveredSequence >= maxInFlight) {
+            suspended = true;
+            ReadThrottle.of(ctx.channel()).suspend(ReadThrottle.PIPELINE);
+            if (logger.isTraceEnabled()) {
+                logger.trace("Suspending the reading of the connection: " + maxInFlight + " requests are in flight.");
             }
         }
+        return sequence;
+    }
+
+    /**
+     * @return true if a request is not answered yet or its response is still
+     * being written
+     */
+    boolean isPending() {
+        return inProgress || deliveredSequence != dispatchedSequence;
     }
 
-    private class ResponseComparator implements Comparator<Response> {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Optional<String> sequence = msg instanceof AbstractMessage ? ((AbstractMessage) msg).getHeaderProperty(Request.RequestHeader.MSG_SEQ) : Optional.empty();
+        if (!sequence.isPresent()) {
+            //eg. websocket messages after an upgrade
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        AbstractMessage message = (AbstractMessage) msg;
+        if (message instanceof Response) {
+            //must not be written as an http header
+            message.getHeader().removeProperty(Request.RequestHeader.MSG_SEQ);
+        }
+        waiting.put(Long.parseLong(sequence.get()), message);
+        drain(ctx);
+    }
 
-        @Override
-        public int compare(Response x, Response y) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        ctx.write(msg, promise);
+        if (inProgress && (msg instanceof LastHttpContent || msg instanceof HttpChunkedInput)) {
+            //the released response is completely written
+            inProgress = false;
+            drain(ctx);
         }
     }
+
+    private void drain(ChannelHandlerContext ctx) {
+        if (draining) {
+            //called back from the write of the response released by the loop below
+            return;
+        }
+        draining = true;
+        try {
+            while (!inProgress && !waiting.isEmpty() && waiting.firstKey() == deliveredSequence) {
+                AbstractMessage next = waiting.pollFirstEntry().getValue();
+                deliveredSequence++;
+                inProgress = true;
+                if (next instanceof FileRequest && ctx.pipeline().get(FileRequestHandler.class) == null) {
+                    //nobody would answer it
+                    next = new Response(new Response.ResponseHeader(((FileRequest) next).getHeader(), HttpResponseStatus.NOT_FOUND, MediaType.TEXT_PLAIN), "File not found.");
+                }
+                ctx.fireChannelRead(next);
+            }
+        } finally {
+            draining = false;
+        }
+        if (suspended && dispatchedSequence - deliveredSequence < maxInFlight) {
+            suspended = false;
+            ReadThrottle.of(ctx.channel()).resume(ReadThrottle.PIPELINE);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        //the responses waiting for an earlier one cannot be delivered anymore
+        waiting.values().forEach(m -> {
+            if (m.getBody() instanceof StreamingBody) {
+                ((StreamingBody) m.getBody()).close();
+            }
+            //eg. a rendered (ByteBuf) body
+            ReferenceCountUtil.release(m.getBody());
+            Envelopes.release(m);
+        });
+        waiting.clear();
+        ctx.fireChannelInactive();
+    }
+
+    int getWaitingCount() {
+        return waiting.size();
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.CharsetUtil;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.MediaType;
+import org.thingsplode.synapse.core.PushNotification;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.SerializationService;
+
+/**
+ * Fans out the {@link PushNotification}s to the Server-Sent Events
+ * subscribers (see {@link SseSubscriptionHandler}).
+ * <br>
+ * Each notification is serialized once into an event, which buffer is shared
+ * by the writes of all the subscribers. The last events are kept in a bounded
+ * replay buffer, so a client reconnecting with the Last-Event-ID header
+ * receives the events it missed.
+ * <br>
+ * A slow subscriber is not buffered without limit: while its connection is
+ * not writable the events are skipped, and they are replayed from the buffer
+ * once the connection drained. If they are already dropped from the replay
+ * buffer, the connection is closed (the client reconnects and resumes from
+ * what is still available).
+ *
+ * @author Csaba Tamas
+ */
+public class SseBroker {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseBroker.class);
+    public static final int DEFAULT_REPLAY_SIZE = 256;
+    private final SerializationService serializationService = SerializationService.getInstance();
+    private final int replaySize;
+    //guarded by this
+    private final ArrayDeque<Event> replay = new ArrayDeque<>();
+    private final Set<Subscriber> subscribers = new HashSet<>();
+    private long lastEventId = 0;
+
+    /**
+     * @param replaySize the number of the last events kept for the
+     * reconnecting and the slow subscribers
+     */
+    public SseBroker(int replaySize) {
+        if (replaySize < 1) {
+            throw new IllegalArgumentException("The replay buffer must hold at least one event.");
+        }
+        this.replaySize = replaySize;
+    }
+
+    /**
+     * Sends the notification to the subscribers of its topic.
+     *
+     * @param notification
+     * @return the id of the event
+     * @throws SerializationException
+     */
+    public long publish(PushNotification notification) throws SerializationException {
+        notification.setDefaultTopicIfNone();
+        String topic = notification.getHeader().getSourceTopic();
+        //outside of the lock: the publishers are not waiting for each other while serializing
+        byte[] json = serializationService.getSerializer(MediaType.APPLICATION_JSON).marshall(notification);
+        synchronized (this) {
+            Event event = new Event(++lastEventId, topic, json);
+            replay.add(event);
+            if (replay.size() > replaySize) {
+                replay.poll().release();
+            }
+            subscribers.forEach(s -> s.offer(event));
+            return event.id;
+        }
+    }
+
+    /**
+     * @param subscriber
+     * @param lastEventId the id of the last event received by the client
+     * before reconnecting, the later ones are replayed (-1: none)
+     */
+    synchronized void subscribe(Subscriber subscriber, long lastEventId) {
+        if (lastEventId >= 0) {
+            replay.stream().filter(e -> e.id > lastEventId).forEach(subscriber::offer);
+        }
+        subscribers.add(subscriber);
+    }
+
+    synchronized void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Called when the connection of the subscriber is writable again: the
+     * events skipped meanwhile are sent from the replay buffer.
+     *
+     * @param subscriber
+     */
+    synchronized void resume(Subscriber subscriber) {
+        if (subscriber.missedFrom < 0) {
+            return;
+        }
+        long missedFrom = subscriber.missedFrom;
+        subscriber.missedFrom = -1;
+        if (replay.isEmpty() || replay.peek().id > missedFrom) {
+            logger.warn("The events missed by the slow subscriber " + subscriber.channel.remoteAddress() + " are not available anymore, closing the connection.");
+            subscriber.channel.close();
+            return;
+        }
+        replay.stream().filter(e -> e.id >= missedFrom).forEach(subscriber::offer);
+    }
+
+    /**
+     * Releases the replay buffer (the connections are closed by the
+     * endpoint).
+     */
+    public synchronized void clear() {
+        replay.forEach(Event::release);
+        replay.clear();
+        subscribers.clear();
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * One notification in the text/event-stream format.
+     */
+    static final class Event {
+
+        private static final byte[] DATA = "data: ".getBytes(CharsetUtil.UTF_8);
+        final long id;
+        final String topic;
+        final ByteBuf content;
+
+        Event(long id, String topic, byte[] json) {
+            this.id = id;
+            this.topic = topic;
+            ByteBuf buf = Unpooled.directBuffer(json.length + 64);
+            buf.writeBytes(("id: " + id + "\nevent: " + topic.replace('\n', ' ') + "\n").getBytes(CharsetUtil.UTF_8));
+            //each line of the (eg. pretty printed) json is a data field
+            int start = 0;
+            for (int i = 0; i <= json.length; i++) {
+                if (i == json.length || json[i] == '\n') {
+                    int end = i > start && json[i - 1] == '\r' ? i - 1 : i;
+                    buf.writeBytes(DATA).writeBytes(json, start, end - start).writeByte('\n');
+                    start = i + 1;
+                }
+            }
+            buf.writeByte('\n');
+            this.content = buf;
+        }
+
+        void release() {
+            content.release();
+        }
+    }
+
+    /**
+     * The connection of a client subscribed to some (or all) topics.
+     */
+    static final class Subscriber {
+
+        final Channel channel;
+        final Set<String> topics;
+        //the id of the first event skipped due to the backpressure (-1: none), guarded by the broker
+        long missedFrom = -1;
+
+        /**
+         * @param channel
+         * @param topics empty means all the topics
+         */
+        Subscriber(Channel channel, Set<String> topics) {
+            this.channel = channel;
+            this.topics = Collections.unmodifiableSet(new HashSet<>(topics));
+        }
+
+        void offer(Event event) {
+            if (!topics.isEmpty() && !topics.contains(event.topic)) {
+                return;
+            }
+            if (missedFrom >= 0) {
+                //waiting for the replay
+                return;
+            }
+            if (!channel.isWritable()) {
+                missedFrom = event.id;
+                return;
+            }
+            write(event);
+        }
+
+        void write(Event event) {
+            //the buffer is shared: each write gets its own indexes and holds a reference until it is written
+            channel.writeAndFlush(new DefaultHttpContent(event.content.duplicate().retain()));
+        }
+    }
+}
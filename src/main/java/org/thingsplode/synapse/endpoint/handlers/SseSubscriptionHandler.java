@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.AbstractMessage;
+import org.thingsplode.synapse.core.MediaType;
+import org.thingsplode.synapse.core.Parameter;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.Uri;
+import org.thingsplode.synapse.endpoint.Endpoint;
+
+/**
+ * Turns a GET request on the events path into a Server-Sent Events
+ * subscription: the response is a never ending chunked text/event-stream,
+ * which events are written by the {@link SseBroker}.
+ * <br>
+ * The topics are selected by the topic query parameters (eg.
+ * /events?topic=/alarms&amp;topic=/default), all topics are received without
+ * any. The connection is dedicated to the subscription, the further requests
+ * on it are ignored. One instance per HTTP/1.x connection.
+ * <br>
+ * With pipelining, a subscription arriving behind requests not answered yet
+ * is rejected (409) in the order of the responses: the head of the event
+ * stream cannot be sequenced behind them.
+ *
+ * @author Csaba Tamas
+ */
+public class SseSubscriptionHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseSubscriptionHandler.class);
+    public static final String LAST_EVENT_ID = "Last-Event-ID";
+    public static final String TOPIC_PARAM = "topic";
+    private static final String EVENT_STREAM = "text/event-stream; charset=UTF-8";
+    private final SseBroker broker;
+    private final String path;
+    private final ResponseSequencer sequencer;
+    private SseBroker.Subscriber subscriber = null;
+
+    /**
+     * @param broker
+     * @param path the path of the subscriptions (eg. /events)
+     */
+    public SseSubscriptionHandler(SseBroker broker, String path) {
+        this(broker, path, null);
+    }
+
+    /**
+     * @param broker
+     * @param path the path of the subscriptions (eg. /events)
+     * @param sequencer the sequencer of the connection if pipelining is
+     * enabled, otherwise null
+     */
+    public SseSubscriptionHandler(SseBroker broker, String path, ResponseSequencer sequencer) {
+        this.broker = broker;
+        this.path = path;
+        this.sequencer = sequencer;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (subscriber != null) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (!(msg instanceof FullHttpRequest) || !isSubscription((FullHttpRequest) msg)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        FullHttpRequest request = (FullHttpRequest) msg;
+        try {
+            if (request.headers().contains(Request.RequestHeader.STREAM_ID)) {
+                //an endless response would block the other streams of the connection (the h2 adapter writes one message at a time)
+                HttpResponseHandler.sendError(ctx, HttpResponseStatus.HTTP_VERSION_NOT_SUPPORTED, "Server-Sent Events are only served over HTTP/1.1.", request);
+                return;
+            }
+            if (sequencer != null && sequencer.isPending()) {
+                reject(ctx, request);
+                return;
+            }
+            subscribe(ctx, request);
+        } finally {
+            request.release();
+        }
+    }
+
+    private boolean isSubscription(FullHttpRequest request) {
+        if (!HttpMethod.GET.equals(request.method())) {
+            return false;
+        }
+        String uri = request.uri();
+        int q = uri.indexOf('?');
+        return path.equals(q == -1 ? uri : uri.substring(0, q));
+    }
+
+    /**
+     * Answers the pipelined subscription after the responses of the previous
+     * requests.
+     */
+    private void reject(ChannelHandlerContext ctx, FullHttpRequest request) {
+        Request.RequestHeader header = new Request.RequestHeader(null, null, null);
+        header.setMsgId(request.headers().get(AbstractMessage.PROP_MESSAGE_ID));
+        header.setKeepalive(HttpUtil.isKeepAlive(request));
+        Response rsp = new Response(new Response.ResponseHeader(header, HttpResponseStatus.CONFLICT, MediaType.TEXT_PLAIN), "The subscription must not be pipelined behind pending requests.");
+        rsp.getHeader().addProperty(Request.RequestHeader.MSG_SEQ, String.valueOf(sequencer.nextSequence(ctx)));
+        //passes the request handlers to the sequencer
+        ctx.fireChannelRead(rsp);
+    }
+
+    private void subscribe(ChannelHandlerContext ctx, FullHttpRequest request) throws UnsupportedEncodingException {
+        Set<String> topics = new HashSet<>();
+        List<Parameter<String>> params = new Uri(request.uri()).getQueryParameters();
+        if (params != null) {
+            params.stream().filter(p -> TOPIC_PARAM.equals(p.getName())).forEach(p -> topics.add(p.getValue()));
+        }
+        long lastEventId = -1;
+        String lastEventIdHeader = request.headers().get(LAST_EVENT_ID);
+        if (lastEventIdHeader != null) {
+            try {
+                lastEventId = Long.parseLong(lastEventIdHeader.trim());
+            } catch (NumberFormatException ex) {
+                logger.debug("Ignoring the invalid " + LAST_EVENT_ID + ": " + lastEventIdHeader);
+            }
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, EVENT_STREAM);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        ctx.writeAndFlush(response);
+        IdleConnectionHandler idleHandler = ctx.pipeline().get(IdleConnectionHandler.class);
+        if (idleHandler != null) {
+            //the subscribers do not send anything: never reaped
+            idleHandler.transportChanged(Endpoint.Transport.SSE);
+        }
+        subscriber = new SseBroker.Subscriber(ctx.channel(), topics);
+        broker.subscribe(subscriber, lastEventId);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Server-Sent Events subscriber " + ctx.channel().remoteAddress() + " on topics: " + (topics.isEmpty() ? "all" : topics));
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (subscriber != null && ctx.channel().isWritable()) {
+            broker.resume(subscriber);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (subscriber != null) {
+            broker.unsubscribe(subscriber);
+        }
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.MediaType;
+import org.thingsplode.synapse.endpoint.swagger.Loader;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Keeps the static content served by the {@link FileRequestHandler} (the
+ * resources of the class path's WEB-INF folder, eg. the swagger ui, and the
+ * small files of the web root) in off-heap buffers, together with their
+ * precomputed headers, so a cached file is served without any disk I/O.
+ * <p>
+ * The least recently used entries are evicted when the cached content exceeds
+ * the byte budget; the files larger than the entry limit are not cached (but
+ * served zero-copy from the disk). The files of the web root are invalidated
+ * by a {@link WatchService} when they are changed, the class path resources
+ * are kept until they are evicted.
+ * <p>
+ * The textual content is also kept gzip encoded for the clients accepting it:
+ * compressed once, when it is first requested, unless a precompressed
+ * sibling (eg. swagger-ui.js.gz) is present, which is served instead.
+ *
+ * @author Csaba Tamas
+ */
+public class StaticContentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticContentCache.class);
+    public static final long DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+    //the smaller content is not worth compressing (the gzip framing is ~20 bytes)
+    static final int MIN_COMPRESSIBLE_SIZE = 256;
+    static final String GZIP_SUFFIX = ".gz";
+    private final Function<String, String> contentTypes;
+    //the class path does not change while running
+    private final long resourcesModified = System.currentTimeMillis() / 1000 * 1000;
+    //guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long budget;
+    private int maxEntrySize;
+    private long size = 0;
+    private WatchService watcher = null;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder compressions = new LongAdder();
+
+    /**
+     * @param contentTypes the content type of a file name
+     * @param budget the maximum number of cached bytes
+     * @param maxEntrySize the larger files are not cached
+     */
+    public StaticContentCache(Function<String, String> contentTypes, long budget, int maxEntrySize) {
+        this.contentTypes = contentTypes;
+        resize(budget, maxEntrySize);
+    }
+
+    /**
+     * @param budget the maximum number of cached bytes
+     * @param maxEntrySize the larger files are not cached
+     */
+    public synchronized void resize(long budget, int maxEntrySize) {
+        if (budget < 0 || maxEntrySize < 0) {
+            throw new IllegalArgumentException("The size limits cannot be negative.");
+        }
+        this.budget = budget;
+        this.maxEntrySize = maxEntrySize;
+        evict();
+    }
+
+    /**
+     * @param path the sanitized path of the request
+     * @return the cached entry (its content retained for the caller) or null
+     */
+    synchronized Entry get(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.content.retain();
+        return entry;
+    }
+
+    /**
+     * Reads and caches a file of the web root.
+     *
+     * @param path the sanitized path of the request
+     * @param file
+     * @return the entry (its content retained for the caller) or null if the
+     * file is too large to be cached
+     * @throws IOException
+     */
+    Entry load(String path, File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (length > maxEntrySize) {
+            return null;
+        }
+        ByteBuf content = Unpooled.directBuffer((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.isWritable() && content.writeBytes(channel, content.writableBytes()) != -1) {
+            }
+        } catch (IOException | RuntimeException ex) {
+            content.release();
+            throw ex;
+        }
+        //served zero-copy to the clients accepting gzip
+        File precompressed = new File(file.getPath() + GZIP_SUFFIX);
+        return put(path, new Entry(content, contentTypes.apply(file.getPath()), lastModified, precompressed.isFile() ? precompressed : null));
+    }
+
+    /**
+     * Reads and caches a resource of the class path's WEB-INF folder.
+     *
+     * @param path the sanitized path of the request
+     * @return the entry (its content retained for the caller) or null if the
+     * path cannot denote a resource
+     * @throws IOException if the resource is not found
+     */
+    Entry loadResource(String path) throws IOException {
+        ByteBuf content = Loader.readResource(path);
+        if (content == null) {
+            return null;
+        }
+        Entry entry = new Entry(content, contentTypes.apply(path), resourcesModified, null);
+        if (entry.isCompressible()) {
+            try {
+                entry.gzipped = Loader.readResource(path + GZIP_SUFFIX);
+            } catch (IOException ex) {
+                //not precompressed, compressed on demand
+            }
+        }
+        return put(path, entry);
+    }
+
+    /**
+     * The gzip encoded content of the entry, compressed once (with the best
+     * compression) and cached together with the entry.
+     *
+     * @param path the sanitized path of the request
+     * @param entry an entry whose content is retained by the caller
+     * @return a view of the gzipped content (retained for the caller) or null
+     * if the content is not compressible
+     * @throws IOException
+     */
+    ByteBuf gzipped(String path, Entry entry) throws IOException {
+        synchronized (this) {
+            if (entry.gzipped != null) {
+                return entry.gzipped.duplicate().retain();
+            } else if (!entry.isCompressible()) {
+                return null;
+            }
+        }
+        ByteBuf compressed = gzip(entry.content);
+        synchronized (this) {
+            if (entry.gzipped == null) {
+                if (compressed.readableBytes() >= entry.getLength()) {
+                    //already compressed (eg. a minified bundle with a text type but binary content)
+                    compressed.release();
+                    entry.incompressible = true;
+                    return null;
+                }
+                if (entries.get(path) != entry) {
+                    //evicted meanwhile, served once
+                    return compressed;
+                }
+                entry.gzipped = compressed;
+                size += compressed.readableBytes();
+                compressions.increment();
+                //retained before the eviction, which can dispose this same entry
+                ByteBuf view = compressed.duplicate().retain();
+                evict();
+                return view;
+            } else {
+                //compressed concurrently by another request
+                compressed.release();
+            }
+            return entry.gzipped.duplicate().retain();
+        }
+    }
+
+    /**
+     * @param content the content to compress (not released)
+     * @return the gzip encoded content (with the best compression) in a new
+     * buffer owned by the caller
+     * @throws IOException
+     */
+    public static ByteBuf gzip(ByteBuf content) throws IOException {
+        ByteBuf compressed = Unpooled.directBuffer(Math.max(content.readableBytes() / 4, 64));
+        try (GZIPOutputStream out = new GZIPOutputStream(new ByteBufOutputStream(compressed), 8192) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            content.getBytes(content.readerIndex(), out, content.readableBytes());
+        } catch (IOException | RuntimeException ex) {
+            compressed.release();
+            throw ex;
+        }
+        return compressed.capacity(compressed.writerIndex());
+    }
+
+    private synchronized Entry put(String path, Entry entry) {
+        if (entry.getLength() > maxEntrySize) {
+            //served once, the caller holds the only reference (compressed on demand if needed)
+            if (entry.gzipped != null) {
+                entry.gzipped.release();
+                entry.gzipped = null;
+            }
+            return entry;
+        }
+        entry.content.retain();
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            //loaded concurrently by another request
+            size -= previous.size();
+            previous.dispose();
+        }
+        size += entry.size();
+        evict();
+        return entry;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > budget && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.size();
+            eldest.dispose();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes the entry of the path and of the paths below it (if it is a
+     * directory).
+     *
+     * @param path the sanitized path of the request
+     */
+    public synchronized void invalidate(String path) {
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().equals(path) || e.getKey().startsWith(prefix)) {
+                it.remove();
+                size -= e.getValue().size();
+                e.getValue().dispose();
+            }
+        }
+    }
+
+    /**
+     * Releases all the cached content.
+     */
+    public synchronized void clear() {
+        entries.values().forEach(Entry::dispose);
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Invalidates the cached files of the web root when they are created,
+     * changed or deleted (instead of checking their modification time on each
+     * request).
+     *
+     * @param webroot
+     * @throws IOException
+     */
+    public synchronized void watch(File webroot) throws IOException {
+        stopWatching();
+        Path root = webroot.toPath().toAbsolutePath();
+        WatchService ws = root.getFileSystem().newWatchService();
+        register(ws, root);
+        watcher = ws;
+        Thread t = new Thread(() -> watchLoop(ws, root), "static-content-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the invalidation of the web root's files.
+     */
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                logger.warn("Error while closing the web root watcher: " + ex.getMessage());
+            }
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return true if the files of a web root are watched
+     */
+    public synchronized boolean isWatching() {
+        return watcher != null;
+    }
+
+    private static void register(WatchService ws, Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(ws, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watchLoop(WatchService ws, Path root) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    //some events were lost
+                    clear();
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                String path = File.separator + root.relativize(child).toString();
+                invalidate(path);
+                if (path.endsWith(GZIP_SUFFIX)) {
+                    //the precompressed variant of the file
+                    invalidate(path.substring(0, path.length() - GZIP_SUFFIX.length()));
+                }
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        register(ws, child);
+                    } catch (IOException | ClosedWatchServiceException ex) {
+                        logger.warn("The new directory " + child + " is not watched: " + ex.getMessage());
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * @return the number of the cached bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of the entries compressed on demand
+     */
+    public long getCompressions() {
+        return compressions.sum();
+    }
+
+    /**
+     * A cached file with its headers.
+     */
+    static final class Entry {
+
+        private final ByteBuf content;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+        private final String lastModifiedHeader;
+        private final File precompressed;
+        //changed by the cache (under its lock)
+        private volatile ByteBuf gzipped = null;
+        private volatile boolean incompressible = false;
+
+        Entry(ByteBuf content, String contentType, long lastModified, File precompressed) {
+            this.content = content;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.precompressed = precompressed;
+            CRC32 crc = new CRC32();
+            crc.update(content.nioBuffer());
+            this.etag = "\"" + Long.toHexString(content.readableBytes()) + "-" + Long.toHexString(crc.getValue()) + "\"";
+            this.lastModifiedHeader = HttpDates.format(lastModified);
+        }
+
+        private int size() {
+            return content.readableBytes() + (gzipped != null ? gzipped.readableBytes() : 0);
+        }
+
+        private void dispose() {
+            content.release();
+            if (gzipped != null) {
+                //the requests still holding the entry compress it again
+                gzipped.release();
+                gzipped = null;
+            }
+        }
+
+        /**
+         * @return true if a gzip encoded variant is served to the clients
+         * accepting it
+         */
+        boolean isCompressible() {
+            return precompressed != null || gzipped != null
+                    || (!incompressible && content.readableBytes() >= MIN_COMPRESSIBLE_SIZE && MediaType.isCompressible(contentType));
+        }
+
+        /**
+         * @return the precompressed sibling file (eg. index.js.gz) or null
+         */
+        File getPrecompressed() {
+            return precompressed;
+        }
+
+        /**
+         * @return the ETag of the gzip encoded variant
+         */
+        String getGzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+
+        /**
+         * @return a view of the content, sharing the reference count
+         * retained for the caller
+         */
+        ByteBuf content() {
+            return content.duplicate();
+        }
+
+        int getLength() {
+            return content.readableBytes();
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+    }
+}
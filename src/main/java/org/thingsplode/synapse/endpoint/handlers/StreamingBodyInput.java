@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.CharsetUtil;
+import org.thingsplode.synapse.core.StreamingBody;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.SynapseSerializer;
+
+/**
+ * Serializes a {@link StreamingBody} into a json array, in batches of about
+ * {@link #BATCH_SIZE} bytes. The batches are pulled by the
+ * {@link io.netty.handler.stream.ChunkedWriteHandler} only while the channel
+ * is writable, so at most a few batches of the response are in memory,
+ * regardless of the number of the elements.
+ *
+ * @author Csaba Tamas
+ */
+class StreamingBodyInput implements ChunkedInput<ByteBuf> {
+
+    static final int BATCH_SIZE = 8192;
+    private static final byte[] NULL = "null".getBytes(CharsetUtil.UTF_8);
+    private final SynapseSerializer<?> serializer;
+    private final StreamingBody body;
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private boolean started = false;
+    private boolean first = true;
+    private boolean ended = false;
+    private long progress = 0;
+
+    /**
+     * @param serializer serializes the elements
+     * @param body
+     * @param prefix written before the opening bracket of the array
+     * @param suffix written after the closing bracket of the array
+     */
+    StreamingBodyInput(SynapseSerializer<?> serializer, StreamingBody body, String prefix, String suffix) {
+        this.serializer = serializer;
+        this.body = body;
+        this.prefix = (prefix + "[").getBytes(CharsetUtil.UTF_8);
+        this.suffix = ("]" + suffix).getBytes(CharsetUtil.UTF_8);
+    }
+
+    StreamingBodyInput(SynapseSerializer<?> serializer, StreamingBody body) {
+        this(serializer, body, "", "");
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return ended;
+    }
+
+    @Override
+    public void close() throws Exception {
+        body.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (ended) {
+            return null;
+        }
+        ByteBuf batch = allocator.buffer(BATCH_SIZE);
+        try {
+            if (!started) {
+                started = true;
+                batch.writeBytes(prefix);
+            }
+            while (batch.readableBytes() < BATCH_SIZE && body.hasNext()) {
+                if (!first) {
+                    batch.writeByte(',');
+                }
+                first = false;
+                Object element = body.next();
+                if (element == null) {
+                    batch.writeBytes(NULL);
+                } else {
+                    serializer.marshall(element, batch);
+                }
+            }
+            if (!body.hasNext()) {
+                batch.writeBytes(suffix);
+                ended = true;
+                body.close();
+            }
+        } catch (SerializationException | RuntimeException ex) {
+            batch.release();
+            throw ex;
+        }
+        progress += batch.readableBytes();
+        return batch;
+    }
+
+    @Override
+    public long length() {
+        //unknown
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -29,10 +29,8 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.AbstractMessage;
-import org.thingsplode.synapse.core.ConnectionContext;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.exceptions.SerializationException;
-import static org.thingsplode.synapse.endpoint.handlers.RequestHandler.CONNECTION_CTX_ATTR;
 import org.thingsplode.synapse.serializers.SerializationService;
 
 /**
@@ -59,7 +57,6 @@ public class WebsocketRequestHandler extends SimpleChannelInboundHandler<WebSock
             }
 
             if (frame instanceof PingWebSocketFrame) {
-                updateLastSeen(ctx);
                 ctx.channel().writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
                 return;
             }
@@ -102,11 +99,4 @@ public class WebsocketRequestHandler extends SimpleChannelInboundHandler<WebSock
         logger.error(cause.getClass().getSimpleName() + " -> Unhandled Error while processing websocket request: " + cause.getMessage(), cause);
         ResponseEncoder.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, cause.getClass().getSimpleName() + ": " + cause.getMessage());
     }
-
-    private void updateLastSeen(ChannelHandlerContext ctx) {
-        ConnectionContext cctx = ctx.channel().attr(CONNECTION_CTX_ATTR).get();
-        if (cctx != null) {
-            cctx.updateLastSeen();
-        }
-    }
 }
@@ -15,18 +15,28 @@
  */
 package org.thingsplode.synapse.endpoint.handlers;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.CharsetUtil;
+import java.util.ArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.thingsplode.synapse.core.Envelopes;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
 import org.thingsplode.synapse.serializers.SerializationService;
+import org.thingsplode.synapse.serializers.SynapseSerializer;
 
 /**
  * Synapse Response to TextWebSocketFrame (websocket frame) encoder
@@ -37,12 +47,31 @@ public class WebsocketResponseHandler extends SimpleChannelInboundHandler<Respon
 
     private static final Logger logger = LoggerFactory.getLogger(WebsocketResponseHandler.class);
     private final SerializationService serializationService = SerializationService.getInstance();
+    private final BodySizeEstimator bodySizeEstimator = BodySizeEstimator.ENVELOPES;
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Response response) throws Exception {
-        byte[] content = serializationService.getSerializer(MediaType.APPLICATION_JSON).marshall(response);
-        TextWebSocketFrame wsFrame = new TextWebSocketFrame(Unpooled.wrappedBuffer(content));
-        ChannelFuture cf = ctx.writeAndFlush(wsFrame).addListener((ChannelFutureListener) new ChannelFutureListener() {
+        Object msg;
+        boolean keepAlive = response.getHeader().isKeepAlive();
+        try {
+            if (response.getBody() instanceof ByteBuf) {
+                //rendered for http (eg. a cached document): sent as text in the response envelope
+                ByteBuf rendered = (ByteBuf) response.getBody();
+                response.setBody(rendered.toString(CharsetUtil.UTF_8));
+                rendered.release();
+            }
+            if (response.getBody() instanceof StreamingBody) {
+                msg = new FrameInput(streamingInput(response));
+            } else {
+                //the envelopes of the different bodies are estimated separately
+                Class<?> type = response.getBody() != null ? response.getBody().getClass() : Response.class;
+                msg = new TextWebSocketFrame(bodySizeEstimator.marshall(ctx, serializationService.getSerializer(MediaType.APPLICATION_JSON), response, type));
+            }
+        } finally {
+            //serialized into the frame (a streaming body is owned by the frame input)
+            Envelopes.release(response);
+        }
+        ChannelFuture cf = ctx.writeAndFlush(msg).addListener((ChannelFutureListener) new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 if (!future.isSuccess()) {
@@ -51,13 +80,81 @@ public class WebsocketResponseHandler extends SimpleChannelInboundHandler<Respon
                 }
             }
         });
-        if (!response.getHeader().isKeepAlive()) {
+        if (!keepAlive) {
             cf.addListener((ChannelFutureListener) (ChannelFuture future) -> {
                 ctx.writeAndFlush(new CloseWebSocketFrame(true, 0));
             }).addListener(ChannelFutureListener.CLOSE);
         }
     }
 
+    /**
+     * The response envelope is written in the first frame, the elements of
+     * the body are following in continuation frames (one message for the
+     * client).
+     */
+    private StreamingBodyInput streamingInput(Response response) throws SerializationException {
+        StreamingBody body = (StreamingBody) response.getBody();
+        SynapseSerializer<String> serializer = serializationService.getSerializer(MediaType.APPLICATION_JSON);
+        response.setBody(null);
+        String envelope = serializer.marshallToWireformat(response).trim();
+        response.setBody(body);
+        if (!envelope.endsWith("}")) {
+            body.close();
+            throw new SerializationException("The response envelope is not a json object, the body cannot be streamed.");
+        }
+        //the same type info as the one of a list body
+        String prefix = envelope.substring(0, envelope.length() - 1) + ",\"body\":[\"" + ArrayList.class.getName() + "\",";
+        return new StreamingBodyInput(serializer, body, prefix, "]}");
+    }
+
+    private static class FrameInput implements ChunkedInput<WebSocketFrame> {
+
+        private final StreamingBodyInput input;
+        private boolean first = true;
+
+        FrameInput(StreamingBodyInput input) {
+            this.input = input;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return input.isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception {
+            input.close();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public WebSocketFrame readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public WebSocketFrame readChunk(ByteBufAllocator allocator) throws Exception {
+            ByteBuf batch = input.readChunk(allocator);
+            if (batch == null) {
+                return null;
+            }
+            boolean last = input.isEndOfInput();
+            WebSocketFrame frame = first ? new TextWebSocketFrame(last, 0, batch) : new ContinuationWebSocketFrame(last, 0, batch);
+            first = false;
+            return frame;
+        }
+
+        @Override
+        public long length() {
+            return input.length();
+        }
+
+        @Override
+        public long progress() {
+            return input.progress();
+        }
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         logger.debug("WebSocket response handler channel become inactive (disconnecting from Client)!");
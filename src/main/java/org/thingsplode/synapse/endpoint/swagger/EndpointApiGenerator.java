@@ -16,6 +16,10 @@
 package org.thingsplode.synapse.endpoint.swagger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.swagger.config.SwaggerConfig;
 import io.swagger.jaxrs.SynapseReader;
@@ -25,30 +29,49 @@ import io.swagger.jaxrs.config.SynapseBeanConfig;
 import io.swagger.jaxrs.listing.SwaggerSerializers;
 import io.swagger.models.Swagger;
 import io.swagger.util.Yaml;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.CRC32;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsplode.synapse.core.annotations.RequestMapping;
 import org.thingsplode.synapse.core.annotations.Service;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.endpoint.handlers.FileRequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.StaticContentCache;
+import org.thingsplode.synapse.serializers.SerializationService;
 import org.thingsplode.synapse.util.Util;
 import org.thingsplode.synapse.core.annotations.RequestProperty;
 
 /**
  * A swagger scanner to list the endpoint information;
+ * <br>
+ * The spec is rendered once per format and host (the Host of the request
+ * replaces the host of the model) and the bytes are served from memory with
+ * an ETag until a service is published or unpublished. The clients polling the
+ * spec are answered with "304 Not Modified" while their copy is current. The
+ * clients accepting gzip are served a gzip rendering (compressed once, on its
+ * first request) with its own ETag, as the static content is.
  *
  * @author Csaba Tamas
  */
 @Service("/services/")
 public class EndpointApiGenerator {
 
+    //the Host header is set by the clients: the rendering of the others is not kept
+    static final int MAX_CACHED_SPECS = 16;
     private final Logger logger = LoggerFactory.getLogger(EndpointApiGenerator.class);
-    static boolean initialized = false;
-    static Swagger swaggerModel;
+    //the model, the packages and the rendered specs are guarded by this
+    private boolean initialized = false;
+    private Swagger swaggerModel;
+    private final Map<String, Spec> specs = new HashMap<>();
     final private Set<String> packages = new HashSet<>();
     final private String apiVersion;
     final private String host;
@@ -77,7 +100,8 @@ public class EndpointApiGenerator {
         SwaggerSerializers.setPrettyPrint(bcScanner.getPrettyPrint());
         Set<Class<?>> classes = bcScanner.classes();
         if (classes != null) {
-            SynapseReader reader = new SynapseReader(swaggerModel, new ReaderConfig() {
+            //a new model: the services unpublished since the last scan are not listed
+            SynapseReader reader = new SynapseReader(null, new ReaderConfig() {
                 @Override
                 public boolean isScanAllResources() {
                     return true;
@@ -97,63 +121,166 @@ public class EndpointApiGenerator {
         initialized = true;
     }
 
-    abstract class Template {
+    /**
+     * Scans the class path and renders the json spec of the configured host on
+     * a background thread, so the first request is not waiting for it.
+     */
+    public void warmUp() {
+        Thread warmUp = new Thread(() -> {
+            try {
+                spec(false, null, false).content.release();
+                logger.debug("The swagger spec is ready.");
+            } catch (SerializationException | IOException | RuntimeException ex) {
+                logger.warn("Warming up the swagger spec failed: " + ex.getMessage(), ex);
+            }
+        }, "swagger-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * The class path is scanned again and the specs are rendered again on the
+     * next request (eg. a service is published).
+     */
+    public synchronized void invalidate() {
+        initialized = false;
+        specs.values().forEach(Spec::release);
+        specs.clear();
+    }
+
+    public synchronized void addPackageToBeScanned(String pack) {
+        if (this.packages.add(pack)) {
+            invalidate();
+        }
+    }
 
-        Response execute() {
+    /**
+     * @param yaml
+     * @param host the host of the request or null
+     * @param gzip the gzip rendering is requested
+     * @return the rendered spec (its content is owned by the caller) or null if
+     * there is no model
+     */
+    private synchronized Spec spec(boolean yaml, String host, boolean gzip) throws SerializationException, IOException {
+        String key = (yaml ? "yaml:" : "json:") + (host != null ? host : "");
+        Spec spec = specs.get(key);
+        if (spec == null) {
             if (!initialized) {
                 scan();
             }
-            if (swaggerModel != null) {
+            if (swaggerModel == null) {
+                return null;
+            }
+            spec = render(yaml, host);
+            if (specs.size() >= MAX_CACHED_SPECS) {
+                if (!gzip) {
+                    return spec;
+                }
                 try {
-                    Response.ResponseHeader h = new Response.ResponseHeader(HttpResponseStatus.OK);
-                    Response response = new Response(h);
-                    addBody(response);
-                    return response;
-                } catch (JsonProcessingException ex) {
-                    return new Response(new Response.ResponseHeader(HttpResponseStatus.METHOD_NOT_ALLOWED), ex.getClass().getSimpleName() + ": " + ex.getMessage());
+                    return new Spec(StaticContentCache.gzip(spec.content), spec.getGzipEtag());
+                } finally {
+                    spec.content.release();
                 }
-            } else {
-                return new Response(new Response.ResponseHeader(HttpResponseStatus.METHOD_NOT_ALLOWED), "Swagger scanner is not set");
             }
+            specs.put(key, spec);
         }
+        if (!gzip) {
+            return new Spec(spec.content.duplicate().retain(), spec.etag);
+        }
+        if (spec.gzipped == null) {
+            spec.gzipped = StaticContentCache.gzip(spec.content);
+        }
+        return new Spec(spec.gzipped.duplicate().retain(), spec.getGzipEtag());
+    }
 
-        abstract void addBody(Response response) throws JsonProcessingException;
+    private Spec render(boolean yaml, String host) throws SerializationException, JsonProcessingException {
+        String originalHost = swaggerModel.getHost();
+        if (host != null) {
+            swaggerModel.setHost(host);
+        }
+        byte[] rendered;
+        try {
+            rendered = yaml ? Yaml.mapper().writeValueAsBytes(swaggerModel) : SerializationService.getInstance().getSerializer(MediaType.APPLICATION_JSON).marshall(swaggerModel);
+        } finally {
+            swaggerModel.setHost(originalHost);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(rendered);
+        ByteBuf content = Unpooled.directBuffer(rendered.length).writeBytes(rendered);
+        return new Spec(content, "\"" + Integer.toHexString(rendered.length) + "-" + Long.toHexString(crc.getValue()) + "\"");
     }
 
-    public void addPackageToBeScanned(String pack) {
-        this.packages.add(pack);
+    private Response respond(boolean yaml, String host, String ifNoneMatch, String acceptEncoding, MediaType contentType) {
+        boolean gzip = FileRequestHandler.acceptsGzip(acceptEncoding);
+        Spec spec;
+        try {
+            spec = spec(yaml, Util.isEmpty(host) ? null : host, gzip);
+        } catch (SerializationException | IOException ex) {
+            return new Response(new Response.ResponseHeader(HttpResponseStatus.METHOD_NOT_ALLOWED), ex.getClass().getSimpleName() + ": " + ex.getMessage());
+        }
+        if (spec == null) {
+            return new Response(new Response.ResponseHeader(HttpResponseStatus.METHOD_NOT_ALLOWED), "Swagger scanner is not set");
+        }
+        boolean notModified = FileRequestHandler.matchesIfNoneMatch(ifNoneMatch, spec.etag);
+        Response.ResponseHeader h = new Response.ResponseHeader(notModified ? HttpResponseStatus.NOT_MODIFIED : HttpResponseStatus.OK);
+        h.setContentType(contentType);
+        h.addProperty(HttpHeaderNames.ETAG.toString(), spec.etag);
+        //the shared caches must not serve the gzip rendering to the clients not accepting it
+        h.addProperty(HttpHeaderNames.VARY.toString(), HttpHeaderNames.ACCEPT_ENCODING.toString());
+        //revalidated by every request (the services may be published at any time)
+        h.addProperty(HttpHeaderNames.CACHE_CONTROL.toString(), HttpHeaderValues.NO_CACHE.toString());
+        if (notModified) {
+            spec.content.release();
+            return new Response(h);
+        }
+        if (gzip) {
+            //passed through by the response compressor
+            h.addProperty(HttpHeaderNames.CONTENT_ENCODING.toString(), HttpHeaderValues.GZIP.toString());
+        }
+        //sent as it is (the http response holds a reference to the rendered bytes)
+        return new Response(h, spec.content);
     }
 
     @RequestMapping("/json")
-    public Response getListingJson(@RequestProperty("Host") String host) {
-        Template t = new Template() {
-            @Override
-            void addBody(Response response) throws JsonProcessingException {
-                response.getHeader().setContentType(new MediaType("application/json"));
-                if (!Util.isEmpty(host)) {
-                    //todo: this method overwrites the original host value (which might not be a big problem)
-                    swaggerModel.setHost(host);
-                }
-                response.setBody(swaggerModel);
-            }
-        };
-        return t.execute();
+    public Response getListingJson(@RequestProperty("Host") String host, @RequestProperty(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestProperty(value = "Accept-Encoding", required = false) String acceptEncoding) {
+        return respond(false, host, ifNoneMatch, acceptEncoding, new MediaType("application/json"));
     }
 
     @RequestMapping("/yaml")
-    public Response getListingYaml(@RequestProperty("Host") String host) {
-        Template t = new Template() {
-            @Override
-            void addBody(Response response) throws JsonProcessingException {
-                response.getHeader().setContentType(new MediaType("text/plain"));
-                if (!Util.isEmpty(host)) {
-                    //todo: this method overwrites the original host value (which might not be a big problem)
-                    swaggerModel.setHost(host);
-                }
-                response.setBody(Yaml.mapper().writeValueAsString(swaggerModel));
-            }
-        };
-        return t.execute();
+    public Response getListingYaml(@RequestProperty("Host") String host, @RequestProperty(value = "If-None-Match", required = false) String ifNoneMatch,
+            @RequestProperty(value = "Accept-Encoding", required = false) String acceptEncoding) {
+        return respond(true, host, ifNoneMatch, acceptEncoding, new MediaType("text/plain"));
     }
 
+    /**
+     * A rendered spec and its ETag.
+     */
+    private static final class Spec {
+
+        private final ByteBuf content;
+        private final String etag;
+        //the gzip rendering of a cached spec, guarded by the generator
+        private ByteBuf gzipped;
+
+        Spec(ByteBuf content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+
+        /**
+         * @return the ETag of the gzip rendering (a different representation
+         * than the identity one)
+         */
+        String getGzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+
+        void release() {
+            content.release();
+            if (gzipped != null) {
+                gzipped.release();
+            }
+        }
+    }
 }
@@ -5,10 +5,11 @@
  */
 package org.thingsplode.synapse.endpoint.swagger;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.util.regex.Pattern;
 
 /**
@@ -19,7 +20,16 @@ public class Loader {
 
     private static final Pattern INSECURE_URI_PATTERN = Pattern.compile(".*[<>&\"].*");
 
-    public static RandomAccessFile extractResource(String path) throws IOException {
+    /**
+     * Reads a resource of the WEB-INF folder of the class path (eg. the
+     * swagger ui) into an off-heap buffer.
+     *
+     * @param path
+     * @return the content of the resource (to be released by the caller) or
+     * null if the path cannot denote a resource
+     * @throws IOException if the resource is not found
+     */
+    public static ByteBuf readResource(String path) throws IOException {
         if (path == null || path.isEmpty() || path.endsWith("/")) {
             return null;
         }
@@ -35,21 +45,21 @@ public class Loader {
         }
         InputStream is = ClassLoader.getSystemClassLoader().getResourceAsStream("WEB-INF" + path);
         if (is == null) {
-            Loader.class.getResourceAsStream("/WEB-INF" + path);
+            is = Loader.class.getResourceAsStream("/WEB-INF" + path);
         }
         if (is == null) {
             throw new IOException("Could not found /WEB-INF" + path);
         }
 
-        RandomAccessFile raf = new RandomAccessFile(File.createTempFile("syn", "tmp"), "rwd");
-        //byte[] buffer = new byte[8192];
-        byte[] buffer = new byte[16384];
-        int tmp;
-
-        while ((tmp = is.read(buffer)) != -1) {
-            raf.write(buffer, 0, tmp);
+        ByteBuf content = Unpooled.directBuffer(Math.max(is.available(), 256));
+        try (InputStream in = is) {
+            while (content.writeBytes(in, 16384) != -1) {
+            }
+            //held for long (cached), the spare capacity is given back
+            return content.capacity(content.writerIndex());
+        } catch (IOException | RuntimeException ex) {
+            content.release();
+            throw ex;
         }
-        raf.seek(0);
-        return raf;
     }
 }
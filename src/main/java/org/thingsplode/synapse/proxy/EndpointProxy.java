@@ -19,14 +19,14 @@ import org.thingsplode.synapse.MessageIdGeneratorStrategy;
 import org.thingsplode.synapse.DispatchedFutureHandler;
 import org.thingsplode.synapse.MsgIdRspCorrelator;
 import org.thingsplode.synapse.BlockingRspCorrelator;
+import org.thingsplode.synapse.TransportOptions;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponseDecoder;
@@ -53,6 +53,7 @@ import org.thingsplode.synapse.proxy.handlers.InboundExceptionHandler;
 import org.thingsplode.synapse.proxy.handlers.HttpResponseIntrospector;
 import org.thingsplode.synapse.proxy.handlers.RequestEncoder;
 import org.thingsplode.synapse.proxy.handlers.Request2HttpRequestEncoder;
+import org.thingsplode.synapse.proxy.handlers.RequestCompressor;
 import org.thingsplode.synapse.proxy.handlers.Request2WsRequestEncoder;
 import org.thingsplode.synapse.proxy.handlers.ResponseHandler;
 import org.thingsplode.synapse.proxy.handlers.WSMessageDecoder;
@@ -70,23 +71,31 @@ public class EndpointProxy {
     public final static SerializationService SERIALIZATION_SERVICE = SerializationService.getInstance();
     public final static String HTTP_REQUEST_ENCODER = "HTTP_REQUEST_ENCODER";
     public final static String HTTP_RESPONSE_DECODER = "HTTP_RESPONSE_DECODER";
+    public final static String HTTP_RESPONSE_DECOMPRESSOR = "HTTP_RESPONSE_DECOMPRESSOR";
     public final static String HTTP_RESPONSE_AGGREGATOR = "HTTP_RESPONSE_AGGREGATOR";
+    public final static String HTTP_REQUEST_COMPRESSOR = "HTTP_REQUEST_COMPRESSOR";
     public final static String REQUEST2HTTP_REQUEST_ENCODER = "REQUEST2HTTP_REQUEST_ENCODER";
     public final static String REQUEST2WS_REQUEST_ENCODER = "REQUEST2WS_REQUEST_ENCODER";
     public final static String COMMANDRESULT2WS_ENCODER = "COMMANDRESULT2WS_ENCODER";
     public final static String HTTP_RSP2RESPONSE_DECODER = "HTTP_RSP2RESPONSE_DECODER";
     public final static String WS_MESSAGE_DECODER = "WS_MESSAGE_DECODER";
+    public final static String WS_FRAME_AGGREGATOR = "WS_FRAME_AGGREGATOR";
     public final static String CMD_AND_NOTIFICATION_HANDLER = "CMD_AND_NOTIFICATION_HANDLER";
     public final static String DEFAULT_NOTIFICATION_TOPIC = "DEFAULT_TOPIC";
+    public final static int MAX_RESPONSE_SIZE = 1048576;
     private final Logger logger = LoggerFactory.getLogger(EndpointProxy.class);
     private final URI connectionUri;
-    private final EventLoopGroup group = new NioEventLoopGroup();
+    private EventLoopGroup group = null;
+    private boolean sharedGroup = false;
+    private TransportOptions transportOptions = new TransportOptions();
     private SslContext sslContext = null;
     private Bootstrap b = null;
     private final HashSet<Dispatcher> dispatchers = new HashSet<>();
     private boolean introspection = false;
+    private RequestCompressor requestCompressor = null;
     private int connectTimeout = 3000;
     private ComponentLifecycle lifecycle = ComponentLifecycle.UNITIALIZED;
+    private Thread shutdownHook = null;
     private final Dispatcher.DispatcherPattern dispatchPattern;
     private DispatchedFutureHandler dfh;
     private boolean retryConnection = false;
@@ -127,9 +136,11 @@ public class EndpointProxy {
 
     public EndpointProxy initialize() {
         b = new Bootstrap();
+        if (group == null) {
+            group = transportOptions.newWorkerGroup();
+        }
         try {
             b.group(group)
-                    .channel(NioSocketChannel.class)
                     .handler(new ChannelInitializer() {
                         @Override
                         protected void initChannel(Channel ch) throws Exception {
@@ -139,15 +150,19 @@ public class EndpointProxy {
                             }
                             //todo: tune the values here
                             //p.addLast(new HttpClientCodec());
-                            //p.addLast(new HttpContentDecompressor());
                             p.addLast(HTTP_REQUEST_ENCODER, new HttpRequestEncoder());
                             p.addLast(HTTP_RESPONSE_DECODER, new HttpResponseDecoder());
-                            p.addLast(HTTP_RESPONSE_AGGREGATOR, new HttpObjectAggregator(1048576));
+                            //the gzip or deflate encoded responses (accepted by the request encoder)
+                            p.addLast(HTTP_RESPONSE_DECOMPRESSOR, new HttpContentDecompressor());
+                            p.addLast(HTTP_RESPONSE_AGGREGATOR, new HttpObjectAggregator(MAX_RESPONSE_SIZE));
                             if (introspection) {
                                 p.addLast(httpResponseIntrospector);
                             }
                             switch (transport.transportType) {
                                 case HTTP: {
+                                    if (requestCompressor != null) {
+                                        p.addLast(HTTP_REQUEST_COMPRESSOR, requestCompressor);
+                                    }
                                     p.addLast(REQUEST2HTTP_REQUEST_ENCODER, new Request2HttpRequestEncoder());
                                     break;
                                 }
@@ -178,13 +193,22 @@ public class EndpointProxy {
                             p.addLast(inboundExceptionHandler);
                         }
                     });
+            //the channel of the transport (native epoll or NIO) and its socket options
+            transportOptions.configure(b);
             b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
         } finally {
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                this.logger.info("Activating endpoint proxy (client) shutdown hook...");
-                this.stop();
-                ForkJoinPool.commonPool().awaitQuiescence(5, TimeUnit.SECONDS);
-            }));
+            if (shutdownHook == null) {
+                //registered once, the proxy can be initialized again after it is stopped
+                shutdownHook = new Thread(() -> {
+                    this.logger.info("Activating endpoint proxy (client) shutdown hook...");
+                    if (this.lifecycle == ComponentLifecycle.INITIALIZED) {
+                        //not stopped already
+                        this.stop();
+                    }
+                    ForkJoinPool.commonPool().awaitQuiescence(5, TimeUnit.SECONDS);
+                });
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
         }
         this.lifecycle = ComponentLifecycle.INITIALIZED;
         return this;
@@ -223,6 +247,59 @@ public class EndpointProxy {
         return this;
     }
 
+    /**
+     * The socket transport (native epoll or NIO) and the socket options of the
+     * connections.
+     *
+     * @param transportOptions
+     * @return
+     */
+    public EndpointProxy transportOptions(TransportOptions transportOptions) {
+        if (this.lifecycle == ComponentLifecycle.INITIALIZED) {
+            throw new IllegalStateException("Please set this value before starting the " + EndpointProxy.class.getSimpleName());
+        }
+        this.transportOptions = transportOptions;
+        return this;
+    }
+
+    /**
+     * Serves the connections of this proxy on an event loop group shared with
+     * other proxies (eg. created by
+     * {@link TransportOptions#newWorkerGroup()}), instead of creating its own.
+     * The shared group is not shut down when the proxy is stopped.
+     *
+     * @param sharedGroup
+     * @return
+     */
+    public EndpointProxy eventLoopGroup(EventLoopGroup sharedGroup) {
+        if (this.lifecycle == ComponentLifecycle.INITIALIZED) {
+            throw new IllegalStateException("Please set this value before starting the " + EndpointProxy.class.getSimpleName());
+        }
+        this.group = sharedGroup;
+        this.sharedGroup = true;
+        return this;
+    }
+
+    /**
+     * Gzips the request bodies larger than the threshold (only for the http
+     * transport; the endpoint must accept compressed requests, as the synapse
+     * endpoints do). The compressed responses are always accepted.
+     *
+     * @param thresholdBytes the smaller bodies are sent uncompressed
+     * @param level the compression level, 1 (fastest) - 9 (best)
+     * @return
+     */
+    public EndpointProxy compressRequests(int thresholdBytes, int level) {
+        if (this.lifecycle == ComponentLifecycle.INITIALIZED) {
+            throw new IllegalStateException("Please set this value before starting the " + EndpointProxy.class.getSimpleName());
+        }
+        if (thresholdBytes < 0 || level < 1 || level > 9) {
+            throw new IllegalArgumentException("The threshold cannot be negative and the level must be between 1 and 9.");
+        }
+        this.requestCompressor = new RequestCompressor(thresholdBytes, level);
+        return this;
+    }
+
     public EndpointProxy enableIntrospection() {
         if (this.lifecycle == ComponentLifecycle.INITIALIZED) {
             throw new IllegalStateException("Please set this value before starting the " + EndpointProxy.class.getSimpleName());
@@ -243,7 +320,10 @@ public class EndpointProxy {
                 logger.warn("Interrupted while destroying duspatcher: " + ex.getMessage());
             }
         });
-        group.shutdownGracefully();
+        if (!sharedGroup) {
+            group.shutdownGracefully();
+            group = null;
+        }
         this.lifecycle = ComponentLifecycle.UNITIALIZED;
     }
 
@@ -23,6 +23,7 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Optional;
@@ -43,6 +44,10 @@ import org.thingsplode.synapse.util.Util;
 public class HttpResponse2ResponseDecoder extends MessageToMessageDecoder<HttpResponse> {
 
     private static final Logger logger = LoggerFactory.getLogger(HttpResponse2ResponseDecoder.class);
+    private static final AsciiString MESSAGE_ID = AsciiString.of(AbstractMessage.PROP_MESSAGE_ID);
+    private static final AsciiString CORRELATION_ID = AsciiString.of(AbstractMessage.PROP_CORRELATION_ID);
+    private static final AsciiString PROTOCOL_VERSION = AsciiString.of(AbstractMessage.PROP_PROTOCOL_VERSION);
+    private static final AsciiString BODY_TYPE = AsciiString.of(AbstractMessage.PROP_BODY_TYPE);
 
     @Override
     protected void decode(ChannelHandlerContext ctx, HttpResponse httpResponse, List<Object> out) throws Exception {
@@ -51,10 +56,11 @@ public class HttpResponse2ResponseDecoder extends MessageToMessageDecoder<HttpRe
         }
         //todo: convert to commands too
         Response rsp = new Response(new Response.ResponseHeader(httpResponse.status()));
-        rsp.getHeader().addAllProperties(httpResponse.headers().entries());
-        rsp.getHeader().setMsgId(httpResponse.headers().get(AbstractMessage.PROP_MESSAGE_ID));
-        rsp.getHeader().setCorrelationId(httpResponse.headers().get(AbstractMessage.PROP_CORRELATION_ID));
-        rsp.getHeader().setProtocolVersion(httpResponse.headers().get(AbstractMessage.PROP_PROTOCOL_VERSION));
+        //no copy: the properties are looked up in the http headers
+        rsp.getHeader().setTransportHeaders(httpResponse.headers());
+        rsp.getHeader().setMsgId(httpResponse.headers().get(MESSAGE_ID));
+        rsp.getHeader().setCorrelationId(httpResponse.headers().get(CORRELATION_ID));
+        rsp.getHeader().setProtocolVersion(httpResponse.headers().get(PROTOCOL_VERSION));
         rsp.getHeader().setContentType(new MediaType(httpResponse.headers().get(HttpHeaderNames.CONTENT_TYPE)));
         rsp.getHeader().setRemoteAddress(ctx.channel().remoteAddress());
 
@@ -63,7 +69,7 @@ public class HttpResponse2ResponseDecoder extends MessageToMessageDecoder<HttpRe
             byte[] dst = new byte[contentBuffer.capacity()];
             contentBuffer.getBytes(0, dst);
             String jsonResponse = new String(dst, Charset.forName("UTF-8"));
-            String bodyType = httpResponse.headers().get(AbstractMessage.PROP_BODY_TYPE);
+            String bodyType = httpResponse.headers().get(BODY_TYPE);
             if (Util.notEmpty(bodyType)) {
                 try {
                     Class clz = Class.forName(bodyType);
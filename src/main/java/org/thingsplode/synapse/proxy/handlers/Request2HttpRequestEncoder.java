@@ -77,8 +77,8 @@ public class Request2HttpRequestEncoder extends MessageToMessageEncoder<Request>
             out.headers().add(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         }
 
-        if (request.getHeader() != null && request.getHeader().getProperties() != null) {
-            request.getHeader().getProperties().forEach((k, v) -> {
+        if (request.getHeader() != null) {
+            request.getHeader().forEachProperty((k, v) -> {
                 out.headers().set(new AsciiString(k), new AsciiString(v != null ? v : ""));
             });
         }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.proxy.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.thingsplode.synapse.core.MediaType;
+
+/**
+ * Gzips the request bodies larger than a threshold (the endpoint decompresses
+ * them before the services read them). The bodies with a Content-Encoding or
+ * a content type which is not textual are sent as they are.
+ *
+ * @author Csaba Tamas
+ */
+@ChannelHandler.Sharable
+public class RequestCompressor extends MessageToMessageEncoder<FullHttpRequest> {
+
+    private final int threshold;
+    private final int level;
+
+    /**
+     * @param threshold the smallest body compressed, in bytes
+     * @param level the compression level (1: fastest - 9: best)
+     */
+    public RequestCompressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, FullHttpRequest request, List<Object> out) throws Exception {
+        if (request.content().readableBytes() < threshold || request.headers().contains(HttpHeaderNames.CONTENT_ENCODING) || !isCompressible(request)) {
+            out.add(request.retain());
+            return;
+        }
+        ByteBuf compressed = gzip(ctx, request.content());
+        if (compressed.readableBytes() >= request.content().readableBytes()) {
+            compressed.release();
+            out.add(request.retain());
+            return;
+        }
+        FullHttpRequest encoded = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri(), compressed);
+        encoded.headers().set(request.headers());
+        encoded.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        encoded.headers().set(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+        out.add(encoded);
+    }
+
+    private ByteBuf gzip(ChannelHandlerContext ctx, ByteBuf content) throws IOException {
+        ByteBuf compressed = ctx.alloc().buffer(Math.max(content.readableBytes() / 4, 64));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(new ByteBufOutputStream(compressed), 8192) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            content.getBytes(content.readerIndex(), gzip, content.readableBytes());
+        } catch (IOException | RuntimeException ex) {
+            compressed.release();
+            throw ex;
+        }
+        return compressed;
+    }
+
+    //the content type is missing if the body is serialized by the proxy
+    private static boolean isCompressible(FullHttpRequest request) {
+        String contentType = request.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        return contentType == null || MediaType.isCompressible(contentType);
+    }
+}
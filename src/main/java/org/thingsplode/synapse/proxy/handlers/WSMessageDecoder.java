@@ -30,6 +30,7 @@ import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
 import io.netty.util.CharsetUtil;
 import io.netty.util.concurrent.ScheduledFuture;
@@ -90,6 +91,8 @@ public class WSMessageDecoder extends SimpleChannelInboundHandler<Object> {
         Channel ch = ctx.channel();
         if (!handshaker.isHandshakeComplete()) {
             handshaker.finishHandshake(ch, (FullHttpResponse) msg);
+            //the streamed responses are fragmented into continuation frames
+            ctx.pipeline().addBefore(ctx.name(), EndpointProxy.WS_FRAME_AGGREGATOR, new WebSocketFrameAggregator(EndpointProxy.MAX_RESPONSE_SIZE));
             logger.debug("Websocket@EndpointProxy: client is conencted.");
             handshakeFuture.setSuccess();
             return;
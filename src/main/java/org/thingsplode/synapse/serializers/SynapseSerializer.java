@@ -15,6 +15,12 @@
  */
 package org.thingsplode.synapse.serializers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import org.thingsplode.synapse.core.MediaRange;
 import org.thingsplode.synapse.core.exceptions.SerializationException;
 
@@ -31,5 +37,69 @@ public interface SynapseSerializer<WIREFORMAT> {
     
     byte[] marshall(Object object) throws SerializationException;
 
+    /**
+     * Serializes the object into the buffer (eg. a pooled direct buffer
+     * allocated by the channel), starting at the writer index. Serializers
+     * should override it to write straight into the buffer; the default
+     * implementation copies the result of {@link #marshall(java.lang.Object)}.
+     *
+     * @param object
+     * @param target
+     * @throws SerializationException
+     */
+    default void marshall(Object object, ByteBuf target) throws SerializationException {
+        target.writeBytes(marshall(object));
+    }
+
     <T> T unMarshall(Class<T> objectType, WIREFORMAT wirecontent) throws SerializationException;
+
+    /**
+     * Deserializes the UTF-8 encoded content of the stream (eg. the body of
+     * an http request). Serializers should override it to read the stream
+     * without building an intermediate String; the default implementation
+     * reads the whole stream and passes it to
+     * {@link #unMarshall(java.lang.Class, java.lang.Object)}, which only works
+     * for the String wire formats.
+     *
+     * @param <T>
+     * @param objectType
+     * @param wirecontent
+     * @return
+     * @throws SerializationException
+     */
+    @SuppressWarnings("unchecked")
+    default <T> T unMarshall(Class<T> objectType, InputStream wirecontent) throws SerializationException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        try {
+            int read;
+            while ((read = wirecontent.read(chunk)) != -1) {
+                content.write(chunk, 0, read);
+            }
+        } catch (IOException ex) {
+            throw new SerializationException("Could not read content: " + ex.getMessage(), ex);
+        }
+        try {
+            return unMarshall(objectType, (WIREFORMAT) new String(content.toByteArray(), StandardCharsets.UTF_8));
+        } catch (ClassCastException ex) {
+            throw new SerializationException(getClass().getSimpleName() + " must override unMarshall(Class, InputStream): its wire format is not a String.", ex);
+        }
+    }
+
+    /**
+     * Deserializes the readable bytes of the buffer (the reader index of the
+     * buffer is not modified).
+     *
+     * @param <T>
+     * @param objectType
+     * @param wirecontent
+     * @return the deserialized object or null if the buffer is empty
+     * @throws SerializationException
+     */
+    default <T> T unMarshall(Class<T> objectType, ByteBuf wirecontent) throws SerializationException {
+        if (wirecontent == null || !wirecontent.isReadable()) {
+            return null;
+        }
+        return unMarshall(objectType, new ByteBufInputStream(wirecontent.duplicate()));
+    }
 }
@@ -18,9 +18,17 @@ package org.thingsplode.synapse.serializers.gson;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import org.thingsplode.synapse.core.MediaRange;
@@ -28,6 +36,7 @@ import org.thingsplode.synapse.core.exceptions.SerializationException;
 import org.thingsplode.synapse.serializers.SynapseSerializer;
 import org.thingsplode.synapse.serializers.gson.adapters.ClassTypeAdapter;
 import org.thingsplode.synapse.serializers.gson.adapters.HttpResponseStatusAdapter;
+import org.thingsplode.synapse.serializers.gson.adapters.MessageHeaderAdapterFactory;
 
 /**
  *
@@ -41,7 +50,8 @@ public class GsonSerializer implements SynapseSerializer<String> {
     public GsonSerializer(boolean prettyPrint, HashMap<Type, Object> typeaAdapters, List<ExclusionStrategy> exlusionStrategies) {
         GsonBuilder b = new GsonBuilder()
                 .registerTypeAdapter(Class.class, new ClassTypeAdapter())
-                .registerTypeAdapter(HttpResponseStatus.class, new HttpResponseStatusAdapter());
+                .registerTypeAdapter(HttpResponseStatus.class, new HttpResponseStatusAdapter())
+                .registerTypeAdapterFactory(new MessageHeaderAdapterFactory());
         if (typeaAdapters != null && !typeaAdapters.isEmpty()) {
             typeaAdapters.forEach((k, v) -> {
                 b.registerTypeAdapter(k, v);
@@ -79,11 +89,34 @@ public class GsonSerializer implements SynapseSerializer<String> {
 
     }
 
+    @Override
+    public void marshall(Object src, ByteBuf target) throws SerializationException {
+        if (src == null) {
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new ByteBufOutputStream(target), StandardCharsets.UTF_8);
+            gson.toJson(src, src.getClass(), writer);
+            writer.flush();
+        } catch (IOException | RuntimeException ex) {
+            throw new SerializationException("Could not serialize object of type [" + src.getClass().getName() + "] due to: " + ex.getMessage(), ex);
+        }
+    }
+
     @Override
     public <T> T unMarshall(Class<T> objectClass, String wirecontent) throws SerializationException {
         return gson.fromJson(wirecontent, objectClass);
     }
 
+    @Override
+    public <T> T unMarshall(Class<T> objectClass, InputStream wirecontent) throws SerializationException {
+        try {
+            return gson.fromJson(new InputStreamReader(wirecontent, StandardCharsets.UTF_8), objectClass);
+        } catch (RuntimeException ex) {
+            throw new SerializationException("Could not deserialize content: " + ex.getMessage(), ex);
+        }
+    }
+
     @Override
     public MediaRange getSupportedMediaRange() {
         return supportedRange;
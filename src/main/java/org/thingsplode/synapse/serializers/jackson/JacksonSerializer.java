@@ -27,7 +27,12 @@ import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.cfg.ConfigFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -105,6 +110,18 @@ public class JacksonSerializer implements SynapseSerializer<String> {
         }
     }
 
+    @Override
+    public void marshall(Object object, ByteBuf target) throws SerializationException {
+        if (object == null) {
+            return;
+        }
+        try {
+            mapper.writeValue((OutputStream) new ByteBufOutputStream(target), object);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not serialize object of type [" + object.getClass().getName() + "] due to: " + ex.getMessage(), ex);
+        }
+    }
+
     @Override
     public <T> T unMarshall(Class<T> objectType, String wirecontent) throws SerializationException {
         try {
@@ -118,6 +135,32 @@ public class JacksonSerializer implements SynapseSerializer<String> {
         }
     }
 
+    @Override
+    public <T> T unMarshall(Class<T> objectType, InputStream wirecontent) throws SerializationException {
+        try {
+            return mapper.readValue(wirecontent, objectType);
+        } catch (IOException ex) {
+            throw new SerializationException("Could not deserialize content: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public <T> T unMarshall(Class<T> objectType, ByteBuf wirecontent) throws SerializationException {
+        if (wirecontent == null || !wirecontent.isReadable()) {
+            return null;
+        }
+        try {
+            if (wirecontent.hasArray()) {
+                //heap buffer: the parser reads the backing array in place
+                return mapper.readValue(wirecontent.array(), wirecontent.arrayOffset() + wirecontent.readerIndex(), wirecontent.readableBytes(), objectType);
+            } else {
+                return mapper.readValue((InputStream) new ByteBufInputStream(wirecontent.duplicate()), objectType);
+            }
+        } catch (IOException ex) {
+            throw new SerializationException("Could not deserialize content: " + ex.getMessage(), ex);
+        }
+    }
+
     private void init(boolean prettyPrint, List<ConfigFeature> allowedFeatures, List<ConfigFeature> disabledFeatures, PropertyNamingStrategy propNaming) {
         //mapper.enableDefaultTyping(ObjectMapper.DefaultTyping.JAVA_LANG_OBJECT);
         //mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
@@ -20,11 +20,21 @@ import org.thingsplode.synapse.core.annotations.PathVariable;
 import org.thingsplode.synapse.core.annotations.RequestBody;
 import org.thingsplode.synapse.core.annotations.RequestMapping;
 import org.thingsplode.synapse.core.annotations.Service;
+import org.thingsplode.synapse.core.annotations.StreamingResponse;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.Response;
 import com.acme.synapse.testdata.services.core.Address;
 import com.acme.synapse.testdata.services.core.Tuple;
 import org.thingsplode.synapse.core.annotations.RequestParam;
+import org.thingsplode.synapse.core.RequestMethod;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  *
@@ -60,6 +70,22 @@ public class EndpointTesterService {
         System.out.println("\n\n User: [" + user + "] cleared");
     }
 
+    @RequestMapping({"async_add"})
+    public CompletableFuture<Response<Integer>> addAsync(@RequestParam("a") Integer a, @RequestParam("b") Integer b) {
+        return CompletableFuture.supplyAsync(() -> new Response<>(new Response.ResponseHeader(HttpResponseStatus.OK), a + b));
+    }
+
+    @RequestMapping({"async_verify"})
+    public CompletionStage<Address> verifyAddressAsync(@RequestBody Address address) {
+        CompletableFuture<Address> f = new CompletableFuture<>();
+        if (address.getPostalCode() < 0) {
+            f.completeExceptionally(new IllegalArgumentException("Invalid postal code."));
+        } else {
+            f.complete(verifyAddress(address));
+        }
+        return f;
+    }
+
     @RequestMapping({"check_address"})
     public Address verifyAddress(@RequestBody Address address) {
         System.out.println("Address received");
@@ -67,4 +93,26 @@ public class EndpointTesterService {
         return address;
     }
 
+    @RequestMapping(value = {"upload"}, method = {RequestMethod.POST, RequestMethod.PUT})
+    public Long upload(@RequestBody(maxSize = 4 * 1024 * 1024) InputStream content) throws IOException {
+        long size = 0;
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            size += read;
+        }
+        return size;
+    }
+
+    @RequestMapping({"sequence"})
+    public Stream<Integer> sequence(@RequestParam("count") Integer count) {
+        return IntStream.range(0, count).boxed();
+    }
+
+    @StreamingResponse
+    @RequestMapping({"listing"})
+    public List<Integer> listing(@RequestParam("count") Integer count) {
+        return sequence(count).collect(Collectors.toList());
+    }
+
 }
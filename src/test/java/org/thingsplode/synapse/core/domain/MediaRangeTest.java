@@ -18,6 +18,7 @@ package org.thingsplode.synapse.core.domain;
 import org.thingsplode.synapse.core.MediaType;
 import org.thingsplode.synapse.core.MediaRange;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -193,4 +194,13 @@ public class MediaRangeTest {
         MediaRange requested = new MediaRange("application/blah, text/plain");
         assertNull(MediaRange.getBestMatch(supported.getMediaTypes(), requested.getMediaTypes()));
     }
+
+    @Test
+    public void shouldRecognizeCompressibleTypes() {
+        assertTrue(MediaType.isCompressible("application/json; charset=UTF-8"));
+        assertTrue(MediaType.isCompressible("TEXT/HTML"));
+        assertTrue(MediaType.isCompressible("image/svg+xml"));
+        assertFalse(MediaType.isCompressible("image/png"));
+        assertFalse(MediaType.isCompressible(null));
+    }
 }
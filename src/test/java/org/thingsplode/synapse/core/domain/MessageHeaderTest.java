@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.core.domain;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsplode.synapse.core.MessageHeader;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.gson.GsonSerializer;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class MessageHeaderTest {
+
+    @Test
+    public void testTransportHeaders() {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set("Message-ID", "1");
+        headers.set("Content-Type", "application/json");
+        MessageHeader header = new MessageHeader();
+        header.setTransportHeaders(headers);
+        header.addProperty("Receive-Channel", "HTTP");
+        header.addProperty("content-type", "text/plain");
+
+        Assert.assertEquals("1", header.getProperty("message-id").get());
+        Assert.assertEquals("HTTP", header.getProperty("Receive-Channel").get());
+        Assert.assertEquals("The added properties take precedence.", "text/plain", header.getProperty("Content-Type").get());
+        Assert.assertEquals("text/plain", header.getProperty("CONTENT-TYPE").get());
+        Map<String, String> visited = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        header.forEachProperty((k, v) -> Assert.assertNull("Visited twice: " + k, visited.put(k, v)));
+        Assert.assertEquals(3, visited.size());
+        Assert.assertEquals("The overridden header is skipped.", "text/plain", visited.get("Content-Type"));
+
+        header.removeProperty("message-id");
+        Assert.assertFalse(header.getProperty("Message-ID").isPresent());
+        Assert.assertEquals(2, header.getProperties().size());
+        Assert.assertEquals("text/plain", header.getProperties().get("Content-Type"));
+        Assert.assertTrue("The transport headers are not modified.", headers.contains("Message-ID"));
+        //still case insensitive after the map is handed out
+        Assert.assertEquals("text/plain", header.getProperty("CONTENT-TYPE").get());
+        header.addProperty("CONTENT-TYPE", "text/html");
+        Assert.assertEquals(2, header.getProperties().size());
+        Assert.assertEquals("text/html", header.getProperty("content-type").get());
+    }
+
+    @Test
+    public void testGsonRoundTrip() throws SerializationException {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.set("Message-ID", "1");
+        headers.set("Content-Type", "application/json");
+        MessageHeader header = new MessageHeader("1");
+        header.setTransportHeaders(headers);
+        header.addProperty("Receive-Channel", "HTTP");
+
+        GsonSerializer serializer = new GsonSerializer(false, null, null);
+        String json = serializer.marshallToWireformat(header);
+        Assert.assertFalse("The transport headers are not serialized.", json.contains("transportHeaders"));
+        MessageHeader copy = serializer.unMarshall(MessageHeader.class, json);
+        Assert.assertEquals("1", copy.getMsgId());
+        Assert.assertEquals(3, copy.getProperties().size());
+        Assert.assertEquals("application/json", copy.getProperty("content-type").get());
+        Assert.assertEquals("HTTP", copy.getProperty("RECEIVE-CHANNEL").get());
+    }
+}
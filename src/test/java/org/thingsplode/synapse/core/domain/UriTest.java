@@ -19,6 +19,12 @@ import org.thingsplode.synapse.core.Uri;
 import java.io.UnsupportedEncodingException;
 import org.junit.Assert;
 import org.junit.Test;
+import org.thingsplode.synapse.core.MediaType;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.SerializationService;
+import org.thingsplode.synapse.serializers.SynapseSerializer;
 
 /**
  *
@@ -34,4 +40,40 @@ public class UriTest {
         Assert.assertEquals("parameter=1&param=2", uri.getQuery());
         Assert.assertTrue(uri.getQueryParameters().size() == 2);
     }
+
+    @Test
+    public void testQueryParameterLookup() throws UnsupportedEncodingException {
+        Uri uri = new Uri("/service/call?Name=a%20b&flag&&name=second&x%2By=1+2");
+        Assert.assertEquals("a b", uri.getQueryParamterValue("name"));
+        Assert.assertEquals("", uri.getQueryParamterValue("FLAG"));
+        Assert.assertEquals("1 2", uri.getQueryParamterValue("x+y"));
+        Assert.assertNull(uri.getQueryParamterValue("other"));
+        Assert.assertTrue(uri.hasQueryParameter("NAME"));
+        Assert.assertEquals(3, uri.getDistinctQueryParameterCount());
+        Assert.assertEquals(4, uri.getQueryParameters().size());
+        Assert.assertEquals("second", uri.getQueryParameters().get(2).getValue());
+        Assert.assertEquals("?Name&flag&name&x+y", uri.createParameterExpression());
+        Assert.assertSame(uri.createParameterExpression(), uri.createParameterExpression());
+        Assert.assertEquals("", new Uri("/service/call").createParameterExpression());
+        uri.getQueryParameters().remove(3);
+        Assert.assertEquals("The list is kept.", 3, uri.getQueryParameters().size());
+    }
+
+    @Test
+    public void testMalformedEscapeKeptRaw() throws UnsupportedEncodingException {
+        Uri uri = new Uri("/service/call?a%zz=1&b=%zz");
+        Assert.assertTrue(uri.hasQueryParameter("a%zz"));
+        Assert.assertEquals("%zz", uri.getQueryParamterValue("b"));
+        Assert.assertEquals(2, uri.getDistinctQueryParameterCount());
+    }
+
+    @Test
+    public void testJson() throws UnsupportedEncodingException, SerializationException {
+        SynapseSerializer<String> serializer = SerializationService.getInstance().getSerializer(MediaType.APPLICATION_JSON);
+        String json = serializer.marshallToWireformat(Request.create(null, new Uri("/service/call?a=1&b=h%20i"), RequestMethod.GET));
+        Assert.assertTrue(json.contains("\"queryParameters\""));
+        Uri uri = serializer.unMarshall(Request.class, json).getHeader().getUri();
+        Assert.assertEquals("/service/call", uri.getPath());
+        Assert.assertEquals("h i", uri.getQueryParamterValue("b"));
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import com.acme.synapse.testdata.services.RpcEndpointImpl;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.thingsplode.synapse.endpoint.handlers.HttpRequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.HttpResponseHandler;
+import org.thingsplode.synapse.endpoint.handlers.RequestHandler;
+
+/**
+ * Measures the allocations per request of the endpoint handlers (decoded http
+ * request to encoded http response) with and without recycling the envelopes
+ * (see the gc.alloc.rate.norm of the gc profiler). Run it from the IDE or
+ * with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.thingsplode.synapse.endpoint.EnvelopeAllocationBenchmark
+ * </pre>
+ *
+ * @author Csaba Tamas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeAllocationBenchmark {
+
+    @Param({"false", "true"})
+    private boolean recycleEnvelopes;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setUp() {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.setRecycleEnvelopes(recycleEnvelopes);
+        registry.register("/rpc/", new RpcEndpointImpl());
+        //added to the already active channel (the connection context needs an inet address), before its inbound message queue
+        channel = new EmbeddedChannel();
+        channel.pipeline().addFirst(new HttpResponseHandler());
+        channel.pipeline().addFirst(new RequestHandler(registry, new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)));
+        channel.pipeline().addFirst(new HttpRequestHandler("benchmark", null, recycleEnvelopes));
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public int request() {
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/rpc/getInfo"));
+        FullHttpResponse response = channel.readOutbound();
+        int length = response.content().readableBytes();
+        response.release();
+        return length;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EnvelopeAllocationBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
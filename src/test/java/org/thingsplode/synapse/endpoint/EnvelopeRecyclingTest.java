@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import com.acme.synapse.testdata.services.RpcEndpointImpl;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.thingsplode.synapse.core.Envelopes;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.endpoint.handlers.HttpRequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.HttpResponseHandler;
+import org.thingsplode.synapse.endpoint.handlers.RequestHandler;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class EnvelopeRecyclingTest {
+
+    private static ResourceLeakDetector.Level level;
+
+    @BeforeClass
+    public static void setUpClass() {
+        //each envelope garbage collected without being released is reported
+        level = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        ResourceLeakDetector.setLevel(level);
+    }
+
+    static EmbeddedChannel newChannel(boolean recycleEnvelopes) {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.setRecycleEnvelopes(recycleEnvelopes);
+        registry.register("/rpc/", new RpcEndpointImpl());
+        //added to the already active channel (the connection context needs an inet address), before its inbound message queue
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addFirst(new HttpResponseHandler());
+        channel.pipeline().addFirst(new RequestHandler(registry, new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)));
+        channel.pipeline().addFirst(new HttpRequestHandler("test", null, recycleEnvelopes));
+        return channel;
+    }
+
+    static FullHttpResponse exchange(EmbeddedChannel channel, String uri) {
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+        return channel.readOutbound();
+    }
+
+    @Test
+    public void testRelease() {
+        long outstanding = Envelopes.outstanding();
+        EmbeddedChannel channel = newChannel(true);
+        for (int i = 0; i < 3; i++) {
+            FullHttpResponse info = exchange(channel, "/rpc/getInfo");
+            Assert.assertEquals(HttpResponseStatus.OK, info.status());
+            Assert.assertTrue(info.content().isReadable());
+            info.release();
+        }
+        //retried as a file request, which is not served here
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/rpc/missing"));
+        Assert.assertEquals("All the pooled envelopes must be released.", outstanding, Envelopes.outstanding());
+        channel.finish();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        Request<?> request = Envelopes.newRequest();
+        Assert.assertTrue(Envelopes.release(request));
+        Envelopes.release(request);
+    }
+}
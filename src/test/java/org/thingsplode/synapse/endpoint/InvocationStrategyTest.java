@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class InvocationStrategyTest {
+
+    @Test
+    public void testBoundedPoolRejection() throws InterruptedException {
+        InvocationStrategy strategy = InvocationStrategy.boundedPool(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        try {
+            strategy.execute(null, () -> {
+                started.countDown();
+                await(release);
+                done.countDown();
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            strategy.execute(null, done::countDown);
+            Assert.assertEquals(1, strategy.getQueueDepth());
+            Assert.assertEquals(2, strategy.getInFlightCount());
+            try {
+                strategy.execute(null, done::countDown);
+                Assert.fail("The request should have been rejected.");
+            } catch (RejectedExecutionException ex) {
+                Assert.assertEquals(1, strategy.getRejectedCount());
+            }
+            release.countDown();
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            strategy.shutdown();
+        }
+    }
+
+    @Test
+    public void testBulkheadIsolation() throws InterruptedException {
+        InvocationStrategy strategy = InvocationStrategy.bulkhead(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            strategy.execute("/slow", () -> await(release));
+            strategy.execute("/slow", () -> await(release));
+            //the other service is not affected by the saturated pool of the slow one
+            strategy.execute("/fast", done::countDown);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Integer.valueOf(1), strategy.getQueueDepths().get("/slow"));
+        } finally {
+            release.countDown();
+            strategy.shutdown();
+        }
+    }
+
+    @Test
+    public void testBulkheadRetire() throws InterruptedException {
+        InvocationStrategy strategy = InvocationStrategy.bulkhead(1, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            strategy.execute("/retired", done::countDown);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(strategy.getQueueDepths().containsKey("/retired"));
+            strategy.retire("/retired");
+            Assert.assertFalse("The pool of the unpublished service must be removed.", strategy.getQueueDepths().containsKey("/retired"));
+            //routed before the unpublishing: invoked on the caller thread (answered with 404), not given a new pool
+            Thread caller = Thread.currentThread();
+            AtomicBoolean inline = new AtomicBoolean();
+            strategy.execute("/retired", () -> inline.set(Thread.currentThread() == caller));
+            Assert.assertTrue(inline.get());
+            Assert.assertFalse(strategy.getQueueDepths().containsKey("/retired"));
+            //published again
+            strategy.reinstate("/retired");
+            CountDownLatch republished = new CountDownLatch(1);
+            strategy.execute("/retired", republished::countDown);
+            Assert.assertTrue(republished.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(strategy.getQueueDepths().containsKey("/retired"));
+        } finally {
+            strategy.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
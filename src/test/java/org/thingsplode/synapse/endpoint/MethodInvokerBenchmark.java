@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import com.acme.synapse.testdata.services.DummyMarkedEndpoint;
+import com.acme.synapse.testdata.services.EndpointTesterService;
+import com.acme.synapse.testdata.services.RpcEndpointImpl;
+import com.acme.synapse.testdata.services.TrickyService;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the invocation through the spun functional interfaces with the
+ * reflective one on the test services. The echo and add benchmarks call a
+ * single method per arity (the monomorphic best case); the polluted ones
+ * first call several methods of the same arity through the shared call
+ * sites, as an endpoint serving a few services does. Run it from the IDE or
+ * with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.thingsplode.synapse.endpoint.MethodInvokerBenchmark
+ * </pre>
+ *
+ * @author Csaba Tamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MethodInvokerBenchmark {
+
+    private MethodInvoker echoLambda;
+    private MethodInvoker echoReflective;
+    private MethodInvoker addLambda;
+    private MethodInvoker addReflective;
+    private final Object[] echoArgs = new Object[]{"hello"};
+    private final Object[] addArgs = new Object[]{Integer.valueOf(2), Integer.valueOf(3)};
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        RpcEndpointImpl rpc = new RpcEndpointImpl();
+        EndpointTesterService tester = new EndpointTesterService();
+        echoLambda = MethodInvoker.create(rpc, RpcEndpointImpl.class.getMethod("echo", String.class));
+        echoReflective = MethodInvoker.createReflective(rpc, RpcEndpointImpl.class.getMethod("echo", String.class));
+        addLambda = MethodInvoker.create(tester, EndpointTesterService.class.getMethod("add", Integer.class, Integer.class));
+        addReflective = MethodInvoker.createReflective(tester, EndpointTesterService.class.getMethod("add", Integer.class, Integer.class));
+    }
+
+    @Benchmark
+    public Object echoLambda() throws Throwable {
+        return echoLambda.invoke(echoArgs);
+    }
+
+    @Benchmark
+    public Object echoReflective() throws Throwable {
+        return echoReflective.invoke(echoArgs);
+    }
+
+    @Benchmark
+    public Object addLambda() throws Throwable {
+        return addLambda.invoke(addArgs);
+    }
+
+    @Benchmark
+    public Object addReflective() throws Throwable {
+        return addReflective.invoke(addArgs);
+    }
+
+    @Benchmark
+    public Object echoLambdaPolluted(Polluted polluted) throws Throwable {
+        return polluted.lambdas[0].invoke(polluted.args[0]);
+    }
+
+    @Benchmark
+    public Object echoReflectivePolluted(Polluted polluted) throws Throwable {
+        return polluted.reflectives[0].invoke(polluted.args[0]);
+    }
+
+    @Benchmark
+    public Object mixedLambda(Polluted polluted) throws Throwable {
+        int i = polluted.next();
+        return polluted.lambdas[i].invoke(polluted.args[i]);
+    }
+
+    @Benchmark
+    public Object mixedReflective(Polluted polluted) throws Throwable {
+        int i = polluted.next();
+        return polluted.reflectives[i].invoke(polluted.args[i]);
+    }
+
+    /**
+     * Single argument methods of different services: their invokers share
+     * the call site of the one-arity invoker.
+     */
+    @State(Scope.Thread)
+    public static class Polluted {
+
+        private static final int PROFILING_CALLS = 20000;
+        private final MethodInvoker[] lambdas = new MethodInvoker[4];
+        private final MethodInvoker[] reflectives = new MethodInvoker[4];
+        private final Object[][] args = new Object[][]{{"hello"}, {"hello"}, {"localhost"}, {Integer.valueOf(1)}};
+        private int index = 0;
+
+        @Setup
+        public void setUp() throws Throwable {
+            Object[] services = {new RpcEndpointImpl(), new DummyMarkedEndpoint(), new TrickyService(), new EndpointTesterService()};
+            Method[] methods = {
+                RpcEndpointImpl.class.getMethod("echo", String.class),
+                DummyMarkedEndpoint.class.getMethod("echo", String.class),
+                TrickyService.class.getMethod("getTrick", String.class),
+                EndpointTesterService.class.getMethod("listing", Integer.class)};
+            for (int i = 0; i < methods.length; i++) {
+                lambdas[i] = MethodInvoker.create(services[i], methods[i]);
+                reflectives[i] = MethodInvoker.createReflective(services[i], methods[i]);
+            }
+            //the type profiles of the shared call sites record all the targets
+            for (int n = 0; n < PROFILING_CALLS; n++) {
+                for (int i = 0; i < methods.length; i++) {
+                    lambdas[i].invoke(args[i]);
+                    reflectives[i].invoke(args[i]);
+                }
+            }
+        }
+
+        int next() {
+            index = (index + 1) & 3;
+            return index;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MethodInvokerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class MethodInvokerTest {
+
+    @Test
+    public void testLambdaInvokers() throws Throwable {
+        Calculator calculator = new Calculator();
+        MethodInvoker sum = MethodInvoker.create(calculator, Calculator.class.getMethod("sum", int.class, int.class));
+        Assert.assertTrue(sum instanceof MethodInvoker.Call2Invoker);
+        Assert.assertEquals(5, sum.invoke(new Object[]{2, 3}));
+        MethodInvoker reset = MethodInvoker.create(calculator, Calculator.class.getMethod("reset"));
+        Assert.assertTrue(reset instanceof MethodInvoker.VoidCall0Invoker);
+        Assert.assertNull(reset.invoke(new Object[0]));
+        Assert.assertEquals(0, calculator.total);
+        //beyond the fixed arity the spread method handle is used
+        MethodInvoker sum4 = MethodInvoker.create(calculator, Calculator.class.getMethod("sum", int.class, int.class, int.class, int.class));
+        Assert.assertTrue(sum4 instanceof MethodInvoker.MethodHandleInvoker);
+        Assert.assertEquals(10, sum4.invoke(new Object[]{1, 2, 3, 4}));
+    }
+
+    @Test
+    public void testHiddenServiceFallsBack() throws Throwable {
+        MethodInvoker echo = MethodInvoker.create(new HiddenService(), HiddenService.class.getMethod("echo", String.class));
+        Assert.assertTrue(echo instanceof MethodInvoker.MethodHandleInvoker);
+        Assert.assertEquals("hello", echo.invoke(new Object[]{"hello"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExceptionNotWrapped() throws Throwable {
+        MethodInvoker fail = MethodInvoker.create(new Calculator(), Calculator.class.getMethod("fail", String.class));
+        Assert.assertTrue(fail instanceof MethodInvoker.Call1Invoker);
+        fail.invoke(new Object[]{"failed"});
+    }
+
+    public static class Calculator {
+
+        int total = 7;
+
+        public int sum(int a, int b) {
+            return a + b;
+        }
+
+        public int sum(int a, int b, int c, int d) {
+            return a + b + c + d;
+        }
+
+        public void reset() {
+            total = 0;
+        }
+
+        public String fail(String message) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private static class HiddenService {
+
+        public String echo(String message) {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Uri;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class RouterTest {
+
+    private final ServiceRegistry registry = new ServiceRegistry();
+    private Router router;
+    private ServiceRegistry.MethodContext getDevice;
+    private ServiceRegistry.MethodContext deleteDevice;
+    private ServiceRegistry.MethodContext getSwitches;
+    private ServiceRegistry.MethodContext search;
+    private ServiceRegistry.MethodContext rootService;
+
+    @Before
+    public void setUp() throws NoSuchMethodException {
+        router = new Router();
+        getDevice = methodContext("/{userid}/devices", RequestMethod.GET);
+        deleteDevice = methodContext("/{userid}/devices", RequestMethod.DELETE);
+        getSwitches = methodContext("/{userid}/devices", RequestMethod.GET);
+        search = methodContext("/{userid}/devices", RequestMethod.GET);
+        search.parameters.add(queryParam("name", true));
+        search.parameters.add(queryParam("page", false));
+        rootService = methodContext("/");
+        router.add("/{userid}/devices", "{deviceId}", getDevice);
+        router.add("/{userid}/devices", "{deviceId}", deleteDevice);
+        router.add("/{userid}/devices", "switches", getSwitches);
+        router.add("/{userid}/devices", "search", search);
+        router.add("/", "status", rootService);
+    }
+
+    @Test
+    public void testStaticBeforeVariable() throws UnsupportedEncodingException {
+        Assert.assertSame(getSwitches, route("/u1/devices/switches", RequestMethod.GET));
+        Assert.assertSame(getDevice, route("/u1/devices/1234", RequestMethod.GET));
+        Assert.assertSame(getDevice, route("/U1/DEVICES/1234", RequestMethod.GET));
+    }
+
+    @Test
+    public void testRequestMethods() throws UnsupportedEncodingException {
+        Assert.assertSame(deleteDevice, route("/u1/devices/1234", RequestMethod.DELETE));
+        Assert.assertNull(route("/u1/devices/1234", RequestMethod.POST));
+        Assert.assertNull(route("/u1/devices/switches", RequestMethod.DELETE));
+    }
+
+    @Test
+    public void testQueryParameters() throws UnsupportedEncodingException {
+        Assert.assertSame(search, route("/u1/devices/search?name=x", RequestMethod.GET));
+        Assert.assertSame(search, route("/u1/devices/search?page=2&name=x", RequestMethod.GET));
+        Assert.assertNull(route("/u1/devices/search?page=2", RequestMethod.GET));
+        Assert.assertNull(route("/u1/devices/search?name=x&other=1", RequestMethod.GET));
+    }
+
+    @Test
+    public void testRootContext() throws UnsupportedEncodingException {
+        Assert.assertSame(rootService, route("/status", RequestMethod.GET));
+        Assert.assertNull(route("/", RequestMethod.GET));
+        Assert.assertNull(route("/u1/devices", RequestMethod.GET));
+        Assert.assertNull(route("/u1/devices/", RequestMethod.GET));
+        Assert.assertNull(route("/u1/other/1234", RequestMethod.GET));
+    }
+
+    @Test
+    public void testPathVariables() throws UnsupportedEncodingException, NoSuchMethodException {
+        ServiceRegistry.MethodContext owner = methodContext("/{userid}/devices", RequestMethod.GET);
+        owner.parameters.add(new MethodParam(null, MethodParam.ParameterSource.PATH_VARIABLE, "userid"));
+        owner.parameters.add(queryParam("verbose", false));
+        owner.parameters.add(new MethodParam(null, MethodParam.ParameterSource.PATH_VARIABLE, "ownerId"));
+        router.add("/{userid}/devices", "{deviceId}/owner/{ownerId}", owner);
+        String path = "/u1/devices/1234/owner/o-77";
+        Router.Route r = router.match(new Uri(path), RequestMethod.GET);
+        Assert.assertSame(owner, r.mc);
+        Assert.assertEquals("u1", r.pathVariable(path, 0));
+        Assert.assertNull(r.pathVariable(path, 1));
+        Assert.assertEquals("o-77", r.pathVariable(path, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndefinedPathVariable() throws NoSuchMethodException {
+        ServiceRegistry.MethodContext mc = methodContext("/{userid}/devices", RequestMethod.GET);
+        mc.parameters.add(new MethodParam(null, MethodParam.ParameterSource.PATH_VARIABLE, "groupId"));
+        router.add("/{userid}/devices", "{deviceId}", mc);
+    }
+
+    private ServiceRegistry.MethodContext route(String uri, RequestMethod method) throws UnsupportedEncodingException {
+        return router.route(new Uri(uri), method);
+    }
+
+    private ServiceRegistry.MethodContext methodContext(String rootCtx, RequestMethod... methods) throws NoSuchMethodException {
+        return registry.new MethodContext(rootCtx, this, RouterTest.class.getMethod("toString"), Arrays.asList(methods));
+    }
+
+    private MethodParam queryParam(String name, boolean required) {
+        MethodParam mp = new MethodParam(null, MethodParam.ParameterSource.QUERY_PARAM, name);
+        mp.required = required;
+        return mp;
+    }
+}
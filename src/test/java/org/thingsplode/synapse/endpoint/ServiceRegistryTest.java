@@ -29,6 +29,8 @@ import com.acme.synapse.testdata.services.core.Address;
 import com.acme.synapse.testdata.services.core.Device;
 import com.acme.synapse.testdata.services.core.Filter;
 import com.acme.synapse.testdata.services.core.Tuple;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.UnsupportedEncodingException;
@@ -41,6 +43,9 @@ import org.thingsplode.synapse.core.ParameterWrapper;
 import org.thingsplode.synapse.core.Request;
 import org.thingsplode.synapse.core.RequestMethod;
 import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
+import org.thingsplode.synapse.core.SynapseEndpointServiceMarker;
+import org.thingsplode.synapse.core.annotations.RequestBody;
 import org.thingsplode.synapse.core.exceptions.ExecutionException;
 import org.thingsplode.synapse.core.exceptions.MarshallerException;
 import org.thingsplode.synapse.core.exceptions.MethodNotFoundException;
@@ -125,6 +130,51 @@ public class ServiceRegistryTest {
         Assert.assertTrue(rsp2.getBody() == 1443546);
     }
 
+    @Test
+    public void testAsyncServices() throws UnsupportedEncodingException, MethodNotFoundException, ExecutionException, MissingParameterException, SerializationException {
+        Response<Integer> rsp = registry.invokeWithObjectAsync(new Request.RequestHeader("async-1", new Uri("/test/user.name/messages/async_add?a=2&b=3"), RequestMethod.GET), null).toCompletableFuture().join();
+        Assert.assertEquals(HttpResponseStatus.OK, rsp.getHeader().getResponseCode());
+        Assert.assertEquals("async-1", rsp.getHeader().getCorrelationId());
+        Assert.assertTrue(rsp.getBody() == 5);
+
+        Response<Address> rsp1 = registry.invokeWithObject(new Request.RequestHeader(null, new Uri("/test/user.name/messages/async_verify"), RequestMethod.GET), new Address("some street", "some country", 4040));
+        Assert.assertTrue(rsp1.getBody().getPostalCode() == 5050);
+        try {
+            registry.invokeWithObject(new Request.RequestHeader(null, new Uri("/test/user.name/messages/async_verify"), RequestMethod.GET), new Address("some street", "some country", -1));
+            Assert.fail("The failure of the service should be propagated.");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testUnregister() throws UnsupportedEncodingException {
+        registry.register("/other/rpc/", new RpcEndpointImpl());
+        Request.RequestHeader header = new Request.RequestHeader(null, new Uri("/other/rpc/echo"), RequestMethod.GET);
+        Assert.assertTrue(registry.getMethodContext(header).isPresent());
+        Assert.assertTrue(registry.getRouteExpressions().contains("/other/rpc"));
+
+        Assert.assertTrue(registry.unregister("/other/rpc"));
+        Assert.assertFalse(registry.getMethodContext(header).isPresent());
+        Assert.assertFalse(registry.getRouteExpressions().contains("/other/rpc"));
+        Assert.assertFalse(registry.unregister("/other/rpc"));
+        //the other services are not affected
+        Assert.assertTrue(registry.getMethodContext(new Request.RequestHeader(null, new Uri("/com/acme/synapse/testdata/services/RpcEndpointImpl/ping"), RequestMethod.GET)).isPresent());
+    }
+
+    @Test
+    public void testGeneratedRouteTable() throws UnsupportedEncodingException {
+        //the route table of the EndpointTesterService is generated by the RouteTableProcessor when the tests are compiled
+        ServiceRegistry.MethodContext generated = registry.route(new Request.RequestHeader(null, new Uri("/test/user.name/messages/add?a=1&b=2"), RequestMethod.GET));
+        Assert.assertNotNull(generated);
+        Assert.assertTrue(generated.invoker instanceof MethodInvoker.GeneratedInvoker);
+        Assert.assertEquals("add", generated.methodName);
+        //the CrudTestEndpointService has parameters bound by their java name, so it is registered by reflection
+        ServiceRegistry.MethodContext reflective = registry.route(new Request.RequestHeader(null, new Uri("/user1/devices/owner/old"), RequestMethod.GET));
+        Assert.assertNotNull(reflective);
+        Assert.assertFalse(reflective.invoker instanceof MethodInvoker.GeneratedInvoker);
+    }
+
     @Test
     public void testRequestBody() throws UnsupportedEncodingException, MethodNotFoundException, ExecutionException, MissingParameterException, SerializationException {
         //Optional<ServiceRegistry.MethodContext> opt = registry.getMethodContext(RequestMethod.GET, new Uri("/test/user.name/messages/check_address"));
@@ -148,6 +198,52 @@ public class ServiceRegistryTest {
 
     }
 
+    @Test
+    public void testStreamedRequestBody() throws UnsupportedEncodingException, ExecutionException, MissingParameterException, SerializationException {
+        ServiceRegistry.BodySpec spec = registry.getBodySpec(new Uri("/test/user.name/messages/upload"), RequestMethod.POST);
+        Assert.assertTrue(spec.isStreamed());
+        Assert.assertEquals(4 * 1024 * 1024, spec.getMaxSize());
+        Assert.assertFalse(registry.getBodySpec(new Uri("/test/user.name/messages/check_address"), RequestMethod.POST).isStreamed());
+        Assert.assertNull(registry.getBodySpec(new Uri("/test/user.name/messages/upload"), RequestMethod.GET));
+
+        //a body received completely (eg. over http/2) is streamed from the buffer
+        ByteBuf content = Unpooled.directBuffer(1000).writeZero(1000);
+        Response<Long> rsp = registry.invokeWithParsable(new Request.RequestHeader(null, new Uri("/test/user.name/messages/upload"), RequestMethod.POST), content);
+        Assert.assertEquals(Long.valueOf(1000), rsp.getBody());
+        Assert.assertEquals("The buffer is released when the invocation completes.", 1, content.refCnt());
+        Assert.assertEquals("The buffer is read in place.", 0, content.readerIndex());
+        content.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodedBodyLimitAboveContentLength() {
+        //the decoded bodies are aggregated: their limit cannot exceed the one of the endpoint
+        new ServiceRegistry().register("/oversized", new OversizedBodyService());
+    }
+
+    public static class OversizedBodyService implements SynapseEndpointServiceMarker {
+
+        public String echo(@RequestBody(maxSize = Endpoint.MAX_CONTENT_LENGTH + 1) String text) {
+            return text;
+        }
+    }
+
+    @Test
+    public void testStreamingResponse() throws UnsupportedEncodingException, MethodNotFoundException, ExecutionException, MissingParameterException, SerializationException {
+        Response rsp = registry.invokeWithObject(new Request.RequestHeader(null, new Uri("/test/user.name/messages/sequence?count=3"), RequestMethod.GET), null);
+        Assert.assertTrue(rsp.getBody() instanceof StreamingBody);
+        StreamingBody body = (StreamingBody) rsp.getBody();
+        int count = 0;
+        while (body.hasNext()) {
+            Assert.assertEquals(count++, body.next());
+        }
+        Assert.assertEquals(3, count);
+
+        //an iterable result is streamed only on request
+        rsp = registry.invokeWithObject(new Request.RequestHeader(null, new Uri("/test/user.name/messages/listing?count=3"), RequestMethod.GET), null);
+        Assert.assertTrue(rsp.getBody() instanceof StreamingBody);
+    }
+
     //@Test()
     public void testMissingParams() throws MethodNotFoundException, ExecutionException, MissingParameterException, UnsupportedEncodingException, SerializationException {
         //todo: reenable this
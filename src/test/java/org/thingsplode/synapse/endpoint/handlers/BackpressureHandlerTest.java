@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class BackpressureHandlerTest {
+
+    @Test
+    public void testReadSuspension() {
+        BackpressureMetrics metrics = new BackpressureMetrics();
+        BackpressureHandler handler = new BackpressureHandler(2, BackpressureHandler.UnwritablePolicy.FAIL, 0, metrics);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        setWritable(channel, false);
+        Assert.assertFalse("Reading must be suspended while the outbound buffer is full.", channel.config().isAutoRead());
+        handler.invocationStarted(channel);
+        handler.invocationStarted(channel);
+        setWritable(channel, true);
+        Assert.assertFalse("Reading must stay suspended while too many requests are invoked.", channel.config().isAutoRead());
+        handler.invocationCompleted(channel);
+        Assert.assertTrue(channel.config().isAutoRead());
+        Assert.assertEquals(1, metrics.getOutboundSuspensions());
+        Assert.assertEquals(1, metrics.getInvocationSuspensions());
+        channel.finish();
+    }
+
+    @Test
+    public void testQueuedWrites() {
+        BackpressureMetrics metrics = new BackpressureMetrics();
+        EmbeddedChannel channel = new EmbeddedChannel(new BackpressureHandler(0, BackpressureHandler.UnwritablePolicy.QUEUE, 2, metrics));
+        BackpressureHandler handler = channel.pipeline().get(BackpressureHandler.class);
+        setWritable(channel, false);
+        ChannelPromise first = channel.newPromise();
+        Assert.assertEquals(BackpressureHandler.Outcome.QUEUED, handler.offer("first", first));
+        Assert.assertEquals(BackpressureHandler.Outcome.QUEUED, handler.offer("second", channel.newPromise()));
+        Assert.assertEquals(BackpressureHandler.Outcome.REJECTED, handler.offer("third", channel.newPromise()));
+        channel.runPendingTasks();
+        Assert.assertNull(channel.readOutbound());
+        setWritable(channel, true);
+        Assert.assertEquals("first", channel.readOutbound());
+        Assert.assertEquals("second", channel.readOutbound());
+        Assert.assertTrue(first.isSuccess());
+        Assert.assertEquals(BackpressureHandler.Outcome.WRITTEN, handler.offer("fourth", channel.newPromise()));
+        Assert.assertEquals(2, metrics.getQueuedCommands());
+        Assert.assertEquals(1, metrics.getRejectedCommands());
+
+        setWritable(channel, false);
+        ChannelPromise pending = channel.newPromise();
+        handler.offer("fifth", pending);
+        channel.close();
+        Assert.assertFalse("The queued writes must fail with the connection.", pending.isSuccess());
+        Assert.assertNotNull(pending.cause());
+    }
+
+    @Test
+    public void testDroppedWrites() {
+        BackpressureMetrics metrics = new BackpressureMetrics();
+        EmbeddedChannel channel = new EmbeddedChannel(new BackpressureHandler(0, BackpressureHandler.UnwritablePolicy.DROP, 0, metrics));
+        setWritable(channel, false);
+        Assert.assertEquals(BackpressureHandler.Outcome.DROPPED, channel.pipeline().get(BackpressureHandler.class).offer("dropped", channel.newPromise()));
+        setWritable(channel, true);
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertEquals(1, metrics.getDroppedCommands());
+        channel.finish();
+    }
+
+    private void setWritable(EmbeddedChannel channel, boolean writable) {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+        channel.runPendingTasks();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCounted;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.thingsplode.synapse.core.FileRequest;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Uri;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class FileRequestHandlerTest {
+
+    private static final String CONTENT = "0123456789abcdefghij";
+    private File webroot;
+    private FileRequestHandler handler;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        webroot = Files.createTempDirectory("webroot").toFile();
+        Files.write(new File(webroot, "small.txt").toPath(), CONTENT.getBytes(StandardCharsets.US_ASCII));
+        handler = new FileRequestHandler(webroot.getAbsolutePath());
+        //the files written by the tests are not invalidated asynchronously
+        handler.getStaticContentCache().stopWatching();
+        //the large.txt is not cached
+        handler.getStaticContentCache().resize(16384, 4096);
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 'x');
+        Files.write(new File(webroot, "large.txt").toPath(), large);
+        channel = new EmbeddedChannel(handler);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finish();
+        handler.getStaticContentCache().stopWatching();
+        handler.getStaticContentCache().clear();
+        Arrays.stream(webroot.listFiles()).forEach(File::delete);
+        webroot.delete();
+    }
+
+    private FullHttpResponse get(String path, String... headers) throws IOException {
+        Request.RequestHeader header = new Request.RequestHeader(new Uri(path), RequestMethod.GET);
+        for (int i = 0; i < headers.length; i += 2) {
+            header.addProperty(headers[i], headers[i + 1]);
+        }
+        channel.writeInbound(new FileRequest(header));
+        return channel.readOutbound();
+    }
+
+    private static String body(FullHttpResponse response) {
+        String body = response.content().toString(StandardCharsets.US_ASCII);
+        response.release();
+        return body;
+    }
+
+    @Test
+    public void testIfNoneMatch() throws IOException {
+        FullHttpResponse response = get("/small.txt");
+        String etag = response.headers().get(HttpHeaderNames.ETAG);
+        Assert.assertEquals("bytes", response.headers().get(HttpHeaderNames.ACCEPT_RANGES));
+        Assert.assertEquals(CONTENT, body(response));
+        response = get("/small.txt", "if-none-match", "\"other\", " + etag);
+        Assert.assertEquals(HttpResponseStatus.NOT_MODIFIED, response.status());
+        Assert.assertEquals(etag, response.headers().get(HttpHeaderNames.ETAG));
+        response.release();
+        response = get("/small.txt", "if-none-match", "\"other\"", "if-modified-since", response.headers().get(HttpHeaderNames.DATE));
+        Assert.assertEquals("The If-Modified-Since is ignored when If-None-Match is present.", HttpResponseStatus.OK, response.status());
+        response.release();
+    }
+
+    @Test
+    public void testSingleRange() throws IOException {
+        FullHttpResponse response = get("/small.txt", "range", "bytes=5-9");
+        Assert.assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+        Assert.assertEquals("bytes 5-9/20", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        Assert.assertEquals("5", response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        Assert.assertEquals("56789", body(response));
+        Assert.assertEquals("ghij", body(get("/small.txt", "range", "bytes=-4")));
+        Assert.assertEquals("fghij", body(get("/small.txt", "range", "bytes=15-")));
+    }
+
+    @Test
+    public void testMultipleRanges() throws IOException {
+        FullHttpResponse response = get("/small.txt", "range", "bytes=0-1,18-");
+        Assert.assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+        String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        Assert.assertEquals(response.content().readableBytes(), Integer.parseInt(response.headers().get(HttpHeaderNames.CONTENT_LENGTH)));
+        String body = body(response);
+        Assert.assertTrue(body.contains("--" + boundary + "\r\n"));
+        Assert.assertTrue(body.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+        Assert.assertTrue(body.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"));
+        Assert.assertTrue(body.endsWith("--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws IOException {
+        FullHttpResponse response = get("/small.txt", "range", "bytes=20-");
+        Assert.assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status());
+        Assert.assertEquals("bytes */20", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        response.release();
+        Assert.assertEquals("An invalid range is ignored.", CONTENT, body(get("/small.txt", "range", "bytes=9-5")));
+    }
+
+    @Test
+    public void testIfRange() throws IOException {
+        FullHttpResponse response = get("/small.txt");
+        String etag = response.headers().get(HttpHeaderNames.ETAG);
+        String lastModified = response.headers().get(HttpHeaderNames.LAST_MODIFIED);
+        response.release();
+        Assert.assertEquals("0123", body(get("/small.txt", "range", "bytes=0-3", "if-range", etag)));
+        Assert.assertEquals("0123", body(get("/small.txt", "range", "bytes=0-3", "if-range", lastModified)));
+        Assert.assertEquals("The file changed since.", CONTENT, body(get("/small.txt", "range", "bytes=0-3", "if-range", "\"other\"")));
+    }
+
+    @Test
+    public void testZeroCopyRange() throws IOException {
+        Request.RequestHeader header = new Request.RequestHeader(new Uri("/large.txt"), RequestMethod.GET);
+        header.addProperty("range", "bytes=4990-");
+        channel.writeInbound(new FileRequest(header));
+        HttpResponse response = channel.readOutbound();
+        Assert.assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+        Assert.assertEquals("bytes 4990-4999/5000", response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+        Assert.assertNotNull(response.headers().get(HttpHeaderNames.ETAG));
+        DefaultFileRegion region = channel.readOutbound();
+        Assert.assertEquals(4990, region.position());
+        Assert.assertEquals(10, region.count());
+        region.release();
+        Assert.assertTrue(channel.readOutbound() instanceof LastHttpContent);
+
+        header = new Request.RequestHeader(new Uri("/large.txt"), RequestMethod.GET);
+        header.addProperty("range", "bytes=0-0,-1");
+        channel.writeInbound(new FileRequest(header));
+        response = channel.readOutbound();
+        long length = Long.parseLong(response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        long written = 0;
+        Object part;
+        while (!((part = channel.readOutbound()) instanceof LastHttpContent)) {
+            written += part instanceof DefaultFileRegion ? ((DefaultFileRegion) part).count() : ((HttpContent) part).content().readableBytes();
+            ((ReferenceCounted) part).release();
+        }
+        written += ((LastHttpContent) part).content().readableBytes();
+        ((LastHttpContent) part).release();
+        Assert.assertEquals(length, written);
+    }
+
+    private static byte[] page() {
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (int i = 0; i < 100; i++) {
+            page.append("<p>paragraph ").append(i).append("</p>");
+        }
+        return page.append("</body></html>").toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] gunzip(FullHttpResponse response) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteBufInputStream(response.content()))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            response.release();
+        }
+    }
+
+    @Test
+    public void testCompressedOnce() throws IOException {
+        byte[] page = page();
+        Files.write(new File(webroot, "page.html").toPath(), page);
+        for (int i = 0; i < 2; i++) {
+            FullHttpResponse response = get("/page.html", "accept-encoding", "deflate, gzip;q=0.8");
+            Assert.assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+            Assert.assertEquals("accept-encoding", response.headers().get(HttpHeaderNames.VARY));
+            Assert.assertEquals("text/html", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+            Assert.assertTrue(response.headers().get(HttpHeaderNames.ETAG).endsWith("-gz\""));
+            Assert.assertTrue(response.content().readableBytes() < page.length / 2);
+            Assert.assertArrayEquals(page, gunzip(response));
+        }
+        Assert.assertEquals(1, handler.getStaticContentCache().getCompressions());
+        FullHttpResponse response = get("/page.html", "accept-encoding", "gzip;q=0");
+        Assert.assertNull(response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        Assert.assertEquals("accept-encoding", response.headers().get(HttpHeaderNames.VARY));
+        Assert.assertEquals(page.length, response.content().readableBytes());
+        response.release();
+        Assert.assertNull("Too small to be compressed.", get("/small.txt", "accept-encoding", "gzip").headers().get(HttpHeaderNames.CONTENT_ENCODING));
+    }
+
+    @Test
+    public void testPrecompressed() throws IOException {
+        byte[] page = page();
+        Files.write(new File(webroot, "app.js").toPath(), page);
+        File precompressed = new File(webroot, "app.js.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(precompressed))) {
+            out.write(page);
+        }
+        Request.RequestHeader header = new Request.RequestHeader(new Uri("/app.js"), RequestMethod.GET);
+        header.addProperty("accept-encoding", "gzip");
+        channel.writeInbound(new FileRequest(header));
+        HttpResponse response = channel.readOutbound();
+        Assert.assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        Assert.assertEquals("application/javascript", response.headers().get(HttpHeaderNames.CONTENT_TYPE));
+        Assert.assertEquals(String.valueOf(precompressed.length()), response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        DefaultFileRegion region = channel.readOutbound();
+        Assert.assertEquals(precompressed.length(), region.count());
+        region.release();
+        ((LastHttpContent) channel.readOutbound()).release();
+        Assert.assertEquals("Not compressed on demand.", 0, handler.getStaticContentCache().getCompressions());
+        FullHttpResponse identity = get("/app.js");
+        Assert.assertEquals("accept-encoding", identity.headers().get(HttpHeaderNames.VARY));
+        Assert.assertEquals(page.length, identity.content().readableBytes());
+        identity.release();
+    }
+}
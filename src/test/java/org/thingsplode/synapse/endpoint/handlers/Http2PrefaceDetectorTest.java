@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.util.CharsetUtil;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class Http2PrefaceDetectorTest {
+
+    @Test
+    public void testPriorKnowledgeIsDetected() {
+        AtomicReference<String> selected = new AtomicReference<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceDetector(p -> selected.set("h2"), p -> selected.set("http/1.1")));
+        ByteBuf preface = Http2CodecUtil.connectionPrefaceBuf();
+        //the preface arrives in two reads
+        channel.writeInbound(preface.readSlice(5).retain());
+        Assert.assertNull(selected.get());
+        channel.writeInbound(preface);
+        Assert.assertEquals("h2", selected.get());
+        Assert.assertNull(channel.pipeline().get(Http2PrefaceDetector.class));
+        channel.finish();
+    }
+
+    @Test
+    public void testHttp1IsDetected() {
+        AtomicReference<String> selected = new AtomicReference<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new Http2PrefaceDetector(p -> selected.set("h2"), p -> selected.set("http/1.1")));
+        ByteBuf request = Unpooled.copiedBuffer("GET / HTTP/1.1\r\n\r\n", CharsetUtil.US_ASCII);
+        channel.writeInbound(request);
+        Assert.assertEquals("http/1.1", selected.get());
+        //the bytes are passed on to the handlers configured for http/1.x
+        ByteBuf passed = channel.readInbound();
+        Assert.assertEquals("GET / HTTP/1.1\r\n\r\n", passed.toString(CharsetUtil.US_ASCII));
+        passed.release();
+        channel.finish();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.thingsplode.synapse.endpoint.Endpoint.Transport;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class IdleConnectionHandlerTest {
+
+    private IdleConnectionReaper reaper;
+
+    @Before
+    public void setUp() {
+        Map<Transport, IdleConnectionReaper.Limits> limits = new EnumMap<>(Transport.class);
+        limits.put(Transport.HTTP, new IdleConnectionReaper.Limits(0, 0, 10, TimeUnit.SECONDS));
+        limits.put(Transport.WEBSOCKET, new IdleConnectionReaper.Limits(10, 0, 0, TimeUnit.SECONDS));
+        reaper = new IdleConnectionReaper(limits);
+    }
+
+    @After
+    public void tearDown() {
+        reaper.stop();
+    }
+
+    @Test
+    public void testHttpReaping() {
+        IdleConnectionHandler handler = reaper.newHandler(Transport.HTTP);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        long now = System.currentTimeMillis();
+        handler.check(now + 5000);
+        Assert.assertTrue(channel.isActive());
+        channel.writeInbound("request");
+        handler.check(System.currentTimeMillis() + 9000);
+        Assert.assertTrue("The connection was read meanwhile.", channel.isActive());
+        handler.check(System.currentTimeMillis() + 11000);
+        Assert.assertFalse(channel.isActive());
+        Assert.assertEquals(1, reaper.getReapedConnections());
+    }
+
+    @Test
+    public void testWebsocketPing() {
+        IdleConnectionHandler handler = reaper.newHandler(Transport.HTTP);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        handler.transportChanged(Transport.WEBSOCKET);
+        handler.check(System.currentTimeMillis() + 11000);
+        Assert.assertTrue("An idle client is pinged first.", channel.isActive());
+        Object ping = channel.readOutbound();
+        Assert.assertTrue(ping instanceof PingWebSocketFrame);
+        ((PingWebSocketFrame) ping).release();
+        channel.writeInbound(new PongWebSocketFrame());
+        ((PongWebSocketFrame) channel.readInbound()).release();
+        handler.check(System.currentTimeMillis() + 11000);
+        Assert.assertTrue("The client answered the ping.", channel.isActive());
+        ((PingWebSocketFrame) channel.readOutbound()).release();
+        handler.check(System.currentTimeMillis() + 22000);
+        Assert.assertFalse("The client did not answer the ping.", channel.isActive());
+        Assert.assertEquals(2, reaper.getPingsSent());
+    }
+
+    @Test
+    public void testSseNotReaped() {
+        IdleConnectionHandler handler = reaper.newHandler(Transport.HTTP);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        handler.transportChanged(Transport.SSE);
+        handler.check(System.currentTimeMillis() + 3600000);
+        Assert.assertTrue(channel.isActive());
+        channel.finish();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import com.acme.synapse.testdata.services.EndpointTesterService;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.endpoint.ServiceRegistry;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class RequestBodyDecoderTest {
+
+    private static final String UPLOAD = "/test/bob/messages/upload";
+    private final ServiceRegistry registry = new ServiceRegistry();
+
+    public RequestBodyDecoderTest() {
+        registry.register(null, new EndpointTesterService());
+    }
+
+    @Test
+    public void testBodyIsStreamedWithBackpressure() throws IOException {
+        EmbeddedChannel channel = new EmbeddedChannel(new RequestBodyDecoder(registry));
+        HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, UPLOAD);
+        HttpUtil.setTransferEncodingChunked(head, true);
+        channel.writeInbound(head);
+        RequestBodyDecoder.StreamedRequest request = channel.readInbound();
+        Assert.assertNotNull("The request must be dispatched before the body is received.", request);
+        InputStream body = request.getBody();
+
+        channel.writeInbound(new DefaultHttpContent(Unpooled.wrappedBuffer(new byte[RequestBodyStream.HIGH_WATERMARK])));
+        Assert.assertFalse("Reading must be suspended above the high watermark.", channel.config().isAutoRead());
+        Assert.assertNull("The chunks must not be passed to the aggregator.", channel.readInbound());
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[10])));
+
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            size += read;
+        }
+        Assert.assertEquals(RequestBodyStream.HIGH_WATERMARK + 10, size);
+        Assert.assertTrue("Reading must be resumed when the body is consumed.", channel.config().isAutoRead());
+        channel.finish();
+    }
+
+    @Test
+    public void testOversizedBodyIsRejectedEarly() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RequestBodyDecoder(registry));
+        HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, UPLOAD);
+        HttpUtil.setContentLength(head, 5 * 1024 * 1024);
+        channel.writeInbound(head);
+        Assert.assertNull(channel.readInbound());
+        FullHttpResponse response = channel.readOutbound();
+        Assert.assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.status());
+        response.release();
+        Assert.assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testOtherBodiesAreAggregated() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RequestBodyDecoder(registry));
+        HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/bob/messages/check_address");
+        HttpUtil.setContentLength(head, 2);
+        channel.writeInbound(head, new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[2])));
+        Assert.assertSame(head, channel.readInbound());
+        DefaultLastHttpContent content = channel.readInbound();
+        Assert.assertEquals(2, content.content().readableBytes());
+        content.release();
+        channel.finish();
+    }
+
+    @Test
+    public void testRoutedOnce() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RequestBodyDecoder(registry), new HttpObjectAggregator(1024));
+        HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/test/bob/messages/check_address");
+        HttpUtil.setContentLength(head, 2);
+        channel.writeInbound(head, new DefaultLastHttpContent(Unpooled.wrappedBuffer(new byte[2])));
+        FullHttpRequest request = channel.readInbound();
+        //the uri parsed and matched on the head is handed on with the aggregated request
+        RequestBodyDecoder.Routed routed = RequestBodyDecoder.routed(channel, request);
+        Assert.assertNotNull(routed);
+        Assert.assertEquals("/test/bob/messages/check_address", routed.uri.getPath());
+        Assert.assertNull("Handed on once.", RequestBodyDecoder.routed(channel, request));
+        Request.RequestHeader header = new Request.RequestHeader(null, routed.uri, RequestMethod.POST);
+        header.setRoute(routed.match);
+        Assert.assertNotNull(registry.resolveRootContext(header));
+        Assert.assertSame("Not routed again.", routed.match, header.getRoute());
+        //the table is changed: routed again
+        registry.unregister("/test/{user}/messages");
+        Assert.assertNull(registry.resolveRootContext(header));
+        Assert.assertNotSame(routed.match, header.getRoute());
+        request.release();
+        channel.finish();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class ResponseCompressorTest {
+
+    private CompressionMetrics metrics;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        metrics = new CompressionMetrics();
+        channel = new EmbeddedChannel(new ResponseCompressor(100, 6, metrics));
+    }
+
+    @After
+    public void tearDown() {
+        channel.finish();
+    }
+
+    private void request(String acceptEncoding) {
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/services/test");
+        if (acceptEncoding != null) {
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        channel.writeInbound(request);
+        request.release();
+    }
+
+    private static FullHttpResponse response(String body, String contentType) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    private static String json(int items) {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            body.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"name\":\"item\"}");
+        }
+        return body.append("]").toString();
+    }
+
+    private String readGzipped() throws IOException {
+        HttpResponse head = channel.readOutbound();
+        Assert.assertEquals("gzip", head.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        Assert.assertFalse(head.headers().contains(HttpHeaderNames.CONTENT_LENGTH));
+        ByteBuf compressed = Unpooled.buffer();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            compressed.writeBytes(((HttpContent) msg).content());
+            ((HttpContent) msg).release();
+            if (msg instanceof LastHttpContent) {
+                break;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteBufInputStream(compressed))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        compressed.release();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        String body = json(100);
+        request("gzip, deflate");
+        channel.writeOutbound(response(body, "application/json; charset=UTF-8"));
+        Assert.assertEquals(body, readGzipped());
+        Assert.assertEquals(1, metrics.getCompressedResponses());
+        Assert.assertEquals(body.length(), metrics.getBytesIn());
+        Assert.assertTrue(metrics.getCompressionRatio() < 0.5);
+        Assert.assertTrue(metrics.getCompressionNanos() > 0);
+    }
+
+    @Test
+    public void testSkipped() {
+        //below the threshold
+        request("gzip");
+        channel.writeOutbound(response("{}", "application/json"));
+        //not textual
+        request("gzip");
+        channel.writeOutbound(response(json(100), "application/octet-stream"));
+        //the validators of the file handler refer to the identity representation
+        request("gzip");
+        FullHttpResponse file = response(json(100), "text/plain");
+        file.headers().set(HttpHeaderNames.ETAG, "\"1-2\"");
+        channel.writeOutbound(file);
+        //not accepted by the client
+        request(null);
+        channel.writeOutbound(response(json(100), "application/json"));
+        FullHttpResponse response;
+        while ((response = channel.readOutbound()) != null) {
+            Assert.assertFalse(response.headers().contains(HttpHeaderNames.CONTENT_ENCODING));
+            response.release();
+        }
+        Assert.assertEquals(0, metrics.getCompressedResponses());
+        Assert.assertEquals(3, metrics.getSkippedResponses());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import com.acme.synapse.testdata.services.RpcEndpointImpl;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.endpoint.InvocationStrategy;
+import org.thingsplode.synapse.endpoint.ServiceRegistry;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class ResponseSequencerTest {
+
+    @Test
+    public void testResponsesAreWrittenInRequestOrder() {
+        ResponseSequencer sequencer = new ResponseSequencer(3);
+        EmbeddedChannel channel = new EmbeddedChannel(sequencer, new ResponseWriter());
+        ChannelHandlerContext ctx = channel.pipeline().context(sequencer);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, sequencer.nextSequence(ctx));
+        }
+        Assert.assertFalse("Reading must be suspended at the limit.", channel.config().isAutoRead());
+
+        channel.writeInbound(response(2, HttpResponseStatus.ACCEPTED));
+        channel.writeInbound(response(1, HttpResponseStatus.CREATED));
+        Assert.assertNull(channel.readOutbound());
+        Assert.assertEquals(2, sequencer.getWaitingCount());
+
+        channel.writeInbound(response(0, HttpResponseStatus.OK));
+        Assert.assertEquals(HttpResponseStatus.OK, ((FullHttpResponse) channel.readOutbound()).status());
+        Assert.assertEquals(HttpResponseStatus.CREATED, ((FullHttpResponse) channel.readOutbound()).status());
+        Assert.assertEquals(HttpResponseStatus.ACCEPTED, ((FullHttpResponse) channel.readOutbound()).status());
+        Assert.assertEquals(0, sequencer.getWaitingCount());
+        Assert.assertTrue("Reading must be resumed.", channel.config().isAutoRead());
+        channel.finish();
+    }
+
+    @Test
+    public void testPendingBodyReleasedOnDisconnect() {
+        ResponseSequencer sequencer = new ResponseSequencer(3);
+        EmbeddedChannel channel = new EmbeddedChannel(sequencer, new ResponseWriter());
+        ChannelHandlerContext ctx = channel.pipeline().context(sequencer);
+        sequencer.nextSequence(ctx);
+        sequencer.nextSequence(ctx);
+        Response pending = response(1, HttpResponseStatus.OK);
+        ByteBuf body = Unpooled.copiedBuffer("rendered", CharsetUtil.UTF_8);
+        pending.setBody(body);
+        channel.writeInbound(pending);
+        Assert.assertEquals(1, sequencer.getWaitingCount());
+        //the response of the first request never arrives
+        channel.close();
+        Assert.assertEquals(0, sequencer.getWaitingCount());
+        Assert.assertEquals(0, body.refCnt());
+        channel.finish();
+    }
+
+    @Test
+    public void testPipelinedSubscriptionRejectedInOrder() {
+        ResponseSequencer sequencer = new ResponseSequencer(3);
+        SseBroker broker = new SseBroker(SseBroker.DEFAULT_REPLAY_SIZE);
+        EmbeddedChannel channel = new EmbeddedChannel(new SseSubscriptionHandler(broker, "/events", sequencer), sequencer, new ResponseWriter());
+        sequencer.nextSequence(channel.pipeline().context(sequencer));
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/events"));
+        Assert.assertNull("Must wait for the response of the first request.", channel.readOutbound());
+
+        channel.writeInbound(response(0, HttpResponseStatus.OK));
+        Assert.assertEquals(HttpResponseStatus.OK, ((FullHttpResponse) channel.readOutbound()).status());
+        Assert.assertEquals(HttpResponseStatus.CONFLICT, ((FullHttpResponse) channel.readOutbound()).status());
+        channel.finish();
+    }
+
+    @Test
+    public void testMalformedQueryParameterAnsweredInOrder() throws InterruptedException {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register("/rpc/", new RpcEndpointImpl());
+        InvocationStrategy strategy = InvocationStrategy.boundedPool(2, 8);
+        ResponseSequencer sequencer = new ResponseSequencer(4);
+        //added to the already active channel (the connection context needs an inet address), before its inbound message queue
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addFirst(new HttpResponseHandler());
+        channel.pipeline().addFirst(sequencer);
+        channel.pipeline().addFirst(new RequestHandler(registry, new DefaultChannelGroup(GlobalEventExecutor.INSTANCE), strategy));
+        channel.pipeline().addFirst(new HttpRequestHandler("test", sequencer));
+        try {
+            channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/rpc/getInfo?a%zz=1"));
+            channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/rpc/getInfo"));
+            //the unknown parameter is not routed, the request is answered instead of stalling the pipeline
+            FullHttpResponse first = awaitOutbound(channel);
+            Assert.assertEquals(HttpResponseStatus.NOT_FOUND, first.status());
+            first.release();
+            FullHttpResponse second = awaitOutbound(channel);
+            Assert.assertEquals(HttpResponseStatus.OK, second.status());
+            second.release();
+            Assert.assertEquals(0, sequencer.getWaitingCount());
+        } finally {
+            strategy.shutdown();
+            channel.finish();
+        }
+    }
+
+    private static FullHttpResponse awaitOutbound(EmbeddedChannel channel) throws InterruptedException {
+        //the responses are forwarded to the event loop by the threads of the pool
+        for (int i = 0; i < 500; i++) {
+            channel.runPendingTasks();
+            Object msg = channel.readOutbound();
+            if (msg != null) {
+                return (FullHttpResponse) msg;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("The response is not sent.");
+        return null;
+    }
+
+    private static Response response(long sequence, HttpResponseStatus status) {
+        Response rsp = new Response(new Response.ResponseHeader(status));
+        rsp.getHeader().addProperty(Request.RequestHeader.MSG_SEQ, String.valueOf(sequence));
+        return rsp;
+    }
+
+    private static class ResponseWriter extends SimpleChannelInboundHandler<Response> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Response msg) throws Exception {
+            Assert.assertFalse(msg.getHeader().getProperty(Request.RequestHeader.MSG_SEQ).isPresent());
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, msg.getHeader().getResponseCode()));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsplode.synapse.core.PushNotification;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class SseBrokerTest {
+
+    @Test
+    public void testFanOut() throws SerializationException {
+        SseBroker broker = new SseBroker(SseBroker.DEFAULT_REPLAY_SIZE);
+        EmbeddedChannel alarms = subscribe(broker, "/events?topic=/alarms", null);
+        EmbeddedChannel all = subscribe(broker, "/events", null);
+        Assert.assertEquals(2, broker.getSubscriberCount());
+        broker.publish(notification("/alarms"));
+        broker.publish(notification(null));
+
+        List<String> alarmEvents = readEvents(alarms);
+        Assert.assertEquals(1, alarmEvents.size());
+        Assert.assertTrue(alarmEvents.get(0).startsWith("id: 1\nevent: /alarms\ndata: "));
+        Assert.assertTrue(alarmEvents.get(0).endsWith("\n\n"));
+        List<String> allEvents = readEvents(all);
+        Assert.assertEquals(2, allEvents.size());
+        Assert.assertTrue(allEvents.get(1).startsWith("id: 2\nevent: " + PushNotification.DEFAULT_NOTIFICATION_TOPIC + "\n"));
+
+        //not a subscription
+        FullHttpRequest other = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/events/other");
+        EmbeddedChannel channel = new EmbeddedChannel(new SseSubscriptionHandler(broker, "/events"));
+        channel.writeInbound(other);
+        Assert.assertSame(other, channel.readInbound());
+        other.release();
+
+        alarms.close();
+        Assert.assertEquals(1, broker.getSubscriberCount());
+        all.finish();
+        broker.clear();
+    }
+
+    @Test
+    public void testLastEventIdReplay() throws SerializationException {
+        SseBroker broker = new SseBroker(SseBroker.DEFAULT_REPLAY_SIZE);
+        for (int i = 0; i < 3; i++) {
+            broker.publish(notification(null));
+        }
+        List<String> events = readEvents(subscribe(broker, "/events", "1"));
+        Assert.assertEquals(2, events.size());
+        Assert.assertTrue(events.get(0).startsWith("id: 2\n"));
+        Assert.assertTrue(events.get(1).startsWith("id: 3\n"));
+        //a new client does not receive the past events
+        Assert.assertTrue(readEvents(subscribe(broker, "/events", null)).isEmpty());
+        broker.clear();
+    }
+
+    @Test
+    public void testSlowSubscriber() throws SerializationException {
+        SseBroker broker = new SseBroker(2);
+        EmbeddedChannel channel = subscribe(broker, "/events", null);
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        broker.publish(notification(null));
+        broker.publish(notification(null));
+        Assert.assertTrue("The events are skipped while the connection is not writable.", readEvents(channel).isEmpty());
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        channel.runPendingTasks();
+        Assert.assertEquals(2, readEvents(channel).size());
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        for (int i = 0; i < 3; i++) {
+            broker.publish(notification(null));
+        }
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        channel.runPendingTasks();
+        Assert.assertFalse("The missed events are not available anymore.", channel.isOpen());
+        Assert.assertEquals(0, broker.getSubscriberCount());
+        broker.clear();
+    }
+
+    private EmbeddedChannel subscribe(SseBroker broker, String uri, String lastEventId) {
+        EmbeddedChannel channel = new EmbeddedChannel(new SseSubscriptionHandler(broker, "/events"));
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (lastEventId != null) {
+            request.headers().set(SseSubscriptionHandler.LAST_EVENT_ID, lastEventId);
+        }
+        channel.writeInbound(request);
+        HttpResponse head = channel.readOutbound();
+        Assert.assertEquals(HttpResponseStatus.OK, head.status());
+        Assert.assertTrue(head.headers().get(HttpHeaderNames.CONTENT_TYPE).startsWith("text/event-stream"));
+        Assert.assertTrue(HttpUtil.isTransferEncodingChunked(head));
+        return channel;
+    }
+
+    private List<String> readEvents(EmbeddedChannel channel) {
+        List<String> events = new ArrayList<>();
+        HttpContent chunk;
+        while ((chunk = channel.readOutbound()) != null) {
+            events.add(chunk.content().toString(CharsetUtil.UTF_8));
+            chunk.release();
+        }
+        return events;
+    }
+
+    private PushNotification notification(String topic) {
+        PushNotification.NotificationHeader header = new PushNotification.NotificationHeader(1000);
+        header.setSourceTopic(topic);
+        return new PushNotification(header);
+    }
+}
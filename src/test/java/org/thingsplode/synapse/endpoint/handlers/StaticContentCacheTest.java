@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.thingsplode.synapse.core.FileRequest;
+import org.thingsplode.synapse.core.Request;
+import org.thingsplode.synapse.core.RequestMethod;
+import org.thingsplode.synapse.core.Uri;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class StaticContentCacheTest {
+
+    private File webroot;
+    private StaticContentCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        webroot = Files.createTempDirectory("webroot").toFile();
+        cache = new StaticContentCache(name -> "text/plain", 250, 150);
+    }
+
+    @After
+    public void tearDown() {
+        cache.stopWatching();
+        cache.clear();
+        Arrays.stream(webroot.listFiles()).forEach(File::delete);
+        webroot.delete();
+    }
+
+    private File write(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) name.charAt(0));
+        return Files.write(new File(webroot, name).toPath(), content).toFile();
+    }
+
+    private static void release(StaticContentCache.Entry entry) {
+        Assert.assertTrue(entry.content().release());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        StaticContentCache.Entry a = cache.load("/a.txt", write("a.txt", 100));
+        Assert.assertEquals(100, a.getLength());
+        Assert.assertEquals("text/plain", a.getContentType());
+        Assert.assertTrue(a.getEtag().startsWith("\"64-"));
+        a.content().release();
+        cache.load("/b.txt", write("b.txt", 100)).content().release();
+        //a is used more recently than b
+        a = cache.get("/a.txt");
+        a.content().release();
+        cache.load("/c.txt", write("c.txt", 100)).content().release();
+        Assert.assertEquals(200, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNull(cache.get("/b.txt"));
+        cache.get("/c.txt").content().release();
+        a = cache.get("/a.txt");
+        cache.clear();
+        //still referenced by the response being written
+        Assert.assertEquals(100, a.content().readableBytes());
+        release(a);
+    }
+
+    @Test
+    public void testLargeFileNotCached() throws IOException {
+        Assert.assertNull(cache.load("/large.bin", write("large.bin", 200)));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testGzippedEntryEvictedByItsOwnCompression() throws IOException {
+        //the content fits, but not together with its gzipped variant
+        cache.resize(400, 400);
+        StaticContentCache.Entry a = cache.load("/a.txt", write("a.txt", 400));
+        ByteBuf gzipped = cache.gzipped("/a.txt", a);
+        Assert.assertNotNull(gzipped);
+        Assert.assertTrue(gzipped.isReadable());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNull(cache.get("/a.txt"));
+        Assert.assertTrue(gzipped.release());
+        release(a);
+    }
+
+    @Test
+    public void testWatchInvalidation() throws Exception {
+        File file = write("a.txt", 10);
+        cache.watch(webroot);
+        cache.load("/a.txt", file).content().release();
+        Files.write(file.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + 15000;
+        StaticContentCache.Entry entry;
+        while ((entry = cache.get("/a.txt")) != null && System.currentTimeMillis() < deadline) {
+            entry.content().release();
+            Thread.sleep(100);
+        }
+        Assert.assertNull("The changed file must be invalidated.", entry);
+    }
+
+    @Test
+    public void testServedFromCache() throws Exception {
+        write("index.html", 42);
+        FileRequestHandler handler = new FileRequestHandler(webroot.getAbsolutePath());
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        for (int i = 0; i < 2; i++) {
+            channel.writeInbound(new FileRequest(new Request.RequestHeader(new Uri("/index.html"), RequestMethod.GET)));
+            FullHttpResponse response = channel.readOutbound();
+            Assert.assertEquals(HttpResponseStatus.OK, response.status());
+            Assert.assertEquals(42, response.content().readableBytes());
+            Assert.assertEquals("42", response.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+            Assert.assertNotNull(response.headers().get(HttpHeaderNames.ETAG));
+            Assert.assertNotNull(response.headers().get(HttpHeaderNames.LAST_MODIFIED));
+            response.release();
+        }
+        Assert.assertEquals(1, handler.getStaticContentCache().getHits());
+        handler.getStaticContentCache().stopWatching();
+        Assert.assertFalse(handler.getStaticContentCache().isWatching());
+        //restarted endpoint
+        handler.watchWebroot();
+        Assert.assertTrue(handler.getStaticContentCache().isWatching());
+        handler.getStaticContentCache().stopWatching();
+        handler.getStaticContentCache().clear();
+        channel.finish();
+    }
+}
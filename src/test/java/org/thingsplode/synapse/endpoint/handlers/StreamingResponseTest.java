@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.handlers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsplode.synapse.core.MediaType;
+import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.core.StreamingBody;
+import org.thingsplode.synapse.core.exceptions.SerializationException;
+import org.thingsplode.synapse.serializers.SerializationService;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class StreamingResponseTest {
+
+    private static final int COUNT = 5000;
+
+    @Test
+    public void testHttpChunks() throws SerializationException {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        Stream<Integer> elements = IntStream.range(0, COUNT).boxed().onClose(() -> closed.set(true));
+        EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler(), new HttpResponseHandler());
+        Response rsp = new Response(new Response.ResponseHeader(HttpResponseStatus.OK), StreamingBody.of(elements));
+        rsp.getHeader().setKeepAlive(true);
+        channel.writeInbound(rsp);
+
+        HttpResponse head = channel.readOutbound();
+        Assert.assertTrue(HttpUtil.isTransferEncodingChunked(head));
+        Assert.assertFalse(HttpUtil.isContentLengthSet(head));
+        StringBuilder json = new StringBuilder();
+        int chunks = 0;
+        HttpContent chunk;
+        do {
+            chunk = channel.readOutbound();
+            Assert.assertTrue("The batches must be bounded.", chunk.content().readableBytes() <= 2 * StreamingBodyInput.BATCH_SIZE);
+            json.append(chunk.content().toString(CharsetUtil.UTF_8));
+            chunk.release();
+            chunks++;
+        } while (!(chunk instanceof LastHttpContent));
+        Assert.assertTrue(chunks > 2);
+        List<?> list = SerializationService.getInstance().getSerializer(MediaType.APPLICATION_JSON).unMarshall(List.class, json.toString());
+        Assert.assertEquals(COUNT, list.size());
+        Assert.assertEquals(COUNT - 1, list.get(COUNT - 1));
+        Assert.assertTrue("The source must be closed.", closed.get());
+        Assert.assertTrue(channel.isOpen());
+        channel.finish();
+    }
+
+    @Test
+    public void testWebsocketFrames() throws SerializationException {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler(), new WebsocketResponseHandler());
+        Response rsp = new Response(new Response.ResponseHeader(HttpResponseStatus.OK), StreamingBody.of(IntStream.range(0, COUNT).boxed()));
+        rsp.getHeader().setKeepAlive(true);
+        channel.writeInbound(rsp);
+
+        StringBuilder json = new StringBuilder();
+        WebSocketFrame frame = channel.readOutbound();
+        Assert.assertTrue(frame instanceof TextWebSocketFrame);
+        Assert.assertFalse(frame.isFinalFragment());
+        while (true) {
+            json.append(frame.content().toString(CharsetUtil.UTF_8));
+            frame.release();
+            if (frame.isFinalFragment()) {
+                break;
+            }
+            frame = channel.readOutbound();
+            Assert.assertTrue(frame instanceof ContinuationWebSocketFrame);
+        }
+        //one message for the client
+        Response received = SerializationService.getInstance().getSerializer(MediaType.APPLICATION_JSON).unMarshall(Response.class, json.toString());
+        Assert.assertEquals(HttpResponseStatus.OK, received.getHeader().getResponseCode());
+        Assert.assertTrue(received.getBody() instanceof List);
+        Assert.assertEquals(COUNT, ((List) received.getBody()).size());
+        channel.finish();
+    }
+}
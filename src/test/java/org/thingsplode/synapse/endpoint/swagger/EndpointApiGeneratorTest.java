@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 tamas.csaba@gmail.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsplode.synapse.endpoint.swagger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.thingsplode.synapse.core.Response;
+import org.thingsplode.synapse.endpoint.InvocationStrategy;
+import org.thingsplode.synapse.endpoint.ServiceRegistry;
+import org.thingsplode.synapse.endpoint.handlers.CompressionMetrics;
+import org.thingsplode.synapse.endpoint.handlers.HttpRequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.HttpResponseHandler;
+import org.thingsplode.synapse.endpoint.handlers.RequestHandler;
+import org.thingsplode.synapse.endpoint.handlers.ResponseCompressor;
+
+/**
+ *
+ * @author Csaba Tamas
+ */
+public class EndpointApiGeneratorTest {
+
+    private EndpointApiGenerator generator;
+
+    @Before
+    public void setUp() {
+        generator = new EndpointApiGenerator("1.0", "configured:8080");
+        generator.addPackageToBeScanned(EndpointApiGenerator.class.getPackage().getName());
+    }
+
+    @After
+    public void tearDown() {
+        generator.invalidate();
+    }
+
+    private static String etag(Response response) {
+        return response.getHeader().getProperty("etag").get();
+    }
+
+    private static String content(Response response) {
+        ByteBuf body = (ByteBuf) response.getBody();
+        String content = body.toString(StandardCharsets.UTF_8);
+        body.release();
+        return content;
+    }
+
+    @Test
+    public void testRenderedOncePerHost() {
+        Response first = generator.getListingJson("a:1", null, null);
+        Response second = generator.getListingJson("a:1", null, null);
+        Response other = generator.getListingJson("b:2", null, null);
+        Assert.assertEquals(HttpResponseStatus.OK, first.getHeader().getResponseCode());
+        Assert.assertEquals(etag(first), etag(second));
+        Assert.assertNotEquals(etag(first), etag(other));
+        //the same rendered bytes
+        Assert.assertEquals(((ByteBuf) first.getBody()).memoryAddress(), ((ByteBuf) second.getBody()).memoryAddress());
+        String spec = content(first);
+        Assert.assertTrue(spec.contains("\"a:1\""));
+        Assert.assertEquals(spec, content(second));
+        Assert.assertTrue(content(other).contains("\"b:2\""));
+        //the host of the model is not overwritten by the requests
+        String yaml = content(generator.getListingYaml("", null, null));
+        Assert.assertTrue(yaml.contains("configured:8080"));
+    }
+
+    @Test
+    public void testNotModified() {
+        Response response = generator.getListingJson("a:1", null, null);
+        String etag = etag(response);
+        content(response);
+        Response notModified = generator.getListingJson("a:1", "\"other\", " + etag, null);
+        Assert.assertEquals(HttpResponseStatus.NOT_MODIFIED, notModified.getHeader().getResponseCode());
+        Assert.assertNull(notModified.getBody());
+        Assert.assertEquals(etag, etag(notModified));
+        Assert.assertEquals(HttpResponseStatus.OK, generator.getListingJson("a:1", "\"other\"", null).getHeader().getResponseCode());
+    }
+
+    @Test
+    public void testInvalidated() {
+        Response response = generator.getListingJson("a:1", null, null);
+        ByteBuf rendered = ((ByteBuf) response.getBody());
+        generator.invalidate();
+        //still referenced by the response
+        Assert.assertEquals(1, rendered.refCnt());
+        Response rescanned = generator.getListingJson("a:1", null, null);
+        Assert.assertEquals(etag(response), etag(rescanned));
+        Assert.assertNotEquals(rendered.memoryAddress(), ((ByteBuf) rescanned.getBody()).memoryAddress());
+        Assert.assertNotNull(content(response));
+        //the last reference
+        Assert.assertEquals(0, rendered.refCnt());
+        content(rescanned);
+    }
+
+    private static String gunzip(ByteBuf body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteBufInputStream(body))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            body.release();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGzipRendering() throws IOException {
+        Response identity = generator.getListingJson("a:1", null, null);
+        Response gzipped = generator.getListingJson("a:1", null, "gzip, deflate");
+        Response again = generator.getListingJson("a:1", null, "gzip");
+        Assert.assertFalse(identity.getHeader().getProperty("content-encoding").isPresent());
+        Assert.assertEquals("gzip", gzipped.getHeader().getProperty("content-encoding").get());
+        Assert.assertEquals("accept-encoding", gzipped.getHeader().getProperty("vary").get());
+        //a different representation
+        Assert.assertEquals(etag(identity).replace("\"", "") + "-gz", etag(gzipped).replace("\"", ""));
+        //compressed once
+        Assert.assertEquals(((ByteBuf) gzipped.getBody()).memoryAddress(), ((ByteBuf) again.getBody()).memoryAddress());
+        String spec = content(identity);
+        Assert.assertEquals(spec, gunzip((ByteBuf) gzipped.getBody()));
+        content(again);
+        //the validator of the other representation does not match
+        Response notModified = generator.getListingJson("a:1", etag(gzipped), "gzip");
+        Assert.assertEquals(HttpResponseStatus.NOT_MODIFIED, notModified.getHeader().getResponseCode());
+        Assert.assertEquals(HttpResponseStatus.OK, generator.getListingJson("a:1", etag(gzipped), null).getHeader().getResponseCode());
+    }
+
+    @Test
+    public void testCompressedThroughThePipeline() throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.register("/services/", generator);
+        CompressionMetrics metrics = new CompressionMetrics();
+        //added to the already active channel (the connection context needs an inet address)
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addFirst(new HttpResponseHandler());
+        channel.pipeline().addFirst(new RequestHandler(registry, new DefaultChannelGroup(GlobalEventExecutor.INSTANCE), InvocationStrategy.inline()));
+        channel.pipeline().addFirst(new HttpRequestHandler("test", null));
+        channel.pipeline().addFirst(new ResponseCompressor(100, 6, metrics));
+        try {
+            DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/services/json");
+            request.headers().set(HttpHeaderNames.HOST, "a:1");
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+            channel.writeInbound(request);
+            FullHttpResponse response = channel.readOutbound();
+            Assert.assertEquals(HttpResponseStatus.OK, response.status());
+            Assert.assertEquals("gzip", response.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+            Assert.assertTrue(response.headers().get(HttpHeaderNames.ETAG).endsWith("-gz\""));
+            Assert.assertEquals(response.content().readableBytes(), response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH).intValue());
+            //gzipped once, by the generator
+            Assert.assertTrue(gunzip(response.content()).contains("\"a:1\""));
+            Assert.assertEquals(0, metrics.getCompressedResponses());
+        } finally {
+            channel.finish();
+        }
+    }
+}
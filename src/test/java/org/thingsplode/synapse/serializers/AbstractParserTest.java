@@ -17,6 +17,8 @@ package org.thingsplode.synapse.serializers;
 
 import com.acme.synapse.testdata.services.core.Device;
 import com.acme.synapse.testdata.services.core.Tuple;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.UnsupportedEncodingException;
@@ -103,6 +105,39 @@ public class AbstractParserTest {
         Assert.assertTrue(d.getSubDevices().get(0).getLogicalName().equalsIgnoreCase("subdevice 1 logical name"));
     }
     
+    @Test
+    public void testUnmarshallingFromByteBuf() throws SerializationException {
+        byte[] json = getSerializer().marshall(Device.createTestDevice());
+        //the content is not at the beginning of the buffer and the buffer is larger than the content
+        ByteBuf heap = Unpooled.buffer(json.length + 16).writerIndex(3).readerIndex(3).writeBytes(json);
+        ByteBuf direct = Unpooled.directBuffer(json.length + 16).writeBytes(json);
+        try {
+            for (ByteBuf content : new ByteBuf[]{heap, direct}) {
+                Device d = getSerializer().unMarshall(Device.class, content);
+                Assert.assertNotNull(d);
+                Assert.assertTrue(d.getLogicalName().equalsIgnoreCase("test device logical name"));
+                Assert.assertEquals(json.length, content.readableBytes());
+            }
+            Assert.assertNull(getSerializer().unMarshall(Device.class, Unpooled.EMPTY_BUFFER));
+        } finally {
+            heap.release();
+            direct.release();
+        }
+    }
+
+    @Test
+    public void testMarshallingIntoByteBuf() throws SerializationException {
+        ByteBuf target = Unpooled.directBuffer(8);
+        try {
+            getSerializer().marshall(Device.createTestDevice(), target);
+            Assert.assertTrue(target.readableBytes() > 8);
+            Device d = getSerializer().unMarshall(Device.class, target);
+            Assert.assertTrue(d.getLogicalName().equalsIgnoreCase("test device logical name"));
+        } finally {
+            target.release();
+        }
+    }
+
     @Test
     public void testMarshallingRequestObject() throws UnsupportedEncodingException, SerializationException {
         Request<Device> r = (Request<Device>) Request.create(UUID.randomUUID().toString(), new Uri("/1221221/devices/add"), RequestMethod.GET, Device.createTestDevice());